@@ -13,13 +13,37 @@ extern "C" {
 #define abra_NativeAssembler_CYCLE_KMER_LENGTH_THRESHOLD 43L
 #undef abra_NativeAssembler_MIN_CANDIDATE_BASE_QUALITY
 #define abra_NativeAssembler_MIN_CANDIDATE_BASE_QUALITY 10L
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    createContext
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_createContext
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    releaseContext
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseContext
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    setPackedKeys
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_abra_NativeAssembler_setPackedKeys
+  (JNIEnv *, jclass, jlong, jboolean);
+
 /*
  * Class:     abra_NativeAssembler
  * Method:    assemble
- * Signature: (Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;IIIIIIIDII)Ljava/lang/String;
+ * Signature: (JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;IIIIIIIDII)Ljava/lang/String;
  */
 JNIEXPORT jstring JNICALL Java_abra_NativeAssembler_assemble
-  (JNIEnv *, jobject, jstring, jstring, jstring, jint, jint, jint, jint, jint, jint, jint, jdouble, jint, jint);
+  (JNIEnv *, jobject, jlong, jstring, jstring, jstring, jint, jint, jint, jint, jint, jint, jint, jdouble, jint, jint);
 
 #ifdef __cplusplus
 }
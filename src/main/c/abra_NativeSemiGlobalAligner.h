@@ -15,6 +15,14 @@ extern "C" {
 JNIEXPORT jstring JNICALL Java_abra_NativeSemiGlobalAligner_align
   (JNIEnv *, jobject, jstring, jstring, jint, jint, jint, jint);
 
+/*
+ * Class:     abra_NativeSemiGlobalAligner
+ * Method:    alignBatch
+ * Signature: (Ljava/nio/ByteBuffer;[ILjava/nio/ByteBuffer;[IIIII)[I
+ */
+JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_alignBatch
+  (JNIEnv *, jobject, jobject, jintArray, jobject, jintArray, jint, jint, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -126,6 +126,116 @@ struct my_hash
 	}
 };
 
+//
+// 2 bit packed kmer keys used in place of kmer pointers for smaller kmers.
+// Kmers up to 31 bases fit a single word, up to 63 bases two words.
+// The all ones high word is reserved for the empty / deleted hash map keys.
+// Larger kmers fall back to kmer pointer keys.
+#define MAX_PACKED64_KMER 31
+#define MAX_PACKED128_KMER 63
+
+// Mask for the single word (or high word) of the current kmer size
+__thread uint64_t packed_mask;
+
+struct packed_kmer128 {
+	uint64_t hi;
+	uint64_t lo;
+};
+
+// 64 bit finalizer from MurmurHash3
+inline uint64_t mix64(uint64_t key) {
+	key ^= key >> 33;
+	key *= BIG_CONSTANT(0xff51afd7ed558ccd);
+	key ^= key >> 33;
+	key *= BIG_CONSTANT(0xc4ceb9fe1a85ec53);
+	key ^= key >> 33;
+
+	return key;
+}
+
+struct packed64_hash
+{
+	uint64_t operator()(uint64_t key) const
+	{
+		return mix64(key);
+	}
+};
+
+struct packed64_eq
+{
+	bool operator()(uint64_t k1, uint64_t k2) const
+	{
+		return k1 == k2;
+	}
+};
+
+struct packed128_hash
+{
+	uint64_t operator()(const packed_kmer128& key) const
+	{
+		return mix64(key.lo ^ mix64(key.hi));
+	}
+};
+
+struct packed128_eq
+{
+	bool operator()(const packed_kmer128& k1, const packed_kmer128& k2) const
+	{
+		return k1.lo == k2.lo && k1.hi == k2.hi;
+	}
+};
+
+typedef dense_hash_map<const char*, struct node*, my_hash, eqstr> kmer_node_map;
+typedef dense_hash_map<uint64_t, struct node*, packed64_hash, packed64_eq> packed64_node_map;
+typedef dense_hash_map<packed_kmer128, struct node*, packed128_hash, packed128_eq> packed128_node_map;
+
+inline int base_code(char base) {
+	switch (base) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+	}
+}
+
+// Shift base into the packed kmer.  Returns false if the base cannot be packed.
+inline bool push_base(uint64_t* key, char base) {
+	int code = base_code(base);
+	if (code < 0) {
+		return false;
+	}
+
+	*key = ((*key << 2) | code) & packed_mask;
+	return true;
+}
+
+inline bool push_base(packed_kmer128* key, char base) {
+	int code = base_code(base);
+	if (code < 0) {
+		return false;
+	}
+
+	key->hi = ((key->hi << 2) | (key->lo >> 62)) & packed_mask;
+	key->lo = (key->lo << 2) | code;
+	return true;
+}
+
+// Kmer pointer keys are not packed
+inline bool push_base(const char**, char) {
+	return true;
+}
+
+inline void set_key(uint64_t*, const char*) {
+}
+
+inline void set_key(packed_kmer128*, const char*) {
+}
+
+inline void set_key(const char** key, const char* kmer) {
+	*key = kmer;
+}
+
 struct eqint
 {
   bool operator()(int i1, int i2) const
@@ -141,19 +251,31 @@ struct struct_pool {
 
 #define NODES_PER_BLOCK 10000
 #define MAX_NODE_BLOCKS 500000
-#define READS_PER_BLOCK 10000
+#define READ_BLOCK_SIZE (1 << 20)
 #define MAX_READ_BLOCKS 100000
 
+// Pool blocks and buffers are retained across assemble calls up to these high water marks.
+#define NODE_BLOCKS_TO_RETAIN 2
+#define READ_BLOCKS_TO_RETAIN 4
+#define CONDENSED_SEQ_PAGES_TO_RETAIN 4
+#define MAX_RETAINED_BUCKETS (1 << 17)
+#define MAX_RETAINED_CONTIG_STR_LEN (1 << 20)
+
 struct node_pool {
 	struct node** nodes;
 	int block_idx;
 	int node_idx;
+	// Number of allocated blocks (may exceed block_idx+1 when reused)
+	int num_blocks;
 };
 
 struct read_pool {
 	char** reads;
 	int block_idx;
+	// Byte offset into current block
 	int read_idx;
+	// Number of allocated blocks (may exceed block_idx+1 when reused)
+	int num_blocks;
 };
 
 struct node {
@@ -199,29 +321,95 @@ struct struct_pool* init_pool() {
 	pool->node_pool->nodes[0] = (struct node*) calloc(NODES_PER_BLOCK, sizeof(struct node));
 	pool->node_pool->block_idx = 0;
 	pool->node_pool->node_idx = 0;
+	pool->node_pool->num_blocks = 1;
 
 	pool->read_pool = (struct read_pool*) calloc(1, sizeof(read_pool));
 	pool->read_pool->reads = (char**) calloc(MAX_READ_BLOCKS, sizeof(char*));
-	pool->read_pool->reads[0] = (char*) calloc(READS_PER_BLOCK, sizeof(char) * (read_length+1));
+	pool->read_pool->reads[0] = (char*) calloc(READ_BLOCK_SIZE, sizeof(char));
 	pool->read_pool->block_idx = 0;
 	pool->read_pool->read_idx = 0;
+	pool->read_pool->num_blocks = 1;
 
 	return pool;
 }
 
+// Zero out used nodes and rewind the pool for reuse.  Blocks beyond the high water mark are freed.
+void reset_pool(struct struct_pool* pool) {
+	struct node_pool* node_pool = pool->node_pool;
+	for (int i=0; i<node_pool->block_idx; i++) {
+		memset(node_pool->nodes[i], 0, NODES_PER_BLOCK * sizeof(struct node));
+	}
+	memset(node_pool->nodes[node_pool->block_idx], 0, node_pool->node_idx * sizeof(struct node));
+
+	for (int i=NODE_BLOCKS_TO_RETAIN; i<node_pool->num_blocks; i++) {
+		free(node_pool->nodes[i]);
+		node_pool->nodes[i] = NULL;
+	}
+
+	if (node_pool->num_blocks > NODE_BLOCKS_TO_RETAIN) {
+		node_pool->num_blocks = NODE_BLOCKS_TO_RETAIN;
+	}
+
+	node_pool->block_idx = 0;
+	node_pool->node_idx = 0;
+
+	struct read_pool* read_pool = pool->read_pool;
+	for (int i=READ_BLOCKS_TO_RETAIN; i<read_pool->num_blocks; i++) {
+		free(read_pool->reads[i]);
+		read_pool->reads[i] = NULL;
+	}
+
+	if (read_pool->num_blocks > READ_BLOCKS_TO_RETAIN) {
+		read_pool->num_blocks = READ_BLOCKS_TO_RETAIN;
+	}
+
+	read_pool->block_idx = 0;
+	read_pool->read_idx = 0;
+}
+
+void free_pool(struct struct_pool* pool) {
+	for (int i=0; i<pool->node_pool->num_blocks; i++) {
+		free(pool->node_pool->nodes[i]);
+	}
+
+	free(pool->node_pool->nodes);
+
+	free(pool->node_pool);
+
+	for (int i=0; i<pool->read_pool->num_blocks; i++) {
+		free(pool->read_pool->reads[i]);
+	}
+
+	free(pool->read_pool->reads);
+
+	free(pool->read_pool);
+
+	free(pool);
+}
+
 char* allocate_read(struct_pool* pool) {
-	if (pool->read_pool->block_idx > MAX_READ_BLOCKS) {
+	if (pool->read_pool->block_idx >= MAX_READ_BLOCKS) {
 		fprintf(stderr,"READ BLOCK INDEX TOO BIG!!!!\n");
 		exit(-1);
 	}
 
-	if (pool->read_pool->read_idx >= READS_PER_BLOCK) {
+	if (pool->read_pool->read_idx + read_length+1 > READ_BLOCK_SIZE) {
 		pool->read_pool->block_idx++;
 		pool->read_pool->read_idx = 0;
-		pool->read_pool->reads[pool->read_pool->block_idx] = (char*) calloc(READS_PER_BLOCK, sizeof(char) * (read_length+1));
+
+		if (pool->read_pool->block_idx >= pool->read_pool->num_blocks) {
+			pool->read_pool->reads[pool->read_pool->block_idx] = (char*) calloc(READ_BLOCK_SIZE, sizeof(char));
+			pool->read_pool->num_blocks++;
+		}
 	}
 
-	return &pool->read_pool->reads[pool->read_pool->block_idx][pool->read_pool->read_idx++ * (read_length+1)];
+	char* read = &pool->read_pool->reads[pool->read_pool->block_idx][pool->read_pool->read_idx];
+	pool->read_pool->read_idx += read_length+1;
+
+	// Block may be reused.  Downstream code depends upon null terminator.
+	read[read_length] = '\0';
+
+	return read;
 }
 
 struct node* allocate_node(struct_pool* pool) {
@@ -233,7 +421,12 @@ struct node* allocate_node(struct_pool* pool) {
 	if (pool->node_pool->node_idx >= NODES_PER_BLOCK) {
 		pool->node_pool->block_idx++;
 		pool->node_pool->node_idx = 0;
-		pool->node_pool->nodes[pool->node_pool->block_idx] = (struct node*) calloc(NODES_PER_BLOCK, sizeof(struct node));
+
+		// Retained blocks are zeroed in reset_pool
+		if (pool->node_pool->block_idx >= pool->node_pool->num_blocks) {
+			pool->node_pool->nodes[pool->node_pool->block_idx] = (struct node*) calloc(NODES_PER_BLOCK, sizeof(struct node));
+			pool->node_pool->num_blocks++;
+		}
 	}
 
 	return &pool->node_pool->nodes[pool->node_pool->block_idx][pool->node_pool->node_idx++];
@@ -273,7 +466,7 @@ int is_node_in_list(struct node* node, struct linked_node* list) {
 	struct linked_node* ptr = list;
 
 	while (ptr != NULL) {
-		if (compare_kmer(ptr->node->kmer, node->kmer)) {
+		if (ptr->node == node) {
 			return 1;
 		}
 		ptr = ptr->next;
@@ -345,17 +538,34 @@ int include_kmer(char* sequence, char*qual, int idx) {
 	return include;
 }
 
-void add_to_graph(char sample_id, char* sequence, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct_pool* pool, char* qual, int strand) {
+template <class NodeMap>
+void add_to_graph(char sample_id, char* sequence, NodeMap* nodes, struct_pool* pool, char* qual, int strand) {
 
 	struct node* prev = 0;
 
-	for (int i=0; i<=read_length-kmer_size; i++) {
+	// Packed keys are rolled forward one base at a time
+	typename NodeMap::key_type key = typename NodeMap::key_type();
+	int packed_bases = 0;
+
+	for (int j=0; j<read_length; j++) {
 
-		if (include_kmer(sequence, qual, i)) {
+		if (push_base(&key, sequence[j])) {
+			packed_bases++;
+		} else {
+			packed_bases = 0;
+		}
+
+		int i = j-kmer_size+1;
+		if (i < 0) {
+			continue;
+		}
+
+		if (packed_bases >= kmer_size && include_kmer(sequence, qual, i)) {
 			char* kmer = get_kmer(i, sequence);
 			char* kmer_qual = get_kmer(i, qual);
 
-			struct node* curr = (*nodes)[kmer];
+			set_key(&key, kmer);
+			struct node*& curr = (*nodes)[key];
 
 			if (curr == NULL) {
 				curr = new_node(sample_id, kmer, sequence, pool, strand, kmer_qual);
@@ -364,8 +574,6 @@ void add_to_graph(char sample_id, char* sequence, dense_hash_map<const char*, st
 					fprintf(stderr,"Null node for kmer: %s\n", kmer);
 					exit(-1);
 				}
-
-				(*nodes)[kmer] = curr;
 			} else {
 				increment_node_freq(sample_id, curr, sequence, strand, kmer_qual);
 			}
@@ -381,7 +589,8 @@ void add_to_graph(char sample_id, char* sequence, dense_hash_map<const char*, st
 	}
 }
 
-void build_graph2(const char* input, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct_pool* pool) {
+template <class NodeMap>
+void build_graph2(const char* input, NodeMap* nodes, struct_pool* pool) {
 	int input_len = strlen(input);
 	int record_len = read_length*2 + 2;
 	int num_records = input_len / record_len;
@@ -463,7 +672,7 @@ struct linked_node* remove_node_from_list(struct node* node, struct linked_node*
 
 	char is_found = false;
 	while ((node_ptr != NULL) && (!is_found)) {
-		if (strncmp(node_ptr->node->kmer, node->kmer, kmer_size) == 0) {
+		if (node_ptr->node == node) {
 			if (prev_ptr == NULL) {
 				// Set head of list to next elem
 				list = list->next;
@@ -506,7 +715,8 @@ int is_base_quality_good(struct node* node) {
 	return is_good;
 }
 
-void remove_node_and_cleanup(const char* key, struct node* node, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+template <class NodeMap>
+void remove_node_and_cleanup(typename NodeMap::key_type key, struct node* node, NodeMap* nodes) {
 	// Remove node from "from" lists
 	struct linked_node* to_node = node->toNodes;
 	while (to_node != NULL) {
@@ -546,14 +756,14 @@ char is_min_edge_ratio_reached(int per_sample_total_freq[], struct node* node) {
 	return exceeds_min_ratio;
 }
 
-void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+template <class NodeMap>
+void prune_low_frequency_edges(NodeMap* nodes) {
 
 	long removed_edge_count = 0;
 
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
 		node* curr_node = it->second;
 
 		if (curr_node != NULL) {
@@ -655,13 +865,14 @@ void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash
 }
 
 
-void prune_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, char isUnalignedRegion) {
+template <class NodeMap>
+void prune_graph(NodeMap* nodes, char isUnalignedRegion) {
 
 	// First prune kmers that do not reach base quality sum threshold
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		typename NodeMap::key_type key = it->first;
 		struct node* node = it->second;
 
 		if (node != NULL && !is_base_quality_good(node)) {
@@ -686,10 +897,10 @@ void prune_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* node
 	*/
 
 	if (freq > 1) {
-		for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+		for (typename NodeMap::const_iterator it = nodes->begin();
 					 it != nodes->end(); ++it) {
 
-			const char* key = it->first;
+			typename NodeMap::key_type key = it->first;
 			struct node* node = it->second;
 
 			if ((node != NULL) && ((node->frequency < freq) || (!(node->hasMultipleUniqueReads)))) {
@@ -703,10 +914,10 @@ void prune_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* node
 	prune_low_frequency_edges(nodes);
 
 	// Final pass through cleaning up nodes that are unreachable
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		typename NodeMap::key_type key = it->first;
 		struct node* node = it->second;
 
 		if (node != NULL && node->toNodes == NULL && node->fromNodes == NULL) {
@@ -759,7 +970,7 @@ int is_root(struct node* node) {
 			// Identify nodes that point to themselves with no other incoming edges.
 			// This will be cleaned up during contig building.
 			struct linked_node* from = node->fromNodes;
-			if (from->next == NULL && (strncmp(node->kmer, from->node->kmer, kmer_size) == 0)) {
+			if (from->next == NULL && from->node == node) {
 				is_root = 1;
 			}
 		}
@@ -768,12 +979,13 @@ int is_root(struct node* node) {
 	return is_root;
 }
 
-struct linked_node* identify_root_nodes(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+template <class NodeMap>
+struct linked_node* identify_root_nodes(NodeMap* nodes) {
 
 	struct linked_node* root_nodes = NULL;
 	int count = 0;
 
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 	         it != nodes->end(); ++it) {
 		struct node* node = it->second;
 
@@ -1127,10 +1339,11 @@ int build_contigs(
 	return status;
 }
 
-void cleanup(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct struct_pool* pool, struct linked_node* root_nodes) {
+template <class NodeMap>
+void cleanup(NodeMap* nodes, struct linked_node* root_nodes) {
 
 	// Free linked lists
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 	         it != nodes->end(); ++it) {
 		struct node* node = it->second;
 
@@ -1140,24 +1353,6 @@ void cleanup(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, s
 		}
 	}
 
-	for (int i=0; i<=pool->node_pool->block_idx; i++) {
-		free(pool->node_pool->nodes[i]);
-	}
-
-	free(pool->node_pool->nodes);
-
-	free(pool->node_pool);
-
-	for (int i=0; i<=pool->read_pool->block_idx; i++) {
-		free(pool->read_pool->reads[i]);
-	}
-
-	free(pool->read_pool->reads);
-
-	free(pool->read_pool);
-
-	free(pool);
-
 	cleanup(root_nodes);
 }
 
@@ -1183,34 +1378,44 @@ char prev_has_multiple_outgoing_edges(struct node* node) {
 
 #define CONDENSED_SEQ_MAX_PAGES 1000
 #define CONDENSED_SEQ_SIZE 100000
-__thread int condensed_seq_idx = 0;
-__thread int condensed_seq_page_cnt = 0;
-__thread char* condensed_seq_pages[CONDENSED_SEQ_MAX_PAGES];
 
-char* get_condensed_seq_buf() {
-
-	char* condensed_seq;
+struct condensed_seq_pool {
+	char* pages[CONDENSED_SEQ_MAX_PAGES];
+	// Number of allocated pages.  Pages are retained across assemble calls.
+	int page_cnt;
+	// Current page or -1 if none in use
+	int page_idx;
+	// Offset into current page
+	int idx;
+};
 
-	if (condensed_seq_page_cnt == 0 || (condensed_seq_idx + MAX_CONTIG_SIZE+1 >= CONDENSED_SEQ_SIZE)) {
-		condensed_seq_pages[condensed_seq_page_cnt] = (char*) calloc(CONDENSED_SEQ_SIZE, sizeof(char));
-		condensed_seq_idx = 0;
-		if (debug) {
-			fprintf(stderr, "DEBUG\tAllocating condensed seq page [%d]\n", condensed_seq_page_cnt);
-		}
-		condensed_seq_page_cnt += 1;
+char* get_condensed_seq_buf(struct condensed_seq_pool* seq_pool) {
 
-		if (condensed_seq_page_cnt >= CONDENSED_SEQ_MAX_PAGES) {
+	if (seq_pool->page_idx < 0 || (seq_pool->idx + MAX_CONTIG_SIZE+1 >= CONDENSED_SEQ_SIZE)) {
+		if (seq_pool->page_idx+1 >= CONDENSED_SEQ_MAX_PAGES) {
 			fprintf(stderr, "WARNING\tToo many consdensed seq pages generated. Giving up...");
 			return NULL;
 		}
+
+		seq_pool->page_idx += 1;
+		seq_pool->idx = 0;
+
+		if (seq_pool->page_idx >= seq_pool->page_cnt) {
+			seq_pool->pages[seq_pool->page_idx] = (char*) calloc(CONDENSED_SEQ_SIZE, sizeof(char));
+			if (debug) {
+				fprintf(stderr, "DEBUG\tAllocating condensed seq page [%d]\n", seq_pool->page_idx);
+			}
+			seq_pool->page_cnt += 1;
+		}
 	}
 
-	return condensed_seq_pages[condensed_seq_page_cnt-1] + condensed_seq_idx;
+	return seq_pool->pages[seq_pool->page_idx] + seq_pool->idx;
 }
 
 // NOTE: From nodes are invalid after this step!!!
-void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+template <class NodeMap>
+void condense_graph(NodeMap* nodes, struct condensed_seq_pool* seq_pool) {
+	for (typename NodeMap::const_iterator it = nodes->begin();
 	         it != nodes->end(); ++it) {
 		struct node* node = it->second;
 
@@ -1222,7 +1427,7 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 				struct linked_node* last = next->toNodes;
 
 				int idx = 0;
-				char* seq = get_condensed_seq_buf();
+				char* seq = get_condensed_seq_buf(seq_pool);
 				if (seq == NULL) {
 					return;
 				}
@@ -1259,7 +1464,7 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 				seq[idx] = '\0';
 
 				// Advance condensed seq buffer idx
-				condensed_seq_idx += (strlen(seq) + 1);
+				seq_pool->idx += (strlen(seq) + 1);
 
 				// Update node
 				node->seq = seq;
@@ -1290,17 +1495,18 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 	}
 }
 
-void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, const char* filename) {
+template <class NodeMap>
+void dump_graph(NodeMap* nodes, const char* filename) {
 
 	fprintf(stderr, "Filename: %s\n", filename);
 	FILE* fp = fopen(filename, "w");
 
 	// Output edges
 	fprintf(fp, "digraph vdjer {\n//\tEdges\n");
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		typename NodeMap::key_type key = it->first;
 		node* curr_node = it->second;
 
 		if (!curr_node->is_filtered) {
@@ -1318,10 +1524,10 @@ void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes
 
 	// Output vertices
 	fprintf(fp, "//\tVertices\n");
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (typename NodeMap::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		typename NodeMap::key_type key = it->first;
 		node* curr_node = it->second;
 
 		// Skip orphans
@@ -1359,50 +1565,120 @@ void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes
 }
 
 
-char* assemble(const char* input,
-			  const char* output,
-			  const char* prefix,
-			  int truncate_on_repeat,
-			  int max_contigs,
-			  int max_paths_from_root,
-			  int input_read_length,
-			  int input_kmer_size) {
+//
+// Per thread assembler state retained across assemble calls.
+// Node / read pools, the kmer hash map and output buffers are rewound between calls
+// rather than reallocated.  Anything grown beyond the retain thresholds is released
+// after the call so a single large region does not pin memory indefinitely.
+struct assembler_context {
+	struct struct_pool* pool;
+	// Graph for kmers too large to pack, or all kmers if packing is disabled
+	kmer_node_map* nodes;
+	char* deleted_key;
+	packed64_node_map* packed64_nodes;
+	packed128_node_map* packed128_nodes;
+	struct condensed_seq_pool* seq_pool;
+	char* contig_str;
+	// If false, kmers of all sizes are keyed by string.  Allows tests to compare against packed keys.
+	bool use_packed_keys;
+};
 
+struct assembler_context* create_context() {
+	struct assembler_context* context = (struct assembler_context*) calloc(1, sizeof(assembler_context));
+	context->pool = init_pool();
+	context->nodes = new kmer_node_map();
+	context->nodes->set_empty_key(NULL);
+	// Zeroed key long enough for any kmer size
+	context->deleted_key = (char*) calloc(MAX_KMER_LEN, sizeof(char));
+	context->nodes->set_deleted_key(context->deleted_key);
+
+	// Packed kmers never set the top bits of the (high) word
+	context->packed64_nodes = new packed64_node_map();
+	context->packed64_nodes->set_empty_key(~BIG_CONSTANT(0));
+	context->packed64_nodes->set_deleted_key(~BIG_CONSTANT(1));
+
+	packed_kmer128 empty_key = { ~BIG_CONSTANT(0), 0 };
+	packed_kmer128 deleted_key = { ~BIG_CONSTANT(0), 1 };
+	context->packed128_nodes = new packed128_node_map();
+	context->packed128_nodes->set_empty_key(empty_key);
+	context->packed128_nodes->set_deleted_key(deleted_key);
+	context->seq_pool = (struct condensed_seq_pool*) calloc(1, sizeof(condensed_seq_pool));
+	context->seq_pool->page_idx = -1;
+	context->contig_str = NULL;
+	context->use_packed_keys = true;
+
+	return context;
+}
 
-	// output input params to file here.
-//	FILE *fp = fopen(prefix, "w+");
-//
-//	fprintf(fp, "%s\n%d\n%d", input, input_read_length, input_kmer_size);
-//
-//	fclose(fp);
+template <class NodeMap>
+void reset_nodes(NodeMap* nodes) {
+	if (nodes->bucket_count() > MAX_RETAINED_BUCKETS) {
+		// Shrinks to default size
+		nodes->clear();
+	} else {
+		nodes->clear_no_resize();
+	}
+}
 
-	read_length = input_read_length;
+void reset_context(struct assembler_context* context) {
+	reset_pool(context->pool);
 
-	min_contig_length = read_length + 1;
+	reset_nodes(context->nodes);
+	reset_nodes(context->packed64_nodes);
+	reset_nodes(context->packed128_nodes);
 
-	//TODO: Parameterize mcl - shorter for unaligned region?
-/*
-	if (truncate_on_repeat) {
-		min_contig_length = read_length + 1;
-	} else {
-		min_contig_length = 150;
+	struct condensed_seq_pool* seq_pool = context->seq_pool;
+	for (int i=CONDENSED_SEQ_PAGES_TO_RETAIN; i<seq_pool->page_cnt; i++) {
+		free(seq_pool->pages[i]);
+		seq_pool->pages[i] = NULL;
 	}
-*/
 
-	kmer_size = input_kmer_size;
+	if (seq_pool->page_cnt > CONDENSED_SEQ_PAGES_TO_RETAIN) {
+		seq_pool->page_cnt = CONDENSED_SEQ_PAGES_TO_RETAIN;
+	}
 
-	struct struct_pool* pool = init_pool();
-	dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes = new dense_hash_map<const char*, struct node*, my_hash, eqstr>();
-	nodes->set_empty_key(NULL);
-	char* deleted_key = (char*) calloc(kmer_size, sizeof(char));
-	nodes->set_deleted_key(deleted_key);
+	seq_pool->page_idx = -1;
+	seq_pool->idx = 0;
+}
 
-	long startTime = time(NULL);
-	if (debug) {
-		fprintf(stderr,"Assembling: -> %s\n", output);
+// Releases the contig buffer if the last output was large.  Invalidates the string returned by assemble,
+// so must only be called once the caller is done with it.
+void trim_contig_str(struct assembler_context* context) {
+	if (context->contig_str != NULL && strlen(context->contig_str) > MAX_RETAINED_CONTIG_STR_LEN) {
+		free(context->contig_str);
+		context->contig_str = NULL;
 	}
+}
+
+void release_context(struct assembler_context* context) {
+	free_pool(context->pool);
+	delete context->nodes;
+	free(context->deleted_key);
+	delete context->packed64_nodes;
+	delete context->packed128_nodes;
+
+	for (int i=0; i<context->seq_pool->page_cnt; i++) {
+		free(context->seq_pool->pages[i]);
+	}
+
+	free(context->seq_pool);
+	free(context->contig_str);
+	free(context);
+}
 
-	build_graph2(input, nodes, pool);
+// Builds, prunes and condenses the graph and appends contigs to contig_str.  Returns the assembly status.
+template <class NodeMap>
+int assemble_graph(NodeMap* nodes,
+			  struct assembler_context* context,
+			  const char* input,
+			  const char* prefix,
+			  int truncate_on_repeat,
+			  int max_contigs,
+			  int max_paths_from_root,
+			  char* contig_str,
+			  int& contig_count) {
+
+	build_graph2(input, nodes, context->pool);
 
 	int status = -1;
 
@@ -1424,18 +1700,14 @@ char* assemble(const char* input,
 		root_nodes = identify_root_nodes(nodes);
 	}
 
-	condense_graph(nodes);
+	condense_graph(nodes, context->seq_pool);
 
 //	char graph_dump[1024];
 //	sprintf(graph_dump, "%s.dot", prefix);
 //	dump_graph(nodes, graph_dump);
 
-	int contig_count = 0;
 	char truncate_output = 0;
 
-	char* contig_str = (char*) calloc(MAX_TOTAL_CONTIG_LEN, sizeof(char));
-//	memset(contig_str, 0, MAX_TOTAL_CONTIG_LEN);
-
 	std::priority_queue<double, std::vector<double>, std::greater<double> > contig_scores;
 	vector<char*> all_contig_fragments;
 
@@ -1476,19 +1748,74 @@ char* assemble(const char* input,
 		root_nodes = root_nodes->next;
 	}
 
-	cleanup(nodes, pool, orig_root_nodes);
+	cleanup(nodes, orig_root_nodes);
 
-	delete nodes;
+	return status;
+}
 
-	free(deleted_key);
+// Returned contig string is owned by the context and is valid until trim_contig_str or the next call using the context.
+char* assemble(struct assembler_context* context,
+			  const char* input,
+			  const char* output,
+			  const char* prefix,
+			  int truncate_on_repeat,
+			  int max_contigs,
+			  int max_paths_from_root,
+			  int input_read_length,
+			  int input_kmer_size) {
+
+
+	// output input params to file here.
+//	FILE *fp = fopen(prefix, "w+");
+//
+//	fprintf(fp, "%s\n%d\n%d", input, input_read_length, input_kmer_size);
+//
+//	fclose(fp);
+
+	read_length = input_read_length;
+
+	min_contig_length = read_length + 1;
 
-	// Cleanup condensed seq buffer
-	for (int i=0; i<condensed_seq_page_cnt; i++) {
-		free(condensed_seq_pages[i]);
+	//TODO: Parameterize mcl - shorter for unaligned region?
+/*
+	if (truncate_on_repeat) {
+		min_contig_length = read_length + 1;
+	} else {
+		min_contig_length = 150;
 	}
+*/
+
+	kmer_size = input_kmer_size;
 
-	condensed_seq_idx = 0;
-	condensed_seq_page_cnt = 0;
+	long startTime = time(NULL);
+	if (debug) {
+		fprintf(stderr,"Assembling: -> %s\n", output);
+	}
+
+	int contig_count = 0;
+
+	if (context->contig_str == NULL) {
+		context->contig_str = (char*) calloc(MAX_TOTAL_CONTIG_LEN, sizeof(char));
+	}
+
+	char* contig_str = context->contig_str;
+	contig_str[0] = '\0';
+//	memset(contig_str, 0, MAX_TOTAL_CONTIG_LEN);
+
+	int status;
+
+	if (kmer_size <= MAX_PACKED64_KMER && context->use_packed_keys) {
+		packed_mask = (BIG_CONSTANT(1) << (2*kmer_size)) - 1;
+		status = assemble_graph(context->packed64_nodes, context, input, prefix, truncate_on_repeat, max_contigs, max_paths_from_root,
+				contig_str, contig_count);
+	} else if (kmer_size <= MAX_PACKED128_KMER && context->use_packed_keys) {
+		packed_mask = (BIG_CONSTANT(1) << (2*(kmer_size-32))) - 1;
+		status = assemble_graph(context->packed128_nodes, context, input, prefix, truncate_on_repeat, max_contigs, max_paths_from_root,
+				contig_str, contig_count);
+	} else {
+		status = assemble_graph(context->nodes, context, input, prefix, truncate_on_repeat, max_contigs, max_paths_from_root,
+				contig_str, contig_count);
+	}
 
 	long stopTime = time(NULL);
 
@@ -1500,21 +1827,43 @@ char* assemble(const char* input,
 		fprintf(stderr,"Done assembling(%ld): %s, %d\n", (stopTime-startTime), output, contig_count);
 	}
 
-	if (status == OK || status == TOO_MANY_PATHS_FROM_ROOT) {
-		return contig_str;
-	} else if (status == STOPPED_ON_REPEAT) {
+	if (status == STOPPED_ON_REPEAT) {
 		strcpy(contig_str, "<REPEAT>");
-		return contig_str;
-	} else {
+	} else if (status != OK && status != TOO_MANY_PATHS_FROM_ROOT) {
 		fprintf(stderr, "status: %d\n", status);
 		strcpy(contig_str, "<ERROR>");
-		return contig_str;
 	}
+
+	// Rewind pools and trim anything beyond the high water marks
+	reset_context(context);
+
+	return contig_str;
 }
 
+extern "C"
+ JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_createContext
+   (JNIEnv *env, jclass cls)
+ {
+	return (jlong) create_context();
+ }
+
+extern "C"
+ JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseContext
+   (JNIEnv *env, jclass cls, jlong j_context)
+ {
+	release_context((struct assembler_context*) j_context);
+ }
+
+extern "C"
+ JNIEXPORT void JNICALL Java_abra_NativeAssembler_setPackedKeys
+   (JNIEnv *, jclass, jlong j_context, jboolean j_use_packed_keys)
+ {
+	((struct assembler_context*) j_context)->use_packed_keys = j_use_packed_keys;
+ }
+
 extern "C"
  JNIEXPORT jstring JNICALL Java_abra_NativeAssembler_assemble
-   (JNIEnv *env, jobject obj, jstring j_input, jstring j_output, jstring j_prefix,
+   (JNIEnv *env, jobject obj, jlong j_context, jstring j_input, jstring j_output, jstring j_prefix,
     jint j_truncate_on_output, jint j_max_contigs, jint j_max_paths_from_root,
     jint j_read_length, jint j_kmer_size, jint j_min_node_freq, jint j_min_base_quality,
     jdouble j_min_edge_ratio, jint j_debug, jint j_max_nodes)
@@ -1553,14 +1902,17 @@ extern "C"
 //	printf("min base quality: %d\n", min_base_quality);
 //	printf("min edge ratio: %f\n", min_edge_ratio);
 
-	char* contig_str = assemble(input, output, prefix, truncate_on_output, max_contigs, max_paths_from_root, read_length, kmer_size);
+	struct assembler_context* context = (struct assembler_context*) j_context;
+	char* contig_str = assemble(context, input, output, prefix, truncate_on_output, max_contigs, max_paths_from_root, read_length, kmer_size);
 	jstring ret = env->NewStringUTF(contig_str);
 
+	// Safe to shrink the output buffer now that it has been copied
+	trim_contig_str(context);
+
      //DON'T FORGET THIS LINE!!!
     env->ReleaseStringUTFChars(j_input, input);
     env->ReleaseStringUTFChars(j_output, output);
     env->ReleaseStringUTFChars(j_prefix, prefix);
-    free(contig_str);
 
     fflush(stdout);
 
@@ -1604,7 +1956,9 @@ void profile(const char* filename) {
 	max_nodes = 150000;
 
 
-	char* contigs = assemble(line1,
+	struct assembler_context* context = create_context();
+
+	char* contigs = assemble(context, line1,
 			 "",
 			 prefix,
 			 1,
@@ -1615,7 +1969,8 @@ void profile(const char* filename) {
 
 	printf("\n%s\n", contigs);
 
-	free(contigs);
+	trim_contig_str(context);
+	release_context(context);
 
 	free(line3);
 	free(line2);
@@ -2,6 +2,7 @@
 #include <stdlib.h>
 #include <string.h>
 #include <vector>
+#include <algorithm>
 #include "abra_NativeSemiGlobalAligner.h"
 
 using namespace std;
@@ -17,87 +18,389 @@ using namespace std;
 #define MAX_REF_LEN 5000
 #define MAX_CONTIG_LEN 2000
 
-__thread int matrix[MAX_CONTIG_LEN][MAX_REF_LEN][3];
-__thread char bt[MAX_CONTIG_LEN][MAX_REF_LEN][3];
+// Score for cells outside of the band
+#define NEG_INF -100000000
+
+// Exact seed matches locate the band of diagonals (ref pos - contig pos) to evaluate
+#define SEED_LEN 12
+#define MAX_SEED_OCCURRENCES 16
+#define MIN_DIAGONAL_SEEDS 2
+// Diagonals evaluated on either side of the seeded diagonals and rows evaluated in full
+// beyond the first / last seeds.
+#define BAND_PAD 32
+// Smaller matrices are always evaluated in full
+#define MIN_BANDED_CELLS 100000
 
 __thread int match = 8;
 __thread int mismatch_pen = -32;
 __thread int gap_open = -48;
 __thread int gap_extend = -1;
 
-void populate(const char* seq1, const char* seq2, int seq1_len, int seq2_len) {
+// Score rows (previous and current row for each of I, M, D).  Only 2 rows are retained.
+__thread int* score_buf = NULL;
+__thread int score_buf_size = 0;
+
+// Traceback.  Directions for all 3 matrices are packed into a single byte per cell:
+// bits 0-1: M direction, bit 2: I extends (UP), bit 3: D extends (LEFT)
+__thread unsigned char* bt = NULL;
+__thread long bt_size = 0;
+
+#define BT_M_MASK 3
+#define BT_I_UP 4
+#define BT_D_LEFT 8
+
+//
+// Band of diagonals (c - r) evaluated.  Cells outside of the band score NEG_INF.
+// Rows up to head_rows and from tail_start on are evaluated in full as the
+// alignment may drift anywhere before the first and after the last seed.
+struct band {
+	int lo;
+	int hi;
+	int head_rows;
+	int tail_start;
+	// Number of cells in a banded row
+	int width;
+};
 
-	for (int r=1; r<=seq1_len; r++) {
-		matrix[r][0][I] = gap_open + (r*gap_extend);
-		matrix[r][0][M] = gap_open + (r*gap_extend);
-		matrix[r][0][D] = gap_open + (r*gap_extend);
+inline bool is_banded_row(int r, struct band* band) {
+	return r > band->head_rows && r < band->tail_start;
+}
+
+inline int row_start(int r, struct band* band) {
+	return is_banded_row(r, band) && r + band->lo > 1 ? r + band->lo : 1;
+}
+
+inline int row_end(int r, int seq2_len, struct band* band) {
+	return is_banded_row(r, band) && r + band->hi < seq2_len ? r + band->hi : seq2_len;
+}
+
+// Offset of row r within the traceback buffer.  Row 0 is not stored.
+inline long row_offset(int r, int seq2_len, struct band* band) {
+	if (r <= band->head_rows) {
+		return (long) (r-1) * seq2_len;
 	}
 
-	for (int c=0; c<=seq2_len; c++) {
-		matrix[0][c][I] = gap_open + (c*gap_extend);
-		matrix[0][c][M] = 0;
-		matrix[0][c][D] = gap_open + (c*gap_extend);
+	long offset = (long) band->head_rows * seq2_len;
+	if (r < band->tail_start) {
+		return offset + (long) (r-1-band->head_rows) * band->width;
 	}
 
-	for (int r=2; r<=seq1_len; r++) {
-		bt[r][0][I] = DIR_UP;
-		bt[r][0][D] = DIR_UP;
-		bt[r][0][M] = DIR_UP;
+	offset += (long) (band->tail_start-1-band->head_rows) * band->width;
+	return offset + (long) (r-band->tail_start) * seq2_len;
+}
+
+void init_band(struct band* band, int lo, int hi, int head_rows, int tail_start, int seq2_len) {
+	band->lo = lo;
+	band->hi = hi;
+	band->head_rows = head_rows;
+	band->tail_start = tail_start;
+	band->width = hi - lo + 1 < seq2_len ? hi - lo + 1 : seq2_len;
+}
+
+void init_full_band(struct band* band, int seq1_len, int seq2_len) {
+	init_band(band, -seq1_len, seq2_len, seq1_len, seq1_len+1, seq2_len);
+}
+
+inline int base_code(char base) {
+	switch (base) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+	}
+}
+
+// Identify the band of diagonals supported by exact seed matches between seq1 and seq2.
+// Returns false if the full matrix should be evaluated.
+bool find_band(const char* seq1, const char* seq2, int seq1_len, int seq2_len, struct band* band) {
+
+	if ((long) seq1_len * seq2_len < MIN_BANDED_CELLS || seq1_len < SEED_LEN || seq2_len < SEED_LEN) {
+		return false;
+	}
+
+	unsigned int mask = (1 << (2*SEED_LEN)) - 1;
+
+	// Ref seeds packed as kmer << 32 | position and sorted
+	vector<unsigned long> ref_seeds;
+	ref_seeds.reserve(seq2_len);
+	unsigned int kmer = 0;
+	int valid_bases = 0;
+	for (int c=0; c<seq2_len; c++) {
+		int code = base_code(seq2[c]);
+		if (code < 0) {
+			valid_bases = 0;
+		} else {
+			kmer = ((kmer << 2) | code) & mask;
+			valid_bases++;
+			if (valid_bases >= SEED_LEN) {
+				ref_seeds.push_back(((unsigned long) kmer << 32) | (c-SEED_LEN+1));
+			}
+		}
+	}
+
+	sort(ref_seeds.begin(), ref_seeds.end());
+
+	// Votes per diagonal offset by seq1_len along with first and last seeded contig position
+	int num_diagonals = seq1_len + seq2_len + 1;
+	vector<int> votes(num_diagonals, 0);
+	vector<int> first_seed(num_diagonals, seq1_len);
+	vector<int> last_seed(num_diagonals, 0);
+
+	kmer = 0;
+	valid_bases = 0;
+	for (int r=0; r<seq1_len; r++) {
+		int code = base_code(seq1[r]);
+		if (code < 0) {
+			valid_bases = 0;
+		} else {
+			kmer = ((kmer << 2) | code) & mask;
+			valid_bases++;
+			if (valid_bases >= SEED_LEN) {
+				unsigned long key = (unsigned long) kmer << 32;
+				vector<unsigned long>::iterator first = lower_bound(ref_seeds.begin(), ref_seeds.end(), key);
+				vector<unsigned long>::iterator last = first;
+				while (last != ref_seeds.end() && (*last >> 32) == kmer) {
+					last++;
+				}
+
+				if (last - first > MAX_SEED_OCCURRENCES) {
+					// Repetitive sequence.  The true alignment may not be distinguishable by seeds.
+					return false;
+				}
+
+				int seed_start = r-SEED_LEN+1;
+				for (vector<unsigned long>::iterator it=first; it != last; it++) {
+					int diagonal = (int) (*it & 0xFFFFFFFF) - seed_start + seq1_len;
+					votes[diagonal] += 1;
+					first_seed[diagonal] = min(first_seed[diagonal], seed_start);
+					last_seed[diagonal] = max(last_seed[diagonal], r+1);
+				}
+			}
+		}
+	}
+
+	int lo = seq2_len + 1;
+	int hi = -seq1_len - 1;
+	int seeded_start = seq1_len;
+	int seeded_end = 0;
+	for (int i=0; i<num_diagonals; i++) {
+		if (votes[i] >= MIN_DIAGONAL_SEEDS) {
+			int diagonal = i - seq1_len;
+			lo = min(lo, diagonal);
+			hi = max(hi, diagonal);
+			seeded_start = min(seeded_start, first_seed[i]);
+			seeded_end = max(seeded_end, last_seed[i]);
+		}
+	}
+
+	if (hi < lo) {
+		// No seeds
+		return false;
+	}
+
+	lo -= BAND_PAD;
+	hi += BAND_PAD;
+	int head_rows = seeded_start + BAND_PAD;
+	int tail_start = seeded_end - BAND_PAD + 1;
+
+	// Not worth banding
+	if ((hi - lo + 1) * 2 >= seq2_len || tail_start - head_rows < BAND_PAD) {
+		return false;
+	}
+
+	// Every banded row must intersect the band
+	if (head_rows + 1 + hi < 1 || tail_start - 1 + lo > seq2_len) {
+		return false;
+	}
+
+	init_band(band, lo, hi, head_rows, tail_start, seq2_len);
+	return true;
+}
+
+void ensure_buffers(int seq1_len, int seq2_len, struct band* band) {
+	int score_size = 6 * (seq2_len+2);
+	if (score_size > score_buf_size) {
+		free(score_buf);
+		score_buf = (int*) malloc(score_size * sizeof(int));
+		score_buf_size = score_size;
+	}
+
+	long bt_needed = row_offset(seq1_len+1, seq2_len, band);
+	if (bt_needed > bt_size) {
+		free(bt);
+		bt = (unsigned char*) malloc(bt_needed);
+		bt_size = bt_needed;
+	}
+}
+
+inline char get_bt(int r, int c, int level, int seq2_len, struct band* band) {
+	if (r == 0) {
+		return 0;
+	}
+
+	if (c <= 0) {
+		return c == 0 && r >= 2 ? DIR_UP : 0;
+	}
+
+	unsigned char cell = bt[row_offset(r, seq2_len, band) + c - row_start(r, band)];
+
+	if (level == M) {
+		return cell & BT_M_MASK;
+	} else if (level == I) {
+		return (cell & BT_I_UP) ? DIR_UP : DIR_DIAG;
+	} else {
+		return (cell & BT_D_LEFT) ? DIR_LEFT : DIR_DIAG;
+	}
+}
+
+inline void fill(int* row, int start, int end, int value) {
+	for (int c=start; c<=end; c++) {
+		row[c] = value;
+	}
+}
+
+// Populates score rows and traceback within the band.
+// Returns the final row M scores.
+int* populate(const char* seq1, const char* seq2, int seq1_len, int seq2_len, struct band* band) {
+
+	int* prev_i = score_buf;
+	int* prev_m = prev_i + (seq2_len+2);
+	int* prev_d = prev_m + (seq2_len+2);
+	int* curr_i = prev_d + (seq2_len+2);
+	int* curr_m = curr_i + (seq2_len+2);
+	int* curr_d = curr_m + (seq2_len+2);
+
+	// Thread locals copied to avoid per cell TLS lookups
+	const int match = ::match;
+	const int mismatch_pen = ::mismatch_pen;
+	const int gap_open = ::gap_open;
+	const int gap_extend = ::gap_extend;
+	unsigned char* const bt = ::bt;
+
+	for (int c=0; c<=seq2_len; c++) {
+		prev_i[c] = gap_open + (c*gap_extend);
+		prev_m[c] = 0;
+		prev_d[c] = gap_open + (c*gap_extend);
 	}
 
 	for (int r=1; r<=seq1_len; r++) {
-		for (int c=1; c<=seq2_len; c++) {
+
+		int start = row_start(r, band);
+		int end = row_end(r, seq2_len, band);
+
+		curr_i[0] = gap_open + (r*gap_extend);
+		curr_m[0] = gap_open + (r*gap_extend);
+		curr_d[0] = gap_open + (r*gap_extend);
+
+		// Cells beyond the band.  The next row reads at most one cell past either end
+		// unless it is evaluated in full.
+		int fill_start = r+1 == band->tail_start ? 1 : start-1;
+		int fill_end = r+1 == band->tail_start ? seq2_len : end+1;
+
+		if (start > 1) {
+			fill(curr_i, fill_start, start-1, NEG_INF);
+			fill(curr_m, fill_start, start-1, NEG_INF);
+			fill(curr_d, fill_start, start-1, NEG_INF);
+		}
+
+		if (end < seq2_len) {
+			fill(curr_i, end+1, fill_end, NEG_INF);
+			fill(curr_m, end+1, fill_end, NEG_INF);
+			fill(curr_d, end+1, fill_end, NEG_INF);
+		}
+
+		unsigned char* bt_row = bt + row_offset(r, seq2_len, band);
+		char base1 = seq1[r-1];
+
+		// Left and diagonal neighbors carried across columns
+		int left_m = curr_m[start-1];
+		int left_d = curr_d[start-1];
+		int diag_m = prev_m[start-1];
+
+		for (int c=start; c<=end; c++) {
+
+			unsigned char cell = 0;
+			int up_m = prev_m[c];
 
 			//
 			// Insertion (lower) matrix
-			int insertExt = matrix[r-1][c][I] + gap_extend;
-			int insertOpen = matrix[r-1][c][M] + gap_open;
+			int insertExt = prev_i[c] + gap_extend;
+			int insertOpen = up_m + gap_open;
+			int insert;
 
 			if (insertExt >= insertOpen) {
-				matrix[r][c][I] = insertExt;
-				bt[r][c][I] = DIR_UP;
+				insert = insertExt;
+				cell |= BT_I_UP;
 			} else {
-				matrix[r][c][I] = insertOpen;
-				bt[r][c][I] = DIR_DIAG;
+				insert = insertOpen;
 			}
 
 			// Deletion (upper) matrix
-			int deleteExt = matrix[r][c-1][D] + gap_extend;
-			int deleteOpen = matrix[r][c-1][M] + gap_open;
+			int deleteExt = left_d + gap_extend;
+			int deleteOpen = left_m + gap_open;
+			int del;
 
 			if (deleteExt >= deleteOpen) {
-				matrix[r][c][D] = deleteExt;
-				bt[r][c][D] = DIR_LEFT;
+				del = deleteExt;
+				cell |= BT_D_LEFT;
 			} else {
-				matrix[r][c][D] = deleteOpen;
-				bt[r][c][D] = DIR_DIAG;
+				del = deleteOpen;
 			}
 
 			//
 			// Match/mismatch (middle) matrix
-			int insertClose = matrix[r][c][I];
-			int baseMatch = seq1[r-1] == seq2[c-1] ? (matrix[r-1][c-1][M] + match) : (matrix[r-1][c-1][M] + mismatch_pen);
-			int deleteClose = matrix[r][c][D];
-
-			if (baseMatch >=insertClose && baseMatch >= deleteClose) {
-				matrix[r][c][M] = baseMatch;
-				bt[r][c][M] = DIR_DIAG;
-			} else if (insertClose >= deleteClose) {
-				matrix[r][c][M] = insertClose;
-				bt[r][c][M] = DIR_UP;
+			int baseMatch = base1 == seq2[c-1] ? (diag_m + match) : (diag_m + mismatch_pen);
+			int score;
+
+			if (baseMatch >= insert && baseMatch >= del) {
+				score = baseMatch;
+				cell |= DIR_DIAG;
+			} else if (insert >= del) {
+				score = insert;
+				cell |= DIR_UP;
 			} else {
-				matrix[r][c][M] = deleteClose;
-				bt[r][c][M] = DIR_LEFT;
+				score = del;
+				cell |= DIR_LEFT;
 			}
+
+			curr_i[c] = insert;
+			curr_d[c] = del;
+			curr_m[c] = score;
+			bt_row[c-start] = cell;
+
+			left_m = score;
+			left_d = del;
+			diag_m = up_m;
 		}
+
+		int* temp = prev_i; prev_i = curr_i; curr_i = temp;
+		temp = prev_m; prev_m = curr_m; curr_m = temp;
+		temp = prev_d; prev_d = curr_d; curr_d = temp;
 	}
+
+	return prev_m;
 }
 
+// BAM cigar operator codes
+#define BAM_CMATCH 0
+#define BAM_CINS   1
+#define BAM_CDEL   2
+
 struct cigar_elem {
 	char op;
 	int len;
 };
 
+struct sg_result {
+	int score;
+	int second_best;
+	int ref_idx;
+	int ref_end_idx;
+	// Cigar elements in reverse order
+	vector<cigar_elem> elems;
+};
+
 void update_curr_elem(char op, vector <cigar_elem> & elems) {
 
 	if (elems.size() == 0 || elems.back().op != op) {
@@ -111,18 +414,25 @@ void update_curr_elem(char op, vector <cigar_elem> & elems) {
 }
 
 
-void backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, char* result) {
+inline bool is_band_edge(int r, int c, int seq2_len, struct band* band) {
+	return is_banded_row(r, band) && c > 0 &&
+		((c == r + band->lo && c > 1) || (c == r + band->hi && c < seq2_len));
+}
+
+// Returns false if the banded alignment reaches the edge of the band
+bool backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, int* last_row,
+		struct band* band, struct sg_result& result) {
 	int best_idx = -1;
 	int best_score = -300000000;
 	int second_best_score = -300000000;
 	int row = seq1_len;
 
-	for (int c=1; c<=seq2_len; c++) {
-		if (matrix[row][c][M] > best_score) {
+	for (int c=row_start(row, band); c<=row_end(row, seq2_len, band); c++) {
+		if (last_row[c] > best_score) {
 			best_idx = c;
-			best_score = matrix[row][c][M];
-		} else if (matrix[row][c][M] > second_best_score) {
-			second_best_score = matrix[row][c][M];
+			best_score = last_row[c];
+		} else if (last_row[c] > second_best_score) {
+			second_best_score = last_row[c];
 		}
 	}
 
@@ -130,12 +440,17 @@ void backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, c
 	int c = best_idx;
 	int ref_end_idx = c;
 
-	vector<cigar_elem> elems;
+	vector<cigar_elem>& elems = result.elems;
+	elems.clear();
 
 	int level = M;
 
 	while (r > 0) {
-		char curr_bt = bt[r][c][level];
+		if (is_band_edge(r, c, seq2_len, band)) {
+			return false;
+		}
+
+		char curr_bt = get_bt(r, c, level, seq2_len, band);
 
 		if (curr_bt == DIR_DIAG) {
 			if (level == M) {
@@ -179,25 +494,32 @@ void backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, c
 		}
 	}
 
-	int ref_idx = c;
-
-	char cigar[2056];
-	int idx = 0;
-	for (int i=elems.size()-1; i>=0; i--) {
-		snprintf(cigar+idx, 2056-idx, "%d%c", elems[i].len, elems[i].op);
-		idx = strlen(cigar);
-	}
+	result.score = best_score;
+	result.second_best = second_best_score;
+	result.ref_idx = c;
+	result.ref_end_idx = ref_end_idx;
 
-	sprintf(result, "%d:%d:%d:%d:%s", best_score, second_best_score, ref_idx, ref_end_idx, cigar);
+	return true;
 }
 
-void align(const char* seq1, const char* seq2, char* result) {
+void align(const char* seq1, int seq1_len, const char* seq2, int seq2_len, struct sg_result& result) {
 
-	int seq1_len = strlen(seq1);
-	int seq2_len = strlen(seq2);
+	struct band band;
+	bool is_banded = find_band(seq1, seq2, seq1_len, seq2_len, &band);
 
-	populate(seq1, seq2, seq1_len, seq2_len);
-	backtrack(seq1, seq2, seq1_len, seq2_len, result);
+	if (is_banded) {
+		ensure_buffers(seq1_len, seq2_len, &band);
+		int* last_row = populate(seq1, seq2, seq1_len, seq2_len, &band);
+		if (backtrack(seq1, seq2, seq1_len, seq2_len, last_row, &band, result)) {
+			return;
+		}
+	}
+
+	// Full matrix
+	init_full_band(&band, seq1_len, seq2_len);
+	ensure_buffers(seq1_len, seq2_len, &band);
+	int* last_row = populate(seq1, seq2, seq1_len, seq2_len, &band);
+	backtrack(seq1, seq2, seq1_len, seq2_len, last_row, &band, result);
 }
 
 extern "C"
@@ -213,8 +535,19 @@ extern "C"
 	const char* seq1  = env->GetStringUTFChars(j_seq1, 0);
 	const char* seq2  = env->GetStringUTFChars(j_seq2, 0);
 
+	struct sg_result sg_result;
+	align(seq1, strlen(seq1), seq2, strlen(seq2), sg_result);
+
+	char cigar[2056];
+	int idx = 0;
+	cigar[0] = '\0';
+	for (int i=sg_result.elems.size()-1; i>=0; i--) {
+		snprintf(cigar+idx, 2056-idx, "%d%c", sg_result.elems[i].len, sg_result.elems[i].op);
+		idx = strlen(cigar);
+	}
+
 	char result[4098];
-	align(seq1, seq2, result);
+	sprintf(result, "%d:%d:%d:%d:%s", sg_result.score, sg_result.second_best, sg_result.ref_idx, sg_result.ref_end_idx, cigar);
 
 //	fprintf(stderr, "SGA result: %s\n", result);
 
@@ -226,6 +559,70 @@ extern "C"
 	return ret;
 }
 
+inline int bam_cigar_op(char op) {
+	switch (op) {
+		case 'I': return BAM_CINS;
+		case 'D': return BAM_CDEL;
+		default: return BAM_CMATCH;
+	}
+}
+
+//
+// Aligns every sequence against every reference.  Sequences and references are concatenated
+// in direct buffers with lengths specified separately.
+// Results are returned for each sequence / reference pair in sequence major order as:
+// score, secondBest, pos, endPos, num_cigar_elems, followed by BAM encoded cigar elements (len << 4 | op)
+extern "C"
+ JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_alignBatch
+   (JNIEnv *env, jobject obj, jobject j_seqs, jintArray j_seq_lens, jobject j_refs, jintArray j_ref_lens,
+		   jint j_match, jint j_mismatch, jint j_gap_open, jint j_gap_extend) {
+
+	match = j_match;
+	mismatch_pen = j_mismatch;
+	gap_open = j_gap_open;
+	gap_extend = j_gap_extend;
+
+	const char* seqs = (const char*) env->GetDirectBufferAddress(j_seqs);
+	const char* refs = (const char*) env->GetDirectBufferAddress(j_refs);
+
+	int num_seqs = env->GetArrayLength(j_seq_lens);
+	int num_refs = env->GetArrayLength(j_ref_lens);
+
+	vector<jint> seq_lens(num_seqs);
+	vector<jint> ref_lens(num_refs);
+	env->GetIntArrayRegion(j_seq_lens, 0, num_seqs, seq_lens.data());
+	env->GetIntArrayRegion(j_ref_lens, 0, num_refs, ref_lens.data());
+
+	vector<jint> output;
+	struct sg_result sg_result;
+
+	const char* seq = seqs;
+	for (int i=0; i<num_seqs; i++) {
+		const char* ref = refs;
+		for (int j=0; j<num_refs; j++) {
+			align(seq, seq_lens[i], ref, ref_lens[j], sg_result);
+
+			output.push_back(sg_result.score);
+			output.push_back(sg_result.second_best);
+			output.push_back(sg_result.ref_idx);
+			output.push_back(sg_result.ref_end_idx);
+			output.push_back(sg_result.elems.size());
+
+			for (int e=sg_result.elems.size()-1; e>=0; e--) {
+				output.push_back((sg_result.elems[e].len << 4) | bam_cigar_op(sg_result.elems[e].op));
+			}
+
+			ref += ref_lens[j];
+		}
+		seq += seq_lens[i];
+	}
+
+	jintArray ret = env->NewIntArray(output.size());
+	env->SetIntArrayRegion(ret, 0, output.size(), output.data());
+
+	return ret;
+}
+
 /*
 int main(int argc, char* argv[]) {
 
@@ -234,10 +631,10 @@ int main(int argc, char* argv[]) {
 
 
 	for (int i=0; i<1000; i++) {
-		char result[4098];
-		align(seq, ref, result);
+		struct sg_result result;
+		align(seq, strlen(seq), ref, strlen(ref), result);
 
-		printf("result: %s\n", result);
+		printf("result: %d\n", result.score);
 	}
 }
 */
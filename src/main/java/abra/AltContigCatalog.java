@@ -0,0 +1,464 @@
+package abra;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import abra.AltContigGenerator.Indel;
+import abra.SAMRecordUtils.ReadBlock;
+
+/**
+ * Per chromosome chunk catalog of observed indels, complex indels and high quality soft clipped reads.
+ * Not thread safe.
+ *
+ * Each read is cataloged once as it is cached for region processing and evicted along with the
+ * chunk's read cache.  Simple indels are aggregated by identity and ordered by position, so
+ * gathering a region's observed indels is a range query over the catalog instead of a rescan
+ * of the region's reads.  Complex indels and soft clipped reads are ordered by read start and
+ * filtered by read overlap at query time.
+ *
+ * Soft clipped reads are cataloged if the read's clipping qualifies independent of region.
+ * Region position and the read's assembly / merge state are evaluated by AltContigGenerator.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class AltContigCatalog {
+
+	// TODO: Multiple arbitrary cutoffs here, need to optimize
+	// Phred 13 is ~5% error rate
+	private int minBaseQual;
+	private double softClipFraction;
+	private int minSoftClipLength;
+	private boolean useObservedIndels;
+	private boolean useSoftClippedReads;
+	private int minMapq;
+
+	// Distinct simple indels ordered by position
+	private int[] indelPositions = new int[16];
+	private IndelSupport[] indels = new IndelSupport[16];
+	private int numIndels = 0;
+	private Map<Indel, IndelSupport> indelLookup = new HashMap<Indel, IndelSupport>();
+
+	// Reads with multiple indels and reads with qualifying soft clips ordered by read start
+	private ReadEvents<ComplexIndel> complexIndels = new ReadEvents<ComplexIndel>();
+	private ReadEvents<SoftClip> softClips = new ReadEvents<SoftClip>();
+
+	public AltContigCatalog(int minBaseQual, int softClipFraction, int minSoftClipLength,
+			boolean useObservedIndels, boolean useSoftClippedReads, int minMapq) {
+		this.minBaseQual = minBaseQual;
+		this.softClipFraction = (double) softClipFraction / 100.0;
+		this.minSoftClipLength = minSoftClipLength;
+		this.useObservedIndels = useObservedIndels;
+		this.useSoftClippedReads = useSoftClippedReads;
+		this.minMapq = minMapq;
+	}
+
+	/**
+	 * Catalog the input read's observed indels and soft clipping.
+	 */
+	public void addRead(SAMRecordWrapper readWrapper) {
+		SAMRecord read = readWrapper.getSamRecord();
+
+		if (read.getMappingQuality() <= minMapq) {
+			return;
+		}
+
+		if (useObservedIndels) {
+			addIndels(readWrapper);
+		}
+
+		if (useSoftClippedReads) {
+			addSoftClip(readWrapper);
+		}
+	}
+
+	private void addIndels(SAMRecordWrapper readWrapper) {
+		SAMRecord read = readWrapper.getSamRecord();
+
+		List<CigarElement> elems = read.getCigar().getCigarElements();
+		// Here we require indel to be bracketed by 2 M elements
+		if (elems.size() == 3 &&
+			elems.get(0).getOperator() == CigarOperator.M &&
+			elems.get(2).getOperator() == CigarOperator.M &&
+			(elems.get(1).getOperator() == CigarOperator.D || elems.get(1).getOperator() == CigarOperator.I)) {
+
+			String insertBases = null;
+			char type = '0';
+
+			if (elems.get(1).getOperator() == CigarOperator.D) {
+				type = 'D';
+			} else if (elems.get(1).getOperator() == CigarOperator.I) {
+				type = 'I';
+				int start = elems.get(0).getLength();
+				int stop =  start + elems.get(1).getLength();
+				insertBases = read.getReadString().substring(start, stop);
+			}
+
+			int refStart = read.getAlignmentStart() + elems.get(0).getLength();
+
+			Indel indel = new Indel(type, read.getReferenceName(), refStart, elems.get(1).getLength(), insertBases, elems.get(0).getLength(), readWrapper.samRecordBaseQualSum());
+			IndelSupport support = indelLookup.get(indel);
+			if (support == null) {
+				support = new IndelSupport(indel);
+				indelLookup.put(indel, support);
+				insertIndel(support);
+			}
+
+			support.add(read.getAlignmentStart(), elems.get(0).getLength(), readWrapper.samRecordBaseQualSum());
+
+		} else if(SAMRecordUtils.getNumGaps(read) > 1) {
+			// Handle read containing multiple indels (create single contig)
+			List<Indel> indelComponents = new ArrayList<Indel>();
+			List<ReadBlock> readBlocks = SAMRecordUtils.getReadBlocks(read.getCigar(), read.getAlignmentStart());
+			int firstIdx = -1;
+
+			// Loop through cigar ignoring edge elements
+			for (int i=1; i<read.getCigar().getCigarElements().size()-1; i++) {
+				CigarElement elem = read.getCigar().getCigarElements().get(i);
+				if (elem.getOperator() == CigarOperator.D || elem.getOperator() == CigarOperator.I || elem.getOperator() == CigarOperator.N) {
+					ReadBlock block = readBlocks.get(i);
+					char type = '0';
+					String insertBases = null;
+					if (elem.getOperator() == CigarOperator.D || elem.getOperator() == CigarOperator.N) {
+						// For purposes of contig sequence generation, we treat introns as deletions here
+						type = 'D';
+					} else {
+						type = 'I';
+						int start = block.getReadPos()-1;
+						int stop = start + elem.getLength();
+						insertBases = read.getReadString().substring(start, stop);
+					}
+
+					if (firstIdx == -1) {
+						firstIdx = block.getReadPos()-1;
+					}
+
+					Indel indel = new Indel(type, read.getReferenceName(), block.getRefPos(), elem.getLength(), insertBases, block.getReadPos()-1, readWrapper.samRecordBaseQualSum());
+					indelComponents.add(indel);
+				}
+			}
+
+			if (indelComponents.size() == 0) {
+				Logger.debug("Empty complex indel components for read: %s" , read.getSAMString());
+			} else {
+				complexIndels.add(readWrapper, new ComplexIndel(read.getReferenceName(), indelComponents, firstIdx, readWrapper.samRecordBaseQualSum()));
+			}
+		}
+	}
+
+	private void insertIndel(IndelSupport support) {
+		if (numIndels == indels.length) {
+			indels = Arrays.copyOf(indels, numIndels*2);
+			indelPositions = Arrays.copyOf(indelPositions, numIndels*2);
+		}
+
+		// Reads arrive in coordinate order, so new indels are usually at or near the end
+		int idx = numIndels;
+		while (idx > 0 && indelPositions[idx-1] > support.indel.pos) {
+			idx--;
+		}
+
+		System.arraycopy(indels, idx, indels, idx+1, numIndels-idx);
+		System.arraycopy(indelPositions, idx, indelPositions, idx+1, numIndels-idx);
+		indels[idx] = support;
+		indelPositions[idx] = support.indel.pos;
+		numIndels += 1;
+	}
+
+	private void addSoftClip(SAMRecordWrapper readWrapper) {
+		SAMRecord read = readWrapper.getSamRecord();
+
+		boolean isLeadingClipHighQuality = false;
+		boolean isTrailingClipHighQuality = false;
+
+		if (read.getCigarLength() > 1) {
+			CigarElement elem = read.getCigar().getCigarElement(0);
+			if (elem.getOperator() == CigarOperator.S && elem.getLength() >= minSoftClipLength) {
+				isLeadingClipHighQuality = isHighQualitySoftClip(readWrapper.getNumHighQualLeadingClipBases(minBaseQual), elem.getLength());
+			}
+
+			elem = read.getCigar().getCigarElement(read.getCigarLength()-1);
+			if (elem.getOperator() == CigarOperator.S && elem.getLength() >= minSoftClipLength) {
+				isTrailingClipHighQuality = isHighQualitySoftClip(readWrapper.getNumHighQualTrailingClipBases(minBaseQual), elem.getLength());
+			}
+		}
+
+		if (isLeadingClipHighQuality || isTrailingClipHighQuality) {
+			softClips.add(readWrapper, new SoftClip(readWrapper, isLeadingClipHighQuality, isTrailingClipHighQuality));
+		}
+	}
+
+	private boolean isHighQualitySoftClip(int numHighQualBases, int length) {
+		int requiredHighQualBases = (int) (softClipFraction * length);
+		return numHighQualBases > 0 && numHighQualBases >= requiredHighQualBases;
+	}
+
+	/**
+	 * Returns observed indels in reads overlapping the input region with support from those reads.
+	 * Simple indels must start within the region.  The returned Indels are new instances.
+	 */
+	public List<Indel> getIndels(Feature region) {
+		List<Indel> regionIndels = new ArrayList<Indel>();
+
+		int start = (int) region.getStart();
+		int end = (int) region.getEnd();
+
+		// First indel at or after region start
+		int low = 0;
+		int high = numIndels;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (indelPositions[mid] < start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		for (int i=low; i<numIndels && indelPositions[i] <= end; i++) {
+			if (indels[i].indel.chr.equals(region.getSeqname())) {
+				regionIndels.add(indels[i].toIndel());
+			}
+		}
+
+		// Complex indels are evaluated for all reads overlapping the region
+		Map<Indel, Indel> complex = new HashMap<Indel, Indel>();
+		for (int i=complexIndels.findFirst(region); i<complexIndels.size && complexIndels.starts[i] <= end; i++) {
+			if (region.overlapsRead(complexIndels.reads[i].getSamRecord())) {
+				ComplexIndel observed = complexIndels.getEvent(i);
+				Indel indel = new Indel('C', observed.chr, observed.components, observed.readPos, observed.readBaseQuals);
+				if (complex.containsKey(indel)) {
+					complex.get(indel).addReadPosition(observed.readPos, observed.readBaseQuals);
+				} else {
+					complex.put(indel, indel);
+				}
+			}
+		}
+
+		regionIndels.addAll(complex.values());
+
+		return regionIndels;
+	}
+
+	/**
+	 * Returns reads overlapping the input region with high quality soft clipping on a side
+	 * of the read near the region.
+	 */
+	public List<SAMRecordWrapper> getSoftClippedReads(Feature region) {
+		List<SAMRecordWrapper> reads = new ArrayList<SAMRecordWrapper>();
+
+		for (int i=softClips.findFirst(region); i<softClips.size && softClips.starts[i] <= region.getEnd(); i++) {
+			SAMRecord read = softClips.reads[i].getSamRecord();
+			if (region.overlapsRead(read)) {
+				SoftClip softClip = softClips.getEvent(i);
+				if ((softClip.isLeadingClipHighQuality && read.getAlignmentStart() >= region.getStart()-read.getReadLength()) ||
+					(softClip.isTrailingClipHighQuality && read.getAlignmentEnd() <= region.getEnd()+read.getReadLength())) {
+					reads.add(softClip.readWrapper);
+				}
+			}
+		}
+
+		return reads;
+	}
+
+	/**
+	 * Remove reads with alignment start before the input position.
+	 */
+	public void evictBefore(int pos) {
+		int numRetained = 0;
+		for (int i=0; i<numIndels; i++) {
+			IndelSupport support = indels[i];
+			support.evictBefore(pos);
+			if (support.size > 0) {
+				indels[numRetained] = support;
+				indelPositions[numRetained] = indelPositions[i];
+				numRetained += 1;
+			} else {
+				indelLookup.remove(support.indel);
+			}
+		}
+
+		Arrays.fill(indels, numRetained, numIndels, null);
+		numIndels = numRetained;
+
+		complexIndels.evictBefore(pos);
+		softClips.evictBefore(pos);
+	}
+
+	public void clear() {
+		Arrays.fill(indels, 0, numIndels, null);
+		numIndels = 0;
+		indelLookup.clear();
+		complexIndels.clear();
+		softClips.clear();
+	}
+
+	/**
+	 * Reads supporting a simple indel.  Reads arrive in coordinate order, so are ordered by read start.
+	 */
+	static class IndelSupport {
+		Indel indel;
+		int[] readStarts = new int[4];
+		int[] readPositions = new int[4];
+		int[] readBaseQuals = new int[4];
+		int size = 0;
+
+		IndelSupport(Indel indel) {
+			this.indel = indel;
+		}
+
+		void add(int readStart, int readPos, int baseQuals) {
+			if (size == readStarts.length) {
+				readStarts = Arrays.copyOf(readStarts, size*2);
+				readPositions = Arrays.copyOf(readPositions, size*2);
+				readBaseQuals = Arrays.copyOf(readBaseQuals, size*2);
+			}
+
+			readStarts[size] = readStart;
+			readPositions[size] = readPos;
+			readBaseQuals[size] = baseQuals;
+			size += 1;
+		}
+
+		void evictBefore(int pos) {
+			int numRetained = 0;
+			for (int i=0; i<size; i++) {
+				if (readStarts[i] >= pos) {
+					readStarts[numRetained] = readStarts[i];
+					readPositions[numRetained] = readPositions[i];
+					readBaseQuals[numRetained] = readBaseQuals[i];
+					numRetained += 1;
+				}
+			}
+			size = numRetained;
+		}
+
+		Indel toIndel() {
+			Indel regionIndel = new Indel(indel.type, indel.chr, indel.pos, indel.length, indel.insert, readPositions[0], readBaseQuals[0]);
+			for (int i=1; i<size; i++) {
+				regionIndel.addReadPosition(readPositions[i], readBaseQuals[i]);
+			}
+			return regionIndel;
+		}
+	}
+
+	static class ComplexIndel {
+		String chr;
+		List<Indel> components;
+		int readPos;
+		int readBaseQuals;
+
+		ComplexIndel(String chr, List<Indel> components, int readPos, int readBaseQuals) {
+			this.chr = chr;
+			this.components = components;
+			this.readPos = readPos;
+			this.readBaseQuals = readBaseQuals;
+		}
+	}
+
+	static class SoftClip {
+		SAMRecordWrapper readWrapper;
+		boolean isLeadingClipHighQuality;
+		boolean isTrailingClipHighQuality;
+
+		SoftClip(SAMRecordWrapper readWrapper, boolean isLeadingClipHighQuality, boolean isTrailingClipHighQuality) {
+			this.readWrapper = readWrapper;
+			this.isLeadingClipHighQuality = isLeadingClipHighQuality;
+			this.isTrailingClipHighQuality = isTrailingClipHighQuality;
+		}
+	}
+
+	/**
+	 * Per read events ordered by read alignment start
+	 */
+	static class ReadEvents<T> {
+		int[] starts = new int[16];
+		SAMRecordWrapper[] reads = new SAMRecordWrapper[16];
+		Object[] events = new Object[16];
+		int size = 0;
+
+		// Longest read span seen.  Bounds the search for reads overlapping a region.
+		int maxSpan = 0;
+
+		@SuppressWarnings("unchecked")
+		T getEvent(int idx) {
+			return (T) events[idx];
+		}
+
+		void add(SAMRecordWrapper readWrapper, T event) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size*2);
+				reads = Arrays.copyOf(reads, size*2);
+				events = Arrays.copyOf(events, size*2);
+			}
+
+			SAMRecord read = readWrapper.getSamRecord();
+			int start = read.getAlignmentStart();
+
+			// Reads arrive in coordinate order, so this is usually the end
+			int idx = size;
+			while (idx > 0 && starts[idx-1] > start) {
+				idx--;
+			}
+
+			System.arraycopy(starts, idx, starts, idx+1, size-idx);
+			System.arraycopy(reads, idx, reads, idx+1, size-idx);
+			System.arraycopy(events, idx, events, idx+1, size-idx);
+			starts[idx] = start;
+			reads[idx] = readWrapper;
+			events[idx] = event;
+			size += 1;
+
+			// Same read end used by Feature.overlapsRead
+			int end = Math.max(read.getAlignmentEnd(), start + read.getReadLength());
+			maxSpan = Math.max(maxSpan, end - start);
+		}
+
+		/**
+		 * Index of the first read that may overlap the input region
+		 */
+		int findFirst(Feature region) {
+			long minStart = region.getStart() - maxSpan;
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] < minStart) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+
+			return low;
+		}
+
+		void evictBefore(int pos) {
+			int numEvicted = 0;
+			while (numEvicted < size && starts[numEvicted] < pos) {
+				numEvicted += 1;
+			}
+
+			if (numEvicted > 0) {
+				System.arraycopy(starts, numEvicted, starts, 0, size-numEvicted);
+				System.arraycopy(reads, numEvicted, reads, 0, size-numEvicted);
+				System.arraycopy(events, numEvicted, events, 0, size-numEvicted);
+				Arrays.fill(reads, size-numEvicted, size, null);
+				Arrays.fill(events, size-numEvicted, size, null);
+				size -= numEvicted;
+			}
+		}
+
+		void clear() {
+			Arrays.fill(reads, 0, size, null);
+			Arrays.fill(events, 0, size, null);
+			size = 0;
+		}
+	}
+}
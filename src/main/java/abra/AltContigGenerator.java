@@ -1,7 +1,5 @@
 package abra;
 
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 
 import java.util.ArrayList;
@@ -14,210 +12,81 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import abra.SAMRecordUtils.ReadBlock;
-
 public class AltContigGenerator {
 	
-	// TODO: Multiple arbitrary cutoffs here, need to optimize
-	// Phred 13 is ~5% error rate
 	private int maxSoftClipContigs;
-	private int minBaseQual;
-	private double softClipFraction;
-	private int minSoftClipLength;
 	private boolean useObservedIndels;
 	private boolean useSoftClippedReads;
 	private boolean useConsensusSeq;
-	private int minMapq;
 	
-	public AltContigGenerator(int maxSoftClipContigs, int minBaseQual, int softClipFraction, int minSoftClipLength, 
-			boolean useObservedIndels, boolean useSoftClippedReads, boolean useConsensusSeq, int minMapq) {
+	public AltContigGenerator(int maxSoftClipContigs, boolean useObservedIndels, boolean useSoftClippedReads, boolean useConsensusSeq) {
 		this.maxSoftClipContigs = maxSoftClipContigs;
-		this.minBaseQual = minBaseQual;
-		this.softClipFraction = (double) softClipFraction / 100.0;
-		this.minSoftClipLength = minSoftClipLength;
 		this.useObservedIndels = useObservedIndels;
 		this.useSoftClippedReads = useSoftClippedReads;
 		this.useConsensusSeq = useConsensusSeq;
-		this.minMapq = minMapq;
-	}
-	
-	private boolean hasHighQualitySoftClipping(SAMRecord read, int start, int length) {
-		
-		int numHighQualBases = 0;
-		int requiredHighQualBases = (int) (softClipFraction * length);
-		
-		for (int bq = start; bq < start+length; bq++) {
-			if (read.getBaseQualities()[bq] >= minBaseQual) {
-				numHighQualBases += 1;
-				
-				if (numHighQualBases >= requiredHighQualBases) {
-					return true;
-				}
-			}
-		}
-		
-		return false;
-	}
-	
-	private boolean hasHighQualitySoftClipping(SAMRecord read, Feature region) {
-		
-		boolean hasHighQualitySoftClipping = false;
-		
-		if (read.getCigarLength() > 1) {
-			// Check first cigar element
-			CigarElement elem = read.getCigar().getCigarElement(0);
-			if (elem.getOperator() == CigarOperator.S  && elem.getLength() >= minSoftClipLength && read.getAlignmentStart() >= region.getStart()-read.getReadLength()) {
-				int elemStart = 0;
-				hasHighQualitySoftClipping = hasHighQualitySoftClipping(read, elemStart, elem.getLength());
-			}
-			
-			// Check last Cigar element
-			if (!hasHighQualitySoftClipping) {
-				elem = read.getCigar().getCigarElement(read.getCigarLength()-1);
-				if (elem.getOperator() == CigarOperator.S  && elem.getLength() >= minSoftClipLength && read.getAlignmentEnd() <= region.getEnd()+read.getReadLength()) {
-					int elemStart = read.getReadLength() - elem.getLength();
-					hasHighQualitySoftClipping = hasHighQualitySoftClipping(read, elemStart, elem.getLength());
-				}
-			}
-		}
-		
-		return hasHighQualitySoftClipping;
 	}
 	
-	public Collection<String> getAltContigs(List<List<SAMRecordWrapper>> readsList, CompareToReference2 c2r,
+	/**
+	 * Generates contigs for the region from observed indels and soft clipping in the catalog and from known variants.
+	 */
+	public Collection<String> getAltContigs(AltContigCatalog catalog, CompareToReference2 c2r,
 			int readLength, int numJuncPerms, Feature region, List<Variant> knownVariants, List<Feature> junctions) {
 		
 		List<ScoredContig> softClipContigs = new ArrayList<ScoredContig>();
 		
-		// TODO: Hacky, clean up...
-		Map<Indel, Indel> indels = new HashMap<Indel, Indel>();
 		List<Indel> indelList = new ArrayList<Indel>();
 		
 		Map<String, List<ScoredContig>> softClipByPos = new HashMap<String, List<ScoredContig>>();
 		
-		for (List<SAMRecordWrapper> reads : readsList) {
+		if (useObservedIndels) {
+			indelList.addAll(catalog.getIndels(region));
+		}
+		
+		if (useSoftClippedReads) {
 			
-			Set<String> mergedReadIds = new HashSet<String>();
+			// Merged read ids per sample
+			Map<Integer, Set<String>> mergedReadIds = new HashMap<Integer, Set<String>>();
 			
-			for (SAMRecordWrapper readWrapper : reads) {
+			for (SAMRecordWrapper readWrapper : catalog.getSoftClippedReads(region)) {
 				SAMRecord read = readWrapper.getSamRecord();
 				
-				if (read.getMappingQuality() > minMapq) {
+				// Add high quality soft clipped reads
+				if (readWrapper.shouldAssemble()) {
 					
-					if (useObservedIndels) {
-						List<CigarElement> elems = read.getCigar().getCigarElements();
-						// Here we require indel to be bracketed by 2 M elements
-						if (elems.size() == 3 && 
-							elems.get(0).getOperator() == CigarOperator.M && 
-							elems.get(2).getOperator() == CigarOperator.M &&
-							(elems.get(1).getOperator() == CigarOperator.D || elems.get(1).getOperator() == CigarOperator.I)) {
-							
-							String insertBases = null;
-							char type = '0';
-							
-							if (elems.get(1).getOperator() == CigarOperator.D) {
-								type = 'D';
-							} else if (elems.get(1).getOperator() == CigarOperator.I) {
-								type = 'I';
-								int start = elems.get(0).getLength();
-								int stop =  start + elems.get(1).getLength();
-								insertBases = read.getReadString().substring(start, stop);
-							}
-							
-							int refStart = read.getAlignmentStart() + elems.get(0).getLength();
-							
-							// Require indel start to be within region
-							if (refStart >= region.getStart() && refStart <= region.getEnd()) {
-								Indel indel = new Indel(type, read.getReferenceName(), refStart, elems.get(1).getLength(), insertBases, elems.get(0).getLength(), SAMRecordUtils.sumBaseQuals(read));
-								if (indels.containsKey(indel)) {
-									indels.get(indel).addReadPosition(elems.get(0).getLength(), SAMRecordUtils.sumBaseQuals(read));
-								} else {
-									indels.put(indel, indel);
-								}
-							}
-						} else if(SAMRecordUtils.getNumGaps(read) > 1) {
-							// Handle read containing multiple indels (create single contig)
-							List<Indel> indelComponents = new ArrayList<Indel>();
-							List<ReadBlock> readBlocks = SAMRecordUtils.getReadBlocks(read.getCigar(), read.getAlignmentStart());
-							int firstIdx = -1;
-							
-							// Loop through cigar ignoring edge elements
-							for (int i=1; i<read.getCigar().getCigarElements().size()-1; i++) {
-								CigarElement elem = read.getCigar().getCigarElements().get(i);
-								if (elem.getOperator() == CigarOperator.D || elem.getOperator() == CigarOperator.I || elem.getOperator() == CigarOperator.N) {
-									ReadBlock block = readBlocks.get(i);
-									char type = '0';
-									String insertBases = null;
-									if (elem.getOperator() == CigarOperator.D || elem.getOperator() == CigarOperator.N) {
-										// For purposes of contig sequence generation, we treat introns as deletions here
-										type = 'D';
-									} else {
-										type = 'I';
-										int start = block.getReadPos()-1;
-										int stop = start + elem.getLength();
-										insertBases = read.getReadString().substring(start, stop);
-									}
-									
-									if (firstIdx == -1) {
-										firstIdx = block.getReadPos()-1;
-									}
-																		
-									Indel indel = new Indel(type, read.getReferenceName(), block.getRefPos(), elem.getLength(), insertBases, block.getReadPos()-1, SAMRecordUtils.sumBaseQuals(read));
-									indelComponents.add(indel);
-								}
-							}
-							
-							if (indelComponents.size() == 0) {
-								Logger.debug("Empty complex indel components for read: %s" , read.getSAMString());
-								
-							} else {
-								Indel indel = new Indel('C', read.getReferenceName(), indelComponents, firstIdx, SAMRecordUtils.sumBaseQuals(read));
-								if (indels.containsKey(indel)) {
-									indels.get(indel).addReadPosition(firstIdx, SAMRecordUtils.sumBaseQuals(read));
-								} else {
-									indels.put(indel, indel);
-								}
-							}
+					// Don't double add merged read sequence
+					if (readWrapper.hasMergedSeq()) {
+						Set<String> sampleMergedReadIds = mergedReadIds.get(readWrapper.getSampleIdx());
+						if (sampleMergedReadIds == null) {
+							sampleMergedReadIds = new HashSet<String>();
+							mergedReadIds.put(readWrapper.getSampleIdx(), sampleMergedReadIds);
 						}
-					}
-					
-					// Add high quality soft clipped reads
-					if (useSoftClippedReads && readWrapper.shouldAssemble() &&
-							hasHighQualitySoftClipping(readWrapper.getSamRecord(), region)) {
 						
-						// Don't double add merged read sequence
-						if (readWrapper.hasMergedSeq()) {
-							if (mergedReadIds.contains(read.getReadName())) {
-								continue;
-							} else {
-								mergedReadIds.add(read.getReadName());
-							}
+						if (!sampleMergedReadIds.add(read.getReadName())) {
+							continue;
 						}
+					}
+					
+					ScoredContig sc;
+					
+					if (readWrapper.hasMergedSeq()) {
+						sc = new ScoredContig((double) readWrapper.baseQualSum() / (double) readWrapper.getReadLength(), readWrapper.getMergedSeq());
+					} else {
+						sc = new ScoredContig((double) readWrapper.samRecordBaseQualSum() / (double) read.getReadLength(), read.getReadString());
+					}
+					
+					if (useConsensusSeq) {
+						// Group by position and read length
+						int start = readWrapper.getAdjustedAlignmentStart();
+						int end = readWrapper.getAdjustedAlignmentEnd();
+						String pos = "" + start + ":" + end + ":" + readWrapper.getReadLength();
 						
-						ScoredContig sc;
-						
-						if (readWrapper.hasMergedSeq()) {
-							sc = new ScoredContig((double) SAMRecordUtils.sumBaseQuals(readWrapper.getMergedQual()) / (double) readWrapper.getReadLength(), readWrapper.getMergedSeq());
-						} else {
-							sc = new ScoredContig((double) SAMRecordUtils.sumBaseQuals(read) / (double) read.getReadLength(), read.getReadString());
+						if (!softClipByPos.containsKey(pos)) {
+							softClipByPos.put(pos, new ArrayList<ScoredContig>());
 						}
+						softClipByPos.get(pos).add(sc);
 						
-//						ScoredContig sc = new ScoredContig((double) SAMRecordUtils.sumBaseQuals(read) / (double) read.getReadLength(), read.getReadString());
-						
-						if (useConsensusSeq) {
-							// Group by position and read length
-							int start = readWrapper.getAdjustedAlignmentStart();
-							int end = readWrapper.getAdjustedAlignmentEnd();
-							String pos = "" + start + ":" + end + ":" + readWrapper.getReadLength();
-							
-							if (!softClipByPos.containsKey(pos)) {
-								softClipByPos.put(pos, new ArrayList<ScoredContig>());
-							}
-							softClipByPos.get(pos).add(sc);
-							
-						} else {
-							softClipContigs.add(sc);
-						}						
+					} else {
+						softClipContigs.add(sc);
 					}
 				}
 			}
@@ -244,7 +113,6 @@ public class AltContigGenerator {
 		// Do not allow obs indel list to grow too big.
 		// Score based upon number of unique read index start positions
 		// TODO: parameterize?
-		indelList.addAll(indels.values());
 		int maxObsIndels = numJuncPerms == 0 ? 8 : Math.min(8, maxCombos/numJuncPerms);
 		indelList = Indel.filter(indelList, maxObsIndels);
 		
@@ -0,0 +1,142 @@
+package abra;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMFileWriter;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * Writes BAM records to a headerless BGZF file with no EOF block.  Parts are concatenated
+ * behind a BAM header by ConcatenatedBAMWriter.  Standalone parts include the header and EOF block
+ * and are readable as BAM files.  Blocks are deflated in parallel if a deflate pool is supplied.
+ *
+ * If indexing, a BAI index of the part is built in memory.  Virtual file pointers are relative to the
+ * start of the part and are offset when the part is appended.  Reads are indexed once their blocks are written.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class BAMPartWriter implements SAMFileWriter {
+
+	private File file;
+	private SAMFileHeader header;
+	private boolean isStandalone;
+	private ParallelBlockCompressedOutputStream bgzf;
+	private BAMRecordCodec codec;
+
+	private ByteArrayOutputStream index;
+	private BAMIndexer indexer;
+	private Deque<PendingIndexRead> pendingIndexReads = new ArrayDeque<PendingIndexRead>();
+
+	public BAMPartWriter(File file, SAMFileHeader header, boolean isStandalone, boolean shouldCreateIndex, int compressionLevel,
+			DeflaterFactory deflaterFactory, ExecutorService deflatePool, int maxPendingBlocks) throws IOException {
+		this.file = file;
+		this.header = header;
+		this.isStandalone = isStandalone;
+
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+		long address = 0;
+
+		if (isStandalone) {
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			BAMFileWriter.writeHeader(headerBytes, header);
+			headerBytes.writeTo(output);
+			address = headerBytes.size();
+		}
+
+		bgzf = new ParallelBlockCompressedOutputStream(output, address, compressionLevel, deflaterFactory, deflatePool, maxPendingBlocks);
+		codec = new BAMRecordCodec(header);
+		codec.setOutputStream(bgzf, file.getPath());
+
+		if (shouldCreateIndex) {
+			index = new ByteArrayOutputStream();
+			indexer = new BAMIndexer(index, header);
+		}
+	}
+
+	@Override
+	public void addAlignment(SAMRecord read) {
+		if (indexer != null) {
+			long start = bgzf.getBlockPointer();
+			codec.encode(read);
+			pendingIndexReads.addLast(new PendingIndexRead(read, start, bgzf.getBlockPointer()));
+			indexWrittenReads();
+		} else {
+			codec.encode(read);
+		}
+	}
+
+	private void indexWrittenReads() {
+		while (!pendingIndexReads.isEmpty() && bgzf.isWritten(pendingIndexReads.peekFirst().end)) {
+			PendingIndexRead pending = pendingIndexReads.removeFirst();
+			Chunk chunk = new Chunk(bgzf.toVirtualFilePointer(pending.start), bgzf.toVirtualFilePointer(pending.end));
+			pending.read.setFileSource(new SAMFileSource(null, new BAMFileSpan(chunk)));
+			indexer.processAlignment(pending.read);
+		}
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+	}
+
+	@Override
+	public void close() {
+		try {
+			bgzf.close(isStandalone);
+		} catch (IOException e) {
+			throw new SAMException("Error closing: " + file, e);
+		}
+
+		if (indexer != null) {
+			indexWrittenReads();
+			indexer.finish();
+			indexer = null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the part's serialized BAI index or null if not indexing.  Available once closed.
+	 */
+	public byte[] getIndex() {
+		return index == null ? null : index.toByteArray();
+	}
+
+	static class PendingIndexRead {
+		SAMRecord read;
+		// Block pointers
+		long start;
+		long end;
+		
+		PendingIndexRead(SAMRecord read, long start, long end) {
+			this.read = read;
+			this.start = start;
+			this.end = end;
+		}
+	}
+}
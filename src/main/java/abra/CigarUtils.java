@@ -11,13 +11,72 @@ public class CigarUtils {
 	 * Extract subset of cigar string based upon input position (index) into cigar and length. 
 	 */
 	public static int subsetCigarString(int pos, int length, String cigar, StringBuffer newCigar) {
-		List<CigarBlock> cigarBlocks = getCigarBlocks(cigar);
-		List<CigarBlock> newCigarBlocks = new ArrayList<CigarBlock>();
-		int relativeRefPos = subsetCigarBlocks(cigarBlocks, pos, length, newCigarBlocks);
+		PackedCigar.Builder newCigarBlocks = new PackedCigar.Builder();
+		int relativeRefPos = subsetCigar(pos, length, PackedCigar.parse(cigar), newCigarBlocks);
+		newCigar.append(newCigarBlocks.build().toString());
 		
-		for (CigarBlock block : newCigarBlocks) {
-			newCigar.append(block.length);
-			newCigar.append(block.type);
+		return relativeRefPos;
+	}
+	
+	/**
+	 * Extract subset of cigar based upon input position (index) into cigar and length.
+	 * The starting block is located via binary search over the cigar's cumulative offsets.
+	 * Returns the position of the subset relative to the cigar's reference start.
+	 */
+	public static int subsetCigar(int pos, int readLength, PackedCigar cigar, PackedCigar.Builder readBlocks) {
+		PackedCigar.Offsets offsets = cigar.getOffsets();
+		int numBlocks = cigar.getNumBlocks();
+		
+		// Identify the start point for subsetting.  Never start in a deletion
+		int startIdx = offsets.findBlock(pos);
+		
+		if (startIdx == numBlocks) {
+			// Read position not reached.  Include all blocks that consume reference.
+			int relativeRefPos = 0;
+			if (numBlocks > 0) {
+				relativeRefPos = offsets.refStarts[numBlocks-1];
+				if (cigar.getOp(numBlocks-1) != PackedCigar.I) {
+					relativeRefPos += cigar.getLength(numBlocks-1);
+				}
+			}
+			return relativeRefPos;
+		}
+		
+		int currLen = 0;
+		int relativeRefPos = offsets.refStarts[startIdx];
+		int blockLength = offsets.queryEnds[startIdx] - pos;
+		
+		if (cigar.getOp(startIdx) != PackedCigar.I) {
+			// Include partial block length for matches
+			relativeRefPos += cigar.getLength(startIdx) - blockLength;
+		}
+		
+		for (int i=startIdx; i<numBlocks; i++) {
+			int op = cigar.getOp(i);
+			if (i > startIdx) {
+				blockLength = cigar.getLength(i);
+			}
+			
+			if (blockLength > 0) {
+				if (PackedCigar.isGap(op)) {
+					// Never start in a deletion
+					if (!readBlocks.isEmpty()) {
+						readBlocks.add(blockLength, op);
+					} else {
+						// skip over leading deletion in reference position
+						relativeRefPos += blockLength;
+					}
+				}
+				else if (blockLength < readLength-currLen) {
+					currLen += blockLength;
+					readBlocks.add(blockLength, op);
+				} else {
+					int len = readLength - currLen;
+					currLen += len;
+					readBlocks.add(len, op);
+					break;
+				}
+			}
 		}
 		
 		return relativeRefPos;
@@ -114,8 +173,8 @@ public class CigarUtils {
 	// Return 2 if cigar2 has more junctions
 	public static int testEquivalenceAndSelectIntronPreferred(Alignment alignment1, Alignment alignment2) {
 		
-		String cigar1 = alignment1.cigar;
-		String cigar2 = alignment2.cigar;
+		PackedCigar cigar1 = alignment1.cigar;
+		PackedCigar cigar2 = alignment2.cigar;
 		
 		// Cigars are equal, pick non-secondary or just the first.
 		if (cigar1.equals(cigar2)) {
@@ -123,26 +182,30 @@ public class CigarUtils {
 		}
 		
 		// Cigars are different, pick non-secondary one or neither
-		if (cigar1.length() != cigar2.length()) {
+		if (cigar1.getNumBlocks() != cigar2.getNumBlocks()) {
 			return (selectPrimaryAlignment(alignment1, alignment2, 0));
 		}
 		
 		int cigar1Introns = 0;
 		int cigar2Introns = 0;
 		
-		for (int i=0; i<cigar1.length(); i++) {
-			char ch1 = cigar1.charAt(i);
-			char ch2 = cigar2.charAt(i);
-			if (ch1 != ch2) {
-				if ((ch1 != 'N' && ch1 != 'D') ||
-					(ch2 != 'N' && ch2 != 'D')) {
+		for (int i=0; i<cigar1.getNumBlocks(); i++) {
+			if (cigar1.getLength(i) != cigar2.getLength(i)) {
+				// Non-equivalent cigars
+				return (selectPrimaryAlignment(alignment1, alignment2, 0));
+			}
+			
+			int op1 = cigar1.getOp(i);
+			int op2 = cigar2.getOp(i);
+			if (op1 != op2) {
+				if (!PackedCigar.isGap(op1) || !PackedCigar.isGap(op2)) {
 					// Non-equivalent cigars
 					return (selectPrimaryAlignment(alignment1, alignment2, 0));
 				} else {
-					if (ch1 == 'N') {
+					if (op1 == PackedCigar.N) {
 						cigar1Introns += 1;
 					}
-					if (ch2 == 'N') {
+					if (op2 == PackedCigar.N) {
 						cigar2Introns += 1;
 					}
 				}
@@ -161,14 +224,16 @@ public class CigarUtils {
 	 * Returns true if cigar contains a deletion bracketed by introns
 	 */
 	public static boolean hasNDN(String cigar) {
+		return hasNDN(PackedCigar.parse(cigar));
+	}
+	
+	public static boolean hasNDN(PackedCigar cigar) {
 		boolean hasNDM = false;
 		
-		List<CigarBlock> blocks = getCigarBlocks(cigar);
-
-		for (int i=2; i<blocks.size(); i++) {
-			if ((blocks.get(i).type == 'N') &&
-				(blocks.get(i-1).type == 'D') &&
-				(blocks.get(i-2).type == 'N')) {
+		for (int i=2; i<cigar.getNumBlocks(); i++) {
+			if ((cigar.getOp(i) == PackedCigar.N) &&
+				(cigar.getOp(i-1) == PackedCigar.D) &&
+				(cigar.getOp(i-2) == PackedCigar.N)) {
 				
 				hasNDM = true;
 				break;
@@ -183,14 +248,37 @@ public class CigarUtils {
 	 * Clipping is ignored.
 	 */
 	public static boolean startsOrEndsWithComplexIndel(String cigar) {
-		boolean ret = false;
+		return startsOrEndsWithComplexIndel(PackedCigar.parse(cigar));
+	}
+	
+	public static boolean startsOrEndsWithComplexIndel(PackedCigar cigar) {
+		// First 2 and last 2 unclipped blocks
+		int first = -1;
+		int second = -1;
+		int last = -1;
+		int secondLast = -1;
+		int numUnclipped = 0;
+		
+		for (int i=0; i<cigar.getNumBlocks(); i++) {
+			int op = cigar.getOp(i);
+			if (!PackedCigar.isClip(op)) {
+				if (numUnclipped == 0) {
+					first = op;
+				} else if (numUnclipped == 1) {
+					second = op;
+				}
+				secondLast = last;
+				last = op;
+				numUnclipped += 1;
+			}
+		}
 		
-		List<CigarBlock> blocks = getUnclippedCigarBlocks(cigar);
+		boolean ret = false;
 		
-		if (blocks.size() > 1) {
-			if (blocks.get(0).isIndel() && blocks.get(1).isIndel()) {
+		if (numUnclipped > 1) {
+			if (PackedCigar.isIndel(first) && PackedCigar.isIndel(second)) {
 				ret = true;
-			} else if (blocks.get(blocks.size()-1).isIndel() && blocks.get(blocks.size()-2).isIndel()) {
+			} else if (PackedCigar.isIndel(last) && PackedCigar.isIndel(secondLast)) {
 				ret = true;
 			}
 		}
@@ -198,30 +286,6 @@ public class CigarUtils {
 		return ret;
 	}
 	
-	private static List<CigarBlock> getUnclippedCigarBlocks(String cigar) {
-		
-		List<CigarBlock> cigarBlocks = new ArrayList<CigarBlock>();
-		try {
-			StringBuffer len = new StringBuffer();
-			for (int i=0; i<cigar.length(); i++) {
-				char ch = cigar.charAt(i);
-				if (Character.isDigit(ch)) {
-					len.append(ch);
-				} else {
-					if (ch != 'H' && ch != 'S') {
-						cigarBlocks.add(new CigarBlock(Integer.valueOf(len.toString()), ch));
-					}
-					len.setLength(0);
-				}
-			}
-		} catch (NumberFormatException e) {
-			Logger.error("NumberFormatException: " + cigar);
-			throw e;
-		}
-		
-		return cigarBlocks;
-	}
-	
 	private static List<CigarBlock> getCigarBlocks(String cigar) {
 		
 		List<CigarBlock> cigarBlocks = new ArrayList<CigarBlock>();
@@ -244,66 +308,6 @@ public class CigarUtils {
 		return cigarBlocks;
 	}
 	
-	private static int subsetCigarBlocks(List<CigarBlock> contigBlocks, int pos, int readLength, List<CigarBlock> readBlocks) {
-		int currLen = 0;
-		int contigPos = 0;
-		int relativeRefPos = 0;
-		boolean isReadPosReached = false;
-//		List<CigarBlock> readBlocks = new ArrayList<CigarBlock>();
-		
-		for (CigarBlock block : contigBlocks) {
-			
-			int blockLength = block.length;
-			
-			// Identify the start point for subsetting
-			if (!isReadPosReached) {
-				if (!block.isGap()) {  // Never start in a deletion
-					if (contigPos + block.length >= pos) {
-						blockLength = contigPos + block.length - pos;
-						isReadPosReached = true;
-						
-						if (block.type != 'I') {
-							// Include partial block length for matches
-							relativeRefPos += block.length - blockLength;
-						}
-					} else {
-						contigPos += block.length;
-						if (block.type != 'I') {
-							// Include entire block for matches
-							relativeRefPos += block.length;
-						}
-					}
-				} else {
-					// Include entire block for deletes
-					relativeRefPos += block.length;
-				}				
-			} 
-			
-			if (isReadPosReached && blockLength > 0) {
-				if (block.isGap()) {
-					// Never start in a deletion
-					if (!readBlocks.isEmpty()) {
-						readBlocks.add(block);
-					} else {
-						// skip over leading deletion in reference position
-						relativeRefPos += block.length;
-					}
-				}
-				else if (blockLength < readLength-currLen) {
-					currLen += blockLength;
-					readBlocks.add(new CigarBlock(blockLength, block.type));
-				} else {
-					int len = readLength - currLen;
-					currLen += len;
-					readBlocks.add(new CigarBlock(len, block.type));
-					break;
-				}
-			}
-		}
-		
-		return relativeRefPos;
-	}
-	
 	static class CigarBlock {
 		int length;
 		char type;
@@ -312,14 +316,6 @@ public class CigarUtils {
 			this.length = length;
 			this.type = type;
 		}
-		
-		boolean isGap() {
-			return type == 'D' || type == 'N';
-		}
-		
-		boolean isIndel() {
-			return type == 'D' || type == 'I';
-		}
 	}
 
 }
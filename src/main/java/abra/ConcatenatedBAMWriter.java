@@ -0,0 +1,107 @@
+package abra;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import htsjdk.samtools.BAMFileWriter;
+import htsjdk.samtools.BAMIndexMerger;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Assembles a BAM file from a header followed by BGZF parts written by BAMPartWriter.
+ * Parts are appended in output order as raw bytes without recompression, followed by the EOF block.
+ *
+ * If indexing, part indices are merged into a BAI by offsetting each part's virtual file pointers
+ * by the part's position in the final file.  Not thread safe.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ConcatenatedBAMWriter {
+
+	private File file;
+	private FileChannel output;
+	private long length = 0;
+
+	private SAMSequenceDictionary dictionary;
+	private OutputStream indexOutput;
+	private BAMIndexMerger indexMerger;
+
+	public ConcatenatedBAMWriter(File file, SAMFileHeader header, boolean shouldCreateIndex) throws IOException {
+		this.file = file;
+		this.dictionary = header.getSequenceDictionary();
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		BAMFileWriter.writeHeader(headerBytes, header);
+
+		output = new FileOutputStream(file).getChannel();
+		write(headerBytes.toByteArray());
+
+		if (shouldCreateIndex) {
+			indexOutput = new BufferedOutputStream(new FileOutputStream(getIndexFile(file)));
+			indexMerger = new BAMIndexMerger(indexOutput, length);
+		}
+	}
+
+	/**
+	 * BAI filename as named by htsjdk.  i.e. foo.bam -> foo.bai
+	 */
+	static File getIndexFile(File bam) {
+		String path = bam.getPath();
+		if (path.endsWith(".bam")) {
+			path = path.substring(0, path.length() - ".bam".length());
+		}
+		return new File(path + ".bai");
+	}
+
+	/**
+	 * Appends a closed part.
+	 */
+	public void append(BAMPartWriter part) throws IOException {
+		long partLength;
+
+		try (FileChannel input = FileChannel.open(part.getFile().toPath(), StandardOpenOption.READ)) {
+			partLength = input.size();
+			long pos = 0;
+			while (pos < partLength) {
+				pos += input.transferTo(pos, partLength - pos, output);
+			}
+		}
+
+		if (indexMerger != null) {
+			SeekableMemoryStream index = new SeekableMemoryStream(part.getIndex(), part.getFile().getPath());
+			indexMerger.processIndex(BAMIndexMerger.openIndex(index, dictionary), partLength);
+		}
+
+		length += partLength;
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			output.write(buf);
+		}
+		length += bytes.length;
+	}
+
+	public void close() throws IOException {
+		write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		output.close();
+
+		if (indexMerger != null) {
+			indexMerger.finish(length);
+			indexOutput.close();
+		}
+
+		Logger.debug("Wrote: %s, %d bytes", file, length);
+	}
+}
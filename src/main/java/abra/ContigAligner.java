@@ -1,22 +1,36 @@
 package abra;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
-import htsjdk.samtools.TextCigarCodec;
 
 public class ContigAligner {
 	
 	private static final int MIN_ALIGNMENT_SCORE = 1;
+	
+	// Kmer size used to seed contigs against junction spanning reference sequence
+	static final int JUNCTION_SEED_LEN = 12;
 
 	private static int MATCH;
 	private static int MISMATCH;
 	private static int GAP_OPEN_PENALTY;
 	private static int GAP_EXTEND_PENALTY;
 	
+	public static final String NATIVE_ALIGNER = "native";
+	public static final String VECTOR_ALIGNER = "vector";
+	public static final String JAVA_ALIGNER = "java";
+	
+	private static String alignerImpl = NATIVE_ALIGNER;
+	
+	// Java implementations hold alignment buffers, so are reused per thread
+	private static ThreadLocal<SequenceAligner> threadAligner = new ThreadLocal<SequenceAligner>();
+	
 	private String refChr;
 	private int refContextStart;
 	String ref;
@@ -28,9 +42,14 @@ public class ContigAligner {
 	
 	private CompareToReference2 localC2r;
 	
-	private NativeSemiGlobalAligner aligner = new NativeSemiGlobalAligner(MATCH, MISMATCH, GAP_OPEN_PENALTY, GAP_EXTEND_PENALTY);
+	// Sorted junction spanning ref kmers packed as kmer << 32 | ref position.  Built on demand.
+	private long[] junctionSeeds;
 	
 	public static void init(int[] scoring) {
+		init(scoring, NATIVE_ALIGNER);
+	}
+	
+	public static void init(int[] scoring, String impl) {
 		
 		for (int i=0; i<scoring.length; i++) {
 			if (scoring[i] < 0) {
@@ -47,6 +66,42 @@ public class ContigAligner {
 		
 		Logger.info("SG match,mismatch,gap_open_penalty,gap_extend_penalty: " 
 				+ MATCH + "," + MISMATCH + "," + GAP_OPEN_PENALTY + "," + GAP_EXTEND_PENALTY);
+		
+		if (VECTOR_ALIGNER.equals(impl) && !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			Logger.warn("jdk.incubator.vector module not available (use --add-modules jdk.incubator.vector).  Using java contig aligner");
+			impl = JAVA_ALIGNER;
+		}
+		
+		if (!NATIVE_ALIGNER.equals(impl) && !VECTOR_ALIGNER.equals(impl) && !JAVA_ALIGNER.equals(impl)) {
+			String msg = "Invalid contig aligner: " + impl;
+			Logger.error(msg);
+			throw new IllegalArgumentException(msg);
+		}
+		
+		alignerImpl = impl;
+		threadAligner = new ThreadLocal<SequenceAligner>();
+		
+		Logger.info("SG contig aligner: " + alignerImpl);
+	}
+	
+	static SequenceAligner newSequenceAligner(String impl) {
+		if (VECTOR_ALIGNER.equals(impl)) {
+			return new VectorSemiGlobalAligner(MATCH, MISMATCH, GAP_OPEN_PENALTY, GAP_EXTEND_PENALTY);
+		} else if (JAVA_ALIGNER.equals(impl)) {
+			return new SemiGlobalAligner(MATCH, MISMATCH, GAP_OPEN_PENALTY, GAP_EXTEND_PENALTY);
+		} else {
+			return new NativeSemiGlobalAligner(MATCH, MISMATCH, GAP_OPEN_PENALTY, GAP_EXTEND_PENALTY);
+		}
+	}
+	
+	private static SequenceAligner getAligner() {
+		SequenceAligner aligner = threadAligner.get();
+		if (aligner == null) {
+			aligner = newSequenceAligner(alignerImpl);
+			threadAligner.set(aligner);
+		}
+		
+		return aligner;
 	}
 	
 	public ContigAligner(String ref, String refChr, int refStart, int minContigLength, int minAnchorLen, int maxAnchorMismatches) {
@@ -66,14 +121,186 @@ public class ContigAligner {
 		this.junctionLengths = junctionLengths;
 	}
 	
+	/**
+	 * Aligns each contig against the reference of each aligner.  Returns results indexed by [contig][aligner].
+	 * When using the native aligner, all semi-global alignments are performed in a single call.
+	 */
+	public static ContigAlignerResult[][] alignBatch(List<String> contigs, List<ContigAligner> aligners) {
+		ContigAlignerResult[][] results = new ContigAlignerResult[contigs.size()][aligners.size()];
+		
+		SequenceAligner sequenceAligner = getAligner();
+		
+		if (sequenceAligner instanceof NativeSemiGlobalAligner) {
+			List<String> refs = new ArrayList<String>(aligners.size());
+			for (ContigAligner aligner : aligners) {
+				refs.add(aligner.ref);
+			}
+			
+			SemiGlobalAligner.Result[][] sgResults = ((NativeSemiGlobalAligner) sequenceAligner).alignBatch(contigs, refs);
+			
+			for (int i=0; i<contigs.size(); i++) {
+				for (int j=0; j<aligners.size(); j++) {
+					results[i][j] = aligners.get(j).align(contigs.get(i), sgResults[i][j]);
+				}
+			}
+		} else {
+			for (int i=0; i<contigs.size(); i++) {
+				for (int j=0; j<aligners.size(); j++) {
+					results[i][j] = aligners.get(j).align(contigs.get(i));
+				}
+			}
+		}
+		
+		return results;
+	}
+	
 	public ContigAlignerResult align(String seq) {
+		return align(seq, getAligner().align(seq, ref));
+	}
+	
+	private static int baseCode(char base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
+	private long[] getJunctionSeeds() {
+		if (junctionSeeds == null) {
+			List<Long> seeds = new ArrayList<Long>();
+			int mask = (1 << (2*JUNCTION_SEED_LEN)) - 1;
+			
+			for (int junctionPos : junctionPositions) {
+				// Kmers with at least 1 base on each side of the junction
+				int start = Math.max(junctionPos - JUNCTION_SEED_LEN + 1, 0);
+				int end = Math.min(junctionPos - 1, ref.length() - JUNCTION_SEED_LEN);
+				
+				for (int pos=start; pos<=end; pos++) {
+					int kmer = 0;
+					boolean isValid = true;
+					for (int i=0; i<JUNCTION_SEED_LEN && isValid; i++) {
+						int code = baseCode(ref.charAt(pos+i));
+						isValid = code >= 0;
+						kmer = ((kmer << 2) | code) & mask;
+					}
+					
+					if (isValid) {
+						seeds.add(((long) kmer << 32) | pos);
+					}
+				}
+			}
+			
+			junctionSeeds = new long[seeds.size()];
+			for (int i=0; i<junctionSeeds.length; i++) {
+				junctionSeeds[i] = seeds.get(i);
+			}
+			Arrays.sort(junctionSeeds);
+		}
+		
+		return junctionSeeds;
+	}
+	
+	/**
+	 * Scores the contig by the max number of contig kmers spanning a junction in this aligner's
+	 * reference that fall upon a single diagonal.  0 if the contig does not appear to span any junction.
+	 */
+	int getJunctionSeedScore(String contig) {
+		long[] seeds = getJunctionSeeds();
+		if (seeds.length == 0) {
+			return 0;
+		}
+		
+		int mask = (1 << (2*JUNCTION_SEED_LEN)) - 1;
+		Map<Integer, Integer> diagonalHits = new HashMap<Integer, Integer>();
+		int bestScore = 0;
+		
+		int kmer = 0;
+		int validBases = 0;
+		for (int i=0; i<contig.length(); i++) {
+			int code = baseCode(contig.charAt(i));
+			if (code < 0) {
+				validBases = 0;
+				continue;
+			}
+			
+			kmer = ((kmer << 2) | code) & mask;
+			validBases++;
+			
+			if (validBases >= JUNCTION_SEED_LEN) {
+				int contigPos = i - JUNCTION_SEED_LEN + 1;
+				long key = (long) kmer << 32;
+				int idx = Arrays.binarySearch(seeds, key);
+				if (idx < 0) {
+					idx = -idx - 1;
+				}
+				
+				while (idx < seeds.length && (seeds[idx] >>> 32) == kmer) {
+					int diagonal = (int) (seeds[idx] & 0xFFFFFFFFL) - contigPos;
+					Integer hits = diagonalHits.get(diagonal);
+					hits = hits == null ? 1 : hits + 1;
+					diagonalHits.put(diagonal, hits);
+					bestScore = Math.max(bestScore, hits);
+					idx++;
+				}
+			}
+		}
+		
+		return bestScore;
+	}
+	
+	/**
+	 * Returns up to maxAligners junction permutation aligners with the highest junction seed scores for the contig,
+	 * in their original order.  Aligners with no junction spanning seeds are excluded.
+	 * If there are no more than maxAligners, all are returned.
+	 */
+	public static List<ContigAligner> selectJunctionAligners(String contig, List<ContigAligner> aligners, int maxAligners) {
+		if (aligners.size() <= maxAligners) {
+			return aligners;
+		}
+		
+		int[] scores = new int[aligners.size()];
+		for (int i=0; i<aligners.size(); i++) {
+			scores[i] = aligners.get(i).getJunctionSeedScore(contig);
+		}
+		
+		// Min score required to be in the top maxAligners
+		int[] sorted = scores.clone();
+		Arrays.sort(sorted);
+		int minScore = Math.max(sorted[sorted.length - maxAligners], 1);
+		
+		int numAboveMin = 0;
+		for (int score : scores) {
+			if (score > minScore) {
+				numAboveMin += 1;
+			}
+		}
+		
+		// Ties for the last spots go to earlier aligners
+		int tiesToKeep = maxAligners - numAboveMin;
+		
+		List<ContigAligner> selected = new ArrayList<ContigAligner>();
+		for (int i=0; i<aligners.size(); i++) {
+			if (scores[i] > minScore) {
+				selected.add(aligners.get(i));
+			} else if (scores[i] == minScore && tiesToKeep > 0) {
+				selected.add(aligners.get(i));
+				tiesToKeep -= 1;
+			}
+		}
+		
+		return selected;
+	}
+	
+	ContigAlignerResult align(String seq, SemiGlobalAligner.Result sgResult) {
 		
 		ContigAlignerResult result = null;
 		
-		SemiGlobalAligner.Result sgResult = aligner.align(seq, ref);
 		Logger.trace("SG Alignment [%s]:\t%s, possible: %d to: %s", seq, sgResult, seq.length()*MATCH, ref);
 		if (sgResult.score > MIN_ALIGNMENT_SCORE && sgResult.score > sgResult.secondBest && sgResult.endPosition > 0) {
-			Cigar cigar = TextCigarCodec.decode(sgResult.cigar);
+			Cigar cigar = sgResult.getCigar();
 			
 			CigarElement first = cigar.getFirstCigarElement();
 			CigarElement last = cigar.getLastCigarElement();
@@ -131,7 +358,7 @@ public class ContigAligner {
 				if (mismatches > maxAnchorMismatches) {
 					Logger.trace("Mismatches at end of: %s", seq);
 				} else {
-					result = finishAlignment(sgResult.position, endPos, sgResult.cigar, sgResult.score, seq);
+					result = finishAlignment(sgResult.position, endPos, sgResult.getCigarString(), sgResult.score, seq);
 				}
 			}
 		}
@@ -185,6 +412,8 @@ public class ContigAligner {
 		
 		private int localRefPos;
 		private String cigar;
+		// Decoded on first use and shared by all reads mapped to this contig
+		private volatile PackedCigar packedCigar;
 		
 		private String chromosome;
 		private int refContextStart;
@@ -213,6 +442,15 @@ public class ContigAligner {
 		public String getCigar() {
 			return cigar;
 		}
+		
+		public PackedCigar getPackedCigar() {
+			PackedCigar packed = packedCigar;
+			if (packed == null) {
+				packed = PackedCigar.parse(cigar);
+				packedCigar = packed;
+			}
+			return packed;
+		}
 
 		public String getChromosome() {
 			return chromosome;
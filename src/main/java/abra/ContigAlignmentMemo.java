@@ -0,0 +1,68 @@
+package abra;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+/**
+ * Memo of contig alignments for the region currently being processed.  Not thread safe.
+ *
+ * A contig alignment is padded with, and tested for uniqueness against, the reference window
+ * of its region, so it is not valid for other (overlapping) windows.  The memo is reset when
+ * a new region is seen.  Within a window, alignments are reused by the assembly retry and by
+ * alt contigs matching assembled contigs.
+ *
+ * Lookups and hits are counted across regions so the hit rate can be logged per chunk.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ContigAlignmentMemo {
+
+	private Feature region;
+
+	// Contig -> alignment.  null alignments are memoized as well.
+	private Map<String, ContigAlignerResult> alignments = new HashMap<String, ContigAlignerResult>();
+
+	private long hits = 0;
+	private long lookups = 0;
+
+	// Alignments from a previous window are not valid for this one
+	private Map<String, ContigAlignerResult> getAlignments(Feature region) {
+		if (!region.equals(this.region)) {
+			this.region = region;
+			alignments.clear();
+		}
+
+		return alignments;
+	}
+
+	public boolean hasAlignment(Feature region, String contig) {
+		boolean isHit = getAlignments(region).containsKey(contig);
+		lookups += 1;
+		if (isHit) {
+			hits += 1;
+		}
+		return isHit;
+	}
+
+	public ContigAlignerResult getAlignment(Feature region, String contig) {
+		return getAlignments(region).get(contig);
+	}
+
+	public void putAlignment(Feature region, String contig, ContigAlignerResult result) {
+		getAlignments(region).put(contig, result);
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getLookups() {
+		return lookups;
+	}
+
+	int size() {
+		return alignments.size();
+	}
+}
@@ -0,0 +1,154 @@
+package abra;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import abra.JunctionUtils.TooManyJunctionPermutationsException;
+
+/**
+ * Per chromosome chunk cache of junction permutations and the aligners for their spliced reference sequence.
+ * Overlapping regions enumerate many of the same permutations.  Not thread safe.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class JunctionPermutationCache {
+	
+	private int maxJuncDist;
+	private int readLength;
+	
+	// Permutations by region and input junctions.  null indicates too many permutations.
+	private Map<PermutationKey, List<List<Feature>>> permutations = new HashMap<PermutationKey, List<List<Feature>>>();
+	
+	// Aligners by ordered junction permutation and region length.  null indicates no usable junction sequence.
+	private Map<AlignerKey, ContigAligner> aligners = new HashMap<AlignerKey, ContigAligner>();
+	
+	public JunctionPermutationCache(int maxJuncDist, int readLength) {
+		this.maxJuncDist = maxJuncDist;
+		this.readLength = readLength;
+	}
+	
+	/**
+	 * Memoized JunctionUtils.combineJunctions
+	 */
+	public List<List<Feature>> combineJunctions(Feature region, List<Feature> junctions, Set<Feature> preferredJunctions) throws TooManyJunctionPermutationsException {
+		PermutationKey key = new PermutationKey(region, junctions, preferredJunctions);
+		
+		if (permutations.containsKey(key)) {
+			List<List<Feature>> junctionPermutations = permutations.get(key);
+			if (junctionPermutations == null) {
+				throw new TooManyJunctionPermutationsException();
+			}
+			return junctionPermutations;
+		}
+		
+		try {
+			List<List<Feature>> junctionPermutations = JunctionUtils.combineJunctions(region, junctions, preferredJunctions, maxJuncDist, readLength);
+			permutations.put(key, junctionPermutations);
+			return junctionPermutations;
+		} catch (TooManyJunctionPermutationsException e) {
+			permutations.put(key, null);
+			throw e;
+		}
+	}
+	
+	public boolean hasAligner(List<Feature> junctionPerm, long regionLength) {
+		return aligners.containsKey(new AlignerKey(junctionPerm, regionLength));
+	}
+	
+	public ContigAligner getAligner(List<Feature> junctionPerm, long regionLength) {
+		return aligners.get(new AlignerKey(junctionPerm, regionLength));
+	}
+	
+	public void putAligner(List<Feature> junctionPerm, long regionLength, ContigAligner aligner) {
+		aligners.put(new AlignerKey(junctionPerm, regionLength), aligner);
+	}
+	
+	/**
+	 * Evict permutations for regions ending before the specified position and aligners
+	 * for permutations whose last junction ends before the specified position.
+	 */
+	public void evictBefore(long position) {
+		Iterator<PermutationKey> permIter = permutations.keySet().iterator();
+		while (permIter.hasNext()) {
+			if (permIter.next().region.getEnd() < position) {
+				permIter.remove();
+			}
+		}
+		
+		Iterator<AlignerKey> alignerIter = aligners.keySet().iterator();
+		while (alignerIter.hasNext()) {
+			List<Feature> junctionPerm = alignerIter.next().junctionPerm;
+			if (junctionPerm.isEmpty() || junctionPerm.get(junctionPerm.size()-1).getEnd() < position) {
+				alignerIter.remove();
+			}
+		}
+	}
+	
+	int numAligners() {
+		return aligners.size();
+	}
+	
+	int numPermutations() {
+		return permutations.size();
+	}
+	
+	static class PermutationKey {
+		Feature region;
+		List<Feature> junctions;
+		Set<Feature> preferredJunctions;
+		
+		PermutationKey(Feature region, List<Feature> junctions, Set<Feature> preferredJunctions) {
+			this.region = region;
+			this.junctions = junctions;
+			this.preferredJunctions = preferredJunctions;
+		}
+		
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + region.hashCode();
+			result = prime * result + junctions.hashCode();
+			result = prime * result + preferredJunctions.hashCode();
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			PermutationKey other = (PermutationKey) obj;
+			return region.equals(other.region) && junctions.equals(other.junctions) && preferredJunctions.equals(other.preferredJunctions);
+		}
+	}
+	
+	static class AlignerKey {
+		List<Feature> junctionPerm;
+		long regionLength;
+		
+		AlignerKey(List<Feature> junctionPerm, long regionLength) {
+			this.junctionPerm = junctionPerm;
+			this.regionLength = regionLength;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * junctionPerm.hashCode() + (int) (regionLength ^ (regionLength >>> 32));
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			AlignerKey other = (AlignerKey) obj;
+			return regionLength == other.regionLength && junctionPerm.equals(other.junctionPerm);
+		}
+	}
+}
@@ -1,16 +1,14 @@
 package abra;
 
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Produces BED files indicating genomic windows and kmer sizes that lend themselves to assembly.
@@ -21,12 +19,14 @@ public class KmerSizeEvaluator {
 	
 	public static final int MIN_KMER = 9;
 
+	// Max in flight regions per thread.  Bounds memory held for in order output.
+	private static final int PENDING_REGIONS_PER_THREAD = 64;
+
 	private int readLength;
 	private CompareToReference2 c2r;
 	private String outputFile;
 	private BufferedWriter output;
-	private Set<Feature> outputRegions;
-	private ThreadManager threadManager;
+	private int numThreads;
 	private String regionsBed;
 	
 	public KmerSizeEvaluator(int readLength, CompareToReference2 c2r, String outputFile, int numThreads, String regionsBed) {
@@ -34,55 +34,71 @@ public class KmerSizeEvaluator {
 		this.c2r = c2r;
 		this.outputFile = outputFile;
 		this.regionsBed = regionsBed;
-		this.threadManager = new ThreadManager(numThreads);
+		this.numThreads = numThreads;
 	}
 	
 	public KmerSizeEvaluator() {
 	}
 	
+	KmerSizeEvaluator(int readLength, CompareToReference2 c2r) {
+		this.readLength = readLength;
+		this.c2r = c2r;
+	}
+	
 	private String getBases(Feature region, CompareToReference2 c2r) {
 		return c2r.getSequence(region.getSeqname(), (int) region.getStart()+1-(readLength-1), (int) region.getLength() + (readLength*2-2));
 	}
+	
+	// Any IUPAC code other than A, C, G or T is ambiguous.  Reference bases are upper case.
+	boolean hasAmbiguousBases(Feature region) {
+		String bases = getBases(region, c2r);
+		for (int i=0; i<bases.length(); i++) {
+			switch (bases.charAt(i)) {
+				case 'A':
+				case 'C':
+				case 'G':
+				case 'T':
+					break;
+				default:
+					return true;
+			}
+		}
 		
-	public void run() throws IOException, InterruptedException {
+		return false;
+	}
+		
+	/**
+	 * Evaluates all regions in parallel and writes results in input order.
+	 * Workers process regions from any chromosome.  Output is emitted as soon as a contiguous
+	 * prefix of regions is complete and the number of in flight regions is bounded.
+	 */
+	public void run() throws IOException, InterruptedException, ExecutionException {
 				
 //		new NativeLibraryLoader().load(".");		
 		List<Feature> regions = ReAligner.getRegions(regionsBed, readLength, false);
 		
 		output = new BufferedWriter(new FileWriter(outputFile, false));
 		
-		outputRegions = Collections.synchronizedSortedSet(new TreeSet<Feature>(new RegionComparator()));
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 		
-		String lastChromosome = "";
-		for (Feature region : regions) {
-			
-			if (!region.getSeqname().equals(lastChromosome)) {
-				// Write all entries for this chromosome before moving on to the next
-				threadManager.waitForAllThreadsToComplete();
-				outputRegions(output, outputRegions);
-				outputRegions.clear();
-				threadManager = new ThreadManager(threadManager.getNumThreads());
-			}
-			
-			String regionBases = getBases(region, c2r);
-			
-			//TODO: Handle other ambiguous bases
-			if (!regionBases.contains("N")) {
-				threadManager.spawnThread(new EvalRunnable(threadManager, this, region, regionBases));
-			} else {
-				excludeRegion(region);
-				outputRegions.add(region);
+		OrderedTaskQueue<Feature> pending = new OrderedTaskQueue<Feature>(executor, numThreads * PENDING_REGIONS_PER_THREAD,
+				new OrderedTaskQueue.ResultWriter<Feature>() {
+					@Override
+					public void write(Feature region) throws IOException {
+						outputRegion(output, region);
+					}
+				});
+		
+		try {
+			for (Feature region : regions) {
+				pending.submit(new EvalTask(this, region));
 			}
 			
-			lastChromosome = region.getSeqname();
+			pending.finish();
+		} finally {
+			executor.shutdownNow();
+			output.close();
 		}
-			
-		threadManager.waitForAllThreadsToComplete();
-		
-		// Because assembly regions are overlapped, there is overlap between final include/exclude output
-		outputRegions(output, outputRegions);
-		
-		output.close();
 		
 		System.err.println("Done.");
 	}
@@ -112,54 +128,42 @@ public class KmerSizeEvaluator {
 		return distKmer;
 	}
 	
-	private void evalRegion(Feature region, String regionBases) {	
+	private Feature evalRegion(Feature region) {	
 
-		List<Feature> regionList = new ArrayList<Feature>();
-		regionList.add(region);
-		int distKmer = identifyMinKmer(readLength, c2r, regionList);
-		
-		region.setAdditionalInfo(String.valueOf(distKmer) + "\t.");
-				
-		outputRegions.add(region);
-	}
-	
-	private void outputRegions(BufferedWriter writer, Collection<Feature> regions) throws IOException {
-		
-		for (Feature region : regions) {
-			String output = region.getSeqname() + "\t" + region.getStart() + "\t" + region.getEnd();
-			if (region.getAdditionalInfo() != null) {
-				output += "\t" + region.getAdditionalInfo();
-			}
-			output += "\n";
-			writer.write(output);
+		if (hasAmbiguousBases(region)) {
+			excludeRegion(region);
+		} else {
+			List<Feature> regionList = new ArrayList<Feature>();
+			regionList.add(region);
+			int distKmer = identifyMinKmer(readLength, c2r, regionList);
+			
+			region.setAdditionalInfo(String.valueOf(distKmer) + "\t.");
 		}
+		
+		return region;
 	}
 	
-	// Basic Region comparator.  Only considers start position, so must not
-	// be used across chromosomes.
-	static class RegionComparator implements Comparator<Feature> {
-
-		@Override
-		public int compare(Feature region1, Feature region2) {
-			return (int) (region1.getStart() - region2.getStart());
+	private void outputRegion(BufferedWriter writer, Feature region) throws IOException {
+		String output = region.getSeqname() + "\t" + region.getStart() + "\t" + region.getEnd();
+		if (region.getAdditionalInfo() != null) {
+			output += "\t" + region.getAdditionalInfo();
 		}
+		output += "\n";
+		writer.write(output);
 	}
 	
-	static class EvalRunnable extends AbraRunnable {
+	static class EvalTask implements Callable<Feature> {
 		private KmerSizeEvaluator evaluator;
 		private Feature region;
-		private String regionBases;
 
-		public EvalRunnable(ThreadManager threadManager, KmerSizeEvaluator evaluator, Feature region, String regionBases) {
-			super(threadManager);
+		public EvalTask(KmerSizeEvaluator evaluator, Feature region) {
 			this.evaluator = evaluator;
 			this.region = region;
-			this.regionBases = regionBases;
 		}
 
 		@Override
-		public void go() throws Exception {
-			evaluator.evalRegion(region, regionBases);
+		public Feature call() throws Exception {
+			return evaluator.evalRegion(region);
 		}
 	}
 	
@@ -0,0 +1,282 @@
+package abra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Genome wide minimum kmer size index.  One unsigned byte per window, with windows laid out on a fixed
+ * grid (window size / overlap) across each chromosome in reference order.  A value of 0 indicates no data.
+ *
+ * Built once per reference / read length / window size and consumed by ReAligner in place of
+ * computing kmer sizes for each triggered region.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class KmerSizeIndex {
+
+	private static final int MAGIC = 0x41424B49; // ABKI
+	private static final int VERSION = 1;
+
+	// Number of windows evaluated per task
+	private static final int WINDOWS_PER_TASK = 64;
+
+	// Max pending tasks per thread.  Bounds memory held for in order output.
+	private static final int PENDING_TASKS_PER_THREAD = 4;
+
+	private static final int MAX_KMER_VALUE = 255;
+
+	private int readLength;
+	private int windowSize;
+	private int windowOverlap;
+	private Map<String, byte[]> kmers = new HashMap<String, byte[]>();
+
+	private KmerSizeIndex() {
+	}
+
+	public int getReadLength() {
+		return readLength;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getWindowOverlap() {
+		return windowOverlap;
+	}
+
+	private int getStep() {
+		return windowSize - windowOverlap;
+	}
+
+	/**
+	 * Returns the kmer size for the input region or 0 if unknown.
+	 * Regions aligned to the index grid (i.e. ReAligner's whole genome windows) are a single lookup.
+	 * Other regions get the max kmer across the grid windows covering them.
+	 */
+	public int getKmer(Feature region) {
+		byte[] chromKmers = kmers.get(region.getSeqname());
+		if (chromKmers == null) {
+			return 0;
+		}
+
+		int step = getStep();
+		int first = (int) ((Math.max(region.getStart(), 1)-1) / step);
+
+		if (first >= chromKmers.length) {
+			return 0;
+		}
+
+		// Region fits within a single window
+		long firstWindowEnd = (long) first * step + 1 + windowSize;
+		if (region.getEnd() <= firstWindowEnd) {
+			return chromKmers[first] & 0xFF;
+		}
+
+		// First window containing the region end
+		int last = Math.min((int) ((region.getEnd()-1-windowSize + step-1) / step), chromKmers.length-1);
+		int kmer = 0;
+		for (int i=first; i<=last; i++) {
+			int windowKmer = chromKmers[i] & 0xFF;
+			if (windowKmer == 0) {
+				// Incomplete coverage of region
+				return 0;
+			}
+			kmer = Math.max(kmer, windowKmer);
+		}
+
+		return kmer;
+	}
+
+	public static KmerSizeIndex load(String file) throws IOException {
+		KmerSizeIndex index = new KmerSizeIndex();
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IllegalArgumentException("Invalid kmer size index: " + file);
+			}
+
+			int version = input.readInt();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported kmer size index version: " + version + " in " + file);
+			}
+
+			index.readLength = input.readInt();
+			index.windowSize = input.readInt();
+			index.windowOverlap = input.readInt();
+
+			int numChromosomes = input.readInt();
+			List<String> chromosomes = new ArrayList<String>();
+			for (int i=0; i<numChromosomes; i++) {
+				String chromosome = input.readUTF();
+				// Chromosome length
+				input.readInt();
+				int numWindows = input.readInt();
+				chromosomes.add(chromosome);
+				index.kmers.put(chromosome, new byte[numWindows]);
+			}
+
+			for (String chromosome : chromosomes) {
+				input.readFully(index.kmers.get(chromosome));
+			}
+		} finally {
+			input.close();
+		}
+
+		Logger.info("Loaded kmer size index: %s read length: %d window: %d,%d", file, index.readLength, index.windowSize, index.windowOverlap);
+
+		return index;
+	}
+
+	static int getNumWindows(int chromosomeLength, int step) {
+		return (chromosomeLength-1) / step + 1;
+	}
+
+	/**
+	 * Evaluates every window across the reference and streams the index to output.
+	 * Windows are evaluated in parallel across chromosome boundaries and written in order.
+	 */
+	public static void build(CompareToReference2 c2r, int readLength, int windowSize, int windowOverlap, String output, int numThreads)
+			throws IOException, InterruptedException, ExecutionException {
+
+		int step = windowSize - windowOverlap;
+		if (step <= 0) {
+			throw new IllegalArgumentException("Window overlap must be less than window size");
+		}
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(readLength);
+			out.writeInt(windowSize);
+			out.writeInt(windowOverlap);
+
+			out.writeInt(c2r.getChromosomes().size());
+			for (String chromosome : c2r.getChromosomes()) {
+				int chromosomeLength = c2r.getChromosomeLength(chromosome);
+				out.writeUTF(chromosome);
+				out.writeInt(chromosomeLength);
+				out.writeInt(getNumWindows(chromosomeLength, step));
+			}
+
+			KmerSizeEvaluator evaluator = new KmerSizeEvaluator(readLength, c2r);
+
+			OrderedTaskQueue<byte[]> pending = new OrderedTaskQueue<byte[]>(executor, numThreads * PENDING_TASKS_PER_THREAD,
+					new OrderedTaskQueue.ResultWriter<byte[]>() {
+						@Override
+						public void write(byte[] kmers) throws IOException {
+							out.write(kmers);
+						}
+					});
+
+			for (String chromosome : c2r.getChromosomes()) {
+				Logger.info("Building kmer size index for: %s", chromosome);
+				int chromosomeLength = c2r.getChromosomeLength(chromosome);
+				int numWindows = getNumWindows(chromosomeLength, step);
+
+				for (int window=0; window<numWindows; window+=WINDOWS_PER_TASK) {
+					int endWindow = Math.min(window + WINDOWS_PER_TASK, numWindows);
+					pending.submit(new IndexTask(evaluator, c2r, chromosome, chromosomeLength, window, endWindow, step, windowSize, readLength));
+				}
+			}
+
+			pending.finish();
+		} finally {
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	static class IndexTask implements Callable<byte[]> {
+
+		private KmerSizeEvaluator evaluator;
+		private CompareToReference2 c2r;
+		private String chromosome;
+		private int chromosomeLength;
+		private int startWindow;
+		private int endWindow;
+		private int step;
+		private int windowSize;
+		private int readLength;
+
+		IndexTask(KmerSizeEvaluator evaluator, CompareToReference2 c2r, String chromosome, int chromosomeLength,
+				int startWindow, int endWindow, int step, int windowSize, int readLength) {
+			this.evaluator = evaluator;
+			this.c2r = c2r;
+			this.chromosome = chromosome;
+			this.chromosomeLength = chromosomeLength;
+			this.startWindow = startWindow;
+			this.endWindow = endWindow;
+			this.step = step;
+			this.windowSize = windowSize;
+			this.readLength = readLength;
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			byte[] kmers = new byte[endWindow-startWindow];
+			List<Feature> regions = new ArrayList<Feature>(1);
+
+			for (int i=startWindow; i<endWindow; i++) {
+				long start = (long) i * step + 1;
+				long end = Math.min(start + windowSize, chromosomeLength);
+				Feature window = new Feature(chromosome, start, end);
+
+				int kmer;
+				if (evaluator.hasAmbiguousBases(window)) {
+					kmer = readLength+1;
+				} else {
+					regions.clear();
+					regions.add(window);
+					kmer = evaluator.identifyMinKmer(readLength, c2r, regions);
+				}
+
+				kmers[i-startWindow] = (byte) Math.min(kmer, MAX_KMER_VALUE);
+			}
+
+			return kmers;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length != 5) {
+			System.err.println("KmerSizeIndex <readLength> <reference> <output_index> <num_threads> <window_size,overlap>");
+			System.exit(-1);
+		}
+
+		int readLength = Integer.parseInt(args[0]);
+		String reference = args[1];
+		String output = args[2];
+		int threads = Integer.parseInt(args[3]);
+		String[] window = args[4].split(",");
+		int windowSize = Integer.parseInt(window[0].trim());
+		int windowOverlap = Integer.parseInt(window[1].trim());
+
+		long s = System.currentTimeMillis();
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.init(reference);
+
+		build(c2r, readLength, windowSize, windowOverlap, output, threads);
+
+		long e = System.currentTimeMillis();
+		Logger.info("Elapsed secs: %d", (e-s)/1000);
+	}
+}
@@ -0,0 +1,549 @@
+package abra;
+
+import java.util.Arrays;
+import java.util.List;
+
+import abra.SimpleMapper.Orientation;
+
+/**
+ * Ungapped seed and extend mapping of reads against a set of contigs using a single combined
+ * 2 bit encoded kmer index.  Each contig is evaluated independently with the same semantics as
+ * SimpleMapper, but a read is encoded and looked up once per orientation regardless of the
+ * number of contigs.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class MultiContigMapper {
+
+	static final int KMER_SIZE = SimpleMapper.KMER_SIZE;
+
+	// 2 bits per base
+	private static final int KMER_MASK = (1 << (2*KMER_SIZE)) - 1;
+
+	private static final int INVALID_BASE = -1;
+
+	// Index entry layout: kmer | contig | contig position
+	private static final int POSITION_BITS = 24;
+	private static final int CONTIG_BITS = 19;
+
+	// Candidate layout: contig | ref start position
+	private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+	// Packed bases per 64 bit word
+	private static final int BASES_PER_WORD = 32;
+
+	// Low bit of each 2 bit base
+	private static final long LOW_BITS = 0x5555555555555555L;
+
+	// ASCII -> 2 bit base encoding
+	private static final int[] ENCODING = new int[128];
+
+	// ASCII -> complement.  Non-DNA characters are unchanged.
+	private static final byte[] COMPLEMENT = new byte[128];
+
+	static {
+		Arrays.fill(ENCODING, INVALID_BASE);
+		ENCODING['A'] = 0;
+		ENCODING['C'] = 1;
+		ENCODING['G'] = 2;
+		ENCODING['T'] = 3;
+
+		for (int i=0; i<COMPLEMENT.length; i++) {
+			COMPLEMENT[i] = (byte) i;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['T'] = 'A';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+	}
+
+	// Scratch space reused across map calls on each thread
+	private static final ThreadLocal<Hits> threadHits = new ThreadLocal<Hits>();
+
+	private byte[][] refBases;
+	private double[] maxMismatchRates;
+
+	// Contigs packed 2 bits per base.  null if the contig contains non ACGT bases.
+	private long[][] refWords;
+
+	// Sorted distinct 2 bit encoded kmers.  Occurrences of kmers[i] are
+	// contigs[offsets[i]],positions[offsets[i]] to contigs[offsets[i+1]-1],positions[offsets[i+1]-1]
+	// in ascending contig, position order.
+	private int[] kmers;
+	private int[] offsets;
+	private int[] contigs;
+	private int[] positions;
+
+	// Direct address table on the leading kmer bits.  Kmers with prefix p are
+	// kmers[buckets[p]] to kmers[buckets[p+1]-1]
+	private int[] buckets;
+	private int bucketShift;
+
+	/**
+	 * Indexes the input contigs.  Contig indices in mapping results refer to positions in this list.
+	 */
+	public MultiContigMapper(List<SimpleMapper> mappers) {
+		if (mappers.size() >= 1 << CONTIG_BITS) {
+			throw new IllegalArgumentException("Too many contigs to index: " + mappers.size());
+		}
+
+		refBases = new byte[mappers.size()][];
+		maxMismatchRates = new double[mappers.size()];
+		refWords = new long[mappers.size()][];
+
+		int numEntries = 0;
+		for (int i=0; i<mappers.size(); i++) {
+			SimpleMapper mapper = mappers.get(i);
+			refBases[i] = mapper.getSeq().getBytes();
+			maxMismatchRates[i] = mapper.getMaxMismatchRate();
+
+			if (refBases[i].length >= 1 << POSITION_BITS) {
+				throw new IllegalArgumentException("Contig too long to index: " + refBases[i].length);
+			}
+
+			numEntries += getNumKmers(refBases[i]);
+
+			// Trailing word allows unaligned reads of the final bases
+			long[] words = new long[getNumWords(refBases[i].length) + 1];
+			if (pack(refBases[i], refBases[i].length, words)) {
+				refWords[i] = words;
+			}
+		}
+
+		buildIndex(numEntries);
+	}
+
+	// The final kmer of each contig is not indexed
+	private static int getNumKmers(byte[] ref) {
+		return Math.max(ref.length-KMER_SIZE, 0);
+	}
+
+	private void buildIndex(int numEntries) {
+
+		// kmer | contig | position for every fully ACGT kmer
+		long[] entries = new long[numEntries];
+		int count = 0;
+
+		for (int contig=0; contig<refBases.length; contig++) {
+			byte[] ref = refBases[contig];
+			int numKmers = getNumKmers(ref);
+			int end = numKmers > 0 ? numKmers+KMER_SIZE-1 : 0;
+			int kmer = 0;
+			int validBases = 0;
+
+			for (int i=0; i<end; i++) {
+				int code = encode(ref[i]);
+				if (code == INVALID_BASE) {
+					validBases = 0;
+				} else {
+					kmer = ((kmer << 2) | code) & KMER_MASK;
+					validBases += 1;
+
+					int kmerStart = i-KMER_SIZE+1;
+					if (validBases >= KMER_SIZE && kmerStart < numKmers) {
+						entries[count++] = ((long) kmer << (CONTIG_BITS+POSITION_BITS)) | ((long) contig << POSITION_BITS) | kmerStart;
+					}
+				}
+			}
+		}
+
+		Arrays.sort(entries, 0, count);
+
+		int distinct = 0;
+		for (int i=0; i<count; i++) {
+			if (i == 0 || getEntryKmer(entries[i]) != getEntryKmer(entries[i-1])) {
+				distinct += 1;
+			}
+		}
+
+		kmers = new int[distinct];
+		offsets = new int[distinct+1];
+		contigs = new int[count];
+		positions = new int[count];
+
+		int idx = -1;
+		for (int i=0; i<count; i++) {
+			int currKmer = getEntryKmer(entries[i]);
+			if (idx < 0 || kmers[idx] != currKmer) {
+				idx += 1;
+				kmers[idx] = currKmer;
+				offsets[idx] = i;
+			}
+			contigs[i] = (int) (entries[i] >>> POSITION_BITS) & ((1 << CONTIG_BITS) - 1);
+			positions[i] = (int) (entries[i] & POSITION_MASK);
+		}
+		offsets[distinct] = count;
+
+		// Roughly one kmer per bucket
+		int bucketBits = Math.max(32 - Integer.numberOfLeadingZeros(distinct), 4);
+		bucketBits = Math.min(bucketBits, 2*KMER_SIZE);
+		bucketShift = 2*KMER_SIZE - bucketBits;
+		buckets = new int[(1 << bucketBits) + 1];
+
+		int bucket = 0;
+		for (int i=0; i<distinct; i++) {
+			int kmerBucket = kmers[i] >>> bucketShift;
+			while (bucket <= kmerBucket) {
+				buckets[bucket++] = i;
+			}
+		}
+		while (bucket < buckets.length) {
+			buckets[bucket++] = distinct;
+		}
+	}
+
+	private static int getEntryKmer(long entry) {
+		return (int) (entry >>> (CONTIG_BITS+POSITION_BITS));
+	}
+
+	// Returns the index of kmer in kmers or -1 if not found
+	private int findKmer(int kmer) {
+		int bucket = kmer >>> bucketShift;
+		for (int i=buckets[bucket]; i<buckets[bucket+1]; i++) {
+			if (kmers[i] == kmer) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static int encode(byte base) {
+		return base >= 0 ? ENCODING[base] : INVALID_BASE;
+	}
+
+	// Start of the next non overlapping read kmer.  The last kmer may overlap the previous kmer.
+	private static int nextKmerStart(int i, int readLength) {
+		if (i+KMER_SIZE <= readLength-KMER_SIZE) {
+			return i + KMER_SIZE;
+		} else if (i < readLength-KMER_SIZE) {
+			return readLength-KMER_SIZE;
+		} else {
+			return readLength;
+		}
+	}
+
+	private static int getNumWords(int length) {
+		return (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+	}
+
+	/**
+	 * Packs bases 2 bits per base with base i at bits 2*(i%32) of words[i/32].
+	 * Returns false if any base is not A, C, G or T.
+	 */
+	private static boolean pack(byte[] bases, int length, long[] words) {
+		Arrays.fill(words, 0, getNumWords(length), 0);
+
+		for (int i=0; i<length; i++) {
+			int code = encode(bases[i]);
+			if (code == INVALID_BASE) {
+				return false;
+			}
+			words[i / BASES_PER_WORD] |= (long) code << (2 * (i % BASES_PER_WORD));
+		}
+
+		return true;
+	}
+
+	// 32 packed bases starting at pos
+	private static long getWord(long[] words, int pos) {
+		int bit = pos * 2;
+		int idx = bit >>> 6;
+		int shift = bit & 63;
+
+		long word = words[idx] >>> shift;
+		if (shift != 0) {
+			word |= words[idx+1] << (64 - shift);
+		}
+
+		return word;
+	}
+
+	/**
+	 * Returns the number of mismatches between the read and contig at refStartPos, stopping
+	 * at maxCount.  Packed reads and contigs are compared 32 bases at a time.
+	 */
+	private int countMismatches(int contig, int refStartPos, byte[] bases, long[] readWords, boolean isReadPacked, int readLength, int maxCount) {
+		int mismatches = 0;
+		long[] ref = refWords[contig];
+
+		if (isReadPacked && ref != null) {
+			int numWords = getNumWords(readLength);
+			for (int w=0; w<numWords; w++) {
+				long diff = readWords[w] ^ getWord(ref, refStartPos + w*BASES_PER_WORD);
+
+				int remaining = readLength - w*BASES_PER_WORD;
+				if (remaining < BASES_PER_WORD) {
+					diff &= (1L << (2*remaining)) - 1;
+				}
+
+				mismatches += Long.bitCount((diff | (diff >>> 1)) & LOW_BITS);
+				if (mismatches >= maxCount) {
+					return maxCount;
+				}
+			}
+		} else {
+			byte[] refSeq = refBases[contig];
+			for (int i=0; i<readLength; i++) {
+				if (bases[i] != refSeq[refStartPos+i]) {
+					mismatches += 1;
+					if (mismatches >= maxCount) {
+						return maxCount;
+					}
+				}
+			}
+		}
+
+		return mismatches;
+	}
+
+	public int getNumContigs() {
+		return refBases.length;
+	}
+
+	/**
+	 * Collects (contig | ref start position) for each read kmer matching a contig sorted by
+	 * contig then ref start position.  Returns the number of entries.
+	 */
+	private int findCandidates(byte[] bases, int readLength, Hits hits) {
+		int count = 0;
+
+		int kmerStart = readLength >= KMER_SIZE ? 0 : readLength;
+		int kmer = 0;
+		int validBases = 0;
+
+		for (int i=0; i<readLength && kmerStart<readLength; i++) {
+			int code = encode(bases[i]);
+			if (code == INVALID_BASE) {
+				validBases = 0;
+			} else {
+				kmer = ((kmer << 2) | code) & KMER_MASK;
+				validBases += 1;
+			}
+
+			if (i == kmerStart+KMER_SIZE-1) {
+				int idx = validBases >= KMER_SIZE ? findKmer(kmer) : -1;
+				if (idx >= 0) {
+					for (int j=offsets[idx]; j<offsets[idx+1]; j++) {
+						int contig = contigs[j];
+						int refStartPos = positions[j] - kmerStart;
+						if (refStartPos > 0 && refStartPos <= refBases[contig].length - readLength) {
+							count = hits.addCandidate(count, ((long) contig << POSITION_BITS) | refStartPos);
+						}
+					}
+				}
+
+				kmerStart = nextKmerStart(kmerStart, readLength);
+			}
+		}
+
+		Arrays.sort(hits.candidates, 0, count);
+
+		return count;
+	}
+
+	/**
+	 * Counts mismatches at each candidate contig position and updates the best mapping per contig.
+	 */
+	private void evaluate(byte[] bases, int readLength, Orientation orientation, Hits hits) {
+		int count = findCandidates(bases, readLength, hits);
+		if (count == 0) {
+			return;
+		}
+
+		long[] candidates = hits.candidates;
+		long[] readWords = hits.getReadWords(getNumWords(readLength));
+		boolean isReadPacked = pack(bases, readLength, readWords);
+
+		for (int i=0; i<count; i++) {
+			long candidate = candidates[i];
+
+			// Multiple read kmers may seed the same position
+			if (i > 0 && candidates[i-1] == candidate) {
+				continue;
+			}
+
+			int contig = (int) (candidate >>> POSITION_BITS);
+			int refStartPos = (int) (candidate & POSITION_MASK);
+
+			// Counting stops once mismatches exceed the max mismatch rate
+			int maxCount = (int) Math.floor(readLength * maxMismatchRates[contig]) + 1;
+			int mismatches = countMismatches(contig, refStartPos, bases, readWords, isReadPacked, readLength, maxCount);
+
+			hits.update(contig, refStartPos, mismatches, orientation, readLength);
+		}
+	}
+
+	/**
+	 * Maps the read to all contigs and returns the contigs with the fewest mismatches.
+	 * Each hit is the result SimpleMapper.map would return for that contig.
+	 * The returned Hits are reused by the next call to map on the same thread.
+	 */
+	public Hits map(String read) {
+		Hits hits = threadHits.get();
+		if (hits == null) {
+			hits = new Hits();
+			threadHits.set(hits);
+		}
+
+		hits.init(refBases.length);
+
+		int readLength = read.length();
+		byte[] bases = hits.getBases(readLength);
+
+		// Search for matches to contigs in forward orientation
+		for (int i=0; i<readLength; i++) {
+			bases[i] = (byte) read.charAt(i);
+		}
+		evaluate(bases, readLength, Orientation.FORWARD, hits);
+
+		// Search for matches to contigs in reverse complement
+		for (int i=0; i<readLength; i++) {
+			char base = read.charAt(readLength-i-1);
+			bases[i] = base < COMPLEMENT.length ? COMPLEMENT[base] : (byte) base;
+		}
+		evaluate(bases, readLength, Orientation.REVERSE, hits);
+
+		hits.selectBest(readLength, maxMismatchRates);
+
+		return hits;
+	}
+
+	/**
+	 * Best mappings across contigs for a single read.  All hits share the same number of mismatches.
+	 */
+	public static class Hits {
+
+		private long[] candidates = new long[256];
+		private byte[] bases = new byte[256];
+		private long[] readWords = new long[8];
+
+		// Per contig best mapping.  Only valid for touched contigs.
+		private int[] contigMismatches = new int[0];
+		private int[] contigPos = new int[0];
+		private Orientation[] contigOrientations = new Orientation[0];
+		private boolean[] isTouched = new boolean[0];
+		private int[] touched = new int[16];
+		private int numTouched;
+
+		private int[] hitContigs = new int[16];
+		private int[] hitPos = new int[16];
+		private Orientation[] hitOrientations = new Orientation[16];
+		private int numHits;
+		private int mismatches;
+
+		void init(int numContigs) {
+			if (isTouched.length < numContigs) {
+				contigMismatches = new int[numContigs];
+				contigPos = new int[numContigs];
+				contigOrientations = new Orientation[numContigs];
+				isTouched = new boolean[numContigs];
+				touched = new int[numContigs];
+				hitContigs = new int[numContigs];
+				hitPos = new int[numContigs];
+				hitOrientations = new Orientation[numContigs];
+			}
+
+			numTouched = 0;
+			numHits = 0;
+		}
+
+		int addCandidate(int count, long candidate) {
+			if (count == candidates.length) {
+				candidates = Arrays.copyOf(candidates, candidates.length*2);
+			}
+			candidates[count] = candidate;
+			return count+1;
+		}
+
+		byte[] getBases(int length) {
+			if (bases.length < length) {
+				bases = new byte[length];
+			}
+			return bases;
+		}
+
+		long[] getReadWords(int length) {
+			if (readWords.length < length) {
+				readWords = new long[length];
+			}
+			return readWords;
+		}
+
+		void update(int contig, int pos, int mismatches, Orientation orientation, int readLength) {
+			if (!isTouched[contig]) {
+				isTouched[contig] = true;
+				touched[numTouched++] = contig;
+				contigMismatches[contig] = readLength + 1;
+				contigPos[contig] = SimpleMapper.UNMAPPED;
+				contigOrientations[contig] = Orientation.UNSET;
+			}
+
+			if (mismatches < contigMismatches[contig]) {
+				contigMismatches[contig] = mismatches;
+				contigPos[contig] = pos;
+				contigOrientations[contig] = orientation;
+			} else if (mismatches == contigMismatches[contig]) {
+				contigPos[contig] = SimpleMapper.HOMOLOGOUS_MAPPING;
+			}
+		}
+
+		void selectBest(int readLength, double[] maxMismatchRates) {
+			if (numTouched == 0) {
+				// No seed hits.  All contigs are equally unmapped.
+				mismatches = readLength + 1;
+				for (int contig=0; contig<maxMismatchRates.length; contig++) {
+					addHit(contig, SimpleMapper.UNMAPPED, Orientation.UNSET);
+				}
+				return;
+			}
+
+			mismatches = readLength + 1;
+			for (int i=0; i<numTouched; i++) {
+				mismatches = Math.min(mismatches, contigMismatches[touched[i]]);
+			}
+
+			// Report hits in contig order
+			Arrays.sort(touched, 0, numTouched);
+
+			for (int i=0; i<numTouched; i++) {
+				int contig = touched[i];
+				if (contigMismatches[contig] == mismatches) {
+					int pos = contigPos[contig];
+					if (mismatches > readLength * maxMismatchRates[contig]) {
+						pos = SimpleMapper.UNMAPPED;
+					}
+					addHit(contig, pos, contigOrientations[contig]);
+				}
+				isTouched[contig] = false;
+			}
+		}
+
+		private void addHit(int contig, int pos, Orientation orientation) {
+			hitContigs[numHits] = contig;
+			hitPos[numHits] = pos;
+			hitOrientations[numHits] = orientation;
+			numHits += 1;
+		}
+
+		public int getNumHits() {
+			return numHits;
+		}
+
+		public int getMismatches() {
+			return mismatches;
+		}
+
+		public int getContig(int hit) {
+			return hitContigs[hit];
+		}
+
+		public int getPos(int hit) {
+			return hitPos[hit];
+		}
+
+		public Orientation getOrientation(int hit) {
+			return hitOrientations[hit];
+		}
+	}
+}
@@ -54,11 +54,65 @@ public class NativeAssembler {
 	private boolean isSkipUnmappedTrigger = false;
 	private int maxReadLength; // Includes merged reads
 
-	private native String assemble(String input, String output, String prefix,
+	// Native assembler memory retained across assemble calls on each worker thread
+	private static final ThreadLocal<Context> threadContext = new ThreadLocal<Context>();
+	private static final List<Context> contexts = new ArrayList<Context>();
+	
+	private static native long createContext();
+	
+	private static native void releaseContext(long context);
+	
+	private static native void setPackedKeys(long context, boolean usePackedKeys);
+	
+	private native String assemble(long context, String input, String output, String prefix,
 			int truncateOnRepeat, int maxContigs, int maxPathsFromRoot, int readLength, 
 			int kmerSize, int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug,
 			int maxNodes);
 	
+	private String assemble(String input, String output, String prefix,
+			int truncateOnRepeat, int maxContigs, int maxPathsFromRoot, int readLength, 
+			int kmerSize, int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug,
+			int maxNodes) {
+		
+		return assemble(getThreadContext(), input, output, prefix, truncateOnRepeat, maxContigs, maxPathsFromRoot, readLength,
+				kmerSize, minKmerFreq, minBaseQuality, minEdgeRatio, debug, maxNodes);
+	}
+	
+	private static long getThreadContext() {
+		Context context = threadContext.get();
+		if (context == null || context.handle == 0) {
+			context = new Context(createContext());
+			threadContext.set(context);
+			synchronized (contexts) {
+				contexts.add(context);
+			}
+		}
+		
+		return context.handle;
+	}
+	
+	/**
+	 * Kmers up to 63 bases are keyed by their 2 bit packed sequence unless disabled.
+	 * Applies to the current thread's assembler.  For testing.
+	 */
+	static void setPackedKeys(boolean usePackedKeys) {
+		setPackedKeys(getThreadContext(), usePackedKeys);
+	}
+	
+	/**
+	 * Frees native assembler memory held on behalf of all threads.
+	 * Must not be called while any thread is assembling.
+	 */
+	public static void releaseContexts() {
+		synchronized (contexts) {
+			for (Context context : contexts) {
+				releaseContext(context.handle);
+				context.handle = 0;
+			}
+			contexts.clear();
+		}
+	}
+	
 	
 	private boolean isHardClipped(SAMRecord read) {
 		return read.getCigarString().contains("H");
@@ -138,30 +192,19 @@ public class NativeAssembler {
 		return len;
 	}
 	
-	private int getInsertBases(SAMRecord read) {
-		int numInsertBases = 0;
+	private boolean isAssemblyTriggerCandidate(SAMRecordWrapper readWrapper, CompareToReference2 c2r, Feature region) {
 		
-		for (CigarElement element : read.getCigar().getCigarElements()) {
-			if (element.getOperator() == CigarOperator.I) {
-				numInsertBases += element.getLength();
-			}
-		}
-		
-		return numInsertBases;	
-	}
-	
-	private boolean isAssemblyTriggerCandidate(SAMRecord read, CompareToReference2 c2r, Feature region) {
+		SAMRecord read = readWrapper.getSamRecord();
 		
 		// High quality unmapped read anchored by mate
 		if (!isSkipUnmappedTrigger && read.getReadUnmappedFlag() && !read.getMateUnmappedFlag() &&
 			read.getReadLength() >= readLength * .9 && 
-			SAMRecordUtils.getNumHighQualBases(read, MIN_CANDIDATE_BASE_QUALITY) >= readLength * .9) {
+			readWrapper.getNumHighQualBases(MIN_CANDIDATE_BASE_QUALITY) >= readLength * .9) {
 			return true;
 		}
 		
-		int numGaps = countGaps(read.getCigar());
-		
-		int insertBases = getInsertBases(read);
+		// Read features are cached on the wrapper as reads are evaluated for each overlapping region
+		int insertBases = readWrapper.getNumInsertBases();
 		
 		// More than one indel and/or splice in read
 //		if (numGaps > 1) {
@@ -180,7 +223,7 @@ public class NativeAssembler {
 		}
 		
 		if (maxSoftClipLength(read, region) > readLength * .25) {
-			if (SAMRecordUtils.getNumHighQualBases(read, MIN_CANDIDATE_BASE_QUALITY) >= readLength * .9) {
+			if (readWrapper.getNumHighQualBases(MIN_CANDIDATE_BASE_QUALITY) >= readLength * .9) {
 				return true;
 			}
 		}
@@ -301,7 +344,7 @@ public class NativeAssembler {
 				for (SAMRecordWrapper read : reads) {
 					
 					if (read.shouldAssemble()) {
-						if (!isAssemblyCandidate && isAssemblyTriggerCandidate(read.getSamRecord(), c2r, regions.get(0))) {
+						if (!isAssemblyCandidate && isAssemblyTriggerCandidate(read, c2r, regions.get(0))) {
 //							System.err.println("trigger: " + sampleIdx + " : " + read.getSamRecord().getSAMString());
 							candidateReadCount++;
 						}
@@ -545,6 +588,15 @@ public class NativeAssembler {
 		return isCycleExceedingThresholdDetected;
 	}
 		
+	// Handle to per thread native node / read pools, kmer hash map and contig buffers
+	static class Context {
+		long handle;
+		
+		Context(long handle) {
+			this.handle = handle;
+		}
+	}
+	
 	static class Position implements Comparable<Position> {
 		private String chromosome;
 		private int position;
@@ -1,11 +1,21 @@
 package abra;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import abra.SemiGlobalAligner.Result;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
 
-public class NativeSemiGlobalAligner {
+public class NativeSemiGlobalAligner implements SequenceAligner {
 
 	private native String align(String seq1, String seq2, int match, int mismatch, int gapOpen, int gapExtend);
 	
+	private native int[] alignBatch(ByteBuffer seqs, int[] seqLengths, ByteBuffer refs, int[] refLengths,
+			int match, int mismatch, int gapOpen, int gapExtend);
+	
 	private int match = 8;
 	private int mismatch = -32;
 	private int gapOpen = -48;
@@ -41,4 +51,70 @@ public class NativeSemiGlobalAligner {
 		
 		return result;
 	}
+	
+	// Direct buffers passed to alignBatch.  Grown as needed.
+	private ByteBuffer seqBuffer = ByteBuffer.allocateDirect(0);
+	private ByteBuffer refBuffer = ByteBuffer.allocateDirect(0);
+	
+	/**
+	 * Aligns every seq against every ref in a single native call.
+	 * Returns results indexed by [seq][ref].
+	 */
+	public Result[][] alignBatch(List<String> seqs, List<String> refs) {
+		
+		int[] seqLengths = new int[seqs.size()];
+		int[] refLengths = new int[refs.size()];
+		
+		seqBuffer = pack(seqs, seqLengths, seqBuffer, MAX_CONTIG_LEN, "Contig too long");
+		refBuffer = pack(refs, refLengths, refBuffer, MAX_REF_LEN, "Ref too long");
+		
+		int[] res = alignBatch(seqBuffer, seqLengths, refBuffer, refLengths, match, mismatch, gapOpen, gapExtend);
+		
+		// Per alignment: score, secondBest, pos, endPos, num_cigar_elems, cigar_elems...
+		Result[][] results = new Result[seqs.size()][refs.size()];
+		int idx = 0;
+		for (int i=0; i<seqs.size(); i++) {
+			for (int j=0; j<refs.size(); j++) {
+				int score = res[idx++];
+				int secondBest = res[idx++];
+				int pos = res[idx++];
+				int endPos = res[idx++];
+				int numElems = res[idx++];
+				
+				List<CigarElement> elems = new ArrayList<CigarElement>(numElems);
+				for (int e=0; e<numElems; e++) {
+					int elem = res[idx++];
+					elems.add(new CigarElement(elem >>> 4, CigarOperator.binaryToEnum(elem & 0xF)));
+				}
+				
+				results[i][j] = new Result(score, secondBest, pos, endPos, new Cigar(elems));
+			}
+		}
+		
+		return results;
+	}
+	
+	private ByteBuffer pack(List<String> sequences, int[] lengths, ByteBuffer buffer, int maxLength, String msg) {
+		int total = 0;
+		for (int i=0; i<sequences.size(); i++) {
+			lengths[i] = sequences.get(i).length();
+			if (lengths[i] > maxLength) {
+				throw new IllegalArgumentException(msg);
+			}
+			total += lengths[i];
+		}
+		
+		if (buffer.capacity() < total) {
+			buffer = ByteBuffer.allocateDirect(Math.max(total, buffer.capacity() * 2));
+		}
+		
+		buffer.clear();
+		for (String sequence : sequences) {
+			for (int i=0; i<sequence.length(); i++) {
+				buffer.put((byte) sequence.charAt(i));
+			}
+		}
+		
+		return buffer;
+	}
 }
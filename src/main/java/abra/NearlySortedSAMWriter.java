@@ -0,0 +1,151 @@
+package abra;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+
+import abra.SortedSAMWriter.MateKey;
+
+/**
+ * Single pass mate fixing and coordinate sorting for a chromosome's realigned reads.
+ *
+ * Temp chunk files list reads in order of their original (pre-realignment) start and realignment moves
+ * a read at most maxMoveDist.  Reads are held in a coordinate ordered heap until no later read can
+ * precede them or pair with them, then mate info is updated and the read is output.  Reads are held
+ * for roughly 3x maxMoveDist of genomic range in place of name and coordinate sorting the chromosome.
+ *
+ * Callers are responsible for verifying the input is within maxMoveDist of sorted (see SortedSAMWriter).
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class NearlySortedSAMWriter {
+
+	private SAMFileWriter output;
+	private int maxMoveDist;
+
+	private PriorityQueue<PendingRead> pending = new PriorityQueue<PendingRead>(1024, new PendingReadComparator());
+	private long readCount = 0;
+
+	// Primary paired reads by original alignment info, in arrival order for eviction
+	private Map<MateKey, SAMRecord> mates = new HashMap<MateKey, SAMRecord>();
+	private Deque<PendingMate> mateQueue = new ArrayDeque<PendingMate>();
+
+	// Lower bound on the original start of the most recent read
+	private int maxOrigStart = 0;
+
+	public NearlySortedSAMWriter(SAMFileWriter output, int maxMoveDist) {
+		this.output = output;
+		this.maxMoveDist = maxMoveDist;
+	}
+
+	/**
+	 * Returns a lower bound on the read's start prior to realignment.
+	 */
+	static int getOrigStartLowerBound(SAMRecord read) {
+		int start = read.getAlignmentStart();
+
+		String yo = read.getStringAttribute("YO");
+		if (yo != null) {
+			String[] fields = yo.split(",");
+			start = Math.min(start, Integer.parseInt(fields[1]));
+		}
+
+		return start;
+	}
+
+	public void addAlignment(SAMRecord read) {
+
+		// Original alignment info is captured prior to any mate updates
+		if (read.getReadPairedFlag() && read.getSupplementaryAlignmentFlag() != true && (read.getFlags() & 0x100) == 0) {
+			MateKey mateKey = SortedSAMWriter.getOriginalReadInfo(read);
+			if (!mates.containsKey(mateKey)) {
+				// Cache read info giving priority to earlier reads
+				mates.put(mateKey, read);
+				mateQueue.addLast(new PendingMate(mateKey, read, getOrigStartLowerBound(read)));
+			}
+		}
+
+		pending.add(new PendingRead(read, readCount++));
+		maxOrigStart = Math.max(maxOrigStart, getOrigStartLowerBound(read));
+
+		// Later reads start at or after maxOrigStart - maxMoveDist.
+		// Mate info is only updated for realigned pairs, which started within maxMoveDist of each other.
+		while (!pending.isEmpty() && pending.peek().read.getAlignmentStart() + 2 * maxMoveDist < maxOrigStart) {
+			emit(pending.poll().read);
+		}
+	}
+
+	/**
+	 * Output all remaining reads.  Call once the chromosome's reads have all been added.
+	 */
+	public void finish() {
+		while (!pending.isEmpty()) {
+			emit(pending.poll().read);
+		}
+
+		mates.clear();
+		mateQueue.clear();
+	}
+
+	private void emit(SAMRecord read) {
+
+		// Mates of this or any later read have an original start >= read start - 2 * maxMoveDist
+		// and an original start lower bound >= read start - 3 * maxMoveDist
+		int minMateOrigStart = read.getAlignmentStart() - 3 * maxMoveDist;
+		while (!mateQueue.isEmpty() && mateQueue.peekFirst().origStart < minMateOrigStart) {
+			PendingMate mate = mateQueue.removeFirst();
+			if (mates.get(mate.key) == mate.read) {
+				mates.remove(mate.key);
+			}
+		}
+
+		SortedSAMWriter.setMateInfo(read, mates);
+		output.addAlignment(read);
+	}
+
+	static class PendingRead {
+		SAMRecord read;
+		long idx;
+
+		PendingRead(SAMRecord read, long idx) {
+			this.read = read;
+			this.idx = idx;
+		}
+	}
+
+	static class PendingMate {
+		MateKey key;
+		SAMRecord read;
+		int origStart;
+
+		PendingMate(MateKey key, SAMRecord read, int origStart) {
+			this.key = key;
+			this.read = read;
+			this.origStart = origStart;
+		}
+	}
+
+	/**
+	 * Coordinate order with ties in arrival order.
+	 */
+	static class PendingReadComparator implements Comparator<PendingRead> {
+
+		private SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+
+		@Override
+		public int compare(PendingRead o1, PendingRead o2) {
+			int cmp = comparator.compare(o1.read, o2.read);
+			if (cmp == 0) {
+				cmp = Long.compare(o1.idx, o2.idx);
+			}
+			return cmp;
+		}
+	}
+}
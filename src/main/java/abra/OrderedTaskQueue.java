@@ -0,0 +1,56 @@
+package abra;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on an executor and hands results to a writer in submission order.
+ * Results are written as soon as a contiguous prefix of tasks is complete.  The number of
+ * in flight tasks is bounded, blocking submission until the oldest task is written.  Not thread safe.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class OrderedTaskQueue<T> {
+
+	public interface ResultWriter<T> {
+		void write(T result) throws IOException;
+	}
+
+	private ExecutorService executor;
+	private int maxPending;
+	private ResultWriter<T> writer;
+	private Deque<Future<T>> pending = new ArrayDeque<Future<T>>();
+
+	public OrderedTaskQueue(ExecutorService executor, int maxPending, ResultWriter<T> writer) {
+		this.executor = executor;
+		this.maxPending = Math.max(1, maxPending);
+		this.writer = writer;
+	}
+
+	public void submit(Callable<T> task) throws IOException, InterruptedException, ExecutionException {
+		while (pending.size() >= maxPending) {
+			writer.write(pending.removeFirst().get());
+		}
+
+		pending.addLast(executor.submit(task));
+
+		// Write completed prefix
+		while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+			writer.write(pending.removeFirst().get());
+		}
+	}
+
+	/**
+	 * Waits for all submitted tasks and writes remaining results.
+	 */
+	public void finish() throws IOException, InterruptedException, ExecutionException {
+		while (!pending.isEmpty()) {
+			writer.write(pending.removeFirst().get());
+		}
+	}
+}
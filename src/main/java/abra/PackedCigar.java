@@ -0,0 +1,317 @@
+package abra;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable cigar held as packed blocks of (length << 4 | op) using the BAM operator codes.
+ * Avoids re-parsing cigar strings as alignments move between the contig aligner, read evaluator and remapper.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class PackedCigar {
+
+	// BAM operator codes
+	static final int M = 0;
+	static final int I = 1;
+	static final int D = 2;
+	static final int N = 3;
+	static final int S = 4;
+	static final int H = 5;
+	static final int P = 6;
+	static final int EQ = 7;
+	static final int X = 8;
+
+	private static final String OPS = "MIDNSHP=X";
+
+	private static final CigarOperator[] OPERATORS = new CigarOperator[OPS.length()];
+
+	static {
+		for (int op=0; op<OPERATORS.length; op++) {
+			OPERATORS[op] = CigarOperator.binaryToEnum(op);
+		}
+	}
+
+	public static final PackedCigar EMPTY = new PackedCigar(new int[0]);
+
+	private final int[] blocks;
+
+	// Cumulative offsets used for subsetting.  Computed on demand.
+	private volatile Offsets offsets;
+
+	private String text;
+
+	PackedCigar(int[] blocks) {
+		this.blocks = blocks;
+	}
+
+	public static PackedCigar parse(String cigar) {
+		int[] blocks = new int[cigar.length()/2];
+		int numBlocks = 0;
+		int len = 0;
+		boolean hasLength = false;
+
+		for (int i=0; i<cigar.length(); i++) {
+			char ch = cigar.charAt(i);
+			if (ch >= '0' && ch <= '9') {
+				len = len*10 + (ch - '0');
+				hasLength = true;
+			} else {
+				int op = OPS.indexOf(ch);
+				if (op < 0 || !hasLength) {
+					Logger.error("Invalid cigar: " + cigar);
+					throw new IllegalArgumentException("Invalid cigar: " + cigar);
+				}
+				blocks[numBlocks++] = pack(len, op);
+				len = 0;
+				hasLength = false;
+			}
+		}
+
+		if (hasLength) {
+			Logger.error("Invalid cigar: " + cigar);
+			throw new IllegalArgumentException("Invalid cigar: " + cigar);
+		}
+
+		PackedCigar packed = new PackedCigar(numBlocks == blocks.length ? blocks : Arrays.copyOf(blocks, numBlocks));
+		packed.text = cigar;
+		return packed;
+	}
+
+	static int pack(int length, int op) {
+		return (length << 4) | op;
+	}
+
+	public int getNumBlocks() {
+		return blocks.length;
+	}
+
+	public int getLength(int idx) {
+		return blocks[idx] >>> 4;
+	}
+
+	public int getOp(int idx) {
+		return blocks[idx] & 0xF;
+	}
+
+	public boolean isEmpty() {
+		return blocks.length == 0;
+	}
+
+	static boolean isGap(int op) {
+		return op == D || op == N;
+	}
+
+	static boolean isIndel(int op) {
+		return op == D || op == I;
+	}
+
+	static boolean isClip(int op) {
+		return op == S || op == H;
+	}
+
+	/**
+	 * Returns true if any block has the input operator
+	 */
+	public boolean contains(int op) {
+		for (int block : blocks) {
+			if ((block & 0xF) == op) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a copy of this cigar with the input cigar's leading and trailing clips added.
+	 */
+	public PackedCigar withClips(Cigar cigar) {
+		List<CigarElement> elems = cigar.getCigarElements();
+
+		int leading = 0;
+		while (leading < elems.size() && isClip(toOp(elems.get(leading)))) {
+			leading++;
+		}
+
+		int trailing = elems.size();
+		while (trailing > leading && isClip(toOp(elems.get(trailing-1)))) {
+			trailing--;
+		}
+
+		if (leading == 0 && trailing == elems.size()) {
+			return this;
+		}
+
+		return concat(elems.subList(0, leading), blocks, elems.subList(trailing, elems.size()));
+	}
+
+	private static int toOp(CigarElement elem) {
+		return CigarOperator.enumToBinary(elem.getOperator());
+	}
+
+	private static PackedCigar concat(List<CigarElement> leading, int[] blocks, List<CigarElement> trailing) {
+		int[] newBlocks = new int[leading.size() + blocks.length + trailing.size()];
+		int idx = 0;
+		for (CigarElement elem : leading) {
+			newBlocks[idx++] = pack(elem.getLength(), toOp(elem));
+		}
+		System.arraycopy(blocks, 0, newBlocks, idx, blocks.length);
+		idx += blocks.length;
+		for (CigarElement elem : trailing) {
+			newBlocks[idx++] = pack(elem.getLength(), toOp(elem));
+		}
+
+		return new PackedCigar(newBlocks);
+	}
+
+	/**
+	 * Returns true if the input cigar has the same blocks as this one
+	 */
+	public boolean matches(Cigar cigar) {
+		List<CigarElement> elems = cigar.getCigarElements();
+		if (elems.size() != blocks.length) {
+			return false;
+		}
+
+		for (int i=0; i<blocks.length; i++) {
+			CigarElement elem = elems.get(i);
+			if (elem.getLength() != getLength(i) || elem.getOperator() != OPERATORS[getOp(i)]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public Cigar toCigar() {
+		Cigar cigar = new Cigar();
+		for (int i=0; i<blocks.length; i++) {
+			cigar.add(new CigarElement(getLength(i), OPERATORS[getOp(i)]));
+		}
+		return cigar;
+	}
+
+	Offsets getOffsets() {
+		Offsets curr = offsets;
+		if (curr == null) {
+			curr = new Offsets(blocks);
+			offsets = curr;
+		}
+		return curr;
+	}
+
+	@Override
+	public String toString() {
+		String str = text;
+		if (str == null) {
+			StringBuilder buf = new StringBuilder(blocks.length * 4);
+			for (int i=0; i<blocks.length; i++) {
+				buf.append(getLength(i));
+				buf.append(OPS.charAt(getOp(i)));
+			}
+			str = buf.toString();
+			text = str;
+		}
+		return str;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(blocks);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		return Arrays.equals(blocks, ((PackedCigar) obj).blocks);
+	}
+
+	/**
+	 * Cumulative block offsets.  queryEnds[i] is the position in the query just past block i (gaps do not advance),
+	 * refStarts[i] is the reference offset of block i (insertions do not advance).
+	 */
+	static class Offsets {
+		final int[] blocks;
+		final int[] queryEnds;
+		final int[] refStarts;
+
+		Offsets(int[] blocks) {
+			this.blocks = blocks;
+			queryEnds = new int[blocks.length];
+			refStarts = new int[blocks.length];
+
+			int queryPos = 0;
+			int refPos = 0;
+			for (int i=0; i<blocks.length; i++) {
+				int length = blocks[i] >>> 4;
+				int op = blocks[i] & 0xF;
+
+				refStarts[i] = refPos;
+
+				if (!isGap(op)) {
+					queryPos += length;
+				}
+				if (op != I) {
+					refPos += length;
+				}
+
+				queryEnds[i] = queryPos;
+			}
+		}
+
+		/**
+		 * Returns the index of the first non gap block ending at or after pos in the query, or numBlocks if none.
+		 */
+		int findBlock(int pos) {
+			int low = 0;
+			int high = queryEnds.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (queryEnds[mid] < pos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+
+			// Gaps do not advance the query, so only leading gaps can be reached here
+			while (low < blocks.length && isGap(blocks[low] & 0xF)) {
+				low++;
+			}
+
+			return low;
+		}
+	}
+
+	/**
+	 * Accumulates blocks for a new cigar.
+	 */
+	static class Builder {
+		private int[] blocks = new int[8];
+		private int numBlocks = 0;
+
+		void add(int length, int op) {
+			if (numBlocks == blocks.length) {
+				blocks = Arrays.copyOf(blocks, numBlocks*2);
+			}
+			blocks[numBlocks++] = pack(length, op);
+		}
+
+		boolean isEmpty() {
+			return numBlocks == 0;
+		}
+
+		PackedCigar build() {
+			return numBlocks == 0 ? EMPTY : new PackedCigar(Arrays.copyOf(blocks, numBlocks));
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package abra;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+/**
+ * BGZF output stream that deflates blocks concurrently.  Data is buffered into 64KB blocks.  Full blocks are
+ * deflated on the supplied executor and written to the underlying stream in order by the writing thread.
+ * Blocks are deflated inline if the executor is null.  Not thread safe.
+ *
+ * Block addresses are not known until preceding blocks are compressed, so positions are reported as block pointers
+ * (block number << 16 | offset within block).  A block pointer is converted to a BGZF virtual file pointer once
+ * all preceding blocks have been written.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+	private OutputStream output;
+	private int compressionLevel;
+	private DeflaterFactory deflaterFactory;
+	private ExecutorService executor;
+	private int maxPendingBlocks;
+
+	private byte[] buffer = new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+	private int bufferLen = 0;
+
+	// Blocks being deflated in output order
+	private Deque<Future<CompressedBlock>> pendingBlocks = new ArrayDeque<Future<CompressedBlock>>();
+	private long blocksSubmitted = 0;
+	private long blocksWritten = 0;
+
+	// Output address of each block.  Known for blocks up to and including blocksWritten
+	private long[] addresses = new long[1024];
+
+	// Recycled across blocks.  Accessed by deflating threads.
+	private Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private Queue<CompressedBlock> freeCompressedBlocks = new ConcurrentLinkedQueue<CompressedBlock>();
+
+	/**
+	 * @param address  Position of the stream's first block in the output file.
+	 * @param maxPendingBlocks  Max blocks submitted to the executor before the writing thread waits for output.
+	 */
+	public ParallelBlockCompressedOutputStream(OutputStream output, long address, int compressionLevel,
+			DeflaterFactory deflaterFactory, ExecutorService executor, int maxPendingBlocks) {
+		this.output = output;
+		this.addresses[0] = address;
+		this.compressionLevel = compressionLevel;
+		this.deflaterFactory = deflaterFactory;
+		this.executor = executor;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferLen++] = (byte) b;
+		if (bufferLen == buffer.length) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int len = Math.min(length, buffer.length - bufferLen);
+			System.arraycopy(bytes, offset, buffer, bufferLen, len);
+			bufferLen += len;
+			offset += len;
+			length -= len;
+
+			if (bufferLen == buffer.length) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Position of the next byte written.  Block number in the upper 48 bits, offset within the block in the lower 16.
+	 */
+	public long getBlockPointer() {
+		return (blocksSubmitted << 16) | bufferLen;
+	}
+
+	/**
+	 * Returns true if the block pointer can be converted to a virtual file pointer.
+	 */
+	public boolean isWritten(long blockPointer) {
+		return (blockPointer >>> 16) <= blocksWritten;
+	}
+
+	public long toVirtualFilePointer(long blockPointer) {
+		return BlockCompressedFilePointerUtil.makeFilePointer(addresses[(int) (blockPointer >>> 16)], (int) (blockPointer & 0xFFFF));
+	}
+
+	private void submitBlock() throws IOException {
+		if (bufferLen == 0) {
+			return;
+		}
+
+		final byte[] block = buffer;
+		final int length = bufferLen;
+
+		buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+		}
+		bufferLen = 0;
+		blocksSubmitted += 1;
+
+		if (executor == null) {
+			writeBlock(deflate(block, length));
+		} else {
+			pendingBlocks.addLast(executor.submit(new Callable<CompressedBlock>() {
+				@Override
+				public CompressedBlock call() throws IOException {
+					return deflate(block, length);
+				}
+			}));
+
+			writeCompletedBlocks(false);
+		}
+	}
+
+	/**
+	 * Writes blocks in order as they finish compression.  Waits for the oldest block if too many are pending.
+	 */
+	private void writeCompletedBlocks(boolean shouldWaitForAll) throws IOException {
+		while (!pendingBlocks.isEmpty() &&
+				(shouldWaitForAll || pendingBlocks.size() > maxPendingBlocks || pendingBlocks.peekFirst().isDone())) {
+			try {
+				writeBlock(pendingBlocks.removeFirst().get());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for block compression");
+			} catch (ExecutionException e) {
+				throw new IOException("Error compressing block", e.getCause());
+			}
+		}
+	}
+
+	private void writeBlock(CompressedBlock block) throws IOException {
+		output.write(block.bytes, 0, block.length);
+
+		if (blocksWritten + 1 >= addresses.length) {
+			addresses = Arrays.copyOf(addresses, addresses.length * 2);
+		}
+
+		addresses[(int) blocksWritten + 1] = addresses[(int) blocksWritten] + block.length;
+		blocksWritten += 1;
+
+		freeCompressedBlocks.add(block);
+	}
+
+	/**
+	 * Returns the complete BGZF block for the input data.  Called concurrently.
+	 */
+	private CompressedBlock deflate(byte[] block, int length) throws IOException {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = deflaterFactory.makeDeflater(compressionLevel, true);
+		}
+
+		CompressedBlock compressedBlock = freeCompressedBlocks.poll();
+		if (compressedBlock == null) {
+			compressedBlock = new CompressedBlock();
+		}
+
+		byte[] compressed = compressedBlock.bytes;
+		int maxCompressedLength = MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+		int compressedLength = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, maxCompressedLength);
+		boolean isDeflated = deflater.finished();
+		deflaters.add(deflater);
+
+		if (!isDeflated) {
+			// Incompressible data.  Block size allows for stored blocks.
+			Deflater noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+			noCompression.setInput(block, 0, length);
+			noCompression.finish();
+			compressedLength = noCompression.deflate(compressed, BLOCK_HEADER_LENGTH, maxCompressedLength);
+			boolean isFinished = noCompression.finished();
+			noCompression.end();
+
+			if (!isFinished) {
+				throw new IOException("Unable to fit uncompressed data into BGZF block: " + length + " bytes");
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, length);
+		freeBuffers.add(block);
+
+		int blockLength = BLOCK_HEADER_LENGTH + compressedLength + BLOCK_FOOTER_LENGTH;
+
+		System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, compressed, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+		writeShort(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockLength - 1);
+		writeInt(compressed, BLOCK_HEADER_LENGTH + compressedLength, (int) crc.getValue());
+		writeInt(compressed, BLOCK_HEADER_LENGTH + compressedLength + 4, length);
+
+		compressedBlock.length = blockLength;
+		return compressedBlock;
+	}
+
+	private static void writeShort(byte[] bytes, int pos, int value) {
+		bytes[pos] = (byte) value;
+		bytes[pos+1] = (byte) (value >>> 8);
+	}
+
+	private static void writeInt(byte[] bytes, int pos, int value) {
+		bytes[pos] = (byte) value;
+		bytes[pos+1] = (byte) (value >>> 8);
+		bytes[pos+2] = (byte) (value >>> 16);
+		bytes[pos+3] = (byte) (value >>> 24);
+	}
+
+	/**
+	 * Forces the current block to be compressed and waits for all blocks to be written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		submitBlock();
+		writeCompletedBlocks(true);
+		output.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		close(true);
+	}
+
+	/**
+	 * Closes the stream, optionally without the BGZF EOF block.  Block pointers remain convertible after close.
+	 */
+	public void close(boolean shouldWriteTerminator) throws IOException {
+		flush();
+
+		if (shouldWriteTerminator) {
+			output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		}
+
+		output.close();
+
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		freeBuffers.clear();
+		freeCompressedBlocks.clear();
+	}
+
+	/**
+	 * Complete BGZF block.  Recycled once written.
+	 */
+	static class CompressedBlock {
+		byte[] bytes = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+		int length;
+	}
+}
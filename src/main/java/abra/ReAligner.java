@@ -26,11 +26,15 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import abra.JunctionUtils.JunctionComparator;
 import abra.JunctionUtils.JunctionSequence;
 import abra.JunctionUtils.TooManyJunctionPermutationsException;
 import abra.ReadEvaluator.Alignment;
+import abra.ReadEvaluator.RemapKey;
+import abra.ReadEvaluator.RemapVerdict;
 import abra.SAMRecordUtils.ReadBlock;
 import abra.ContigAligner.ContigAlignerResult;
 import abra.SimpleMapper.Orientation;
@@ -61,6 +65,14 @@ public class ReAligner {
 	
 	// Cannot be larger than buffer in assembler.c
 	private static final int MAX_KMER_SIZE = 199;
+	
+	// When there are more junction permutations than this, contigs are only aligned against
+	// the permutations sharing the most junction spanning seeds with the contig.
+	private static final int MAX_ALIGNED_JUNCTION_PERMUTATIONS = 8;
+	
+	// Reads per remap task when remapping a sample's reads in parallel
+	private static final int REMAP_BATCH_SIZE = 1000;
+	
 	private SAMFileHeader[] samHeaders;
 	
 	private List<Feature> regions;
@@ -88,6 +100,9 @@ public class ReAligner {
 	
 	private ThreadManager threadManager;
 	
+	// Shared by all chromosome chunk threads for parallel read remapping
+	private ForkJoinPool remapPool;
+	
 	private int minMappingQuality;
 	private double maxMismatchRate;
 	
@@ -107,6 +122,10 @@ public class ReAligner {
 	// If true, the input target file specifies kmer values
 	private boolean hasPresetKmers = false;
 	
+	// Optional genome wide kmer size index.  Consulted for regions without preset kmer values
+	private String kmerSizeIndexFile = null;
+	private KmerSizeIndex kmerSizeIndex = null;
+	
 	private String contigFile = null;
 	
 	// RNA specific
@@ -121,6 +140,7 @@ public class ReAligner {
 	private String cl = "unknown";
 	
 	private int[] swScoring;
+	private String contigAlignerImpl = ContigAligner.NATIVE_ALIGNER;
 	private int[] softClipParams;
 	
 	private int maxCachedReads = 0;
@@ -143,6 +163,7 @@ public class ReAligner {
 	
 	private boolean shouldCreateIndex;
 	private boolean shouldUseGkl;
+	private TempCodec tempCodec = TempCodec.SNAPPY;
 	
 	private int ambiguousMapq;
 	private double maxReadNoise;
@@ -176,6 +197,7 @@ public class ReAligner {
 		Logger.info("Loading target regions");
 		loadRegions();
 		loadJunctions();
+		loadKmerSizeIndex();
 		
 		Clock clock = new Clock("Realignment");
 		clock.start();
@@ -211,10 +233,11 @@ public class ReAligner {
 		}
 		
 		writer = new SortedSAMWriter(outputFiles, tempDir.toString(), samHeaders, isKeepTmp, chromosomeChunker,
-				finalCompressionLevel, shouldSort, maxRealignDist, shouldUnsetDuplicates, shouldCreateIndex, shouldUseGkl, maxReadsInRamForSort);
+				finalCompressionLevel, shouldSort, maxRealignDist, shouldUnsetDuplicates, shouldCreateIndex, shouldUseGkl, maxReadsInRamForSort, numThreads, tempCodec);
 
 		// Spawn thread for each chromosome
 		// TODO: Validate identical sequence dictionary for each input file
+		// Final output for each chromosome is spawned on the same pool as its chunks finish
 		
 		for (int i=0; i<this.chromosomeChunker.getChunks().size(); i++) {
 			spawnChromosomeThread(i);
@@ -223,6 +246,11 @@ public class ReAligner {
 		Logger.info("Waiting for processing threads to complete");
 		threadManager.waitForAllThreadsToComplete();
 		
+		if (remapPool != null) {
+			remapPool.shutdown();
+		}
+		NativeAssembler.releaseContexts();
+		
 		if (contigWriter != null) {
 			contigWriter.close();
 		}
@@ -232,8 +260,8 @@ public class ReAligner {
 		clock = new Clock("Sort and cleanup");
 		clock.start();
 		
-		// Cut num threads in half to allow for async writer thread
-		threadManager = new ThreadManager(Math.max(numThreads / 2, 1));
+		// Append unmapped reads to each output
+		threadManager = new ThreadManager(numThreads);
 		
 		for (int i=0; i<outputFiles.length; i++) {
 			SortedSAMWriterRunnable thread = new SortedSAMWriterRunnable(threadManager, writer, i, inputSams[i]);
@@ -242,6 +270,7 @@ public class ReAligner {
 		
 		Logger.info("Waiting for writer threads to complete");
 		threadManager.waitForAllThreadsToComplete();
+		writer.close();
 		
 		clock.stopAndPrint();
 		
@@ -272,6 +301,12 @@ public class ReAligner {
 		}
 		
 		Map<Feature, Map<SimpleMapper, ContigAlignerResult>> regionContigs = new HashMap<Feature, Map<SimpleMapper, ContigAlignerResult>>();
+		ContigAlignmentMemo alignmentMemo = new ContigAlignmentMemo();
+		AltContigCatalog altContigCatalog = new AltContigCatalog(softClipParams[1], softClipParams[2], softClipParams[3],
+				useObservedIndels, useSoftClippedReads, minMappingQuality);
+		ReadPairIndex readPairIndex = new ReadPairIndex();
+		JunctionPermutationCache junctionCache = new JunctionPermutationCache(MAX_REGION_LENGTH, readLength);
+		ReadEvaluator readEvaluator = new ReadEvaluator(regionContigs, c2r);
 		int readCount = 0;
 		
 		// Identify regions overlapping the current chromosome chunk
@@ -347,6 +382,8 @@ public class ReAligner {
 			
 			// Cache read for processing at end of region
 			currReads.get(record.getSampleIdx()).add(record);
+			altContigCatalog.addRead(record);
+			readPairIndex.addRead(record);
 			
 			Iterator<Integer> regionIter = regionsToProcess.iterator();
 			while (regionIter.hasNext()) {
@@ -355,7 +392,7 @@ public class ReAligner {
 				Feature currRegion = chromosomeRegions.get(regionToProcessIdx);
 				if (record.getAdjustedAlignmentStart() > currRegion.getEnd() + this.readLength*2) {
 					Logger.debug("Processing region: %s", currRegion);
-					Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(currRegion, currReads, regionJunctions.get(currRegion), regionVariants.get(currRegion));
+					Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(currRegion, currReads, regionJunctions.get(currRegion), regionVariants.get(currRegion), alignmentMemo, junctionCache, altContigCatalog);
 					Logger.debug("Region: %s assembled: %d contigs", currRegion, mappedContigs.keySet().size());
 					regionContigs.put(currRegion, mappedContigs);
 					// Remove curr region from list of regions to process
@@ -413,10 +450,14 @@ public class ReAligner {
 						}
 					}					
 				}
+				
+				// Evict the same reads from the alt contig catalog and pair index
+				altContigCatalog.evictBefore(record.getSamRecord().getAlignmentStart() - MAX_READ_RANGE);
+				readPairIndex.evictBefore(record.getSamRecord().getAlignmentStart() - MAX_READ_RANGE);
 
 				// Remap out of scope reads
 				long start = System.currentTimeMillis();
-				int totalReads = remapReads(regionContigs, readsToRemap, chromosomeChunkIdx);
+				int totalReads = remapReads(regionContigs, readEvaluator, readsToRemap, chromosomeChunkIdx);
 				long stop = System.currentTimeMillis();
 //				Logger.debug("REMAP_READS_MSECS:\t%d\t%d\t%s:%d", (stop-start), totalReads, record.getSamRecord().getReferenceName(), record.getSamRecord().getAlignmentStart());
 				
@@ -432,6 +473,8 @@ public class ReAligner {
 					Logger.debug("Removing contigs for region: %s", region.toString());
 					regionContigs.remove(region);
 				}
+				
+				junctionCache.evictBefore(getFirstStartPos(currReads) - MAX_READ_RANGE);
 
 				String logPrefix = record.getSamRecord().getReferenceName() + ":" + record.getSamRecord().getAlignmentStart() + " : ";
 				
@@ -465,6 +508,9 @@ public class ReAligner {
 						
 						reads.clear();
 					}
+					
+					altContigCatalog.clear();
+					readPairIndex.clear();
 				}
 
 				if (currReadsCount > 250000) {
@@ -493,13 +539,13 @@ public class ReAligner {
 			// Assemble reads
 			Feature region = chromosomeRegions.get(regionToProcessIdx);
 			Logger.debug("Processing region: %s", region);
-			Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(region, currReads, regionJunctions.get(region), regionVariants.get(region));
+			Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(region, currReads, regionJunctions.get(region), regionVariants.get(region), alignmentMemo, junctionCache, altContigCatalog);
 			Logger.debug("Region: %s assembled: %d contigs", region, mappedContigs.keySet().size());
 			regionContigs.put(region, mappedContigs);
 		}
 		
 		// Remap remaining reads
-		remapReads(regionContigs, currReads, chromosomeChunkIdx);
+		remapReads(regionContigs, readEvaluator, currReads, chromosomeChunkIdx);
 		currReads.clear();
 		regionContigs.clear();
 		
@@ -515,11 +561,22 @@ public class ReAligner {
 		
 		reader.close();
 		
-		writer.finishChromosomeChunk(chromosomeChunkIdx);
+		Logger.debug("Chunk: %d contig alignment memo hits: %d/%d", chromosomeChunkIdx, alignmentMemo.getHits(), alignmentMemo.getLookups());
+		
+		if (writer.finishChromosomeChunk(chromosomeChunkIdx)) {
+			spawnChromosomeOutputThreads(chromosome);
+		}
 		
 		clock.stopAndPrint();
 	}
 	
+	private void spawnChromosomeOutputThreads(String chromosome) {
+		for (int i=0; i<inputSams.length; i++) {
+			Logger.debug("Queuing output thread for sample: %d, chromosome: %s", i, chromosome);
+			threadManager.spawnDependentThread(new SortedSAMWriterChromosomeRunnable(threadManager, writer, i, chromosome));
+		}
+	}
+	
 	private int getFirstStartPos(List<List<SAMRecordWrapper>> readsList) {
 		int minPos = Integer.MAX_VALUE;
 		for (List<SAMRecordWrapper> reads : readsList) {
@@ -582,9 +639,8 @@ public class ReAligner {
 		}
 	}
 	
-	private void remapRead(ReadEvaluator readEvaluator, SAMRecord read, int origEditDist) {
+	private void remapRead(SAMRecord read, Alignment alignment, int origEditDist) {
 		
-		Alignment alignment = readEvaluator.getImprovedAlignment(origEditDist, read, c2r);
 		if (alignment != null) {
 			
 			if (alignment == Alignment.AMBIGUOUS) {
@@ -592,7 +648,7 @@ public class ReAligner {
 				if (ambiguousMapq >= 0 && read.getMappingQuality() > ambiguousMapq) {
 					read.setMappingQuality(ambiguousMapq);
 				}
-			} else if (origEditDist == alignment.numMismatches && (read.getAlignmentStart() != alignment.pos || !read.getCigarString().equals(alignment.cigar))) {
+			} else if (origEditDist == alignment.numMismatches && (read.getAlignmentStart() != alignment.pos || !alignment.cigar.matches(read.getCigar()))) {
 				// Read maps ambiguously.  Downgrade mapping quality
 				if (ambiguousMapq >= 0 && read.getMappingQuality() > ambiguousMapq) {
 					read.setMappingQuality(ambiguousMapq);
@@ -613,12 +669,12 @@ public class ReAligner {
 				String ya = alignment.chromosome + "," + alignment.contigPos + "," + alignment.contigCigar;
 				
 				// If no change to alignment, just record the YA tag
-				if (!read.getReadUnmappedFlag() && read.getAlignmentStart() == readPos && read.getCigarString().equals(alignment.cigar)) {
+				if (!read.getReadUnmappedFlag() && read.getAlignmentStart() == readPos && alignment.cigar.matches(read.getCigar())) {
 					read.setAttribute("YA", ya);
 				}
 				
 				// If the read has actually moved to an improved alignment, update
-				if (read.getReadUnmappedFlag() || read.getAlignmentStart() != readPos || !read.getCigarString().equals(alignment.cigar)) {
+				if (read.getReadUnmappedFlag() || read.getAlignmentStart() != readPos || !alignment.cigar.matches(read.getCigar())) {
 					
 					read.setAttribute("YA", ya);
 	
@@ -637,7 +693,7 @@ public class ReAligner {
 	
 					// Update alignment position and cigar and orientation
 					read.setAlignmentStart(alignment.pos);
-					read.setCigarString(alignment.cigar);
+					read.setCigar(alignment.cigar.toCigar());
 					
 					// If this is true, the read was already reverse complemented in the original alignment
 					if (read.getReadNegativeStrandFlag()) {
@@ -695,7 +751,8 @@ public class ReAligner {
 		
 		for (Map<SimpleMapper, ContigAlignerResult> contigResults : mappedContigs.values()) {
 			for (ContigAlignerResult result : contigResults.values()) {
-				if (result.getCigar().contains("D") || result.getCigar().contains("I") || result.getCigar().contains("N")) {
+				PackedCigar cigar = result.getPackedCigar();
+				if (cigar.contains(PackedCigar.D) || cigar.contains(PackedCigar.I) || cigar.contains(PackedCigar.N)) {
 					hasGap = true;
 					break;
 				}
@@ -724,14 +781,15 @@ public class ReAligner {
 		return containsVariantJunction;
 	}
 	
-	private int remapReads(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs,
+	private int remapReads(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs, ReadEvaluator readEvaluator,
 			List<List<SAMRecordWrapper>> readsList, int chromosomeChunkIdx) throws Exception {
 		
 		int totalReads = 0;
 		
 		// Skip remapping if no gap in the contigs
 		
-		ReadEvaluator readEvaluator = new ReadEvaluator(mappedContigs);
+		// Pick up regions assembled or removed since the last remap
+		readEvaluator.update();
 		
 		int sampleIdx = 0;
 		
@@ -740,32 +798,14 @@ public class ReAligner {
 		// For each sample.
 		for (List<SAMRecordWrapper> reads : readsList) {
 			
-			// For each read.
-			for (SAMRecordWrapper readWrapper : reads) {
-				totalReads += 1;
-				SAMRecord read = readWrapper.getSamRecord();
-				 
-				if (shouldRemap) {
-								
-					if ((read.getMappingQuality() >= this.minMappingQuality || read.getReadUnmappedFlag()) && read.getReadLength() > 0) {
-						
-						// Don't remap reads with distant mate
-						// Always allow single end to pass this check
-						if (!read.getReadPairedFlag() ||
-							(Math.abs(read.getAlignmentStart() - read.getMateAlignmentStart()) < maxRealignDist &&
-									read.getReferenceName().equals(read.getMateReferenceName()))) {
-						
-							// TODO: Use NM tag if available (need to handle soft clipping though!)
-							int origEditDist = SAMRecordUtils.getEditDistance(read, c2r, true);
-							if (containsVariantJunction(read)) {
-								// Allow reads containing potentially miscategorized splices to be realigned.
-								origEditDist += 1;
-							}
-			//				int origEditDist = c2r.numMismatches(read);
-												
-							remapRead(readEvaluator, read, origEditDist);
-						}
-					}
+			totalReads += reads.size();
+			
+			if (shouldRemap) {
+				if (remapPool != null && reads.size() > REMAP_BATCH_SIZE) {
+					// Reads are updated in place, so output order is unaffected
+					remapPool.invoke(new RemapTask(readEvaluator, reads, 0, reads.size()));
+				} else {
+					remapReads(readEvaluator, reads, 0, reads.size());
 				}
 			}
 
@@ -780,41 +820,104 @@ public class ReAligner {
 		return totalReads;
 	}
 	
+	/**
+	 * Remaps reads[start] to reads[end-1].  Safe to call concurrently for disjoint ranges.
+	 */
+	private void remapReads(ReadEvaluator readEvaluator, List<SAMRecordWrapper> reads, int start, int end) {
+		
+		// For each read.
+		for (int i=start; i<end; i++) {
+			SAMRecordWrapper readWrapper = reads.get(i);
+			SAMRecord read = readWrapper.getSamRecord();
+			
+			if ((read.getMappingQuality() >= this.minMappingQuality || read.getReadUnmappedFlag()) && read.getReadLength() > 0) {
+				
+				// Don't remap reads with distant mate
+				// Always allow single end to pass this check
+				if (!read.getReadPairedFlag() ||
+					(Math.abs(read.getAlignmentStart() - read.getMateAlignmentStart()) < maxRealignDist &&
+							read.getReferenceName().equals(read.getMateReferenceName()))) {
+					
+					if (!canReachContigVariant(readEvaluator, read)) {
+						continue;
+					}
+				
+					// Duplicate reads share the verdict.  Tags and flags are updated per read.
+					RemapKey key = new RemapKey(read);
+					RemapVerdict verdict = readEvaluator.getVerdict(key);
+					
+					if (verdict == null) {
+						// TODO: Use NM tag if available (need to handle soft clipping though!)
+						int origEditDist = readWrapper.getEditDistance(c2r, true);
+						if (containsVariantJunction(read)) {
+							// Allow reads containing potentially miscategorized splices to be realigned.
+							origEditDist += 1;
+						}
+		//				int origEditDist = c2r.numMismatches(read);
+						
+						verdict = new RemapVerdict(origEditDist, readEvaluator.getImprovedAlignment(origEditDist, read, c2r));
+						readEvaluator.cacheVerdict(key, verdict);
+					}
+					
+					remapRead(read, verdict.alignment, verdict.origEditDist);
+					readWrapper.invalidateDerivedFeatures();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads not overlapping any difference between the contigs and the reference (allowing for
+	 * soft clips and mismatch rate slack) cannot be improved and are skipped.
+	 * Reads with their own indels are always evaluated as they may map to reference contig sequence with fewer edits.
+	 */
+	private boolean canReachContigVariant(ReadEvaluator readEvaluator, SAMRecord read) {
+		int slack = (int) Math.ceil(read.getReadLength() * maxMismatchRate);
+		return readEvaluator.isNearContigVariant(read, slack) || SAMRecordUtils.getNumIndels(read) > 0;
+	}
+	
+	/**
+	 * Splits a sample's reads into batches remapped in parallel on the remap pool.
+	 */
+	class RemapTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private ReadEvaluator readEvaluator;
+		private List<SAMRecordWrapper> reads;
+		private int start;
+		private int end;
+		
+		RemapTask(ReadEvaluator readEvaluator, List<SAMRecordWrapper> reads, int start, int end) {
+			this.readEvaluator = readEvaluator;
+			this.reads = reads;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start <= REMAP_BATCH_SIZE) {
+				remapReads(readEvaluator, reads, start, end);
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new RemapTask(readEvaluator, reads, start, mid), new RemapTask(readEvaluator, reads, mid, end));
+			}
+		}
+	}
+	
 	private List<List<SAMRecordWrapper>> subsetReads(Feature region, List<List<SAMRecordWrapper>> readsList) {
 		List<List<SAMRecordWrapper>> subset = new ArrayList<List<SAMRecordWrapper>>();
 		
-		// Initialize per sample lists
+		// Initialize per sample lists.  Read pairs are merged as reads are cached (see ReadPairIndex)
 		for (List<SAMRecordWrapper> origSample : readsList) {
 			
-			// Track read pair ends
-			Map<String, SAMRecordWrapper> firstReads = new HashMap<String, SAMRecordWrapper>();
-			Map<String, SAMRecordWrapper> secondReads = new HashMap<String, SAMRecordWrapper>();
-			
 			List<SAMRecordWrapper> subsetSample = new ArrayList<SAMRecordWrapper>();
 			subset.add(subsetSample);
 			
 			for (SAMRecordWrapper read : origSample) {
 				if (region.overlapsRead(read.getSamRecord())) {
 					subsetSample.add(read);
-					
-					if (read.getSamRecord().getReadPairedFlag()) {
-						if (read.getSamRecord().getFirstOfPairFlag() && SAMRecordUtils.isPrimary(read.getSamRecord())) {
-							firstReads.put(read.getSamRecord().getReadName() + "_" + read.getSamRecord().getAlignmentStart(), read);
-						} else if (read.getSamRecord().getSecondOfPairFlag() && SAMRecordUtils.isPrimary(read.getSamRecord())) {
-							secondReads.put(read.getSamRecord().getReadName() + "_" + read.getSamRecord().getAlignmentStart(), read);
-						}
-					}
-				}
-			}
-			
-			for (SAMRecordWrapper read : subsetSample) {
-				if (SAMRecordUtils.hasPossibleAdapterReadThrough(read.getSamRecord(), firstReads, secondReads)) {
-					read.setShouldAssemble(false);
-				}
-				
-				// If reads overlap, attempt to generate merged sequence
-				if (!read.hasMergedSeq()) {
-					SAMRecordUtils.mergeReadPair(read, firstReads, secondReads);
 				}
 			}
 		}
@@ -971,135 +1074,185 @@ public class ReAligner {
 	}
 
 	
-	private ContigAlignerResult alignContig(Feature region, String contig, ContigAligner ssw, List<ContigAligner> sswJunctions, List<Feature> allJunctions,
-			int chromosomeLength) {
+	/**
+	 * Aligns contigs against each junction permutation followed by the unspliced reference in a single batch.
+	 * Contigs previously aligned within the region are pulled from the memo.
+	 * Returns the best alignment (or null) for each contig.
+	 */
+	private List<ContigAlignerResult> alignContigs(Feature region, List<String> contigs, ContigAligner ssw, List<ContigAligner> sswJunctions,
+			List<Feature> allJunctions, int chromosomeLength, ContigAlignmentMemo memo, JunctionPermutationCache junctionCache) {
 		
-		ContigAlignerResult bestResult = null;
+		List<ContigAligner> aligners = new ArrayList<ContigAligner>(sswJunctions);
+		aligners.add(ssw);
 		
-		if (contig.length() > NativeSemiGlobalAligner.MAX_CONTIG_LEN) {
-			Logger.warn(String.format("In Region: %s, contig too long: [%s]", region, contig));
-		} else {
-
-			int bestScore = -1;
-			
-			ContigAlignerResult sswResult;
-			for (ContigAligner sswJunc : sswJunctions) {
-				sswResult = sswJunc.align(contig);
-				if (sswResult != null && sswResult.getScore() > bestScore) {
-					bestScore = sswResult.getScore();
-					bestResult = sswResult;
-				}
+		List<String> alignable = new ArrayList<String>();
+		for (String contig : contigs) {
+			if (contig.length() <= NativeSemiGlobalAligner.MAX_CONTIG_LEN && !memo.hasAlignment(region, contig) && !alignable.contains(contig)) {
+				alignable.add(contig);
 			}
+		}
+		
+		if (sswJunctions.size() <= MAX_ALIGNED_JUNCTION_PERMUTATIONS) {
+			ContigAlignerResult[][] batchResults = ContigAligner.alignBatch(alignable, aligners);
 			
-			sswResult = ssw.align(contig);
-			if (sswResult != null && sswResult.getScore() > bestScore) {
-				bestScore = sswResult.getScore();
-				bestResult = sswResult;
+			for (int i=0; i<alignable.size(); i++) {
+				ContigAlignerResult result = alignContig(region, alignable.get(i), batchResults[i], allJunctions, chromosomeLength, junctionCache);
+				memo.putAlignment(region, alignable.get(i), result);
 			}
-	
-			if (bestResult != null && bestResult != ContigAlignerResult.INDEL_NEAR_END) {
+		} else {
+			// Only align against the junction permutations sharing the most junction spanning seeds with each contig
+			for (String contig : alignable) {
+				List<ContigAligner> selected = new ArrayList<ContigAligner>(ContigAligner.selectJunctionAligners(contig, sswJunctions, MAX_ALIGNED_JUNCTION_PERMUTATIONS));
+				selected.add(ssw);
 				
-				if (!allJunctions.isEmpty()) {
-					// Check for additional potential exon skipping junctions masked by a base or 2 interrupting the gap
-					// Using annotated exons here
-					List<Feature> extraJunctions = getExonSkippingJunctions(bestResult, allJunctions);
-					if (!extraJunctions.isEmpty()) {
-						
-						List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
-						combinedJunctions.addAll(extraJunctions);
-						
-						Collections.sort(combinedJunctions, new JunctionComparator());
-						
-						List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
-						try {
-							junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
-						} catch (TooManyJunctionPermutationsException e) {
-							Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+				ContigAlignerResult[][] batchResults = ContigAligner.alignBatch(Collections.singletonList(contig), selected);
+				ContigAlignerResult result = alignContig(region, contig, batchResults[0], allJunctions, chromosomeLength, junctionCache);
+				memo.putAlignment(region, contig, result);
+			}
+		}
+		
+		List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>(contigs.size());
+		for (String contig : contigs) {
+			if (contig.length() > NativeSemiGlobalAligner.MAX_CONTIG_LEN) {
+				Logger.warn(String.format("In Region: %s, contig too long: [%s]", region, contig));
+				results.add(null);
+			} else {
+				results.add(memo.getAlignment(region, contig));
+			}
+		}
+		
+		return results;
+	}
+	
+	// sswResults contains the contig's alignments to each junction permutation followed by the unspliced reference
+	private ContigAlignerResult alignContig(Feature region, String contig, ContigAlignerResult[] sswResults, List<Feature> allJunctions,
+			int chromosomeLength, JunctionPermutationCache junctionCache) {
+		
+		ContigAlignerResult bestResult = null;
+		
+		int bestScore = -1;
+		
+		ContigAlignerResult sswResult;
+		for (ContigAlignerResult result : sswResults) {
+			if (result != null && result.getScore() > bestScore) {
+				bestScore = result.getScore();
+				bestResult = result;
+			}
+		}
+
+		if (bestResult != null && bestResult != ContigAlignerResult.INDEL_NEAR_END) {
+			
+			if (!allJunctions.isEmpty()) {
+				// Check for additional potential exon skipping junctions masked by a base or 2 interrupting the gap
+				// Using annotated exons here
+				List<Feature> extraJunctions = getExonSkippingJunctions(bestResult, allJunctions);
+				if (!extraJunctions.isEmpty()) {
+					
+					List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
+					combinedJunctions.addAll(extraJunctions);
+					
+					Collections.sort(combinedJunctions, new JunctionComparator());
+					
+					List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
+					try {
+						junctionPermutations = junctionCache.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions));
+					} catch (TooManyJunctionPermutationsException e) {
+						Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					}
+					
+					List<ContigAligner> extraAligners = new ArrayList<ContigAligner>();
+					for (List<Feature> permutation : junctionPermutations) {
+						boolean hasExtra = false;
+						for (Feature junc : permutation) {
+							if (extraJunctions.contains(junc)) {
+								hasExtra = true;
+								break;
+							}
 						}
 						
-						for (List<Feature> permutation : junctionPermutations) {
-							boolean hasExtra = false;
-							for (Feature junc : permutation) {
-								if (extraJunctions.contains(junc)) {
-									hasExtra = true;
-									break;
-								}
-							}
-							
-							if (hasExtra) {
-								ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
-								if (aligner != null) {
-									sswResult = aligner.align(contig);
-									if (sswResult != null && sswResult.getScore() > bestScore) {
-										bestScore = sswResult.getScore();
-										bestResult = sswResult;
-									}
-								}
+						if (hasExtra) {
+							ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength, junctionCache);
+							if (aligner != null) {
+								extraAligners.add(aligner);
 							}
 						}
 					}
 					
-					// Check for deletion adjacent to intron (i.e. skipped exon or unannotated splice)
-					// Not relying on annotated exons here.
-					extraJunctions = getExtraJunctions(bestResult, allJunctions, extraJunctions);
-					if (!extraJunctions.isEmpty()) {
-						
-						List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
-						combinedJunctions.addAll(extraJunctions);
-						
-						Collections.sort(combinedJunctions, new JunctionComparator());
-						
-						List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
-						try {
-							junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
-						} catch (TooManyJunctionPermutationsException e) {
-							Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					for (ContigAligner aligner : ContigAligner.selectJunctionAligners(contig, extraAligners, MAX_ALIGNED_JUNCTION_PERMUTATIONS)) {
+						sswResult = aligner.align(contig);
+						if (sswResult != null && sswResult.getScore() > bestScore) {
+							bestScore = sswResult.getScore();
+							bestResult = sswResult;
 						}
-						
-						for (List<Feature> permutation : junctionPermutations) {
-							boolean hasExtra = false;
-							for (Feature junc : permutation) {
-								if (extraJunctions.contains(junc)) {
-									hasExtra = true;
-									break;
-								}
+					}
+				}
+				
+				// Check for deletion adjacent to intron (i.e. skipped exon or unannotated splice)
+				// Not relying on annotated exons here.
+				extraJunctions = getExtraJunctions(bestResult, allJunctions, extraJunctions);
+				if (!extraJunctions.isEmpty()) {
+					
+					List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
+					combinedJunctions.addAll(extraJunctions);
+					
+					Collections.sort(combinedJunctions, new JunctionComparator());
+					
+					List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
+					try {
+						junctionPermutations = junctionCache.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions));
+					} catch (TooManyJunctionPermutationsException e) {
+						Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					}
+					
+					List<ContigAligner> extraAligners = new ArrayList<ContigAligner>();
+					for (List<Feature> permutation : junctionPermutations) {
+						boolean hasExtra = false;
+						for (Feature junc : permutation) {
+							if (extraJunctions.contains(junc)) {
+								hasExtra = true;
+								break;
 							}
-							
-							if (hasExtra) {
-								ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
-								if (aligner != null) {
-									sswResult = aligner.align(contig);
-									if (sswResult != null && sswResult.getScore() > bestScore) {
-										bestScore = sswResult.getScore();
-										bestResult = sswResult;
-									}
-								}
+						}
+						
+						if (hasExtra) {
+							ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength, junctionCache);
+							if (aligner != null) {
+								extraAligners.add(aligner);
 							}
 						}
 					}
+					
+					for (ContigAligner aligner : ContigAligner.selectJunctionAligners(contig, extraAligners, MAX_ALIGNED_JUNCTION_PERMUTATIONS)) {
+						sswResult = aligner.align(contig);
+						if (sswResult != null && sswResult.getScore() > bestScore) {
+							bestScore = sswResult.getScore();
+							bestResult = sswResult;
+						}
+					}
 				}
-				
-				Logger.debug("BEST_SSW: %d : %s : %d: %d : %s",
-						bestResult.getGenomicPos(), bestResult.getCigar(), bestResult.getRefPos(), bestResult.getScore(), bestResult.getSequence());
-				
-			} else {
-				Logger.debug("NO_SSW: %s", contig);
 			}
 			
-			//TODO: Check for tie scores with different final alignment
+			Logger.debug("BEST_SSW: %d : %s : %d: %d : %s",
+					bestResult.getGenomicPos(), bestResult.getCigar(), bestResult.getRefPos(), bestResult.getScore(), bestResult.getSequence());
+			
+		} else {
+			Logger.debug("NO_SSW: %s", contig);
 		}
 		
+		//TODO: Check for tie scores with different final alignment
+		
 		return bestResult;
 	}
 	
 	private boolean assemble(List<ContigAlignerResult> results, Feature region, 
 			String refSeq, List<String> bams, List<List<SAMRecordWrapper>> readsList, ContigAligner contigAligner,
 			List<ContigAligner> junctionAligners, int mnf, int mbq, double mer, List<Feature> junctions,
-			int chromosomeLength, int maxNumContigs) throws IOException {
+			int chromosomeLength, int maxNumContigs, ContigAlignmentMemo alignmentMemo,
+			JunctionPermutationCache junctionCache) throws IOException {
 		
 		boolean shouldRetry = false;
 		
-		NativeAssembler assem = (NativeAssembler) newAssembler(region);
+		NativeAssembler assem = (NativeAssembler) newAssembler(region, junctions);
 		List<Feature> regions = new ArrayList<Feature>();
 		regions.add(region); 
 		StringBuffer readBuffer = new StringBuffer();
@@ -1115,19 +1268,24 @@ public class ReAligner {
 				appendContigs(contigs);
 			}
 			
-			// Map contigs to reference
+			// Filter contigs that match the reference
+			List<String> contigsToAlign = new ArrayList<String>();
 			for (ScoredContig contig : scoredContigs) {
-				// Filter contigs that match the reference
 				if (!refSeq.contains(contig.getContig())) {
-					
-					ContigAlignerResult sswResult = alignContig(region, contig.getContig(), contigAligner, junctionAligners, junctions, chromosomeLength);
-					
-					if (sswResult == ContigAlignerResult.INDEL_NEAR_END) {
-						shouldRetry = true;
-					} else if (sswResult != null) {
-						// TODO: In multi-region processing, check to ensure identical contigs have identical mappings
-						results.add(sswResult);
-					}
+					contigsToAlign.add(contig.getContig());
+				}
+			}
+			
+			// Map contigs to reference
+			List<ContigAlignerResult> sswResults = alignContigs(region, contigsToAlign, contigAligner, junctionAligners, junctions, chromosomeLength, alignmentMemo, junctionCache);
+			
+			for (ContigAlignerResult sswResult : sswResults) {
+				
+				if (sswResult == ContigAlignerResult.INDEL_NEAR_END) {
+					shouldRetry = true;
+				} else if (sswResult != null) {
+					// TODO: In multi-region processing, check to ensure identical contigs have identical mappings
+					results.add(sswResult);
 				}
 			}
 		} 
@@ -1135,7 +1293,13 @@ public class ReAligner {
 		return shouldRetry;
 	}
 	
-	private ContigAligner getContigAlignerForJunctionPermutation(List<Feature> junctionPerm, Feature region, int chromosomeLength) {
+	private ContigAligner getContigAlignerForJunctionPermutation(List<Feature> junctionPerm, Feature region, int chromosomeLength,
+			JunctionPermutationCache junctionCache) {
+		
+		// Spliced reference sequence depends only upon the permutation and region length
+		if (junctionCache.hasAligner(junctionPerm, region.getLength())) {
+			return junctionCache.getAligner(junctionPerm, region.getLength());
+		}
 		
 		int basesToPad = (int) region.getLength() + this.readLength*2;
 		
@@ -1148,11 +1312,14 @@ public class ReAligner {
 			int refStart = Math.max((int) junctionPerm.get(0).getStart() - (int) region.getLength() - this.readLength*2, 1);
 			contigAligner = new ContigAligner(juncSeq.seq, region.getSeqname(), refStart, this.readLength, minAnchorLen, maxAnchorMismatches, juncSeq.junctionPos, juncSeq.junctionLengths);
 		}
+		
+		junctionCache.putAligner(junctionPerm, region.getLength(), contigAligner);
 
 		return contigAligner;
 	}
 	
-	public Map<SimpleMapper, ContigAlignerResult> processRegion(Feature region, List<List<SAMRecordWrapper>> reads, List<Feature> junctions, List<Variant> knownVariants) throws Exception {
+	public Map<SimpleMapper, ContigAlignerResult> processRegion(Feature region, List<List<SAMRecordWrapper>> reads, List<Feature> junctions, List<Variant> knownVariants,
+			ContigAlignmentMemo alignmentMemo, JunctionPermutationCache junctionCache, AltContigCatalog altContigCatalog) throws Exception {
 		
 		long start = System.currentTimeMillis();
 		if (isDebug) {
@@ -1200,7 +1367,7 @@ public class ReAligner {
 			
 			List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
 			try {
-				junctionPermutations = JunctionUtils.combineJunctions(region, junctions, new HashSet<Feature>(), MAX_REGION_LENGTH, this.readLength);
+				junctionPermutations = junctionCache.combineJunctions(region, junctions, new HashSet<Feature>());
 			} catch (TooManyJunctionPermutationsException e) {
 				Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
 			}
@@ -1214,7 +1381,7 @@ public class ReAligner {
 				juncPermCount = junctionPermutations.size();
 				
 				for (List<Feature> junctionPerm : junctionPermutations) {
-					ContigAligner aligner = getContigAlignerForJunctionPermutation(junctionPerm, region, chromosomeLength);
+					ContigAligner aligner = getContigAlignerForJunctionPermutation(junctionPerm, region, chromosomeLength, junctionCache);
 					if (aligner != null) {
 						Logger.debug("JUNC_REF_SEQ:\t%s\t%d", region.getDescriptor(), aligner.ref.length());
 						junctionAligners.add(aligner);
@@ -1232,8 +1399,8 @@ public class ReAligner {
 				}
 							
 				// Assemble contigs
-				if (this.isSkipAssembly || region.getKmer() > this.readLength-15) {
-					Logger.debug("Skipping assembly of region: " + region.getDescriptor() + " - " + region.getKmer());
+				if (this.isSkipAssembly || getRegionKmer(region, junctions) > this.readLength-15) {
+					Logger.debug("Skipping assembly of region: " + region.getDescriptor() + " - " + getRegionKmer(region, junctions));
 				} else {
 					
 					//
@@ -1249,7 +1416,7 @@ public class ReAligner {
 					List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>();
 					boolean shouldRetry = assemble(results, region, refSeq, bams, readsList, ssw, junctionAligners,
 							assemblerSettings.getMinNodeFrequncy(), assemblerSettings.getMinBaseQuality(),
-							assemblerSettings.getMinEdgeRatio(), junctions, chromosomeLength, maxNumContigs);
+							assemblerSettings.getMinEdgeRatio(), junctions, chromosomeLength, maxNumContigs, alignmentMemo, junctionCache);
 					
 					if (shouldRetry) {
 						Logger.debug("RETRY_ASSEMBLY: %s", region);
@@ -1258,7 +1425,7 @@ public class ReAligner {
 						results.clear();
 						assemble(results, region, refSeq, bams, readsList, ssw, junctionAligners,
 								assemblerSettings.getMinNodeFrequncy()/2, assemblerSettings.getMinBaseQuality()/2,
-								assemblerSettings.getMinEdgeRatio()/2.0, junctions, chromosomeLength, maxNumContigs);
+								assemblerSettings.getMinEdgeRatio()/2.0, junctions, chromosomeLength, maxNumContigs, alignmentMemo, junctionCache);
 					}
 					
 					for (ContigAlignerResult sswResult : results) {
@@ -1271,18 +1438,19 @@ public class ReAligner {
 				if (useSoftClippedReads || useObservedIndels || (knownVariants != null && knownVariants.size() > 0)) {
 					Logger.debug("Processing non-assembled contigs for region: [" + region + "]");
 					// Go through artificial contig generation using indels observed in the original reads
-					AltContigGenerator altContigGenerator = new AltContigGenerator(softClipParams[0], softClipParams[1], softClipParams[2], softClipParams[3],
-							useObservedIndels, useSoftClippedReads, useConsensusSeq, minMappingQuality);
-					Collection<String> altContigs = altContigGenerator.getAltContigs(readsList, c2r, readLength, junctionPermutations.size(), region, knownVariants, junctions);
+					AltContigGenerator altContigGenerator = new AltContigGenerator(softClipParams[0], useObservedIndels, useSoftClippedReads, useConsensusSeq);
+					Collection<String> altContigs = altContigGenerator.getAltContigs(altContigCatalog, c2r, readLength, junctionPermutations.size(), region, knownVariants, junctions);
 					
 					nonAssembledContigCount = altContigs.size();
 					
-					for (String contig : altContigs) {
-						// TODO: Check to see if this contig is already in the map before aligning
-						
-						ContigAlignerResult sswResult = alignContig(region, contig, ssw, junctionAligners, junctions, chromosomeLength);
+					// Alt contigs matching assembled contigs are pulled from the alignment memo
+					List<ContigAlignerResult> sswResults = alignContigs(region, new ArrayList<String>(altContigs), ssw, junctionAligners, junctions, chromosomeLength, alignmentMemo, junctionCache);
+					
+					for (ContigAlignerResult sswResult : sswResults) {
 						if (sswResult != null && sswResult != ContigAlignerResult.INDEL_NEAR_END) {
 							// Set as secondary for remap prioritization
+							// Results shared with assembled contigs via the alignment memo replace the
+							// assembled entry in mappedContigs below, so are marked secondary regardless.
 							sswResult.setSecondary(true);
 							// Store for read mapping
 							mappedContigs.put(new SimpleMapper(sswResult.getSequence(), maxMismatchRate), sswResult);
@@ -1366,6 +1534,21 @@ public class ReAligner {
 		}
 	}
 	
+	private void loadKmerSizeIndex() throws IOException {
+		if (kmerSizeIndexFile != null) {
+			kmerSizeIndex = KmerSizeIndex.load(kmerSizeIndexFile);
+			
+			if (kmerSizeIndex.getReadLength() != readLength) {
+				Logger.warn(String.format("Kmer size index read length: %d differs from input read length: %d", kmerSizeIndex.getReadLength(), readLength));
+			}
+			
+			if (kmerSizeIndex.getWindowSize() != MAX_REGION_LENGTH || kmerSizeIndex.getWindowOverlap() != REGION_OVERLAP) {
+				Logger.warn(String.format("Kmer size index window: %d,%d differs from processing window: %d,%d.  Kmer sizes will be approximated.",
+						kmerSizeIndex.getWindowSize(), kmerSizeIndex.getWindowOverlap(), MAX_REGION_LENGTH, REGION_OVERLAP));
+			}
+		}
+	}
+	
 	private List<Feature> loadJunctionsFromBam() {
 		SpliceJunctionCounter sjc = new SpliceJunctionCounter();
 		List<Feature> bamJunctions = sjc.getJunctions(this.inputSams);
@@ -1537,10 +1720,22 @@ public class ReAligner {
 		return regions;
 	}
 	
-	int[] getKmers(Feature region) {
+	// Preset kmer for the region if available, else kmer from the kmer size index.  0 if unknown.
+	// The index is computed from reference sequence only, so it is not used for regions containing junctions.
+	int getRegionKmer(Feature region, List<Feature> junctions) {
+		int kmerSize = region.getKmer();
+		
+		if (kmerSize == 0 && kmerSizeIndex != null && (junctions == null || junctions.isEmpty())) {
+			kmerSize = kmerSizeIndex.getKmer(region);
+		}
+		
+		return kmerSize;
+	}
+	
+	int[] getKmers(Feature region, List<Feature> junctions) {
 		int[] kmerSizes = null;
 		
-		int kmerSize = region.getKmer();
+		int kmerSize = getRegionKmer(region, junctions);
 		
 		if (kmerSize > 0) {
 			kmerSizes = toKmerArray(kmerSize, readLength);
@@ -1575,14 +1770,14 @@ public class ReAligner {
 		return kmerSizes;
 	}
 		
-	private NativeAssembler newAssembler(Feature region) {
+	private NativeAssembler newAssembler(Feature region, List<Feature> junctions) {
 		NativeAssembler assem = new NativeAssembler();
 
 		assem.setTruncateOutputOnRepeat(true);
 		assem.setMaxPathsFromRoot(100000);
 		assem.setReadLength(readLength);
 		//assem.setKmer(assemblerSettings.getKmerSize());
-		assem.setKmer(getKmers(region));
+		assem.setKmer(getKmers(region, junctions));
 		assem.setMinKmerFrequency(assemblerSettings.getMinNodeFrequncy());
 		assem.setMinEdgeRatio(assemblerSettings.getMinEdgeRatio());
 		assem.setMinBaseQuality(assemblerSettings.getMinBaseQuality());
@@ -1610,7 +1805,7 @@ public class ReAligner {
 		
 		this.chromosomeSkipRegex = new ChromosomeRegex(chromosomesToSkipRegex);
 		
-		ContigAligner.init(swScoring);
+		ContigAligner.init(swScoring, contigAlignerImpl);
 		
 		Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
         perms.add(PosixFilePermission.OWNER_READ);
@@ -1630,6 +1825,7 @@ public class ReAligner {
 		new NativeLibraryLoader().load(tempDir.toString(), NativeLibraryLoader.DEFLATOR, true);
 		
 		threadManager = new ThreadManager(numThreads);
+		remapPool = new ForkJoinPool(numThreads);
 		
 		if (inputVcf != null) {
 			this.knownVariants = Variant.loadFromFile(inputVcf);
@@ -1766,6 +1962,7 @@ public class ReAligner {
 			realigner.maxMismatchRate = options.getMaxMismatchRate();
 			realigner.maxReadsInRegion = options.getMaxReadsInRegion();
 			realigner.hasPresetKmers = options.hasPresetKmers();
+			realigner.kmerSizeIndexFile = options.getKmerSizeIndex();
 			realigner.isSkipAssembly = options.isSkipAssembly();
 			realigner.isSkipUnmappedTrigger = options.isSkipUnmappedAssemblyTrigger();
 			realigner.useObservedIndels = options.useObservedIndels();
@@ -1780,6 +1977,7 @@ public class ReAligner {
 			realigner.gtfJunctionFile = options.getGtfJunctionFile();
 			realigner.contigFile = options.getContigFile();
 			realigner.swScoring = options.getSmithWatermanScoring();
+			realigner.contigAlignerImpl = options.getContigAlignerImpl();
 			realigner.softClipParams = options.getSoftClipParams();
 			realigner.maxCachedReads = options.getMaxCachedReads();
 			realigner.finalCompressionLevel = options.getCompressionLevel();
@@ -1790,6 +1988,7 @@ public class ReAligner {
 			realigner.inputVcf = options.getInputVcf();
 			realigner.shouldCreateIndex = options.shouldCreateIndex();
 			realigner.shouldUseGkl = options.shouldUseGkl();
+			realigner.tempCodec = TempCodec.parse(options.getTempCodec());
 			realigner.ambiguousMapq = options.getAmbiguousMapq();
 			realigner.maxReadNoise = options.getMaxReadNoise();
 			realigner.maxReadsInRamForSort = options.getMaxReadsInRamForSort();
@@ -15,6 +15,7 @@ public class ReAlignerOptions extends Options {
 	private static final String REFERENCE = "ref";
 	private static final String TARGET_REGIONS = "targets";
 	private static final String TARGET_REGIONS_WITH_KMERS = "target-kmers";
+	private static final String KMER_SIZE_INDEX = "kmer-index";
 	private static final String KMER_SIZE = "kmer";
 	private static final String MIN_NODE_FREQUENCY = "mnf";
 	private static final String MIN_CONTIG_LENGTH = "mcl";
@@ -35,6 +36,7 @@ public class ReAlignerOptions extends Options {
 	private static final String CONTIG_FILE	 = "contigs";
 	private static final String GTF_JUNCTIONS = "gtf";
 	private static final String SG_ALIGNER_SCORING = "sga";
+	private static final String SG_ALIGNER_IMPL = "sga-impl";
 	private static final String MAX_CACHED_READS = "mcr";
 	private static final String KEEP_TMP = "keep-tmp";
 	private static final String TMP_DIR = "tmpdir";
@@ -53,6 +55,7 @@ public class ReAlignerOptions extends Options {
 	private static final String INPUT_VCF = "in-vcf";
 	private static final String INDEX = "index";
 	private static final String GKL = "gkl";
+	private static final String TMP_CODEC = "tmp-codec";
 	private static final String AMBIGUOUS_MAPQ = "amq";
 	private static final String MAX_READ_NOISE = "mrn";
 	private static final String MAX_SORT_READS = "msr";
@@ -73,6 +76,7 @@ public class ReAlignerOptions extends Options {
             parser.accepts(REFERENCE, "Genome reference location").withRequiredArg().ofType(String.class);
             parser.accepts(TARGET_REGIONS, "BED file containing target regions").withRequiredArg().ofType(String.class);
             parser.accepts(TARGET_REGIONS_WITH_KMERS, "BED-like file containing target regions with per region kmer sizes in 4th column").withRequiredArg().ofType(String.class);
+            parser.accepts(KMER_SIZE_INDEX, "Binary kmer size index generated by abra.KmerSizeIndex.  Used to look up per region kmer sizes when target-kmers is not specified").withRequiredArg().ofType(String.class);
             parser.accepts(KMER_SIZE, "Optional assembly kmer size(delimit with commas if multiple sizes specified)").withOptionalArg().ofType(String.class);
             parser.accepts(MIN_NODE_FREQUENCY, "Assembly minimum node frequency").withRequiredArg().ofType(Integer.class).defaultsTo(1);
             parser.accepts(MIN_CONTIG_LENGTH, "Assembly minimum contig length").withOptionalArg().ofType(Integer.class).defaultsTo(-1);
@@ -92,6 +96,7 @@ public class ReAlignerOptions extends Options {
             parser.accepts(SKIP_SOFT_CLIP, "Skip usage of soft clipped sequences as putative contigs");
             parser.accepts(SOFT_CLIP, "Soft clip contig args [max_contigs,min_base_qual,frac_high_qual_bases,min_soft_clip_len]").withRequiredArg().ofType(String.class).defaultsTo("16,13,80,15");
             parser.accepts(SG_ALIGNER_SCORING, "Scoring used for contig alignments (match, mismatch_penalty, gap_open_penalty, gap_extend_penalty)").withRequiredArg().ofType(String.class).defaultsTo("8,32,48,1");
+            parser.accepts(SG_ALIGNER_IMPL, "Contig aligner implementation (native, vector, java).  vector requires --add-modules jdk.incubator.vector").withRequiredArg().ofType(String.class).defaultsTo("native");
             parser.accepts(MAX_CACHED_READS, "Max number of cached reads per sample per thread").withRequiredArg().ofType(Integer.class).defaultsTo(1000000);
             parser.accepts(SKIP_OBS_INDELS, "Do not use observed indels in original alignments to generate contigs");
             parser.accepts(KEEP_TMP, "Do not delete the temporary directory");
@@ -111,6 +116,7 @@ public class ReAlignerOptions extends Options {
             parser.accepts(INPUT_VCF, "VCF containing known (or suspected) variant sites.  Very large files should be avoided.").withRequiredArg().ofType(String.class);
             parser.accepts(INDEX, "Enable BAM index generation when outputting sorted alignments (may require additonal memory)");
             parser.accepts(GKL, "If specified, use the GKL Intel Deflater.");
+            parser.accepts(TMP_CODEC, "Temp chunk and sort spill file format (snappy, raw, bam).  Use bam to inspect temp files with --keep-tmp").withRequiredArg().ofType(String.class).defaultsTo("snappy");
             parser.accepts(AMBIGUOUS_MAPQ, "Set mapq for alignments that map equally well to reference and an ABRA generated contig.  default of -1 disables").withRequiredArg().ofType(Integer.class).defaultsTo(-1);
             parser.accepts(MAX_READ_NOISE, "Reads with noise score exceeding this value are not remapped.  numMismatches+(numIndels*2) < readLength*mnr").withRequiredArg().ofType(Double.class).defaultsTo(.10);
             parser.accepts(MAX_SORT_READS, "Max reads to keep in memory per sample during the sort phase.  When this value is exceeded, sort spills to disk").withRequiredArg().ofType(Integer.class).defaultsTo(1000000);
@@ -149,13 +155,23 @@ public class ReAlignerOptions extends Options {
 		if (getOptions().hasArgument(TARGET_REGIONS) && getOptions().hasArgument(TARGET_REGIONS_WITH_KMERS)) {
 			isValid = false;
 			System.err.println("Please specifiy only one of: " + TARGET_REGIONS + ", " + TARGET_REGIONS_WITH_KMERS);
-		}		
+		}
+		
+		if (getOptions().hasArgument(KMER_SIZE_INDEX) && getOptions().hasArgument(TARGET_REGIONS_WITH_KMERS)) {
+			isValid = false;
+			System.err.println("Please specifiy only one of: " + KMER_SIZE_INDEX + ", " + TARGET_REGIONS_WITH_KMERS);
+		}
 				
 		if ((getOptions().hasArgument(NUM_THREADS) && (Integer) getOptions().valueOf(NUM_THREADS) < 1)) {
 			isValid = false;
 			System.err.println("Num threads must be greater than zero.");
 		}
-		
+
+		if (!getTempCodec().matches("(?i)snappy|raw|bam")) {
+			isValid = false;
+			System.err.println("Temp codec must be one of: snappy, raw, bam");
+		}
+
         if (!isValid) {
             printHelp();
         }
@@ -220,6 +236,10 @@ public class ReAlignerOptions extends Options {
 		return file;		
 	}
 
+	public String getKmerSizeIndex() {
+		return getOptions().has(KMER_SIZE_INDEX) ? (String) getOptions().valueOf(KMER_SIZE_INDEX) : null;
+	}
+
 	public boolean hasPresetKmers() {
 		return getOptions().hasArgument(TARGET_REGIONS_WITH_KMERS);
 	}
@@ -360,6 +380,10 @@ public class ReAlignerOptions extends Options {
 		return getOptions().has(GKL);
 	}
 	
+	public String getTempCodec() {
+		return (String) getOptions().valueOf(TMP_CODEC);
+	}
+	
 	public int[] getSmithWatermanScoring() {
 		String scoring = (String) getOptions().valueOf(SG_ALIGNER_SCORING);
 		String[] fields = scoring.split(",");
@@ -377,6 +401,10 @@ public class ReAlignerOptions extends Options {
 		return scores;
 	}
 	
+	public String getContigAlignerImpl() {
+		return (String) getOptions().valueOf(SG_ALIGNER_IMPL);
+	}
+	
 	public int getWindowSize() {
 		String win = (String) getOptions().valueOf(WINDOW_SIZE);
 		String[] fields = win.split(",");
@@ -1,24 +1,278 @@
 package abra;
 
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import abra.ContigAligner.ContigAlignerResult;
+import abra.MultiContigMapper.Hits;
 import abra.SimpleMapper.Orientation;
 import abra.SimpleMapper.SimpleMapperResult;
 
+/**
+ * Evaluates reads against assembled contigs.  getImprovedAlignment may be called concurrently
+ * from multiple threads.
+ */
 public class ReadEvaluator {
+	
+	// Remap verdicts cached before the verdict cache is reset
+	private static final int MAX_VERDICTS = 100000;
 
 	// key = SimpleMapper with cached contig, value = contig SW alignment result
 	private Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs;
 	
+	// Used to identify contig mismatches versus the reference.  May be null.
+	private CompareToReference2 c2r;
+	
+	// Region contigs as of the last index build
+	private Map<Feature, Map<SimpleMapper, ContigAlignerResult>> indexedContigs;
+	
+	// Combined index of distinct contigs across all regions
+	private MultiContigMapper contigMapper;
+	
+	// Region / contig entries in mappedContigs iteration order
+	private Feature[] entryRegions;
+	private SimpleMapper[] entryMappers;
+	
+	// Distinct contig -> entry indices
+	private int[][] contigEntries;
+	
+	// Remap verdicts for reads sharing sequence and original alignment.
+	// Only valid for the current contig index.
+	private Map<RemapKey, RemapVerdict> verdicts = new ConcurrentHashMap<RemapKey, RemapVerdict>();
+	
+	// Merged reference intervals where contigs differ from the reference.
+	// chromosome -> [start0, end0, start1, end1, ...] 1 based inclusive
+	private Map<String, int[]> variantIntervals;
+	
+	// Contig alignment -> (start << 32 | end) intervals differing from the reference
+	private Map<ContigAlignerResult, long[]> resultIntervals = new IdentityHashMap<ContigAlignerResult, long[]>();
+	
 	public ReadEvaluator(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs) {
+		this(mappedContigs, null);
+	}
+	
+	public ReadEvaluator(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs, CompareToReference2 c2r) {
 		this.mappedContigs = mappedContigs;
+		this.c2r = c2r;
+		buildIndex();
+	}
+	
+	/**
+	 * Rebuilds the contig index if regions have been added to or removed from mappedContigs
+	 * since the last build.  Must not be called concurrently with getImprovedAlignment.
+	 */
+	public void update() {
+		boolean isStale = indexedContigs.size() != mappedContigs.size();
+		
+		if (!isStale) {
+			for (Feature region : mappedContigs.keySet()) {
+				if (indexedContigs.get(region) != mappedContigs.get(region)) {
+					isStale = true;
+					break;
+				}
+			}
+		}
+		
+		if (isStale) {
+			buildIndex();
+		}
+	}
+	
+	private void buildIndex() {
+		verdicts.clear();
+		indexedContigs = new HashMap<Feature, Map<SimpleMapper, ContigAlignerResult>>(mappedContigs);
+		
+		// Identical contigs from overlapping regions are indexed once
+		Map<SimpleMapper, List<Integer>> distinctContigs = new LinkedHashMap<SimpleMapper, List<Integer>>();
+		List<Feature> regions = new ArrayList<Feature>();
+		List<SimpleMapper> mappers = new ArrayList<SimpleMapper>();
+		
+		for (Feature region : mappedContigs.keySet()) {
+			for (SimpleMapper mapper : mappedContigs.get(region).keySet()) {
+				List<Integer> entries = distinctContigs.get(mapper);
+				if (entries == null) {
+					entries = new ArrayList<Integer>();
+					distinctContigs.put(mapper, entries);
+				}
+				entries.add(regions.size());
+				regions.add(region);
+				mappers.add(mapper);
+			}
+		}
+		
+		entryRegions = regions.toArray(new Feature[regions.size()]);
+		entryMappers = mappers.toArray(new SimpleMapper[mappers.size()]);
+		contigEntries = new int[distinctContigs.size()][];
+		
+		int contig = 0;
+		for (List<Integer> entries : distinctContigs.values()) {
+			contigEntries[contig] = new int[entries.size()];
+			for (int i=0; i<entries.size(); i++) {
+				contigEntries[contig][i] = entries.get(i);
+			}
+			contig += 1;
+		}
+		
+		contigMapper = new MultiContigMapper(new ArrayList<SimpleMapper>(distinctContigs.keySet()));
+		
+		buildVariantIntervals();
+	}
+	
+	private void buildVariantIntervals() {
+		Map<ContigAlignerResult, long[]> currIntervals = new IdentityHashMap<ContigAlignerResult, long[]>();
+		Map<String, List<long[]>> chromosomeIntervals = new HashMap<String, List<long[]>>();
+		
+		for (Map<SimpleMapper, ContigAlignerResult> regionContigs : mappedContigs.values()) {
+			for (ContigAlignerResult result : regionContigs.values()) {
+				if (!currIntervals.containsKey(result)) {
+					long[] intervals = resultIntervals.get(result);
+					if (intervals == null) {
+						intervals = getVariantIntervals(result);
+					}
+					currIntervals.put(result, intervals);
+					
+					List<long[]> chromosomeList = chromosomeIntervals.get(result.getChromosome());
+					if (chromosomeList == null) {
+						chromosomeList = new ArrayList<long[]>();
+						chromosomeIntervals.put(result.getChromosome(), chromosomeList);
+					}
+					chromosomeList.add(intervals);
+				}
+			}
+		}
+		
+		// Retain only intervals for live contigs
+		resultIntervals = currIntervals;
+		
+		variantIntervals = new HashMap<String, int[]>();
+		for (String chromosome : chromosomeIntervals.keySet()) {
+			int count = 0;
+			for (long[] intervals : chromosomeIntervals.get(chromosome)) {
+				count += intervals.length;
+			}
+			
+			long[] sorted = new long[count];
+			int idx = 0;
+			for (long[] intervals : chromosomeIntervals.get(chromosome)) {
+				System.arraycopy(intervals, 0, sorted, idx, intervals.length);
+				idx += intervals.length;
+			}
+			Arrays.sort(sorted);
+			
+			// Merge overlapping intervals
+			int[] merged = new int[count*2];
+			int numMerged = 0;
+			for (long interval : sorted) {
+				int start = (int) (interval >>> 32);
+				int end = (int) interval;
+				if (numMerged > 0 && start <= merged[numMerged-1] + 1) {
+					merged[numMerged-1] = Math.max(merged[numMerged-1], end);
+				} else {
+					merged[numMerged++] = start;
+					merged[numMerged++] = end;
+				}
+			}
+			
+			variantIntervals.put(chromosome, Arrays.copyOf(merged, numMerged));
+		}
+	}
+	
+	/**
+	 * Returns reference intervals covered by the contig's indels, splices, clips and
+	 * (if the reference is available) mismatches.
+	 */
+	private long[] getVariantIntervals(ContigAlignerResult result) {
+		List<Long> intervals = new ArrayList<Long>();
+		
+		String contig = result.getSequence();
+		int refPos = result.getGenomicPos();
+		int contigPos = 0;
+		
+		for (CigarElement element : TextCigarCodec.decode(result.getCigar()).getCigarElements()) {
+			CigarOperator op = element.getOperator();
+			int length = element.getLength();
+			
+			if (op == CigarOperator.M || op == CigarOperator.EQ) {
+				if (c2r != null) {
+					String ref = c2r.getSequence(result.getChromosome(), refPos, length);
+					for (int i=0; i<length; i++) {
+						if (i >= ref.length() || contigPos+i >= contig.length() ||
+								Character.toUpperCase(ref.charAt(i)) != Character.toUpperCase(contig.charAt(contigPos+i))) {
+							intervals.add(toInterval(refPos+i, refPos+i));
+						}
+					}
+				}
+				refPos += length;
+				contigPos += length;
+			} else if (op == CigarOperator.X) {
+				intervals.add(toInterval(refPos, refPos+length-1));
+				refPos += length;
+				contigPos += length;
+			} else if (op == CigarOperator.I || op == CigarOperator.S) {
+				// Between the flanking reference bases
+				intervals.add(toInterval(refPos-1, refPos));
+				contigPos += length;
+			} else if (op == CigarOperator.D || op == CigarOperator.N) {
+				intervals.add(toInterval(refPos, refPos+length-1));
+				refPos += length;
+			}
+		}
+		
+		long[] arr = new long[intervals.size()];
+		for (int i=0; i<arr.length; i++) {
+			arr[i] = intervals.get(i);
+		}
+		
+		return arr;
+	}
+	
+	private static long toInterval(int start, int end) {
+		return ((long) start << 32) | (end & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Returns true if the read's unclipped span extended by slack on each side overlaps a
+	 * reference interval where a contig differs from the reference.  Unmapped reads always qualify.
+	 */
+	public boolean isNearContigVariant(SAMRecord read, int slack) {
+		if (read.getReadUnmappedFlag()) {
+			return true;
+		}
+		
+		int[] intervals = variantIntervals.get(read.getReferenceName());
+		if (intervals == null) {
+			return false;
+		}
+		
+		int start = read.getUnclippedStart() - slack;
+		int end = read.getUnclippedEnd() + slack;
+		
+		// First interval ending at or after start
+		int low = 0;
+		int high = intervals.length/2;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (intervals[mid*2+1] < start) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low < intervals.length/2 && intervals[low*2] <= end;
 	}
 	
 	
@@ -46,7 +300,7 @@ public class ReadEvaluator {
 					String unclipped = SAMRecordUtils.getMappedReadPortion(samRecord);
 					result = getImprovedAlignment(unclippedEditDist, unclipped);
 					if (result != null) {
-						result.cigar = SAMRecordUtils.getLeadingClips(samRecord) + result.cigar + SAMRecordUtils.getTrailingClips(samRecord);
+						result.cigar = result.cigar.withClips(samRecord.getCigar());
 					}
 				}
 			}
@@ -60,24 +314,31 @@ public class ReadEvaluator {
 		
 		List<AlignmentHit> alignmentHits = new ArrayList<AlignmentHit>();
 		
-		int bestMismatches = read.length()+1;
-		
 		// Map read to all contigs, caching the hits with the smallest number of mismatches
-		for (Feature region : mappedContigs.keySet()) {
-			Map<SimpleMapper, ContigAlignerResult> regionContigs = mappedContigs.get(region);
-			
-			for (SimpleMapper mapper : regionContigs.keySet()) {
-				SimpleMapperResult mapResult = mapper.map(read);
-				
-				if (mapResult.getMismatches() < bestMismatches) {
-					bestMismatches = mapResult.getMismatches();
-					alignmentHits.clear();
-					alignmentHits.add(new AlignmentHit(mapResult, mapper, region));
-				} else if (mapResult.getMismatches() == bestMismatches) {
-					alignmentHits.add(new AlignmentHit(mapResult, mapper, region));
-				}
+		Hits hits = contigMapper.map(read);
+		int bestMismatches = hits.getMismatches();
+		
+		// Expand distinct contig hits to region entries in region iteration order (entry << 32 | hit)
+		int numEntries = 0;
+		for (int hit=0; hit<hits.getNumHits(); hit++) {
+			numEntries += contigEntries[hits.getContig(hit)].length;
+		}
+		
+		long[] entryHits = new long[numEntries];
+		int idx = 0;
+		for (int hit=0; hit<hits.getNumHits(); hit++) {
+			for (int entry : contigEntries[hits.getContig(hit)]) {
+				entryHits[idx++] = ((long) entry << 32) | hit;
 			}
 		}
+		Arrays.sort(entryHits);
+		
+		for (long entryHit : entryHits) {
+			int entry = (int) (entryHit >>> 32);
+			int hit = (int) entryHit;
+			SimpleMapperResult mapResult = new SimpleMapperResult(hits.getPos(hit), bestMismatches, hits.getOrientation(hit));
+			alignmentHits.add(new AlignmentHit(mapResult, entryMappers[entry], entryRegions[entry]));
+		}
 		
 		// If multiple "best" hits, check to see if they agree.
 		Set<Alignment> alignments = new HashSet<Alignment>();
@@ -86,14 +347,14 @@ public class ReadEvaluator {
 			ContigAlignerResult contigAlignment = mappedContigs.get(alignmentHit.region).get(alignmentHit.mapper); 
 			
 			int readRefPos = alignmentHit.mapResult.getPos();
-			String cigar = "";
+			PackedCigar cigar = PackedCigar.EMPTY;
 			
 			// Read position in the local reference
 			if (alignmentHit.mapResult.getPos() >= 0) {
-				StringBuffer cigarBuf = new StringBuffer();
-				int readPosInCigarRelativeToRef = CigarUtils.subsetCigarString(alignmentHit.mapResult.getPos(), read.length(), contigAlignment.getCigar(), cigarBuf);
+				PackedCigar.Builder cigarBlocks = new PackedCigar.Builder();
+				int readPosInCigarRelativeToRef = CigarUtils.subsetCigar(alignmentHit.mapResult.getPos(), read.length(), contigAlignment.getPackedCigar(), cigarBlocks);
 				readRefPos = contigAlignment.getGenomicPos() + readPosInCigarRelativeToRef;
-				cigar = cigarBuf.toString();
+				cigar = cigarBlocks.build();
 			}
 			
 			Alignment readAlignment = new Alignment(contigAlignment.getChromosome(), readRefPos, cigar, alignmentHit.mapResult.getOrientation(), bestMismatches, 
@@ -148,6 +409,81 @@ public class ReadEvaluator {
 	}
 	
 	
+	/**
+	 * Returns the cached verdict for a read with the same sequence and original alignment
+	 * or null if none.
+	 */
+	public RemapVerdict getVerdict(RemapKey key) {
+		return verdicts.get(key);
+	}
+	
+	public void cacheVerdict(RemapKey key, RemapVerdict verdict) {
+		if (verdicts.size() >= MAX_VERDICTS) {
+			verdicts.clear();
+		}
+		verdicts.put(key, verdict);
+	}
+	
+	/**
+	 * Read properties determining the original edit distance and improved alignment.
+	 */
+	static class RemapKey {
+		private String bases;
+		private String referenceName;
+		private int alignmentStart;
+		private String cigar;
+		private boolean isUnmapped;
+		private int hash;
+		
+		RemapKey(SAMRecord read) {
+			this.bases = read.getReadString();
+			this.referenceName = read.getReferenceName();
+			this.alignmentStart = read.getAlignmentStart();
+			this.cigar = read.getCigarString();
+			this.isUnmapped = read.getReadUnmappedFlag();
+			
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + bases.hashCode();
+			result = prime * result + referenceName.hashCode();
+			result = prime * result + alignmentStart;
+			result = prime * result + cigar.hashCode();
+			result = prime * result + (isUnmapped ? 1231 : 1237);
+			hash = result;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			RemapKey other = (RemapKey) obj;
+			return hash == other.hash && alignmentStart == other.alignmentStart && referenceName.equals(other.referenceName) &&
+					isUnmapped == other.isUnmapped && cigar.equals(other.cigar) && bases.equals(other.bases);
+		}
+	}
+	
+	/**
+	 * Original edit distance and improved alignment (possibly null) shared by reads with the same RemapKey.
+	 */
+	static class RemapVerdict {
+		int origEditDist;
+		Alignment alignment;
+		
+		RemapVerdict(int origEditDist, Alignment alignment) {
+			this.origEditDist = origEditDist;
+			this.alignment = alignment;
+		}
+	}
+	
 	static class AlignmentHit {
 		SimpleMapperResult mapResult;
 		SimpleMapper mapper;
@@ -164,7 +500,7 @@ public class ReadEvaluator {
 	static class Alignment {
 		String chromosome;
 		int pos;
-		String cigar;
+		PackedCigar cigar;
 		Orientation orientation;
 		int numMismatches;
 		
@@ -177,7 +513,7 @@ public class ReadEvaluator {
 		Alignment() {
 		}
 		
-		Alignment(String chromosome, int pos, String cigar, Orientation orientation, int numMismatches, int contigPos, String contigCigar, boolean isSecondary) {
+		Alignment(String chromosome, int pos, PackedCigar cigar, Orientation orientation, int numMismatches, int contigPos, String contigCigar, boolean isSecondary) {
 			this.chromosome = chromosome;
 			this.pos = pos;
 			this.cigar = cigar;
@@ -0,0 +1,218 @@
+package abra;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Per chromosome chunk index of primary paired reads awaiting their mate.  Not thread safe.
+ *
+ * Reads arrive in coordinate order.  A read whose mate starts at or after it is held until the mate
+ * arrives.  The pair is then settled once: the adapter read through check is applied to both reads
+ * and overlapping mates are merged.  This replaces per region pair matching in ReAligner.
+ *
+ * Held reads are keyed by a hash of read name and start position in an open addressing table.
+ * Names are only compared on hash match.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ReadPairIndex {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private SAMRecordWrapper[] reads = new SAMRecordWrapper[INITIAL_CAPACITY];
+	private int size = 0;
+	
+	// No held read starts before this position.  Not raised when reads are removed as mates arrive.
+	private int minStart = Integer.MAX_VALUE;
+
+	/**
+	 * Settles the input read's pair if its mate has arrived.  Otherwise holds the read for its mate.
+	 */
+	public void addRead(SAMRecordWrapper readWrapper) {
+		SAMRecord read = readWrapper.getSamRecord();
+
+		if (!isCandidate(read)) {
+			return;
+		}
+
+		SAMRecordWrapper mate = removeMate(readWrapper);
+
+		if (mate != null) {
+			settlePair(mate, readWrapper);
+		} else if (read.getMateAlignmentStart() >= read.getAlignmentStart()) {
+			insert(key(read.getReadName(), read.getAlignmentStart()), readWrapper);
+		}
+	}
+
+	private boolean isCandidate(SAMRecord read) {
+		return read.getReadPairedFlag() && !read.getReadUnmappedFlag() && !read.getMateUnmappedFlag() &&
+				(read.getFirstOfPairFlag() || read.getSecondOfPairFlag()) &&
+				read.getReferenceName().equals(read.getMateReferenceName()) &&
+				SAMRecordUtils.isPrimary(read);
+	}
+
+	/**
+	 * Applies the adapter read through check to each read and merges the pair if the reads overlap.
+	 * Each read is evaluated using its own mate fields.
+	 */
+	private void settlePair(SAMRecordWrapper earlier, SAMRecordWrapper later) {
+		// later's mate fields point to earlier by construction
+		boolean isEarlierMateFound = earlier.getSamRecord().getMateAlignmentStart() == later.getSamRecord().getAlignmentStart();
+
+		if (isEarlierMateFound && SAMRecordUtils.hasPossibleAdapterReadThrough(earlier.getSamRecord(), later.getSamRecord())) {
+			earlier.setShouldAssemble(false);
+		}
+
+		if (SAMRecordUtils.hasPossibleAdapterReadThrough(later.getSamRecord(), earlier.getSamRecord())) {
+			later.setShouldAssemble(false);
+		}
+
+		if (!isEarlierMateFound || SAMRecordUtils.mergeReadPair(earlier, later) < 0) {
+			SAMRecordUtils.mergeReadPair(later, earlier);
+		}
+	}
+
+	/**
+	 * Drop held reads starting before pos.  Their mates will not be matched.
+	 */
+	public void evictBefore(int pos) {
+		if (size == 0 || pos <= minStart) {
+			return;
+		}
+
+		// Compact in place.  A backward shift fills the current slot.  Entries shifted between visited slots
+		// (a cluster wrapping past the end of the table) have already been kept.
+		int mask = reads.length-1;
+		int slot = 0;
+		int newMinStart = Integer.MAX_VALUE;
+
+		for (int visited=0; visited<reads.length; ) {
+			if (reads[slot] != null) {
+				int start = reads[slot].getSamRecord().getAlignmentStart();
+				if (start < pos) {
+					// Re-examine the slot, which may now hold a shifted entry
+					removeSlot(slot);
+					continue;
+				}
+				newMinStart = Math.min(newMinStart, start);
+			}
+
+			slot = (slot+1) & mask;
+			visited += 1;
+		}
+
+		minStart = newMinStart;
+	}
+
+	public void clear() {
+		if (size > 0) {
+			keys = new int[INITIAL_CAPACITY];
+			reads = new SAMRecordWrapper[INITIAL_CAPACITY];
+			size = 0;
+		}
+		minStart = Integer.MAX_VALUE;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return reads.length;
+	}
+
+	static int key(String readName, int start) {
+		int h = readName.hashCode() * 31 + start;
+		// Spread bits (murmur3 finalizer)
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private void insert(int key, SAMRecordWrapper read) {
+		if ((size+1) * 2 > reads.length) {
+			grow();
+		}
+
+		int mask = reads.length-1;
+		int slot = key & mask;
+		while (reads[slot] != null) {
+			slot = (slot+1) & mask;
+		}
+
+		keys[slot] = key;
+		reads[slot] = read;
+		size += 1;
+		minStart = Math.min(minStart, read.getSamRecord().getAlignmentStart());
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		SAMRecordWrapper[] oldReads = reads;
+
+		keys = new int[oldKeys.length*2];
+		reads = new SAMRecordWrapper[oldReads.length*2];
+		size = 0;
+
+		for (int i=0; i<oldReads.length; i++) {
+			if (oldReads[i] != null) {
+				insert(oldKeys[i], oldReads[i]);
+			}
+		}
+	}
+
+	/**
+	 * Find and remove the held mate of the input read.  Returns null if not present.
+	 */
+	private SAMRecordWrapper removeMate(SAMRecordWrapper readWrapper) {
+		SAMRecord read = readWrapper.getSamRecord();
+		int key = key(read.getReadName(), read.getMateAlignmentStart());
+
+		int mask = reads.length-1;
+		int slot = key & mask;
+		while (reads[slot] != null) {
+			if (keys[slot] == key && isMate(readWrapper, reads[slot])) {
+				SAMRecordWrapper mate = reads[slot];
+				removeSlot(slot);
+				return mate;
+			}
+			slot = (slot+1) & mask;
+		}
+
+		return null;
+	}
+
+	private boolean isMate(SAMRecordWrapper readWrapper, SAMRecordWrapper candidate) {
+		SAMRecord read = readWrapper.getSamRecord();
+		SAMRecord mate = candidate.getSamRecord();
+
+		return readWrapper.getSampleIdx() == candidate.getSampleIdx() &&
+				mate.getAlignmentStart() == read.getMateAlignmentStart() &&
+				mate.getFirstOfPairFlag() != read.getFirstOfPairFlag() &&
+				mate.getReadName().equals(read.getReadName());
+	}
+
+	// Backward shift deletion for linear probing
+	private void removeSlot(int slot) {
+		int mask = reads.length-1;
+		int hole = slot;
+		int curr = (slot+1) & mask;
+
+		while (reads[curr] != null) {
+			int home = keys[curr] & mask;
+			// Move entry into the hole if its home slot is not within (hole, curr]
+			if (((curr - home) & mask) >= ((curr - hole) & mask)) {
+				keys[hole] = keys[curr];
+				reads[hole] = reads[curr];
+				hole = curr;
+			}
+			curr = (curr+1) & mask;
+		}
+
+		reads[hole] = null;
+		size -= 1;
+	}
+}
@@ -80,6 +80,8 @@ public class ReferenceEvaluator {
 			
 			threadManager.waitForAllThreadsToComplete();
 			
+			NativeAssembler.releaseContexts();
+			
 			//TODO: Because assembly regions are overlapped, there is overlap between final include/exclude output
 			outputRegions(include, includeRegions);
 			outputRegions(exclude, excludeRegions);
@@ -4,12 +4,7 @@ package abra;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.apache.commons.lang.mutable.MutableFloat;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
@@ -451,104 +446,129 @@ public class SAMRecordUtils {
 		return ((isPairedEnd) && (!read.getReadPairedFlag()));
 	}
 	
-	private static Pair<String, String> consensusSeq(String s1, String s2, String qual1, String qual2, int maxMismatches,
-			MutableFloat mismatchFrac) {
-		StringBuffer consensus = new StringBuffer();
-		StringBuffer consensusQual = new StringBuffer();
-		int numMismatches = 0;
-		
-		for (int i=0; i<s1.length(); i++) {
-			if (s1.charAt(i) != s2.charAt(i)) {
-
-				numMismatches += 1;
-				if (numMismatches > maxMismatches) {
-					return null;
-				} else {
-					if (qual1.charAt(i) >= qual2.charAt(i) + 10) {
-						consensus.append(s1.charAt(i));
-						consensusQual.append(qual1.charAt(i));
-					} else if (qual2.charAt(i) >= qual1.charAt(i) + 10) {
-						consensus.append(s2.charAt(i));
-						consensusQual.append(qual2.charAt(i));						
-					} else {
-						consensus.append('N');
-						consensusQual.append('!');
-					}
-				}
-				
-			} else {
-				consensus.append(s1.charAt(i));
-				consensusQual.append((char) Math.max(qual1.charAt(i), qual2.charAt(i))); 
-			}
-		}
-		
-		mismatchFrac.setValue((float) numMismatches / (float) s1.length());
-		
-		return new Pair<String,String>(consensus.toString(), consensusQual.toString());
-	}
-	
 	// TODO: Parameterize
 	private static int MIN_OVERLAP = 10;
 	
+	// Base quality assigned to unresolved mismatches in the merged sequence
+	private static final byte MISMATCH_QUAL = 0;
+	
 	public static Pair<String,String> mergeSequences(String seq1, String seq2, String qual1, String qual2) {
+		return mergeSequences(seq1.getBytes(), seq2.getBytes(), toPhred(qual1), toPhred(qual2));
+	}
+	
+	private static byte[] toPhred(String qual) {
+		byte[] quals = qual.getBytes();
+		for (int i=0; i<quals.length; i++) {
+			quals[i] -= 33;
+		}
+		return quals;
+	}
+	
+	/**
+	 * Merges overlapping read pair sequences.  seq2's leading kmer anchors each candidate overlap in seq1 and the
+	 * candidate with the lowest mismatch fraction is kept (up to 10% mismatches).  Base qualities are phred scaled.
+	 * Returns the merged sequence and phred+33 qualities or null if the reads do not overlap.
+	 */
+	static Pair<String,String> mergeSequences(byte[] seq1, byte[] seq2, byte[] qual1, byte[] qual2) {
 		
-		if (seq1.length() < MIN_OVERLAP+10 || seq2.length() < MIN_OVERLAP+10) {
+		if (seq1.length < MIN_OVERLAP+10 || seq2.length < MIN_OVERLAP+10) {
 			return null;
 		}
 		
-		// Identify first 1 kmers in seq2
-		String[] head2Kmers = new String[1];
-		for (int i=0; i<head2Kmers.length; i++) {
-			head2Kmers[i] = seq2.substring(i, i+MIN_OVERLAP);
+		int bestIdx = -1;
+		float bestMismatchFrac = 2;
+		
+		// seq2 must extend beyond seq1
+		for (int idx=Math.max(seq1.length - seq2.length + 1, 0); idx<=seq1.length-MIN_OVERLAP && bestMismatchFrac > 0; idx++) {
+			if (isHeadKmerAt(seq1, idx, seq2)) {
+				int overlap = seq1.length - idx;
+				
+				// Require 90% of bases to match
+				int numMismatches = countMismatches(seq1, idx, seq2, overlap, (int) (overlap * .10));
+				
+				if (numMismatches >= 0) {
+					float mismatchFrac = (float) numMismatches / (float) overlap;
+					if (mismatchFrac < bestMismatchFrac) {
+						bestMismatchFrac = mismatchFrac;
+						bestIdx = idx;
+					}
+				}
+			}
+		}
+		
+		if (bestIdx < 0) {
+			return null;
 		}
 		
-		// Search for seq2 head kmers in seq1
-		// Identify set of possible start positions in seq1
-		Set<Integer> indices = new HashSet<Integer>();
+		int overlap = seq1.length - bestIdx;
+		int mergedLength = bestIdx + seq2.length;
+		byte[] mergedSeq = new byte[mergedLength];
+		byte[] mergedQual = new byte[mergedLength];
+		
+		System.arraycopy(seq1, 0, mergedSeq, 0, bestIdx);
+		System.arraycopy(qual1, 0, mergedQual, 0, bestIdx);
 		
-		for (int i=0; i<head2Kmers.length; i++) {
-			String head2Kmer = head2Kmers[i];
-			int idx = seq1.indexOf(head2Kmer, i);
-			while (idx > -1) {
-				indices.add(idx - i);
-				idx = seq1.indexOf(head2Kmer, idx+1);
+		for (int i=0; i<overlap; i++) {
+			byte base1 = seq1[bestIdx+i];
+			byte base2 = seq2[i];
+			byte bq1 = qual1[bestIdx+i];
+			byte bq2 = qual2[i];
+			
+			if (base1 == base2) {
+				mergedSeq[bestIdx+i] = base1;
+				mergedQual[bestIdx+i] = (byte) Math.max(bq1, bq2);
+			} else if (bq1 >= bq2 + 10) {
+				mergedSeq[bestIdx+i] = base1;
+				mergedQual[bestIdx+i] = bq1;
+			} else if (bq2 >= bq1 + 10) {
+				mergedSeq[bestIdx+i] = base2;
+				mergedQual[bestIdx+i] = bq2;
+			} else {
+				mergedSeq[bestIdx+i] = 'N';
+				mergedQual[bestIdx+i] = MISMATCH_QUAL;
 			}
 		}
 		
-		Pair<String,String> bestResult = null;
-		float bestMismatchFrac = 2;
+		System.arraycopy(seq2, overlap, mergedSeq, seq1.length, seq2.length - overlap);
+		System.arraycopy(qual2, overlap, mergedQual, seq1.length, seq2.length - overlap);
 		
-		for (int idx : indices) {
-			
-			String tail1 = seq1.substring(idx);
-			int overlap = tail1.length();
-			if (seq2.length() > overlap) {
-				String head2 = seq2.substring(0, overlap);
-
-				String qualTail1 = qual1.substring(idx);
-				String qualHead2 = qual2.substring(0, overlap);
-				
-				MutableFloat mismatchFrac = new MutableFloat(0);
-				
-				// Require 90% of bases to match
-				Pair<String,String> consensus = consensusSeq(tail1, head2, qualTail1, qualHead2, (int) (overlap * .10), mismatchFrac);
-
-				if (consensus != null) {
-					if (mismatchFrac.floatValue() < bestMismatchFrac) {
-						bestMismatchFrac = mismatchFrac.floatValue();
-						
-						String mergedSeq  = seq1.substring(0, idx) + consensus.getFirst() + seq2.substring(overlap);
-						String mergedQual = qual1.substring(0, idx) + consensus.getSecond() + qual2.substring(overlap);
-						bestResult = new Pair<String,String>(mergedSeq,mergedQual);
-					}
+		for (int i=0; i<mergedLength; i++) {
+			mergedQual[i] += 33;
+		}
+		
+		return new Pair<String,String>(new String(mergedSeq), new String(mergedQual));
+	}
+	
+	private static boolean isHeadKmerAt(byte[] seq1, int idx, byte[] seq2) {
+		for (int i=0; i<MIN_OVERLAP; i++) {
+			if (seq1[idx+i] != seq2[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of mismatches between seq1 starting at idx and the head of seq2 or -1 if maxMismatches is exceeded.
+	 */
+	private static int countMismatches(byte[] seq1, int idx, byte[] seq2, int overlap, int maxMismatches) {
+		int numMismatches = 0;
+		for (int i=0; i<overlap; i++) {
+			if (seq1[idx+i] != seq2[i]) {
+				numMismatches += 1;
+				if (numMismatches > maxMismatches) {
+					return -1;
 				}
 			}
 		}
-		
-		return bestResult;
+		return numMismatches;
 	}
 	
-	public static int mergeReadPair(SAMRecordWrapper readWrapper, Map<String, SAMRecordWrapper> firstReads, Map<String, SAMRecordWrapper> secondReads) {
+	/**
+	 * Attempts to merge the read with its overlapping mate.  If successful, the merged sequence is assigned to both
+	 * reads and the merged alignment start is returned.  Otherwise -1.
+	 */
+	public static int mergeReadPair(SAMRecordWrapper readWrapper, SAMRecordWrapper pair) {
 		
 		int alignmentStart = -1;
 		SAMRecord read = readWrapper.getSamRecord();
@@ -556,40 +576,34 @@ public class SAMRecordUtils {
 		if (read.getReadPairedFlag() && !read.getReadUnmappedFlag() && !read.getMateUnmappedFlag() &&
 				read.getReadNegativeStrandFlag() != read.getMateNegativeStrandFlag()) {
 			
-			SAMRecordWrapper pair = null;
-			
-			if (read.getFirstOfPairFlag()) {
-				pair = secondReads.get(read.getReadName() + "_" + read.getMateAlignmentStart());
+			SAMRecordWrapper first = null;
+			SAMRecordWrapper second = null;
+			if (read.getReadNegativeStrandFlag()) {
+				first = pair;
+				second = readWrapper;
 			} else {
-				pair = firstReads.get(read.getReadName() + "_" + read.getMateAlignmentStart());
+				first = readWrapper;
+				second = pair;
 			}
+
+			SAMRecord firstRead = first.getSamRecord();
+			SAMRecord secondRead = second.getSamRecord();
 			
-			if (pair != null) {
-				SAMRecordWrapper first = null;
-				SAMRecordWrapper second = null;
-				if (read.getReadNegativeStrandFlag()) {
-					first = pair;
-					second = readWrapper;
-				} else {
-					first = readWrapper;
-					second = pair;
-				}
+			if (first.getAdjustedAlignmentStart() < second.getAdjustedAlignmentStart() &&
+					first.getAdjustedAlignmentEnd() > second.getAdjustedAlignmentStart() &&
+					firstRead.getReadLength() > MIN_OVERLAP && 
+					secondRead.getReadLength() > MIN_OVERLAP &&
+					firstRead.getBaseQualities().length == firstRead.getReadLength() &&
+					secondRead.getBaseQualities().length == secondRead.getReadLength()) {
 
+				Pair<String, String> merged = mergeSequences(firstRead.getReadBases(), secondRead.getReadBases(),
+						firstRead.getBaseQualities(), secondRead.getBaseQualities());
 				
-				if (first.getAdjustedAlignmentStart() < second.getAdjustedAlignmentStart() &&
-						first.getAdjustedAlignmentEnd() > second.getAdjustedAlignmentStart() &&
-						first.getSamRecord().getReadLength() > MIN_OVERLAP && 
-						second.getSamRecord().getReadLength() > MIN_OVERLAP) {
-
-					Pair<String, String> merged = mergeSequences(first.getSamRecord().getReadString(), second.getSamRecord().getReadString(),
-							first.getSamRecord().getBaseQualityString(), second.getSamRecord().getBaseQualityString());
+				if (merged != null) {
+					readWrapper.setMerged(merged.getFirst(), merged.getSecond(), first.getAdjustedAlignmentStart(), second.getAdjustedAlignmentEnd());
+					pair.setMerged(merged.getFirst(), merged.getSecond(), first.getAdjustedAlignmentStart(), second.getAdjustedAlignmentEnd());
 					
-					if (merged != null) {
-						readWrapper.setMerged(merged.getFirst(), merged.getSecond(), first.getAdjustedAlignmentStart(), second.getAdjustedAlignmentEnd());
-						pair.setMerged(merged.getFirst(), merged.getSecond(), first.getAdjustedAlignmentStart(), second.getAdjustedAlignmentEnd());
-						
-						alignmentStart = first.getAdjustedAlignmentStart();
-					}
+					alignmentStart = first.getAdjustedAlignmentStart();
 				}
 			}
 		}
@@ -659,7 +673,11 @@ public class SAMRecordUtils {
 	}
 	*/
 	
-	public static boolean hasPossibleAdapterReadThrough(SAMRecord read, Map<String, SAMRecordWrapper> firstReads, Map<String, SAMRecordWrapper> secondReads) {
+	/**
+	 * Returns true if the read and its mate start at the same position with soft clipping on the outer ends.
+	 * i.e. the fragment is shorter than the read length and the reads extend into adapter sequence.
+	 */
+	public static boolean hasPossibleAdapterReadThrough(SAMRecord read, SAMRecord pair) {
 		
 		boolean hasReadThrough = false;
 		
@@ -668,15 +686,7 @@ public class SAMRecordUtils {
 				read.getAlignmentStart() == read.getMateAlignmentStart() &&
 				read.getReadNegativeStrandFlag() != read.getMateNegativeStrandFlag()) {
 			
-			SAMRecordWrapper pair = null;
-			
-			if (read.getFirstOfPairFlag()) {
-				pair = secondReads.get(read.getReadName() + "_" + read.getMateAlignmentStart());
-			} else {
-				pair = firstReads.get(read.getReadName() + "_" + read.getMateAlignmentStart());
-			}
-			
-			if (pair != null && read.getCigar().getCigarElements().size() > 0 && pair.getSamRecord().getCigar().getCigarElements().size() > 0) {
+			if (read.getCigar().getCigarElements().size() > 0 && pair.getCigar().getCigarElements().size() > 0) {
 				
 				// Looking for something like:
 				//     -------->
@@ -685,9 +695,9 @@ public class SAMRecordUtils {
 				SAMRecord second = null;
 				if (read.getReadNegativeStrandFlag()) {
 					first = read;
-					second = pair.getSamRecord();
+					second = pair;
 				} else {
-					first = pair.getSamRecord();
+					first = pair;
 					second = read;
 				}
 				
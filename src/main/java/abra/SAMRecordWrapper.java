@@ -21,6 +21,18 @@ public class SAMRecordWrapper {
 	
 	private int bqSum = -1;
 	
+	// Derived read features.  Computed on first use and cleared if the read's alignment changes.
+	private int samRecordBqSum = -1;
+	private int numInsertBases = -1;
+	private int numHighQualBases = -1;
+	private int numHighQualBasesMinBq = -1;
+	private int numHighQualLeadingClipBases = -1;
+	private int numHighQualTrailingClipBases = -1;
+	private int clipBasesMinBq = -1;
+	private int editDistance = -1;
+	private int unclippedEditDistance = -1;
+	private List<Span> spanningRegions = null;
+	
 	public SAMRecordWrapper(SAMRecord record, boolean shouldFilter, boolean shouldAssemble, int sampleIdx) {
 		this.samRecord = record;
 		this.shouldFilter = true;
@@ -172,7 +184,130 @@ public class SAMRecordWrapper {
 		return bqSum;
 	}
 	
+	/**
+	 * Base quality sum for the original (unmerged) read
+	 */
+	public int samRecordBaseQualSum() {
+		if (samRecordBqSum < 0) {
+			samRecordBqSum = SAMRecordUtils.sumBaseQuals(samRecord);
+		}
+		
+		return samRecordBqSum;
+	}
+	
+	public int getNumInsertBases() {
+		if (numInsertBases < 0) {
+			numInsertBases = 0;
+			for (CigarElement element : samRecord.getCigar().getCigarElements()) {
+				if (element.getOperator() == CigarOperator.I) {
+					numInsertBases += element.getLength();
+				}
+			}
+		}
+		
+		return numInsertBases;
+	}
+	
+	public int getNumHighQualBases(int minBq) {
+		if (numHighQualBasesMinBq != minBq) {
+			numHighQualBases = SAMRecordUtils.getNumHighQualBases(samRecord, minBq);
+			numHighQualBasesMinBq = minBq;
+		}
+		
+		return numHighQualBases;
+	}
+	
+	/**
+	 * Number of bases with quality >= minBq in the leading soft clip.  0 if the read does not begin with a soft clip.
+	 */
+	public int getNumHighQualLeadingClipBases(int minBq) {
+		computeHighQualClipBases(minBq);
+		return numHighQualLeadingClipBases;
+	}
+	
+	/**
+	 * Number of bases with quality >= minBq in the trailing soft clip.  0 if the read does not end with a soft clip.
+	 */
+	public int getNumHighQualTrailingClipBases(int minBq) {
+		computeHighQualClipBases(minBq);
+		return numHighQualTrailingClipBases;
+	}
+	
+	private void computeHighQualClipBases(int minBq) {
+		if (clipBasesMinBq != minBq) {
+			numHighQualLeadingClipBases = 0;
+			numHighQualTrailingClipBases = 0;
+			
+			int numElems = samRecord.getCigarLength();
+			if (numElems > 1) {
+				byte[] quals = samRecord.getBaseQualities();
+				
+				CigarElement elem = samRecord.getCigar().getCigarElement(0);
+				if (elem.getOperator() == CigarOperator.S) {
+					numHighQualLeadingClipBases = countHighQualBases(quals, 0, elem.getLength(), minBq);
+				}
+				
+				elem = samRecord.getCigar().getCigarElement(numElems-1);
+				if (elem.getOperator() == CigarOperator.S) {
+					numHighQualTrailingClipBases = countHighQualBases(quals, samRecord.getReadLength() - elem.getLength(), elem.getLength(), minBq);
+				}
+			}
+			
+			clipBasesMinBq = minBq;
+		}
+	}
+	
+	private static int countHighQualBases(byte[] quals, int start, int length, int minBq) {
+		int count = 0;
+		for (int i=start; i<start+length && i<quals.length; i++) {
+			if (quals[i] >= minBq) {
+				count += 1;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Edit distance versus the reference.  c2r is expected to be the same for all calls.
+	 */
+	public int getEditDistance(CompareToReference2 c2r, boolean includeSoftClipping) {
+		if (includeSoftClipping) {
+			if (editDistance < 0) {
+				editDistance = SAMRecordUtils.getEditDistance(samRecord, c2r, true);
+			}
+			return editDistance;
+		} else {
+			if (unclippedEditDistance < 0) {
+				unclippedEditDistance = SAMRecordUtils.getEditDistance(samRecord, c2r, false);
+			}
+			return unclippedEditDistance;
+		}
+	}
+	
+	/**
+	 * Clears cached features derived from the read's alignment.  Call after updating the underlying SAMRecord.
+	 */
+	public void invalidateDerivedFeatures() {
+		numInsertBases = -1;
+		clipBasesMinBq = -1;
+		editDistance = -1;
+		unclippedEditDistance = -1;
+		spanningRegions = null;
+	}
+	
+	/**
+	 * Returns the read's reference spans, split at introns.  The returned list is shared and must not be modified.
+	 */
 	public List<Span> getSpanningRegions() {
+		if (spanningRegions == null) {
+			spanningRegions = computeSpanningRegions();
+		}
+		
+		return spanningRegions;
+	}
+	
+	private List<Span> computeSpanningRegions() {
 		
 		List<Span> spans = new ArrayList<Span>();
 		
@@ -1,10 +1,14 @@
 package abra;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-public class SemiGlobalAligner {
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.TextCigarCodec;
+
+public class SemiGlobalAligner implements SequenceAligner {
 	
 	public enum Direction { UP, LEFT, DIAG, NONE };
 	
@@ -24,11 +28,27 @@ public class SemiGlobalAligner {
 	private static final int M = 1;
 	private static final int D = 2;
 	
-	private static final int MAX_REF_LEN = 5000;
-	private static final int MAX_CONTIG_LEN = 2000;
+	// Score for cells outside of the band
+	private static final int NEG_INF = -100000000;
+	
+	// Exact seed matches locate the band of diagonals (ref pos - contig pos) to evaluate
+	private static final int SEED_LEN = 12;
+	private static final int MAX_SEED_OCCURRENCES = 16;
+	private static final int MIN_DIAGONAL_SEEDS = 2;
+	// Diagonals evaluated on either side of the seeded diagonals and rows evaluated in full
+	// beyond the first / last seeds.
+	private static final int BAND_PAD = 32;
+	// Smaller matrices are always evaluated in full
+	private static final int MIN_BANDED_CELLS = 100000;
+	
+	// Traceback directions for all 3 matrices packed into a single byte per cell
+	private static final byte BT_M_MASK = 3;
+	private static final byte BT_I_UP = 4;
+	private static final byte BT_D_LEFT = 8;
 
-	private int[][][] matrix = new int[MAX_CONTIG_LEN][MAX_REF_LEN][3];
-	private byte[][][] bt = new byte[MAX_CONTIG_LEN][MAX_REF_LEN][3];
+	// Previous and current score rows for each of I, M, D.  Grown as needed.
+	private int[] scores = new int[0];
+	private byte[] bt = new byte[0];
 	
 	public SemiGlobalAligner() {
 
@@ -42,114 +62,312 @@ public class SemiGlobalAligner {
 	}
 
 	public Result align(String seq1, String seq2) {
-//		int[][][] matrix = new int[seq1.length()+1][seq2.length()+1][3];
-//		byte[][][] bt = new byte[seq1.length()+1][seq2.length()+1][3];
+		return align(seq1, seq2, true);
+	}
+	
+	Result align(String seq1, String seq2, boolean isBandingEnabled) {
+		
+		Band band = isBandingEnabled ? findBand(seq1, seq2) : null;
+		
+		if (band != null) {
+			int lastRow = populate(band, seq1, seq2);
+			Result result = backtrack(band, lastRow, seq1, seq2);
+			if (result != null) {
+				return result;
+			}
+		}
+		
+		// Banded alignment reached the edge of the band or banding not applicable.  Evaluate the full matrix.
+		band = Band.full(seq1.length(), seq2.length());
+		int lastRow = populate(band, seq1, seq2);
+		return backtrack(band, lastRow, seq1, seq2);
+	}
+	
+	private static int baseCode(char base) {
+		switch (base) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
+	/**
+	 *  Identify the band of diagonals supported by exact seed matches between seq1 and seq2.
+	 *  Returns null if the full matrix should be evaluated.
+	 */
+	Band findBand(String seq1, String seq2) {
+		int seq1Len = seq1.length();
+		int seq2Len = seq2.length();
+		
+		if ((long) seq1Len * seq2Len < MIN_BANDED_CELLS || seq1Len < SEED_LEN || seq2Len < SEED_LEN) {
+			return null;
+		}
+		
+		int mask = (1 << (2*SEED_LEN)) - 1;
+		
+		// Ref seeds packed as kmer << 32 | position and sorted
+		long[] refSeeds = new long[seq2Len];
+		int numRefSeeds = 0;
+		int kmer = 0;
+		int validBases = 0;
+		for (int c=0; c<seq2Len; c++) {
+			int code = baseCode(seq2.charAt(c));
+			if (code < 0) {
+				validBases = 0;
+			} else {
+				kmer = ((kmer << 2) | code) & mask;
+				validBases++;
+				if (validBases >= SEED_LEN) {
+					refSeeds[numRefSeeds++] = ((long) kmer << 32) | (c-SEED_LEN+1);
+				}
+			}
+		}
+		
+		Arrays.sort(refSeeds, 0, numRefSeeds);
+		
+		// Votes per diagonal offset by seq1Len along with first and last seeded contig position
+		int numDiagonals = seq1Len + seq2Len + 1;
+		int[] votes = new int[numDiagonals];
+		int[] firstSeed = new int[numDiagonals];
+		int[] lastSeed = new int[numDiagonals];
+		Arrays.fill(firstSeed, seq1Len);
+		
+		kmer = 0;
+		validBases = 0;
+		for (int r=0; r<seq1Len; r++) {
+			int code = baseCode(seq1.charAt(r));
+			if (code < 0) {
+				validBases = 0;
+			} else {
+				kmer = ((kmer << 2) | code) & mask;
+				validBases++;
+				if (validBases >= SEED_LEN) {
+					int first = lowerBound(refSeeds, numRefSeeds, (long) kmer << 32);
+					int last = first;
+					while (last < numRefSeeds && (refSeeds[last] >>> 32) == kmer) {
+						last++;
+					}
+					
+					if (last - first > MAX_SEED_OCCURRENCES) {
+						// Repetitive sequence.  The true alignment may not be distinguishable by seeds.
+						return null;
+					}
+					
+					int seedStart = r-SEED_LEN+1;
+					for (int i=first; i<last; i++) {
+						int diagonal = (int) (refSeeds[i] & 0xFFFFFFFFL) - seedStart + seq1Len;
+						votes[diagonal] += 1;
+						firstSeed[diagonal] = Math.min(firstSeed[diagonal], seedStart);
+						lastSeed[diagonal] = Math.max(lastSeed[diagonal], r+1);
+					}
+				}
+			}
+		}
+		
+		int lo = seq2Len + 1;
+		int hi = -seq1Len - 1;
+		int seededStart = seq1Len;
+		int seededEnd = 0;
+		for (int i=0; i<numDiagonals; i++) {
+			if (votes[i] >= MIN_DIAGONAL_SEEDS) {
+				int diagonal = i - seq1Len;
+				lo = Math.min(lo, diagonal);
+				hi = Math.max(hi, diagonal);
+				seededStart = Math.min(seededStart, firstSeed[i]);
+				seededEnd = Math.max(seededEnd, lastSeed[i]);
+			}
+		}
+		
+		if (hi < lo) {
+			// No seeds
+			return null;
+		}
+		
+		lo -= BAND_PAD;
+		hi += BAND_PAD;
+		int headRows = seededStart + BAND_PAD;
+		int tailStart = seededEnd - BAND_PAD + 1;
+		
+		// Not worth banding
+		if ((hi - lo + 1) * 2 >= seq2Len || tailStart - headRows < BAND_PAD) {
+			return null;
+		}
+		
+		// Every banded row must intersect the band
+		if (headRows + 1 + hi < 1 || tailStart - 1 + lo > seq2Len) {
+			return null;
+		}
 		
-		populate(matrix, bt, seq1, seq2);
-		return backtrack(matrix, bt, seq1, seq2);
+		return new Band(lo, hi, headRows, tailStart, seq2Len);
 	}
 	
-	private void populate(int[][][] matrix, byte[][][] bt, String seq1, String seq2) {
-		for (int r=1; r<=seq1.length(); r++) {
-			matrix[r][0][I] = gapOpen + (r*gapExtend);
-			matrix[r][0][M] = gapOpen + (r*gapExtend);
-			matrix[r][0][D] = gapOpen + (r*gapExtend);
+	private static int lowerBound(long[] values, int length, long key) {
+		int low = 0;
+		int high = length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
 		}
 		
-		for (int c=0; c<=seq2.length(); c++) {
-			matrix[0][c][I] = gapOpen + (c*gapExtend);
-			matrix[0][c][M] = 0;
-			matrix[0][c][D] = gapOpen + (c*gapExtend);
+		return low;
+	}
+	
+	/**
+	 *  Populates score rows and traceback within the band.
+	 *  Returns the offset of the final M row within the score buffer.
+	 */
+	private int populate(Band band, String seq1, String seq2) {
+		int seq1Len = seq1.length();
+		int seq2Len = seq2.length();
+		int rowLen = seq2Len+2;
+		
+		if (scores.length < rowLen * 6) {
+			scores = new int[rowLen * 6];
 		}
 		
-		for (int r=2; r<=seq1.length(); r++) {
-			bt[r][0][I] = DIR_UP;
-			bt[r][0][D] = DIR_UP;
-			bt[r][0][M] = DIR_UP;
+		long btSize = band.rowOffset(seq1Len+1);
+		if (bt.length < btSize) {
+			bt = new byte[(int) btSize];
 		}
 		
-		for (int r=1; r<=seq1.length(); r++) {
-			for (int c=1; c<=seq2.length(); c++) {
+		int[] scores = this.scores;
+		byte[] bt = this.bt;
+		
+		// Row offsets for I, M, D
+		int prevI = 0;
+		int prevM = rowLen;
+		int prevD = rowLen * 2;
+		int currI = rowLen * 3;
+		int currM = rowLen * 4;
+		int currD = rowLen * 5;
+		
+		for (int c=0; c<=seq2Len; c++) {
+			scores[prevI + c] = gapOpen + (c*gapExtend);
+			scores[prevM + c] = 0;
+			scores[prevD + c] = gapOpen + (c*gapExtend);
+		}
+		
+		for (int r=1; r<=seq1Len; r++) {
+			
+			int start = band.rowStart(r);
+			int end = band.rowEnd(r);
+			
+			scores[currI] = gapOpen + (r*gapExtend);
+			scores[currM] = gapOpen + (r*gapExtend);
+			scores[currD] = gapOpen + (r*gapExtend);
+			
+			// Cells beyond the band.  The next row reads at most one cell past either end
+			// unless it is evaluated in full.
+			int fillStart = r+1 == band.tailStart ? 1 : start-1;
+			int fillEnd = r+1 == band.tailStart ? seq2Len : end+1;
+			
+			if (start > 1) {
+				Arrays.fill(scores, currI + fillStart, currI + start, NEG_INF);
+				Arrays.fill(scores, currM + fillStart, currM + start, NEG_INF);
+				Arrays.fill(scores, currD + fillStart, currD + start, NEG_INF);
+			}
+			
+			if (end < seq2Len) {
+				Arrays.fill(scores, currI + end+1, currI + fillEnd+1, NEG_INF);
+				Arrays.fill(scores, currM + end+1, currM + fillEnd+1, NEG_INF);
+				Arrays.fill(scores, currD + end+1, currD + fillEnd+1, NEG_INF);
+			}
+			
+			int btRow = (int) band.rowOffset(r) - start;
+			char base1 = seq1.charAt(r-1);
+			
+			// Left and diagonal neighbors carried across columns
+			int leftM = scores[currM + start-1];
+			int leftD = scores[currD + start-1];
+			int diagM = scores[prevM + start-1];
+			
+			for (int c=start; c<=end; c++) {
+				
+				byte cell = 0;
+				int upM = scores[prevM + c];
 				
 				//
 				// Insertion (lower) matrix
-				int insertExt = matrix[r-1][c][I] + gapExtend;
-				int insertOpen = matrix[r-1][c][M] + gapOpen;
+				int insertExt = scores[prevI + c] + gapExtend;
+				int insertOpen = upM + gapOpen;
+				int insert;
 				
 				if (insertExt >= insertOpen) {
-					matrix[r][c][I] = insertExt;
-					bt[r][c][I] = DIR_UP;
+					insert = insertExt;
+					cell |= BT_I_UP;
 				} else {
-					matrix[r][c][I] = insertOpen;
-					bt[r][c][I] = DIR_DIAG;
+					insert = insertOpen;
 				}
 				
 				// Deletion (upper) matrix
-				int deleteExt = matrix[r][c-1][D] + gapExtend;
-				int deleteOpen = matrix[r][c-1][M] + gapOpen;
+				int deleteExt = leftD + gapExtend;
+				int deleteOpen = leftM + gapOpen;
+				int delete;
 
 				if (deleteExt >= deleteOpen) {
-					matrix[r][c][D] = deleteExt;
-					bt[r][c][D] = DIR_LEFT;
+					delete = deleteExt;
+					cell |= BT_D_LEFT;
 				} else {
-					matrix[r][c][D] = deleteOpen;
-					bt[r][c][D] = DIR_DIAG;
+					delete = deleteOpen;
 				}
 				
 				//
 				// Match/mismatch (middle) matrix
-				int insertClose = matrix[r][c][I]; 
-				int baseMatch = seq1.charAt(r-1) == seq2.charAt(c-1) ? matrix[r-1][c-1][M] + match : matrix[r-1][c-1][M] + mismatch;
-				int deleteClose = matrix[r][c][D];
+				int baseMatch = base1 == seq2.charAt(c-1) ? diagM + match : diagM + mismatch;
+				int score;
 				
-				if (baseMatch >=insertClose && baseMatch >= deleteClose) {
-					matrix[r][c][M] = baseMatch;
-					bt[r][c][M] = DIR_DIAG;
-				} else if (insertClose >= deleteClose) {
-					matrix[r][c][M] = insertClose;
-					bt[r][c][M] = DIR_UP;					
+				if (baseMatch >= insert && baseMatch >= delete) {
+					score = baseMatch;
+					cell |= DIR_DIAG;
+				} else if (insert >= delete) {
+					score = insert;
+					cell |= DIR_UP;
 				} else {
-					matrix[r][c][M] = deleteClose;
-					bt[r][c][M] = DIR_LEFT;										
+					score = delete;
+					cell |= DIR_LEFT;
 				}
+				
+				scores[currI + c] = insert;
+				scores[currD + c] = delete;
+				scores[currM + c] = score;
+				bt[btRow + c] = cell;
+				
+				leftM = score;
+				leftD = delete;
+				diagM = upM;
 			}
+			
+			int temp = prevI; prevI = currI; currI = temp;
+			temp = prevM; prevM = currM; currM = temp;
+			temp = prevD; prevD = currD; currD = temp;
 		}
 		
-//		dumpMatrix(seq1, seq2, matrix, bt);
-	}
-	
-	String intString(int[] i) {
-		return String.format("%d,%d,%d", i[0],i[1],i[2]);
+		return prevM;
 	}
 	
-	String byteString(byte[] i) {
-		return String.format("%d,%d,%d", i[0],i[1],i[2]);
-	}
-	
-	private void dumpMatrix(String seq1, String seq2, int matrix[][][], byte bt[][][]) {
+	private byte getBt(Band band, int r, int c, int level) {
+		if (r == 0) {
+			return 0;
+		}
 		
-		StringBuffer line = new StringBuffer();
-		line.append("\t\t");
-		for (int i=0; i<seq2.length(); i++) {
-			line.append(seq2.charAt(i));
-			line.append('\t');
+		if (c <= 0) {
+			return c == 0 && r >= 2 ? DIR_UP : 0;
 		}
-		System.out.println(line);
 		
-		for(int r=0; r<matrix.length; r++) {
-			line = new StringBuffer();
-			if (r > 0) {
-				line.append(seq1.charAt(r-1));
-			}
-			line.append('\t');
-			for (int c=0; c<matrix[0].length; c++) {
-				line.append(intString(matrix[r][c]));
-				line.append(':');
-				line.append(byteString(bt[r][c]));
-				
-				line.append('\t');
-			}
-			System.out.println(line);
+		byte cell = bt[(int) band.rowOffset(r) + c - band.rowStart(r)];
+		
+		if (level == M) {
+			return (byte) (cell & BT_M_MASK);
+		} else if (level == I) {
+			return (cell & BT_I_UP) != 0 ? DIR_UP : DIR_DIAG;
+		} else {
+			return (cell & BT_D_LEFT) != 0 ? DIR_LEFT : DIR_DIAG;
 		}
 	}
 	
@@ -164,20 +382,20 @@ public class SemiGlobalAligner {
 		return currElem;
 	}
 	
-	private Result backtrack(int matrix[][][], byte[][][] bt, String seq1, String seq2) {
-//		dumpMatrix(matrix);
+	// Returns null if the banded alignment reaches the edge of the band
+	private Result backtrack(Band band, int lastRow, String seq1, String seq2) {
 		// Find best score in last row (end of seq1)
 		int bestIdx = -1;
 		int bestScore = -300000000;
 		int secondBestScore = -300000000;
 		int row = seq1.length();
 		
-		for (int c=1; c<=seq2.length(); c++) {
-			if (matrix[row][c][M] > bestScore) {
+		for (int c=band.rowStart(row); c<=band.rowEnd(row); c++) {
+			if (scores[lastRow + c] > bestScore) {
 				bestIdx = c;
-				bestScore = matrix[row][c][M];
-			} else if (matrix[row][c][M] > secondBestScore) {
-				secondBestScore = matrix[row][c][M]; 
+				bestScore = scores[lastRow + c];
+			} else if (scores[lastRow + c] > secondBestScore) {
+				secondBestScore = scores[lastRow + c]; 
 			}
 		}
 		
@@ -192,9 +410,13 @@ public class SemiGlobalAligner {
 		
 //		while (r > 0 && c > 0) {
 		while (r > 0) {
-			byte currBt = bt[r][c][level];
+			if (band.isEdge(r, c)) {
+				return null;
+			}
+			
+			byte currBt = getBt(band, r, c, level);
 			
-//			System.out.println(String.format("bt -- r:%d c:%d bt: %d level: %d, score: %d", r,c,currBt,level,matrix[r][c][level]));
+//			System.out.println(String.format("bt -- r:%d c:%d bt: %d level: %d", r,c,currBt,level));
 
 			if (currBt == DIR_DIAG) {
 				if (level == M) {
@@ -263,14 +485,95 @@ public class SemiGlobalAligner {
 			this.cigar = cigar;
 		}
 		
+		Result(int score, int secondBest, int position, int endPosition, Cigar cigar) {
+			this(score, secondBest, position, endPosition, (String) null);
+			this.parsedCigar = cigar;
+		}
+		
 		int score;
 		int secondBest;
 		int position;
 		int endPosition;
 		String cigar;
+		// Populated directly by batch alignment, otherwise parsed on demand
+		private Cigar parsedCigar;
+		
+		Cigar getCigar() {
+			if (parsedCigar == null) {
+				parsedCigar = TextCigarCodec.decode(cigar);
+			}
+			return parsedCigar;
+		}
+		
+		String getCigarString() {
+			if (cigar == null) {
+				cigar = parsedCigar.isEmpty() ? "" : TextCigarCodec.encode(parsedCigar);
+			}
+			return cigar;
+		}
 		
 		public String toString() {
-			return String.format("score: %d, secondBest: %d, pos: %d, endPos: %d, cigar: %s", score, secondBest, position, endPosition, cigar);
+			return String.format("score: %d, secondBest: %d, pos: %d, endPos: %d, cigar: %s", score, secondBest, position, endPosition, getCigarString());
+		}
+	}
+	
+	/**
+	 *  Band of diagonals (c - r) evaluated.  Cells outside of the band score NEG_INF.
+	 *  Rows up to headRows and from tailStart on are evaluated in full as the
+	 *  alignment may drift anywhere before the first and after the last seed.
+	 */
+	static class Band {
+		int lo;
+		int hi;
+		int headRows;
+		int tailStart;
+		int seq2Len;
+		// Number of cells in a banded row
+		int width;
+		
+		Band(int lo, int hi, int headRows, int tailStart, int seq2Len) {
+			this.lo = lo;
+			this.hi = hi;
+			this.headRows = headRows;
+			this.tailStart = tailStart;
+			this.seq2Len = seq2Len;
+			this.width = Math.min(hi - lo + 1, seq2Len);
+		}
+		
+		static Band full(int seq1Len, int seq2Len) {
+			return new Band(-seq1Len, seq2Len, seq1Len, seq1Len+1, seq2Len);
+		}
+		
+		boolean isBandedRow(int r) {
+			return r > headRows && r < tailStart;
+		}
+		
+		int rowStart(int r) {
+			return isBandedRow(r) && r + lo > 1 ? r + lo : 1;
+		}
+		
+		int rowEnd(int r) {
+			return isBandedRow(r) && r + hi < seq2Len ? r + hi : seq2Len;
+		}
+		
+		// Offset of row r within the traceback buffer.  Row 0 is not stored.
+		long rowOffset(int r) {
+			if (r <= headRows) {
+				return (long) (r-1) * seq2Len;
+			}
+			
+			long offset = (long) headRows * seq2Len;
+			if (r < tailStart) {
+				return offset + (long) (r-1-headRows) * width;
+			}
+			
+			offset += (long) (tailStart-1-headRows) * width;
+			return offset + (long) (r-tailStart) * seq2Len;
+		}
+		
+		boolean isEdge(int r, int c) {
+			return isBandedRow(r) && c > 0 &&
+				((c == r + lo && c > 1) || (c == r + hi && c < seq2Len));
 		}
 	}
 	
@@ -0,0 +1,14 @@
+package abra;
+
+import abra.SemiGlobalAligner.Result;
+
+/**
+ * Concrete implementations of this interface perform semi-global alignment of
+ * a contig (seq1) against a reference (seq2).
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public interface SequenceAligner {
+
+	public Result align(String seq1, String seq2);
+}
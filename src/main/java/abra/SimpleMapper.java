@@ -1,10 +1,8 @@
 package abra;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
+
+import abra.MultiContigMapper.Hits;
 
 /**
  * Simple ungapped alignment based upon initial exact seed match
@@ -14,7 +12,7 @@ public class SimpleMapper {
 	
 	//TODO: May need to change for short reads or decreased maxMismatchRate
 	//      Increasing when appropriate will speed things up.
-	private static final int KMER_SIZE = 10;
+	static final int KMER_SIZE = 10;
 	
 	static final int UNMAPPED = -1;
 	static final int HOMOLOGOUS_MAPPING = -2;
@@ -28,11 +26,11 @@ public class SimpleMapper {
 	
 	// Represents a single contig
 	private String ref;
-	private ReverseComplementor rc = new ReverseComplementor();
 	private double maxMismatchRate;
 	
-	// kmer -> list of positions
-	private Map<String, List<Integer>> kmerPositions = new HashMap<String, List<Integer>>();
+	// Single contig kmer index.  Built on first use as contigs are typically
+	// mapped to via a combined MultiContigMapper index.
+	private volatile MultiContigMapper index;
 	
 	public SimpleMapper(String ref) {
 		this(ref, .05);
@@ -41,174 +39,29 @@ public class SimpleMapper {
 	public SimpleMapper(String ref, double maxMismatchRate) {
 		this.ref = ref;
 		this.maxMismatchRate = maxMismatchRate;
-		
-		for (int i=0; i<ref.length()-KMER_SIZE; i++) {
-			String kmer = ref.substring(i, i+KMER_SIZE);
-			if (!kmerPositions.containsKey(kmer)) {
-				kmerPositions.put(kmer, new ArrayList<Integer>());
-			}
-			kmerPositions.get(kmer).add(i);
-		}
-	}
-	
-	private Map<Integer, Integer> getPositionMismatches_old(String bases) {
-		// ref position -> # mismatches
-		Map<Integer, Integer> posMismatches = new HashMap<Integer, Integer>();
-		
-		// Evaluate all reference positions where read and ref share a kmer
-		for (int i=0; i<bases.length()-KMER_SIZE; i++) {
-			String kmer = bases.substring(i, i+KMER_SIZE);
-			
-			if (kmerPositions.containsKey(kmer)) {
-				for (int pos : kmerPositions.get(kmer)) {
-					int refStartPos = pos - i;
-					
-					// Compare strings only if this position has not already been evaluated
-					if (refStartPos >= 0 && !posMismatches.containsKey(refStartPos) && refStartPos <= ref.length() - bases.length()) {
-						int mismatches = countMismatches(refStartPos, bases);
-						posMismatches.put(refStartPos, mismatches);
-					}
-				}
-			}
-		}
-
-		return posMismatches;
 	}
 	
-	private Map<Integer, Integer> getPositionMismatches(String bases) {
-		// ref position -> # mismatches
-		Map<Integer, Integer> posMismatches = new HashMap<Integer, Integer>();
-		
-		// pos in ref -> kmer idx
-		// i.e. For pos 100, kmers 0,2,3 (0,50,75 if KMER_SIZE=25) match
-		
-		Map<Integer, List<Integer>> refPosKmers = new HashMap<Integer, List<Integer>>();
+	public SimpleMapperResult map(String read) {
 		
-		// Identify kmers in read that match reference
-		int i=0;
-		while (i<=bases.length()-KMER_SIZE) {		
-			String kmer = bases.substring(i, i+KMER_SIZE);
-			
-			if (kmerPositions.containsKey(kmer)) {
-				for (int pos : kmerPositions.get(kmer)) {
-					int refStartPos = pos - i;
-					if (refStartPos > 0 && refStartPos <= ref.length() - bases.length()) {
-						if (!refPosKmers.containsKey(refStartPos)) {
-							refPosKmers.put(refStartPos, new ArrayList<Integer>());
-						}
-						refPosKmers.get(refStartPos).add(i);
-					}
-				}
-			}
-			
-			// Skip to next kmer
-			if (i+KMER_SIZE <= bases.length()-KMER_SIZE) {
-				i += KMER_SIZE;
-			} else if (i < bases.length()-KMER_SIZE){
-				// Last kmer may overlap previous kmer
-				i = bases.length()-KMER_SIZE;
-			} else {
-				// Done.
-				i = bases.length();
-			}
+		MultiContigMapper mapper = index;
+		if (mapper == null) {
+			mapper = new MultiContigMapper(Collections.singletonList(this));
+			index = mapper;
 		}
 		
-		// Count mismatches in read.  Skip over matching kmers for speed.
-		for (int refStartPos : refPosKmers.keySet()) {
-			int mismatches = 0;
-			List<Integer> matchingKmers = refPosKmers.get(refStartPos);
-			Iterator<Integer> kmerIter = matchingKmers.iterator();
-			int currKmer = -1;
-			if (kmerIter.hasNext()) {
-				currKmer = kmerIter.next();
-			}
-			
-			i=0;
-			while (i<bases.length()) {
-				
-				if (i >= currKmer && i < currKmer+KMER_SIZE) {
-					if (kmerIter.hasNext()) {
-						currKmer = kmerIter.next();
-					}
-					
-					// Skip over the matching kmer
-					i += KMER_SIZE;
-				} else {
-					if (bases.charAt(i) != ref.charAt(refStartPos+i)) {
-						mismatches += 1;
-						if (mismatches > bases.length() * maxMismatchRate) {
-							break;
-						}
-					}
-					
-					i += 1;
-				}
-			}
-
-			posMismatches.put(refStartPos, mismatches);
-		}
-
-		return posMismatches;
+		// Single contig, so exactly one hit
+		Hits hits = mapper.map(read);
+		return new SimpleMapperResult(hits.getPos(0), hits.getMismatches(), hits.getOrientation(0));
 	}
-
 	
-	public SimpleMapperResult map(String read) {
-		
-		Map<Integer, Integer> forwardMismatches = getPositionMismatches(read);
-		Map<Integer, Integer> reverseMismatches = getPositionMismatches(rc.reverseComplement(read));
-		
-		// Find position with fewest mismatches
-		int bestMismatches = read.length() + 1;
-		int bestPos = UNMAPPED;
-		Orientation bestOrientation = Orientation.UNSET;
-		
-		// Search for matches to contig in forward orientation
-		for (int pos : forwardMismatches.keySet()) {
-			if (forwardMismatches.get(pos) < bestMismatches) {
-				bestMismatches = forwardMismatches.get(pos);
-				bestPos = pos;
-				bestOrientation = Orientation.FORWARD;;
-			} else if (forwardMismatches.get(pos) == bestMismatches) {
-				bestPos = HOMOLOGOUS_MAPPING;
-			}
-		}
-		
-		// Search for matches to contig in reverse complement
-		for (int pos : reverseMismatches.keySet()) {
-			if (reverseMismatches.get(pos) < bestMismatches) {
-				bestMismatches = reverseMismatches.get(pos);
-				bestPos = pos;
-				bestOrientation = Orientation.REVERSE;
-			} else if (reverseMismatches.get(pos) == bestMismatches) {
-				bestPos = HOMOLOGOUS_MAPPING;
-			}
-		}
-		
-		if (bestMismatches > read.length() * maxMismatchRate) {
-			bestPos = UNMAPPED;
-		}
-		
-		return new SimpleMapperResult(bestPos, bestMismatches, bestOrientation);
+	double getMaxMismatchRate() {
+		return maxMismatchRate;
 	}
 	
 	public String getSeq() {
 		return this.ref;
 	}
 	
-	private int countMismatches(int refPosition, String read) {
-		int mismatches = 0;
-		for (int i=0; i<read.length(); i++) {
-			if (read.charAt(i) != ref.charAt(refPosition+i)) {
-				mismatches += 1;
-				if (mismatches > read.length() * maxMismatchRate) {
-					break;
-				}
-			}
-		}
-		
-		return mismatches;
-	}
-	
 	static class SimpleMapperResult {
 		private int pos;
 		private int mismatches;
@@ -2,7 +2,9 @@ package abra;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,6 +12,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.intel.gkl.compression.IntelDeflaterFactory;
 
@@ -19,20 +23,26 @@ import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.zip.DeflaterFactory;
 
 
 public class SortedSAMWriter {
 	
 	private static final int TEMP_COMPRESSION_LEVEL = 1;
 	
-	private static final int ASYNC_READ_CACHE_SIZE = 100000;
+	private DeflaterFactory deflaterFactory = new DeflaterFactory();
 	
-	private SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+	// Shared by all temp and final output streams.  null if single threaded
+	private ExecutorService deflatePool;
+	private int maxPendingBlocks;
+	
+	private TempCodec tempCodec;
 	
 	private SAMFileWriter writers[][];
 	private String tempDir;
 	private String[] outputFiles;
 	private SAMFileHeader[] samHeaders;
+	private SAMFileHeader[] finalHeaders;
 	private boolean isKeepTmp;
 	private ChromosomeChunker chromosomeChunker;
 	private int finalCompressionLevel;
@@ -45,14 +55,25 @@ public class SortedSAMWriter {
 	
 	private Set<Integer> chunksReady = new HashSet<Integer>();
 	
+	// Chromosomes in final output order
+	private List<String> outputChromosomes = new ArrayList<String>();
+	private FinalOutput[] finalOutputs;
+	
+	// Sort buffers for chromosomes that are not nearly sorted.  Indexed by sample
+	private SortBuffers[] sortBuffers;
+	
+	// Read order within each temp chunk file.  Indexed by sample, chunk
+	private ChunkOrder[][] chunkOrders;
+	
 	private ReverseComplementor rc = new ReverseComplementor();
 	
 	public SortedSAMWriter(String[] outputFiles, String tempDir, SAMFileHeader[] samHeaders,
 			boolean isKeepTmp, ChromosomeChunker chromosomeChunker, int finalCompressionLevel,
 			boolean shouldSort, int genomicRangeToCache, boolean shouldUnsetDuplicates,
-			boolean shouldCreateIndex, boolean shouldUseGkl, int maxReadsInRam) {
+			boolean shouldCreateIndex, boolean shouldUseGkl, int maxReadsInRam, int numThreads, TempCodec tempCodec) {
 	
-		this.samHeaders = samHeaders;
+		this.samHeaders = new SAMFileHeader[samHeaders.length];
+		this.finalHeaders = new SAMFileHeader[samHeaders.length];
 		this.outputFiles = outputFiles;
 		this.tempDir = tempDir;
 		this.isKeepTmp = isKeepTmp;
@@ -61,24 +82,55 @@ public class SortedSAMWriter {
 		this.shouldSort = shouldSort;
 		this.genomicRangeToCache = genomicRangeToCache;
 		this.shouldUnsetDuplicates = shouldUnsetDuplicates;
-		this.shouldCreateIndex = shouldCreateIndex;
 
 		this.maxRecordsInRam = maxReadsInRam;
+		this.tempCodec = tempCodec;
 
 		if (shouldUseGkl) {
-			writerFactory.setUseAsyncIo(false);
 			IntelDeflaterFactory intelDeflater = new IntelDeflaterFactory();
-			writerFactory.setDeflaterFactory(intelDeflater);
+			deflaterFactory = intelDeflater;
 			
 			Logger.info("Using intel deflator: " + intelDeflater.usingIntelDeflater());
 		} else {
 			Logger.info("Intel deflater disabled");
 		}
 		
+		if (numThreads > 1) {
+			deflatePool = Executors.newFixedThreadPool(numThreads);
+			maxPendingBlocks = numThreads * 2;
+		}
+		
+		// Index is only valid for sorted output
+		this.shouldCreateIndex = shouldSort && shouldCreateIndex;
+		
+		// Headers are copied as temp and final output are written concurrently
+		for (int i=0; i<samHeaders.length; i++) {
+			this.samHeaders[i] = samHeaders[i].clone();
+			this.samHeaders[i].setSortOrder(SortOrder.unsorted);
+			
+			this.finalHeaders[i] = samHeaders[i].clone();
+			this.finalHeaders[i].setSortOrder(shouldSort ? SortOrder.coordinate : SortOrder.unsorted);
+		}
+		
+		for (String chromosome : chromosomeChunker.getChromosomes()) {
+			if (chromosomeChunker.getChunkGroups().containsKey(chromosome)) {
+				outputChromosomes.add(chromosome);
+			}
+		}
+		
+		finalOutputs = new FinalOutput[outputFiles.length];
+		sortBuffers = new SortBuffers[outputFiles.length];
+		for (int i=0; i<finalOutputs.length; i++) {
+			finalOutputs[i] = new FinalOutput();
+			sortBuffers[i] = new SortBuffers(maxRecordsInRam);
+		}
+		
 		writers = new SAMFileWriter[outputFiles.length][];
+		chunkOrders = new ChunkOrder[outputFiles.length][];
 		
 		for (int i=0; i<writers.length; i++) {
 			writers[i] = new SAMFileWriter[chromosomeChunker.getChunks().size()+1];
+			chunkOrders[i] = new ChunkOrder[chromosomeChunker.getChunks().size()+1];
 		}
 	}
 	
@@ -89,7 +141,11 @@ public class SortedSAMWriter {
 	}
 	
 	private String getTempFilename(int sampleIdx, int chrom) {
-		return String.format("%s/%d.%d.bam", tempDir, sampleIdx, chrom);
+		return String.format("%s/%d.%d.%s", tempDir, sampleIdx, chrom, tempCodec == TempCodec.BAM ? "bam" : "tmp");
+	}
+	
+	private String getPartFilename(int sampleIdx, int chromosomeIdx) {
+		return String.format("%s/%d.part%d.bam", tempDir, sampleIdx, chromosomeIdx);
 	}
 	
 	public void addAlignment(int sampleIdx, SAMRecordWrapper samRecord, int chromosomeChunkIdx) {
@@ -118,19 +174,27 @@ public class SortedSAMWriter {
 			}
 			
 			writers[sampleIdx][chromosomeChunkIdx].addAlignment(read);
+			chunkOrders[sampleIdx][chromosomeChunkIdx].add(read.getAlignmentStart(), Math.min(read.getAlignmentStart(), origAlignmentStart), genomicRangeToCache);
 		}
 	}
 	
-	public void initChromosomeChunk(int chromosomeChunkIdx) {
+	public void initChromosomeChunk(int chromosomeChunkIdx) throws IOException {
 		for (int i=0; i<outputFiles.length; i++) {
 			initChromosomeChunk(i, chromosomeChunkIdx);
 		}
 	}
 	
-	private void initChromosomeChunk(int sampleIdx, int chromosomeChunkIdx) {
+	private void initChromosomeChunk(int sampleIdx, int chromosomeChunkIdx) throws IOException {
 		Logger.debug("Writer init: %d, %d", sampleIdx, chromosomeChunkIdx);
-		samHeaders[sampleIdx].setSortOrder(SortOrder.unsorted);
-		writers[sampleIdx][chromosomeChunkIdx] = writerFactory.makeBAMWriter(samHeaders[sampleIdx], false, new File(getTempFilename(sampleIdx, chromosomeChunkIdx)), TEMP_COMPRESSION_LEVEL);
+		chunkOrders[sampleIdx][chromosomeChunkIdx] = new ChunkOrder();
+		File file = new File(getTempFilename(sampleIdx, chromosomeChunkIdx));
+		
+		if (tempCodec == TempCodec.BAM) {
+			writers[sampleIdx][chromosomeChunkIdx] = new BAMPartWriter(file, samHeaders[sampleIdx],
+					true, false, TEMP_COMPRESSION_LEVEL, deflaterFactory, deflatePool, maxPendingBlocks);
+		} else {
+			writers[sampleIdx][chromosomeChunkIdx] = new TempSAMRecordWriter(file, samHeaders[sampleIdx], tempCodec);
+		}
 	}
 	
 	private void finishChromosomeChunk(int sampleIdx, int chromosomeChunkIdx) throws IOException {
@@ -138,55 +202,106 @@ public class SortedSAMWriter {
 		writers[sampleIdx][chromosomeChunkIdx].close();
 	}
 	
-	public void finishChromosomeChunk(int chromosomeChunkIdx) throws IOException {
+	/**
+	 * Closes the chunk's temp files.  Returns true if this was the last chunk of its chromosome to finish,
+	 * at which point the chromosome is ready for final output.
+	 */
+	public boolean finishChromosomeChunk(int chromosomeChunkIdx) throws IOException {
 		for (int i=0; i<outputFiles.length; i++) {
 			finishChromosomeChunk(i, chromosomeChunkIdx);
 		}
 		
+		return markChunkReady(chromosomeChunkIdx);
+	}
+	
+	private synchronized boolean markChunkReady(int chromosomeChunkIdx) {
 		chunksReady.add(chromosomeChunkIdx);
+		String chromosome = chromosomeChunker.getChunks().get(chromosomeChunkIdx).getSeqname();
+		return chunksReady.containsAll(chromosomeChunker.getChunkGroups().get(chromosome));
 	}
 	
-	public void outputFinal(int sampleIdx, String inputBam) throws IOException {
-		
-		Logger.info("Finishing: " + outputFiles[sampleIdx]);
+	private BAMPartWriter newPartWriter(int sampleIdx, String filename) throws IOException {
+		File file = new File(filename);
+		deleteOnExit(file);
+		return new BAMPartWriter(file, finalHeaders[sampleIdx], false, shouldCreateIndex, finalCompressionLevel, deflaterFactory, deflatePool, maxPendingBlocks);
+	}
+	
+	/**
+	 * Final mate update and sort of the chromosome's reads for the specified sample.  Callable once the chromosome's
+	 * chunks are finished, concurrently with other chromosomes.  The chromosome is compressed to its own part,
+	 * which is appended to the final output once preceding chromosomes are appended.
+	 */
+	public void outputChromosome(int sampleIdx, String chromosome) throws IOException {
+		int chromosomeIdx = outputChromosomes.indexOf(chromosome);
+		
+		BAMPartWriter part = newPartWriter(sampleIdx, getPartFilename(sampleIdx, chromosomeIdx));
+		processChromosome(part, sampleIdx, chromosome, null, null);
+		part.close();
+		
+		FinalOutput finalOutput = finalOutputs[sampleIdx];
+		if (finalOutput.stage(chromosomeIdx, part)) {
+			appendStagedParts(sampleIdx, finalOutput.takeStaged());
+		}
+	}
+	
+	/**
+	 * Appends staged parts to the final output in chromosome order until the next chromosome is not yet staged.
+	 * Only called by the final output's claim holder.
+	 */
+	private void appendStagedParts(int sampleIdx, BAMPartWriter part) throws IOException {
+		FinalOutput finalOutput = finalOutputs[sampleIdx];
+		
+		while (part != null) {
+			appendPart(sampleIdx, part);
+			part = finalOutput.advance();
+		}
+	}
+	
+	private void appendPart(int sampleIdx, BAMPartWriter part) throws IOException {
+		FinalOutput finalOutput = finalOutputs[sampleIdx];
 		
-		SAMRecord[] readsByNameArray = null;
-		SAMRecord[] readsByCoordArray = null;
-
-		if (shouldSort) {
-			
-			// Initialize internal read buffers used by SortingCollection2
-			// These are initialized once per thread and re-used each time
-			// a SortingCollection2 is initialized.
-			readsByNameArray = new SAMRecord[maxRecordsInRam];
-			readsByCoordArray = new SAMRecord[maxRecordsInRam];
-			
-			// Only allow buffering if sorting
-			writerFactory.setUseAsyncIo(true);
-			writerFactory.setAsyncOutputBufferSize(ASYNC_READ_CACHE_SIZE);
-			writerFactory.setCreateIndex(shouldCreateIndex);
-		} else {
-			writerFactory.setUseAsyncIo(false);
+		if (finalOutput.writer == null) {
+			finalOutput.writer = new ConcatenatedBAMWriter(new File(outputFiles[sampleIdx]), finalHeaders[sampleIdx], shouldCreateIndex);
 		}
 		
-		writerFactory.setCompressionLevel(finalCompressionLevel);
-		if (shouldSort) {
-			samHeaders[sampleIdx].setSortOrder(SortOrder.coordinate);
-		} else {
-			samHeaders[sampleIdx].setSortOrder(SortOrder.unsorted);
+		Logger.debug("Appending: %s", part.getFile());
+		finalOutput.writer.append(part);
+		
+		if (!isKeepTmp) {
+			part.getFile().delete();
 		}
-		SAMFileWriter output = writerFactory.makeBAMWriter(samHeaders[sampleIdx], true, new File(outputFiles[sampleIdx]), finalCompressionLevel);
+	}
+	
+	/**
+	 * Completes the sample's output with unmapped read pairs.  Call once all chromosomes have been output.
+	 */
+	public void outputFinal(int sampleIdx, String inputBam) throws IOException {
 		
-		for (String chromosome : chromosomeChunker.getChromosomes()) {
-			processChromosome(output, sampleIdx, chromosome, readsByNameArray, readsByCoordArray);
+		Logger.info("Finishing: " + outputFiles[sampleIdx]);
+		
+		if (!finalOutputs[sampleIdx].isComplete(outputChromosomes.size())) {
+			throw new IllegalStateException("Chromosomes not yet output for: " + outputFiles[sampleIdx]);
 		}
 		
-		processUnmapped(output, inputBam);
+		BAMPartWriter part = newPartWriter(sampleIdx, String.format("%s/%d.unmapped.bam", tempDir, sampleIdx));
+		processUnmapped(part, inputBam);
+		part.close();
 		
-		output.close();
+		appendPart(sampleIdx, part);
+		
+		finalOutputs[sampleIdx].writer.close();
+	}
+	
+	/**
+	 * Releases compression threads.  Call once all output is complete.
+	 */
+	public void close() {
+		if (deflatePool != null) {
+			deflatePool.shutdown();
+		}
 	}
 	
-	private void setMateInfo(SAMRecord read, Map<MateKey, SAMRecord> mates) {
+	static void setMateInfo(SAMRecord read, Map<MateKey, SAMRecord> mates) {
 		
 		if (read.getReadPairedFlag()) {
 			SAMRecord mate = mates.get(getMateKey(read));
@@ -224,7 +339,7 @@ public class SortedSAMWriter {
 	
 	private SortingSAMRecordCollection updateReadMatesAndSortByCoordinate(SortingSAMRecordCollection readsByName, SAMFileHeader header, SAMRecord[] readsByCoordArray) {
 		
-		SortingSAMRecordCollection readsByCoord = SortingSAMRecordCollection.newSortByCoordinateInstance(readsByCoordArray, header, maxRecordsInRam, tempDir); 
+		SortingSAMRecordCollection readsByCoord = SortingSAMRecordCollection.newSortByCoordinateInstance(readsByCoordArray, header, maxRecordsInRam, tempDir, tempCodec); 
 		
 		Iterator<SAMRecord> iter = readsByName.iterator();
 		
@@ -284,17 +399,41 @@ public class SortedSAMWriter {
 	private void processChromosome(SAMFileWriter output, int sampleIdx, String chromosome,
 			SAMRecord[] readsByNameArray, SAMRecord[] readsByCoordArray) throws IOException {
 		
+		if (shouldSort && isNearlySorted(sampleIdx, chromosome)) {
+			streamChromosome(output, sampleIdx, chromosome);
+			return;
+		}
+		
 		Logger.debug("Final processing for: %d, %s", sampleIdx, chromosome);
 		
-		SAMFileHeader sortByCoordHeader = output.getFileHeader();
+		if (shouldSort && readsByNameArray == null) {
+			// Internal read buffers used by SortingCollection2.  Re-used each time a SortingCollection2 is initialized.
+			// A single pair per sample bounds sort memory to --msr per sample, so a sample's chromosomes sort one at a time.
+			SortBuffers buffers = sortBuffers[sampleIdx];
+			buffers.acquire();
+			try {
+				sortChromosome(output, sampleIdx, chromosome, buffers.readsByName, buffers.readsByCoord);
+			} finally {
+				buffers.release();
+			}
+		} else {
+			sortChromosome(output, sampleIdx, chromosome, readsByNameArray, readsByCoordArray);
+		}
+	}
+	
+	private void sortChromosome(SAMFileWriter output, int sampleIdx, String chromosome,
+			SAMRecord[] readsByNameArray, SAMRecord[] readsByCoordArray) throws IOException {
+		
+		// The output header may be in use by other threads
+		SAMFileHeader sortByCoordHeader = output.getFileHeader().clone();
 		sortByCoordHeader.setSortOrder(SortOrder.coordinate);
 		
-		SAMFileHeader sortByNameHeader = output.getFileHeader();
+		SAMFileHeader sortByNameHeader = output.getFileHeader().clone();
 		sortByNameHeader.setSortOrder(SortOrder.queryname);
 		
 		List<Integer> chunks = chromosomeChunker.getChunkGroups().get(chromosome);
 		
-		SortingSAMRecordCollection readsByName = SortingSAMRecordCollection.newSortByNameInstance(readsByNameArray, sortByNameHeader, maxRecordsInRam, tempDir);
+		SortingSAMRecordCollection readsByName = SortingSAMRecordCollection.newSortByNameInstance(readsByNameArray, sortByNameHeader, maxRecordsInRam, tempDir, tempCodec);
 		
 		for (int chunk : chunks) {
 			Logger.debug("Outputting chunk: %d", chunk);
@@ -305,11 +444,12 @@ public class SortedSAMWriter {
 			if (file.exists()) {
 				deleteOnExit(file);
 				
-				SamReader reader = SAMRecordUtils.getSamReader(filename);
+				TempSAMRecordReader reader = new TempSAMRecordReader(file, samHeaders[sampleIdx], tempCodec);
 
 				int firstReadPos = -1;
 		
-				for (SAMRecord read : reader) {
+				while (reader.hasNext()) {
+					SAMRecord read = reader.next();
 					if (shouldUnsetDuplicates) {
 						read.setDuplicateReadFlag(false);
 					}
@@ -328,7 +468,7 @@ public class SortedSAMWriter {
 							
 							// Reset readsByName collection
 							readsByName.cleanup();
-							readsByName = SortingSAMRecordCollection.newSortByNameInstance(readsByNameArray, sortByNameHeader, maxRecordsInRam, tempDir);
+							readsByName = SortingSAMRecordCollection.newSortByNameInstance(readsByNameArray, sortByNameHeader, maxRecordsInRam, tempDir, tempCodec);
 							
 							int start = firstReadPos;
 							int i = 0;
@@ -366,7 +506,7 @@ public class SortedSAMWriter {
 		
 		// Output any remaining reads for the current chromosome
 		if (shouldSort) {
-			SortingSAMRecordCollection readsByCoord = updateReadMatesAndSortByCoordinate(readsByName, output.getFileHeader(), readsByCoordArray);
+			SortingSAMRecordCollection readsByCoord = updateReadMatesAndSortByCoordinate(readsByName, sortByCoordHeader, readsByCoordArray);
 			readsByName.cleanup();
 			
 			int i = 0;
@@ -380,7 +520,64 @@ public class SortedSAMWriter {
 		}
 	}
 		
-	public MateKey getMateKey(SAMRecord read) {
+	/**
+	 * Returns true if every read in the chromosome's temp chunk files is within NearlySortedSAMWriter's
+	 * window of all reads preceding it.
+	 */
+	private boolean isNearlySorted(int sampleIdx, String chromosome) {
+		int maxOrigStart = 0;
+		
+		for (int chunk : chromosomeChunker.getChunkGroups().get(chromosome)) {
+			ChunkOrder chunkOrder = chunkOrders == null ? null : chunkOrders[sampleIdx][chunk];
+			
+			if (chunkOrder == null || !chunkOrder.isNearlySorted || chunkOrder.minStart < maxOrigStart - 2 * genomicRangeToCache) {
+				Logger.info("Reads not within realignment distance of sorted for: %d, %s.  Sorting chromosome.", sampleIdx, chromosome);
+				return false;
+			}
+			
+			maxOrigStart = Math.max(maxOrigStart, chunkOrder.maxOrigStart);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Updates mates and outputs the chromosome's reads in coordinate order in a single pass over the temp chunk files.
+	 */
+	private void streamChromosome(SAMFileWriter output, int sampleIdx, String chromosome) throws IOException {
+		
+		Logger.debug("Final streaming for: %d, %s", sampleIdx, chromosome);
+		
+		NearlySortedSAMWriter sortedOutput = new NearlySortedSAMWriter(output, genomicRangeToCache);
+		
+		for (int chunk : chromosomeChunker.getChunkGroups().get(chromosome)) {
+			Logger.debug("Outputting chunk: %d", chunk);
+			String filename = getTempFilename(sampleIdx, chunk);
+			
+			File file = new File(filename);
+			
+			if (file.exists()) {
+				deleteOnExit(file);
+				
+				TempSAMRecordReader reader = new TempSAMRecordReader(file, samHeaders[sampleIdx], tempCodec);
+				
+				while (reader.hasNext()) {
+					SAMRecord read = reader.next();
+					if (shouldUnsetDuplicates) {
+						read.setDuplicateReadFlag(false);
+					}
+					
+					sortedOutput.addAlignment(read);
+				}
+				
+				reader.close();
+			}
+		}
+		
+		sortedOutput.finish();
+	}
+		
+	public static MateKey getMateKey(SAMRecord read) {
 		
 		// If mate is mapped, use read flag.
 		// If mate is not mapped, use opposite of this read's RC flag
@@ -393,7 +590,7 @@ public class SortedSAMWriter {
 				read.getMateUnmappedFlag(), isMateRevOrientation, mateNum, read.getAlignmentStart());
 	}
 	
-	public MateKey getOriginalReadInfo(SAMRecord read) {
+	public static MateKey getOriginalReadInfo(SAMRecord read) {
 		int pos = read.getAlignmentStart();
 		boolean isUnmapped = read.getReadUnmappedFlag();
 		boolean isRc = read.getReadNegativeStrandFlag();
@@ -447,6 +644,114 @@ public class SortedSAMWriter {
 		}
 	}
 	
+	/**
+	 * In order assembly of a sample's final output from chromosome parts completed in any order.
+	 * A single thread at a time holds the claim to append to the final output.
+	 */
+	static class FinalOutput {
+		ConcatenatedBAMWriter writer;
+		
+		// Index of the next chromosome to output
+		private int next = 0;
+		private boolean isClaimed = false;
+		private Map<Integer, BAMPartWriter> stagedParts = new HashMap<Integer, BAMPartWriter>();
+		
+		/**
+		 * Stage a completed part.  Returns true if the caller now holds the claim and should append staged parts.
+		 */
+		synchronized boolean stage(int chromosomeIdx, BAMPartWriter part) {
+			stagedParts.put(chromosomeIdx, part);
+			if (!isClaimed && stagedParts.containsKey(next)) {
+				isClaimed = true;
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Claim holder takes the staged part for the next chromosome.
+		 */
+		synchronized BAMPartWriter takeStaged() {
+			return stagedParts.remove(next);
+		}
+		
+		/**
+		 * Claim holder has output the next chromosome.  Returns the following chromosome's part if staged.
+		 * Otherwise the claim is released and null is returned.
+		 */
+		synchronized BAMPartWriter advance() {
+			next += 1;
+			BAMPartWriter part = stagedParts.remove(next);
+			if (part == null) {
+				isClaimed = false;
+			}
+			return part;
+		}
+		
+		synchronized boolean isComplete(int numChromosomes) {
+			return next == numChromosomes && !isClaimed;
+		}
+	}
+	
+	/**
+	 * A sample's SortingCollection2 buffers.  Allocated on first use and held by one chromosome at a time.
+	 */
+	static class SortBuffers {
+		SAMRecord[] readsByName;
+		SAMRecord[] readsByCoord;
+		
+		private int size;
+		private boolean isInUse = false;
+		
+		SortBuffers(int size) {
+			this.size = size;
+		}
+		
+		synchronized void acquire() throws InterruptedIOException {
+			while (isInUse) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for sort buffers");
+				}
+			}
+			
+			isInUse = true;
+			
+			if (readsByName == null) {
+				readsByName = new SAMRecord[size];
+				readsByCoord = new SAMRecord[size];
+			}
+		}
+		
+		synchronized void release() {
+			// Do not retain the last chromosome's reads
+			Arrays.fill(readsByName, null);
+			Arrays.fill(readsByCoord, null);
+			isInUse = false;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Tracks whether a temp chunk file's reads are within maxMoveDist of sorted.  Updated by a single writer thread.
+	 * Each read must start no more than 2 * maxMoveDist before the max original start of the reads preceding it.
+	 */
+	static class ChunkOrder {
+		int minStart = Integer.MAX_VALUE;
+		int maxOrigStart = 0;
+		boolean isNearlySorted = true;
+		
+		void add(int start, int origStart, int maxMoveDist) {
+			if (start < maxOrigStart - 2 * maxMoveDist) {
+				isNearlySorted = false;
+			}
+			
+			minStart = Math.min(minStart, start);
+			maxOrigStart = Math.max(maxOrigStart, origStart);
+		}
+	}
+	
 	static class MateKey {
 		String readId;
 		int pos;
@@ -575,7 +880,7 @@ public class SortedSAMWriter {
 		SAMRecord[] readsByCoordArray = new SAMRecord[maxRecordsInRam];
 		
 		SortedSAMWriter writer = new SortedSAMWriter(new String[] { "/home/lmose/dev/abra2_dev/mate_fix" }, "/home/lmose/dev/abra2_dev/mate_fix", new SAMFileHeader[] { reader.getFileHeader() }, true, cc,
-				1,true,1000,false, false, false, maxRecordsInRam);
+				1,true,1000,false, false, false, maxRecordsInRam, 1, TempCodec.BAM);
 
 		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
 		SAMFileWriter out = writerFactory.makeBAMWriter(reader.getFileHeader(), true, new File("/home/lmose/dev/abra2_dev/mate_fix/test.bam"),1);
@@ -0,0 +1,25 @@
+package abra;
+
+/**
+ * Thread entry point for final output of a single chromosome.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class SortedSAMWriterChromosomeRunnable extends AbraRunnable {
+	
+	private SortedSAMWriter writer;
+	private int sampleIdx;
+	private String chromosome;
+
+	public SortedSAMWriterChromosomeRunnable(ThreadManager threadManager, SortedSAMWriter writer, int sampleIdx, String chromosome) {
+		super(threadManager);
+		this.writer = writer;
+		this.sampleIdx = sampleIdx;
+		this.chromosome = chromosome;
+	}
+
+	@Override
+	public void go() throws Exception {
+		writer.outputChromosome(sampleIdx, chromosome);
+	}
+}
@@ -0,0 +1,126 @@
+package abra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Sequential reads of temp files written by TempBlockOutputStream.  The file is memory mapped in windows,
+ * so uncompressed blocks are read directly from the page cache and compressed blocks are decompressed
+ * straight from the mapping.  Not thread safe.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class TempBlockInputStream extends InputStream {
+	
+	private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+	
+	// Must exceed the max block size
+	private long mapWindowSize;
+	
+	private FileChannel channel;
+	private long fileSize;
+	
+	private MappedByteBuffer mapped;
+	private long mappedStart;
+	
+	// File position of the next block header
+	private long pos = 0;
+	
+	// Remaining data of the current block
+	private ByteBuffer block = ByteBuffer.allocate(0);
+	private ByteBuffer uncompressed;
+	
+	public TempBlockInputStream(File file) throws IOException {
+		this(file, MAP_WINDOW_SIZE);
+	}
+	
+	TempBlockInputStream(File file, long mapWindowSize) throws IOException {
+		this.mapWindowSize = mapWindowSize;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		fileSize = channel.size();
+	}
+	
+	private boolean nextBlock() throws IOException {
+		if (pos >= fileSize) {
+			return false;
+		}
+		
+		ByteBuffer header = map(pos, TempBlockOutputStream.BLOCK_HEADER_SIZE);
+		int len = header.getInt();
+		int storedLen = header.getInt();
+		
+		ByteBuffer stored = map(pos + TempBlockOutputStream.BLOCK_HEADER_SIZE, storedLen);
+		
+		if (storedLen < len) {
+			if (uncompressed == null) {
+				uncompressed = ByteBuffer.allocateDirect(TempBlockOutputStream.BLOCK_SIZE);
+			}
+			uncompressed.clear();
+			Snappy.uncompress(stored, uncompressed);
+			block = uncompressed;
+		} else {
+			block = stored;
+		}
+		
+		pos += TempBlockOutputStream.BLOCK_HEADER_SIZE + storedLen;
+		
+		return true;
+	}
+	
+	/**
+	 * Returns a view of the requested file range.  The mapped window is moved if the range is not within it.
+	 */
+	private ByteBuffer map(long start, int length) throws IOException {
+		if (start + length > fileSize) {
+			throw new IOException("Truncated temp file block at: " + start);
+		}
+		
+		if (mapped == null || start < mappedStart || start + length > mappedStart + mapped.capacity()) {
+			mappedStart = start;
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(mapWindowSize, fileSize - start));
+		}
+		
+		ByteBuffer view = mapped.duplicate();
+		int offset = (int) (start - mappedStart);
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!block.hasRemaining() && !nextBlock()) {
+			return -1;
+		}
+		
+		return block.get() & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		
+		if (!block.hasRemaining() && !nextBlock()) {
+			return -1;
+		}
+		
+		int len = Math.min(length, block.remaining());
+		block.get(bytes, offset, len);
+		return len;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		mapped = null;
+	}
+}
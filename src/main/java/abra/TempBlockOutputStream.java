@@ -0,0 +1,105 @@
+package abra;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Writes data in blocks of up to 128KB for temp files.  Each block is preceded by its uncompressed and
+ * stored lengths.  If compressing, blocks are stored Snappy compressed unless compression does not reduce size.
+ * Read back by TempBlockInputStream.  Not thread safe.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class TempBlockOutputStream extends OutputStream {
+	
+	static final int BLOCK_SIZE = 1 << 17;
+	static final int BLOCK_HEADER_SIZE = 8;
+	
+	private OutputStream output;
+	private boolean shouldCompress;
+	
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int bufferLen = 0;
+	private byte[] compressed;
+	private byte[] header = new byte[BLOCK_HEADER_SIZE];
+	
+	public TempBlockOutputStream(OutputStream output, boolean shouldCompress) {
+		this.output = output;
+		this.shouldCompress = shouldCompress;
+		
+		if (shouldCompress) {
+			compressed = new byte[Snappy.maxCompressedLength(BLOCK_SIZE)];
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferLen++] = (byte) b;
+		if (bufferLen == BLOCK_SIZE) {
+			writeBlock();
+		}
+	}
+	
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int len = Math.min(length, BLOCK_SIZE - bufferLen);
+			System.arraycopy(bytes, offset, buffer, bufferLen, len);
+			bufferLen += len;
+			offset += len;
+			length -= len;
+			
+			if (bufferLen == BLOCK_SIZE) {
+				writeBlock();
+			}
+		}
+	}
+	
+	private void writeBlock() throws IOException {
+		if (bufferLen == 0) {
+			return;
+		}
+		
+		byte[] block = buffer;
+		int storedLen = bufferLen;
+		
+		if (shouldCompress) {
+			int compressedLen = Snappy.compress(buffer, 0, bufferLen, compressed, 0);
+			if (compressedLen < bufferLen) {
+				block = compressed;
+				storedLen = compressedLen;
+			}
+		}
+		
+		writeInt(0, bufferLen);
+		writeInt(4, storedLen);
+		output.write(header);
+		output.write(block, 0, storedLen);
+		
+		bufferLen = 0;
+	}
+	
+	private void writeInt(int pos, int value) {
+		header[pos] = (byte) (value >>> 24);
+		header[pos+1] = (byte) (value >>> 16);
+		header[pos+2] = (byte) (value >>> 8);
+		header[pos+3] = (byte) value;
+	}
+	
+	/**
+	 * Ends the current block.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBlock();
+		output.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+		output.close();
+	}
+}
@@ -0,0 +1,62 @@
+package abra;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import htsjdk.samtools.util.SnappyLoader;
+
+/**
+ * Format of temp chunk files and sort spill files.
+ * 
+ * RAW and SNAPPY files are a stream of BAM encoded records (each prefixed by its length) written in blocks.
+ * SNAPPY blocks are Snappy compressed.  Files are read back via memory map.
+ * BAM uses BGZF compressed BAM chunk files and htsjdk temp streams for sort spills.  Temp files are then readable
+ * by standard tools (see --keep-tmp).
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public enum TempCodec {
+	BAM, RAW, SNAPPY;
+	
+	private static final int BUFFER_SIZE = 65536;
+	
+	/**
+	 * Parse codec name.  Falls back to RAW if Snappy is not available.
+	 */
+	public static TempCodec parse(String name) {
+		TempCodec codec = TempCodec.valueOf(name.toUpperCase());
+		
+		if (codec == SNAPPY && !new SnappyLoader().isSnappyAvailable()) {
+			Logger.warn("Snappy not available.  Using uncompressed temp files.");
+			codec = RAW;
+		}
+		
+		return codec;
+	}
+	
+	/**
+	 * Opens a block stream for writing records.  Not applicable to BAM.
+	 */
+	public OutputStream openOutputStream(File file) throws IOException {
+		if (this == BAM) {
+			throw new UnsupportedOperationException("Block streams not used for BAM temp files");
+		}
+		
+		return new TempBlockOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), this == SNAPPY);
+	}
+	
+	/**
+	 * Opens a block stream for sequential reads.  Not applicable to BAM.
+	 */
+	public InputStream openInputStream(File file) throws IOException {
+		if (this == BAM) {
+			throw new UnsupportedOperationException("Block streams not used for BAM temp files");
+		}
+		
+		return new TempBlockInputStream(file);
+	}
+}
@@ -0,0 +1,75 @@
+package abra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.CloseableIterator;
+
+/**
+ * Sequential reads of a temp chunk file in the specified TempCodec format.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class TempSAMRecordReader implements CloseableIterator<SAMRecord> {
+	
+	// BAM temp files
+	private SamReader reader;
+	private Iterator<SAMRecord> iter;
+	
+	// Block stream temp files
+	private InputStream input;
+	private BAMRecordCodec codec;
+	private SAMRecord next;
+	
+	public TempSAMRecordReader(File file, SAMFileHeader header, TempCodec tempCodec) throws IOException {
+		if (tempCodec == TempCodec.BAM) {
+			reader = SAMRecordUtils.getSamReader(file.getPath());
+			iter = reader.iterator();
+		} else {
+			input = tempCodec.openInputStream(file);
+			codec = new BAMRecordCodec(header);
+			codec.setInputStream(input, file.getPath());
+			next = codec.decode();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return iter != null ? iter.hasNext() : next != null;
+	}
+
+	@Override
+	public SAMRecord next() {
+		if (iter != null) {
+			return iter.next();
+		}
+		
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+		
+		SAMRecord read = next;
+		next = codec.decode();
+		return read;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (reader != null) {
+				reader.close();
+			} else {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package abra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+/**
+ * Writes BAM encoded records to a RAW or SNAPPY temp file.  No header is written.
+ * The file is read back with the same header by TempSAMRecordReader.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class TempSAMRecordWriter implements SAMFileWriter {
+	
+	private File file;
+	private SAMFileHeader header;
+	private OutputStream output;
+	private BAMRecordCodec codec;
+	
+	public TempSAMRecordWriter(File file, SAMFileHeader header, TempCodec tempCodec) throws IOException {
+		this.file = file;
+		this.header = header;
+		
+		output = tempCodec.openOutputStream(file);
+		codec = new BAMRecordCodec(header);
+		codec.setOutputStream(output, file.getPath());
+	}
+
+	@Override
+	public void addAlignment(SAMRecord read) {
+		codec.encode(read);
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progress) {
+	}
+
+	@Override
+	public void close() {
+		try {
+			output.close();
+		} catch (IOException e) {
+			throw new SAMException("Error closing: " + file, e);
+		}
+	}
+}
@@ -36,6 +36,16 @@ public class ThreadManager {
 		executor.submit(runnable);
 	}
 	
+	/**
+	 * Spawns follow on work from a running thread.  Does not wait for pending threads to drain, as the calling
+	 * thread counts as pending.
+	 */
+	public void spawnDependentThread(AbraRunnable runnable) {
+		addThread(runnable);
+		
+		executor.submit(runnable);
+	}
+	
 	private synchronized void addThread(AbraRunnable thread) {
 		threads.add(thread);
 	}
@@ -55,14 +65,29 @@ public class ThreadManager {
 	}
 	
 	public void waitForAllThreadsToComplete() throws InterruptedException, IOException {
+		// Running threads may spawn dependent threads, so wait for all to finish before shutting down
+		long lastLog = System.currentTimeMillis();
+		while (activeThreads() > 0) {
+			Thread.sleep(50);
+			
+			if (System.currentTimeMillis() - lastLog > 300000) {
+				logWaiting();
+				lastLog = System.currentTimeMillis();
+			}
+		}
+		
 		executor.shutdown();
 		while (!executor.awaitTermination(300, TimeUnit.SECONDS)) {
-			Runtime runtime = Runtime.getRuntime(); 
-			
-			Logger.info("Waiting on %d queued threads.\tmax_mem\t%d\ttotal_mem\t%d\tfree_mem\t%d", threads.size(),
-					runtime.maxMemory()/1024, runtime.totalMemory()/1024, runtime.freeMemory()/1024);
+			logWaiting();
 		}
 	}
+	
+	private void logWaiting() {
+		Runtime runtime = Runtime.getRuntime(); 
+		
+		Logger.info("Waiting on %d queued threads.\tmax_mem\t%d\ttotal_mem\t%d\tfree_mem\t%d", activeThreads(),
+				runtime.maxMemory()/1024, runtime.totalMemory()/1024, runtime.freeMemory()/1024);
+	}
 
 	public int getNumThreads() {
 		return numThreads;
@@ -0,0 +1,379 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import abra.SemiGlobalAligner.Result;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Affine gap semi-global aligner evaluated along anti-diagonals using the Java Vector API.
+ * All cells on an anti-diagonal are independent, so each diagonal is processed
+ * a full vector of rows at a time.  Scoring, traceback and tie breaking match SemiGlobalAligner.
+ * 
+ * Requires the jdk.incubator.vector module (--add-modules jdk.incubator.vector).
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class VectorSemiGlobalAligner implements SequenceAligner {
+	
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LANES = INT_SPECIES.length();
+	// Traceback bytes are narrowed to a vector with the same number of lanes.  With 4 int lanes
+	// the narrowest byte vector has 8 lanes.  The extra lanes are zero and overwritten by subsequent cells.
+	private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(LANES * 8, 64)));
+	
+	private static final byte DIR_UP = 1;
+	private static final byte DIR_DIAG = 2;
+	private static final byte DIR_LEFT = 3;
+	
+	// Traceback directions for all 3 matrices packed into a single byte per cell
+	private static final byte BT_M_MASK = 3;
+	private static final byte BT_I_UP = 4;
+	private static final byte BT_D_LEFT = 8;
+	
+	private static final int I = 0;
+	private static final int M = 1;
+	private static final int D = 2;
+	
+	private int match = 8;
+	private int mismatch = -32;
+	private int gapOpen = -48;
+	private int gapExtend = -1;
+	
+	// Anti-diagonal score buffers indexed by row.  prev2M is 2 diagonals back.
+	private int[] prevI = new int[0];
+	private int[] prevM = new int[0];
+	private int[] prevD = new int[0];
+	private int[] prev2M = new int[0];
+	private int[] currI = new int[0];
+	private int[] currM = new int[0];
+	private int[] currD = new int[0];
+	
+	// M scores for the last row of the matrix indexed by column
+	private int[] lastRow = new int[0];
+	
+	private int[] seq1Bases = new int[0];
+	// seq2 reversed so that bases along an anti-diagonal are contiguous
+	private int[] seq2Reversed = new int[0];
+	
+	// Traceback stored by anti-diagonal
+	private byte[] bt = new byte[0];
+	private int[] diagonalOffsets = new int[0];
+	
+	public VectorSemiGlobalAligner(int match, int mismatch, int gapOpen, int gapExtend) {
+		this.match = match;
+		this.mismatch = mismatch;
+		this.gapOpen = gapOpen;
+		this.gapExtend = gapExtend;
+	}
+	
+	private void ensureCapacity(int seq1Len, int seq2Len) {
+		long cells = (long) seq1Len * seq2Len;
+		if (cells > Integer.MAX_VALUE - LANES) {
+			throw new IllegalArgumentException("Alignment too large: " + seq1Len + " x " + seq2Len);
+		}
+		
+		int rows = seq1Len + 1;
+		if (prevI.length < rows) {
+			prevI = new int[rows];
+			prevM = new int[rows];
+			prevD = new int[rows];
+			prev2M = new int[rows];
+			currI = new int[rows];
+			currM = new int[rows];
+			currD = new int[rows];
+			seq1Bases = new int[rows];
+		}
+		
+		if (lastRow.length < seq2Len + 1) {
+			lastRow = new int[seq2Len + 1];
+			seq2Reversed = new int[seq2Len + 1];
+		}
+		
+		if (diagonalOffsets.length < seq1Len + seq2Len + 1) {
+			diagonalOffsets = new int[seq1Len + seq2Len + 1];
+		}
+		
+		// Traceback vectors may be wider than the remaining cells
+		if (bt.length < cells + BYTE_SPECIES.length()) {
+			bt = new byte[(int) cells + BYTE_SPECIES.length()];
+		}
+	}
+	
+	private static int rowStart(int diagonal, int seq2Len) {
+		return Math.max(1, diagonal - seq2Len);
+	}
+	
+	private static int rowEnd(int diagonal, int seq1Len) {
+		return Math.min(seq1Len, diagonal - 1);
+	}
+	
+	public Result align(String seq1, String seq2) {
+		int seq1Len = seq1.length();
+		int seq2Len = seq2.length();
+		
+		ensureCapacity(seq1Len, seq2Len);
+		
+		for (int i=0; i<seq1Len; i++) {
+			seq1Bases[i] = seq1.charAt(i);
+		}
+		
+		for (int i=0; i<seq2Len; i++) {
+			seq2Reversed[seq2Len-1-i] = seq2.charAt(i);
+		}
+		
+		populate(seq1Len, seq2Len);
+		return backtrack(seq1Len, seq2Len);
+	}
+	
+	private void populate(int seq1Len, int seq2Len) {
+		
+		IntVector matchVector = IntVector.broadcast(INT_SPECIES, match);
+		IntVector mismatchVector = IntVector.broadcast(INT_SPECIES, mismatch);
+		IntVector dirUp = IntVector.broadcast(INT_SPECIES, DIR_UP);
+		IntVector dirDiag = IntVector.broadcast(INT_SPECIES, DIR_DIAG);
+		IntVector dirLeft = IntVector.broadcast(INT_SPECIES, DIR_LEFT);
+		IntVector zero = IntVector.zero(INT_SPECIES);
+		IntVector insertUp = IntVector.broadcast(INT_SPECIES, BT_I_UP);
+		IntVector deleteLeft = IntVector.broadcast(INT_SPECIES, BT_D_LEFT);
+		
+		int offset = 0;
+		
+		for (int d=0; d<=seq1Len+seq2Len; d++) {
+			
+			int start = rowStart(d, seq2Len);
+			int end = rowEnd(d, seq1Len);
+			
+			diagonalOffsets[d] = offset - start;
+			
+			int[] prevI = this.prevI;
+			int[] prevM = this.prevM;
+			int[] prevD = this.prevD;
+			int[] prev2M = this.prev2M;
+			int[] currI = this.currI;
+			int[] currM = this.currM;
+			int[] currD = this.currD;
+			
+			// seq2 index for row r is seq2Offset + r
+			int seq2Offset = seq2Len - d;
+			int btOffset = offset - start;
+			
+			int r = start;
+			for (; r + LANES - 1 <= end; r += LANES) {
+				IntVector upI = IntVector.fromArray(INT_SPECIES, prevI, r-1);
+				IntVector upM = IntVector.fromArray(INT_SPECIES, prevM, r-1);
+				IntVector leftD = IntVector.fromArray(INT_SPECIES, prevD, r);
+				IntVector leftM = IntVector.fromArray(INT_SPECIES, prevM, r);
+				IntVector diagM = IntVector.fromArray(INT_SPECIES, prev2M, r-1);
+				
+				// Insertion (lower) matrix
+				IntVector insertExt = upI.add(gapExtend);
+				IntVector insertOpen = upM.add(gapOpen);
+				VectorMask<Integer> isInsertExt = insertExt.compare(VectorOperators.GE, insertOpen);
+				IntVector insert = insertExt.max(insertOpen);
+				
+				// Deletion (upper) matrix
+				IntVector deleteExt = leftD.add(gapExtend);
+				IntVector deleteOpen = leftM.add(gapOpen);
+				VectorMask<Integer> isDeleteExt = deleteExt.compare(VectorOperators.GE, deleteOpen);
+				IntVector delete = deleteExt.max(deleteOpen);
+				
+				// Match/mismatch (middle) matrix
+				IntVector base1 = IntVector.fromArray(INT_SPECIES, seq1Bases, r-1);
+				IntVector base2 = IntVector.fromArray(INT_SPECIES, seq2Reversed, seq2Offset + r);
+				IntVector baseMatch = diagM.add(mismatchVector.blend(matchVector, base1.compare(VectorOperators.EQ, base2)));
+				
+				VectorMask<Integer> isDiag = baseMatch.compare(VectorOperators.GE, insert).and(baseMatch.compare(VectorOperators.GE, delete));
+				VectorMask<Integer> isUp = insert.compare(VectorOperators.GE, delete);
+				
+				IntVector cell = dirLeft.blend(dirUp, isUp).blend(dirDiag, isDiag)
+						.or(zero.blend(insertUp, isInsertExt))
+						.or(zero.blend(deleteLeft, isDeleteExt));
+				
+				insert.intoArray(currI, r);
+				delete.intoArray(currD, r);
+				baseMatch.max(insert.max(delete)).intoArray(currM, r);
+				((ByteVector) cell.convertShape(VectorOperators.I2B, BYTE_SPECIES, 0)).intoArray(bt, btOffset + r);
+			}
+			
+			for (; r <= end; r++) {
+				byte cell = 0;
+				
+				int insertExt = prevI[r-1] + gapExtend;
+				int insertOpen = prevM[r-1] + gapOpen;
+				int insert;
+				if (insertExt >= insertOpen) {
+					insert = insertExt;
+					cell |= BT_I_UP;
+				} else {
+					insert = insertOpen;
+				}
+				
+				int deleteExt = prevD[r] + gapExtend;
+				int deleteOpen = prevM[r] + gapOpen;
+				int delete;
+				if (deleteExt >= deleteOpen) {
+					delete = deleteExt;
+					cell |= BT_D_LEFT;
+				} else {
+					delete = deleteOpen;
+				}
+				
+				int baseMatch = prev2M[r-1] + (seq1Bases[r-1] == seq2Reversed[seq2Offset + r] ? match : mismatch);
+				int score;
+				if (baseMatch >= insert && baseMatch >= delete) {
+					score = baseMatch;
+					cell |= DIR_DIAG;
+				} else if (insert >= delete) {
+					score = insert;
+					cell |= DIR_UP;
+				} else {
+					score = delete;
+					cell |= DIR_LEFT;
+				}
+				
+				currI[r] = insert;
+				currD[r] = delete;
+				currM[r] = score;
+				bt[btOffset + r] = cell;
+			}
+			
+			if (end >= start) {
+				offset += end - start + 1;
+			}
+			
+			// First row
+			if (d <= seq2Len) {
+				currI[0] = gapOpen + (d*gapExtend);
+				currM[0] = 0;
+				currD[0] = gapOpen + (d*gapExtend);
+			}
+			
+			// First column
+			if (d <= seq1Len && d > 0) {
+				currI[d] = gapOpen + (d*gapExtend);
+				currM[d] = gapOpen + (d*gapExtend);
+				currD[d] = gapOpen + (d*gapExtend);
+			}
+			
+			if (end == seq1Len) {
+				lastRow[d - seq1Len] = currM[seq1Len];
+			}
+			
+			this.prev2M = prevM;
+			this.prevM = currM;
+			this.currM = prev2M;
+			this.prevI = currI;
+			this.currI = prevI;
+			this.prevD = currD;
+			this.currD = prevD;
+		}
+	}
+	
+	private byte getBt(int r, int c, int level) {
+		if (r == 0) {
+			return 0;
+		}
+		
+		if (c <= 0) {
+			return c == 0 && r >= 2 ? DIR_UP : 0;
+		}
+		
+		byte cell = bt[diagonalOffsets[r+c] + r];
+		
+		if (level == M) {
+			return (byte) (cell & BT_M_MASK);
+		} else if (level == I) {
+			return (cell & BT_I_UP) != 0 ? DIR_UP : DIR_DIAG;
+		} else {
+			return (cell & BT_D_LEFT) != 0 ? DIR_LEFT : DIR_DIAG;
+		}
+	}
+	
+	private Result backtrack(int seq1Len, int seq2Len) {
+		// Find best score in last row (end of seq1)
+		int bestIdx = -1;
+		int bestScore = -300000000;
+		int secondBestScore = -300000000;
+		
+		for (int c=1; c<=seq2Len; c++) {
+			if (lastRow[c] > bestScore) {
+				bestIdx = c;
+				bestScore = lastRow[c];
+			} else if (lastRow[c] > secondBestScore) {
+				secondBestScore = lastRow[c]; 
+			}
+		}
+		
+		int r = seq1Len;
+		int c = bestIdx;
+		int refEndIdx = c;
+		
+		List<SemiGlobalAligner.Element> elems = new ArrayList<SemiGlobalAligner.Element>();
+		SemiGlobalAligner.Element currElem = new SemiGlobalAligner.Element('0', 0);
+		
+		int level = M;
+		
+		while (r > 0) {
+			byte currBt = getBt(r, c, level);
+			
+			if (currBt == DIR_DIAG) {
+				if (level == M) {
+					r -= 1;
+					c -= 1;
+					// If moving back to M level from I or D, skip update.
+					currElem = updateCurrElem('M', currElem, elems);
+				} else if (level == I) {
+					r -= 1;
+				} else if (level == D) {
+					c -= 1;
+				}
+				
+				level = M;
+			} else if (currBt == DIR_LEFT) {
+				if (level == D) {
+					c -= 1;	
+				}
+				
+				level = D;
+				currElem = updateCurrElem('D', currElem, elems);
+			} else if (currBt == DIR_UP) {
+				if (level == I) {
+					r -= 1;
+				}
+				
+				level = I;
+				currElem = updateCurrElem('I', currElem, elems);
+			} else {
+				break;
+			}
+		}
+		
+		Collections.reverse(elems);
+		StringBuffer cigar = new StringBuffer();
+		for (SemiGlobalAligner.Element elem : elems) {
+			cigar.append(elem.length);
+			cigar.append(elem.operator);
+		}
+		
+		return new Result(bestScore, secondBestScore, c, refEndIdx, cigar.toString());
+	}
+	
+	private SemiGlobalAligner.Element updateCurrElem(char op, SemiGlobalAligner.Element currElem, List<SemiGlobalAligner.Element> elems) {
+		if (currElem.operator == op) {
+			currElem.length += 1;
+		} else {
+			currElem = new SemiGlobalAligner.Element(op, 1);
+			elems.add(currElem);
+		}
+		
+		return currElem;
+	}
+}
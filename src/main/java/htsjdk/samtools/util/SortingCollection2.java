@@ -27,7 +27,6 @@ import htsjdk.samtools.Defaults;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +43,7 @@ import java.util.NoSuchElementException;
 import java.util.TreeSet;
 
 import abra.Logger;
+import abra.TempCodec;
 
 /**
  * Collection to which many records can be added.  After all records are added, the collection can be
@@ -96,6 +96,9 @@ public class SortingCollection2<T> implements Iterable<T> {
 
     private TempStreamFactory tempStreamFactory = new TempStreamFactory();
 
+    /** Format of spill files.  BAM uses tempStreamFactory. */
+    private TempCodec tempCodec = TempCodec.BAM;
+
     /**
      * Prepare to accumulate records to be sorted
      * @param componentType Class of the record to be sorted.  Necessary because of Java generic lameness.
@@ -178,6 +181,21 @@ public class SortingCollection2<T> implements Iterable<T> {
         this.destructiveIteration = destructiveIteration;
     }
 
+    /**
+     * Set the format of spill files.  Must be called before records are added.
+     */
+    public void setTempCodec(TempCodec tempCodec) {
+        this.tempCodec = tempCodec;
+    }
+
+    private OutputStream openTempOutputStream(File f) throws IOException {
+        if (tempCodec == TempCodec.BAM) {
+            return tempStreamFactory.wrapTempOutputStream(new FileOutputStream(f), Defaults.BUFFER_SIZE);
+        } else {
+            return tempCodec.openOutputStream(f);
+        }
+    }
+
     /**
      * Sort the records in memory, write them to a file, and clear the buffer of records in memory.
      */
@@ -188,7 +206,7 @@ public class SortingCollection2<T> implements Iterable<T> {
             final File f = newTempFile();
             OutputStream os = null;
             try {
-                os = tempStreamFactory.wrapTempOutputStream(new FileOutputStream(f), Defaults.BUFFER_SIZE);
+                os = openTempOutputStream(f);
                 this.codec.setOutputStream(os);
                 for (int i = 0; i < this.numRecordsInRam; ++i) {
                     this.codec.encode(ramRecords[i]);
@@ -416,19 +434,25 @@ public class SortingCollection2<T> implements Iterable<T> {
      */
     class FileRecordIterator implements CloseableIterator<T> {
         private final File file;
-        private final FileInputStream is;
+        private final InputStream is;
         private final SortingCollection.Codec<T> codec;
         private T currentRecord = null;
 
         FileRecordIterator(final File file) {
             this.file = file;
             try {
-                this.is = new FileInputStream(file);
                 this.codec = SortingCollection2.this.codec.clone();
-                this.codec.setInputStream(tempStreamFactory.wrapTempInputStream(this.is, Defaults.BUFFER_SIZE));
+                if (tempCodec == TempCodec.BAM) {
+                    this.is = new FileInputStream(file);
+                    this.codec.setInputStream(tempStreamFactory.wrapTempInputStream(this.is, Defaults.BUFFER_SIZE));
+                } else {
+                    // Memory mapped sequential reads
+                    this.is = tempCodec.openInputStream(file);
+                    this.codec.setInputStream(this.is);
+                }
                 advance();
             }
-            catch (FileNotFoundException e) {
+            catch (IOException e) {
                 throw new RuntimeIOException(e);
             }
         }
@@ -0,0 +1,91 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+
+import htsjdk.samtools.SAMRecord;
+
+import org.testng.annotations.Test;
+
+import abra.AltContigGenerator.Indel;
+
+public class AltContigCatalogTest {
+
+	private static final String BASES = "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTAC";
+
+	private SAMRecordWrapper createRead(String name, int pos, String cigar, int sampleIdx) {
+		SAMRecord read = new SAMRecord(null);
+		read.setReadName(name);
+		read.setReferenceName("chr1");
+		read.setReadString(BASES);
+		read.setBaseQualityString("IIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII");
+		read.setAlignmentStart(pos);
+		read.setCigarString(cigar);
+		read.setMappingQuality(60);
+		return new SAMRecordWrapper(read, false, true, sampleIdx);
+	}
+
+	@Test (groups = "unit")
+	public void testIndelRangeQuery() {
+		AltContigCatalog catalog = new AltContigCatalog(13, 80, 15, true, true, 20);
+
+		// Same deletion observed at 2 read positions, plus an insertion and a complex indel
+		catalog.addRead(createRead("r1", 100, "20M5D30M", 0));
+		catalog.addRead(createRead("r2", 110, "10M5D40M", 1));
+		catalog.addRead(createRead("r3", 115, "8M2I40M", 0));
+		catalog.addRead(createRead("r4", 90, "10M2D10M3I27M", 0));
+
+		List<Indel> indels = catalog.getIndels(new Feature("chr1", 100, 125));
+		assertEquals(indels.size(), 3);
+
+		Indel deletion = indels.get(0);
+		assertEquals(deletion.type, 'D');
+		assertEquals(deletion.pos, 120);
+		assertEquals(deletion.count, 2);
+		assertEquals(deletion.readPositions.size(), 2);
+
+		Indel insertion = indels.get(1);
+		assertEquals(insertion.type, 'I');
+		assertEquals(insertion.pos, 123);
+		assertEquals(insertion.insert, "AC");
+
+		// Complex indel read overlaps the region via its span only
+		assertEquals(indels.get(2).type, 'C');
+		assertEquals(indels.get(2).components.size(), 2);
+
+		// Simple indels must start within the region
+		indels = catalog.getIndels(new Feature("chr1", 124, 129));
+		assertEquals(indels.size(), 1);
+		assertEquals(indels.get(0).type, 'C');
+	}
+
+	@Test (groups = "unit")
+	public void testEvictAndSoftClips() {
+		AltContigCatalog catalog = new AltContigCatalog(13, 80, 15, true, true, 20);
+
+		catalog.addRead(createRead("r1", 100, "20M5D30M", 0));
+		catalog.addRead(createRead("r2", 110, "10M5D40M", 0));
+		catalog.addRead(createRead("r3", 200, "20S30M", 0));
+		// Soft clip too short
+		catalog.addRead(createRead("r4", 210, "10S40M", 0));
+
+		Feature region = new Feature("chr1", 100, 260);
+		assertEquals(catalog.getIndels(region).get(0).count, 2);
+		assertEquals(catalog.getSoftClippedReads(region).size(), 1);
+		assertEquals(catalog.getSoftClippedReads(region).get(0).getSamRecord().getReadName(), "r3");
+
+		// Leading clip too far beyond region start
+		assertEquals(catalog.getSoftClippedReads(new Feature("chr1", 260, 400)).size(), 0);
+
+		catalog.evictBefore(105);
+		assertEquals(catalog.getIndels(region).get(0).count, 1);
+
+		catalog.evictBefore(150);
+		assertEquals(catalog.getIndels(region).size(), 0);
+		assertEquals(catalog.getSoftClippedReads(region).size(), 1);
+
+		catalog.clear();
+		assertEquals(catalog.getSoftClippedReads(region).size(), 0);
+	}
+}
@@ -188,8 +188,8 @@ public class CigarUtilsTest {
 	private int testEquivalenceAndSelectIntronPreferred(String cigar1, String cigar2) {
 		Alignment a1 = new Alignment();
 		Alignment a2 = new Alignment();
-		a1.cigar = cigar1;
-		a2.cigar = cigar2;
+		a1.cigar = PackedCigar.parse(cigar1);
+		a2.cigar = PackedCigar.parse(cigar2);
 		
 		return CigarUtils.testEquivalenceAndSelectIntronPreferred(a1, a2);
 	}
@@ -0,0 +1,179 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+import org.testng.annotations.Test;
+
+public class ConcatenatedBAMWriterTest {
+
+	private static final String[] BASES = { "A", "C", "G", "T" };
+
+	private SAMFileHeader createHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 10000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 10000000));
+		header.addSequence(new SAMSequenceRecord("chr3", 10000000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		return header;
+	}
+
+	private SAMRecord createRead(SAMFileHeader header, Random random, String name, String chromosome, int pos) {
+		StringBuffer seq = new StringBuffer();
+		StringBuffer quals = new StringBuffer();
+		for (int i=0; i<50; i++) {
+			seq.append(BASES[random.nextInt(4)]);
+			quals.append((char) ('!' + random.nextInt(40)));
+		}
+
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName(name);
+		read.setReadString(seq.toString());
+		read.setBaseQualityString(quals.toString());
+
+		if (chromosome == null) {
+			read.setReadUnmappedFlag(true);
+		} else {
+			read.setReferenceName(chromosome);
+			read.setAlignmentStart(pos);
+			read.setCigarString("50M");
+			read.setMappingQuality(60);
+		}
+
+		return read;
+	}
+
+	private BAMPartWriter writePart(File dir, String name, SAMFileHeader header, List<SAMRecord> reads, ExecutorService deflatePool) throws IOException {
+		BAMPartWriter part = new BAMPartWriter(new File(dir, name), header, false, true, 1, new DeflaterFactory(), deflatePool, 4);
+		for (SAMRecord read : reads) {
+			part.addAlignment(read);
+		}
+		part.close();
+		return part;
+	}
+
+	@Test (groups = "unit")
+	public void testConcatenatedPartsAndIndex() throws IOException {
+		File dir = Files.createTempDirectory("abra_concat").toFile();
+		SAMFileHeader header = createHeader();
+		Random random = new Random(1);
+
+		// chr1 spans many BGZF blocks, chr2 is empty
+		List<SAMRecord> chr1 = new ArrayList<SAMRecord>();
+		for (int i=0; i<20000; i++) {
+			chr1.add(createRead(header, random, "chr1_" + i, "chr1", 1 + i*50));
+		}
+
+		List<SAMRecord> chr2 = new ArrayList<SAMRecord>();
+
+		List<SAMRecord> chr3 = new ArrayList<SAMRecord>();
+		for (int i=0; i<500; i++) {
+			chr3.add(createRead(header, random, "chr3_" + i, "chr3", 5000 + i*7));
+		}
+
+		List<SAMRecord> unmapped = new ArrayList<SAMRecord>();
+		for (int i=0; i<100; i++) {
+			unmapped.add(createRead(header, random, "unmapped_" + i, null, 0));
+		}
+
+		// Parts are compressed in parallel
+		ExecutorService deflatePool = Executors.newFixedThreadPool(3);
+
+		File bam = new File(dir, "out.bam");
+		ConcatenatedBAMWriter writer = new ConcatenatedBAMWriter(bam, header, true);
+		writer.append(writePart(dir, "part0.bam", header, chr1, deflatePool));
+		writer.append(writePart(dir, "part1.bam", header, chr2, deflatePool));
+		writer.append(writePart(dir, "part2.bam", header, chr3, null));
+		writer.append(writePart(dir, "unmapped.bam", header, unmapped, deflatePool));
+		writer.close();
+
+		deflatePool.shutdown();
+
+		File bai = ConcatenatedBAMWriter.getIndexFile(bam);
+		assertEquals(bai.getName(), "out.bai");
+		assertTrue(bai.exists());
+
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		assertTrue(reader.hasIndex());
+
+		List<SAMRecord> all = new ArrayList<SAMRecord>();
+		SAMRecordIterator iter = reader.iterator();
+		while (iter.hasNext()) {
+			all.add(iter.next());
+		}
+		iter.close();
+		assertEquals(all.size(), chr1.size() + chr3.size() + unmapped.size());
+		assertEquals(all.get(0).getSAMString(), chr1.get(0).getSAMString());
+		assertEquals(all.get(all.size()-1).getSAMString(), unmapped.get(unmapped.size()-1).getSAMString());
+
+		assertEquals(count(reader.queryOverlapping("chr1", 1, 10000000)), chr1.size());
+		assertEquals(count(reader.queryOverlapping("chr2", 1, 10000000)), 0);
+		assertEquals(count(reader.queryOverlapping("chr3", 1, 10000000)), chr3.size());
+
+		// Query from the middle of chr1 requires offset linear index and bins
+		iter = reader.queryOverlapping("chr1", 500000, 500050);
+		assertEquals(iter.next().getReadName(), "chr1_9999");
+		assertEquals(iter.next().getReadName(), "chr1_10000");
+		assertTrue(!iter.hasNext());
+		iter.close();
+
+		assertEquals(count(reader.queryUnmapped()), unmapped.size());
+
+		reader.close();
+
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test (groups = "unit")
+	public void testStandalonePart() throws IOException {
+		File dir = Files.createTempDirectory("abra_concat").toFile();
+		SAMFileHeader header = createHeader();
+		Random random = new Random(1);
+		ExecutorService deflatePool = Executors.newFixedThreadPool(2);
+
+		File bam = new File(dir, "standalone.bam");
+		BAMPartWriter part = new BAMPartWriter(bam, header, true, false, 1, new DeflaterFactory(), deflatePool, 4);
+		for (int i=0; i<5000; i++) {
+			part.addAlignment(createRead(header, random, "read_" + i, "chr2", 100 + i));
+		}
+		part.close();
+		deflatePool.shutdown();
+
+		SamReader reader = SamReaderFactory.makeDefault().open(bam);
+		assertEquals(count(reader.iterator()), 5000);
+		reader.close();
+
+		bam.delete();
+		dir.delete();
+	}
+
+	private int count(SAMRecordIterator iter) {
+		int count = 0;
+		while (iter.hasNext()) {
+			iter.next();
+			count += 1;
+		}
+		iter.close();
+		return count;
+	}
+}
@@ -0,0 +1,75 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class ContigAlignerTest {
+	
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+	
+	private ContigAligner newJunctionAligner(String left, String right) {
+		return new ContigAligner(left + right, "chr1", 1, 100, 10, 2,
+				Arrays.asList(left.length()), Arrays.asList(1000));
+	}
+	
+	@Test (groups = "unit")
+	public void testSelectJunctionAligners() {
+		Random random = new Random(1);
+		
+		List<String> exons = new ArrayList<String>();
+		for (int i=0; i<6; i++) {
+			exons.add(randomSequence(random, 200));
+		}
+		
+		// Every ordered pair of exons
+		List<ContigAligner> aligners = new ArrayList<ContigAligner>();
+		for (int i=0; i<exons.size(); i++) {
+			for (int j=i+1; j<exons.size(); j++) {
+				aligners.add(newJunctionAligner(exons.get(i), exons.get(j)));
+			}
+		}
+		
+		// Contig spanning the exon 2 / exon 4 junction
+		String contig = exons.get(2).substring(150) + exons.get(4).substring(0, 50);
+		
+		ContigAligner expected = aligners.get(0);
+		for (ContigAligner aligner : aligners) {
+			if (aligner.ref.equals(exons.get(2) + exons.get(4))) {
+				expected = aligner;
+			} else {
+				// Other permutations only share partial junction kmers
+				assertTrue(aligner.getJunctionSeedScore(contig) < ContigAligner.JUNCTION_SEED_LEN-1);
+			}
+		}
+		assertEquals(expected.getJunctionSeedScore(contig), ContigAligner.JUNCTION_SEED_LEN-1);
+		
+		List<ContigAligner> selected = ContigAligner.selectJunctionAligners(contig, aligners, 3);
+		assertTrue(selected.size() <= 3);
+		assertTrue(selected.contains(expected));
+		
+		selected = ContigAligner.selectJunctionAligners(contig, aligners, 1);
+		assertEquals(selected.size(), 1);
+		assertEquals(selected.get(0), expected);
+		
+		// Contig not spanning any junction
+		selected = ContigAligner.selectJunctionAligners(exons.get(3).substring(20, 120), aligners, 3);
+		assertTrue(selected.isEmpty());
+		
+		// All aligners returned when under the max
+		assertEquals(ContigAligner.selectJunctionAligners(contig, aligners, aligners.size()), aligners);
+	}
+}
@@ -0,0 +1,47 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+public class ContigAlignmentMemoTest {
+
+	@Test (groups = "unit")
+	public void testAlignmentsMemoizedPerRegion() {
+		ContigAlignmentMemo memo = new ContigAlignmentMemo();
+		Feature region1 = new Feature("chr1", 1001, 1400);
+		Feature region2 = new Feature("chr1", 1201, 1600);
+
+		ContigAlignerResult result = new ContigAlignerResult(10, "10M1D30M", "chr1", 1000, "ACGT", 1);
+		assertFalse(memo.hasAlignment(region1, "ACGT"));
+		memo.putAlignment(region1, "ACGT", result);
+		memo.putAlignment(region1, "TTTT", null);
+
+		assertTrue(memo.hasAlignment(region1, "ACGT"));
+		assertEquals(memo.getAlignment(region1, "ACGT"), result);
+
+		// Unaligned contigs are memoized
+		assertTrue(memo.hasAlignment(region1, "TTTT"));
+		assertNull(memo.getAlignment(region1, "TTTT"));
+		assertEquals(memo.size(), 2);
+
+		// Alignments are specific to the region's reference window
+		assertFalse(memo.hasAlignment(region2, "ACGT"));
+		assertEquals(memo.size(), 0);
+
+		memo.putAlignment(region2, "ACGT", result);
+		assertTrue(memo.hasAlignment(region2, "ACGT"));
+		assertEquals(memo.size(), 1);
+
+		// Previous region's alignments are not retained
+		assertFalse(memo.hasAlignment(region1, "TTTT"));
+
+		assertEquals(memo.getHits(), 3);
+		assertEquals(memo.getLookups(), 6);
+	}
+}
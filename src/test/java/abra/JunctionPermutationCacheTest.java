@@ -0,0 +1,70 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class JunctionPermutationCacheTest {
+
+	@Test (groups = "unit")
+	public void testCombineJunctions() throws Exception {
+		int readLength = 50;
+		JunctionPermutationCache cache = new JunctionPermutationCache(readLength, readLength);
+		
+		Feature j1 = new Feature("chr1", 10000, 10100);
+		Feature j2 = new Feature("chr1", 10110, 10200);
+		Feature j3 = new Feature("chr1", 10110, 10300);
+		Feature j4 = new Feature("chr1", 10330, 10500);
+		
+		Feature region = new Feature("chr1", 10000, 10400);
+		List<Feature> inputJunctions = Arrays.asList(j1, j2, j3, j4);
+		
+		List<List<Feature>> junctionPerms = cache.combineJunctions(region, inputJunctions, new HashSet<Feature>());
+		assertEquals(junctionPerms, JunctionUtils.combineJunctions(region, inputJunctions, new HashSet<Feature>(), readLength, readLength));
+		
+		// Memoized
+		assertSame(cache.combineJunctions(region, Arrays.asList(j1, j2, j3, j4), new HashSet<Feature>()), junctionPerms);
+		
+		// Distinct region
+		Feature region2 = new Feature("chr1", 10200, 10600);
+		cache.combineJunctions(region2, inputJunctions, new HashSet<Feature>());
+		assertEquals(cache.numPermutations(), 2);
+		
+		cache.evictBefore(10500);
+		assertEquals(cache.numPermutations(), 1);
+	}
+	
+	@Test (groups = "unit")
+	public void testAligners() {
+		JunctionPermutationCache cache = new JunctionPermutationCache(400, 50);
+		
+		Feature j1 = new Feature("chr1", 10000, 10100);
+		Feature j2 = new Feature("chr1", 10110, 10200);
+		
+		ContigAligner aligner = new ContigAligner("ACGTACGTAC", "chr1", 1, 50, 10, 2);
+		cache.putAligner(Arrays.asList(j1, j2), 400, aligner);
+		cache.putAligner(Arrays.asList(j1), 400, null);
+		
+		assertSame(cache.getAligner(Arrays.asList(j1, j2), 400), aligner);
+		assertFalse(cache.hasAligner(Arrays.asList(j1, j2), 300));
+		assertFalse(cache.hasAligner(Arrays.asList(j2), 400));
+		
+		// Permutations without a usable junction sequence are cached
+		assertTrue(cache.hasAligner(Arrays.asList(j1), 400));
+		assertNull(cache.getAligner(Arrays.asList(j1), 400));
+		
+		// Evicted once past the last junction
+		cache.evictBefore(10150);
+		assertFalse(cache.hasAligner(Arrays.asList(j1), 400));
+		assertTrue(cache.hasAligner(Arrays.asList(j1, j2), 400));
+		assertEquals(cache.numAligners(), 1);
+	}
+}
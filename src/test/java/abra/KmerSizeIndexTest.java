@@ -0,0 +1,100 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class KmerSizeIndexTest {
+
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+
+	@Test (groups = "unit")
+	public void testBuildAndLoad() throws Exception {
+		Random random = new Random(1);
+
+		// chr1 contains a repeat requiring a larger kmer
+		String repeat = randomSequence(random, 30);
+		String chr1 = randomSequence(random, 500) + repeat + randomSequence(random, 100) + repeat + randomSequence(random, 900);
+		String chr2 = randomSequence(random, 700);
+
+		File ref = File.createTempFile("kmer_index_test", ".fa");
+		File index = File.createTempFile("kmer_index_test", ".idx");
+		ref.deleteOnExit();
+		index.deleteOnExit();
+
+		FileWriter writer = new FileWriter(ref);
+		writer.write(">chr1\n" + chr1 + "\n>chr2\n" + chr2 + "\n");
+		writer.close();
+
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.init(ref.getAbsolutePath());
+
+		int readLength = 50;
+		KmerSizeIndex.build(c2r, readLength, 400, 200, index.getAbsolutePath(), 2);
+
+		KmerSizeIndex kmerIndex = KmerSizeIndex.load(index.getAbsolutePath());
+		assertEquals(kmerIndex.getReadLength(), readLength);
+		assertEquals(kmerIndex.getWindowSize(), 400);
+		assertEquals(kmerIndex.getWindowOverlap(), 200);
+
+		KmerSizeEvaluator evaluator = new KmerSizeEvaluator(readLength, c2r);
+
+		// Grid aligned windows match direct evaluation
+		for (String chromosome : new String[] { "chr1", "chr2" }) {
+			for (long start = 1; start < c2r.getChromosomeLength(chromosome); start += 200) {
+				Feature window = new Feature(chromosome, start, Math.min(start+400, c2r.getChromosomeLength(chromosome)));
+				List<Feature> regions = new ArrayList<Feature>();
+				regions.add(window);
+				assertEquals(kmerIndex.getKmer(window), evaluator.identifyMinKmer(readLength, c2r, regions));
+			}
+		}
+
+		// Region spanning multiple windows gets the max
+		Feature wide = new Feature("chr1", 101, 900);
+		int expected = Math.max(Math.max(kmerIndex.getKmer(new Feature("chr1", 1, 401)), kmerIndex.getKmer(new Feature("chr1", 201, 601))),
+				Math.max(kmerIndex.getKmer(new Feature("chr1", 401, 801)), kmerIndex.getKmer(new Feature("chr1", 601, 1001))));
+		assertEquals(kmerIndex.getKmer(wide), expected);
+
+		// Unknown chromosome
+		assertEquals(kmerIndex.getKmer(new Feature("chr3", 1, 401)), 0);
+	}
+
+	@Test (groups = "unit")
+	public void testAmbiguousBases() throws Exception {
+		Random random = new Random(2);
+
+		String chr1 = randomSequence(random, 300) + "R" + randomSequence(random, 300);
+		String chr2 = randomSequence(random, 300) + "n" + randomSequence(random, 300);
+		String chr3 = randomSequence(random, 601);
+
+		File ref = File.createTempFile("kmer_ambiguous_test", ".fa");
+		ref.deleteOnExit();
+
+		FileWriter writer = new FileWriter(ref);
+		writer.write(">chr1\n" + chr1 + "\n>chr2\n" + chr2 + "\n>chr3\n" + chr3 + "\n");
+		writer.close();
+
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.init8bit(ref.getAbsolutePath());
+
+		KmerSizeEvaluator evaluator = new KmerSizeEvaluator(50, c2r);
+		assertTrue(evaluator.hasAmbiguousBases(new Feature("chr1", 201, 400)));
+		assertTrue(evaluator.hasAmbiguousBases(new Feature("chr2", 201, 400)));
+		assertFalse(evaluator.hasAmbiguousBases(new Feature("chr3", 201, 400)));
+	}
+}
@@ -0,0 +1,160 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+public class NativeAssemblerTest {
+
+	private static boolean isLoaded = false;
+
+	// libAbra.so is on the classpath when built via make
+	static synchronized void loadLibrary() throws Exception {
+		if (NativeAssembler.class.getResource("/" + NativeLibraryLoader.ABRA) == null) {
+			throw new SkipException("Native library not built: " + NativeLibraryLoader.ABRA);
+		}
+
+		if (!isLoaded) {
+			Path tempDir = Files.createTempDirectory("abra_native_test");
+			tempDir.toFile().deleteOnExit();
+			new NativeLibraryLoader().load(tempDir.toString(), NativeLibraryLoader.ABRA, false);
+			isLoaded = true;
+		}
+	}
+
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+
+	// Assembler input: sample id, strand, bases and quals for each read
+	private String tileReads(String seq, int readLength, int step, String qual) {
+		StringBuffer input = new StringBuffer();
+		for (int i=0; i+readLength<=seq.length(); i+=step) {
+			input.append((char) 1);
+			input.append('0');
+			input.append(seq, i, i+readLength);
+			input.append(qual);
+		}
+		return input.toString();
+	}
+
+	@Test (groups = "unit")
+	public void testOutputLargerThanRetainedBuffer() throws Exception {
+		loadLibrary();
+
+		int readLength = 100;
+		StringBuffer qual = new StringBuffer();
+		for (int i=0; i<readLength; i++) {
+			qual.append('I');
+		}
+
+		// Disjoint sequences each assemble into a single contig
+		Random random = new Random(1);
+		Set<String> expected = new HashSet<String>();
+		StringBuffer input = new StringBuffer();
+		for (int i=0; i<300; i++) {
+			String seq = randomSequence(random, 4000);
+			expected.add(seq);
+			input.append(tileReads(seq, readLength, 20, qual.toString()));
+		}
+
+		NativeAssembler assem = new NativeAssembler();
+
+		// The output buffer is released after the first call and reallocated for the second
+		for (int call=0; call<2; call++) {
+			String contigs = assem.nativeAssemble(input.toString(), "", "test", 0, 5000, 100000, readLength, new int[] { 31 },
+					1, 20, .01, 0, 10000000);
+
+			assertTrue(contigs.length() > (1 << 20));
+
+			Set<String> observed = new HashSet<String>();
+			for (String line : contigs.split("\n")) {
+				if (!line.startsWith(">")) {
+					observed.add(line);
+				}
+			}
+
+			assertEquals(observed, expected);
+		}
+
+		NativeAssembler.releaseContexts();
+	}
+
+	// Contig sequences and scores.  Contig numbering depends on hash map iteration order
+	private List<String> getContigs(String contigs) {
+		List<String> sorted = new ArrayList<String>();
+		String[] lines = contigs.split("\n");
+		for (int i=0; i+1<lines.length; i+=2) {
+			String header = lines[i];
+			sorted.add(header.substring(header.lastIndexOf('_')+1) + "\t" + lines[i+1]);
+		}
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	@Test (groups = "unit")
+	public void testPackedKeysMatchStringKeys() throws Exception {
+		loadLibrary();
+
+		int readLength = 100;
+		Random random = new Random(2);
+
+		// Reference and alt haplotypes with a SNP and a deletion, plus reads containing errors
+		String ref = randomSequence(random, 1000);
+		char snp = ref.charAt(300) == 'A' ? 'C' : 'A';
+		String alt = ref.substring(0, 300) + snp + ref.substring(301, 600) + ref.substring(610);
+
+		StringBuffer input = new StringBuffer();
+		for (String seq : new String[] { ref, alt }) {
+			for (int i=0; i+readLength<=seq.length(); i+=3) {
+				char[] read = seq.substring(i, i+readLength).toCharArray();
+				if (random.nextInt(10) == 0) {
+					read[random.nextInt(readLength)] = "ACGT".charAt(random.nextInt(4));
+				}
+				StringBuffer qual = new StringBuffer();
+				for (int j=0; j<readLength; j++) {
+					qual.append((char) ('!' + 15 + random.nextInt(26)));
+				}
+				input.append((char) 1);
+				input.append(random.nextBoolean() ? '1' : '0');
+				input.append(read);
+				input.append(qual);
+			}
+		}
+
+		NativeAssembler assem = new NativeAssembler();
+
+		// 64 bit, 128 bit and string keys
+		for (int kmer : new int[] { 25, 41, 71 }) {
+			NativeAssembler.setPackedKeys(true);
+			String packed = assem.nativeAssemble(input.toString(), "", "test", 0, 5000, 100000, readLength, new int[] { kmer },
+					2, 20, .02, 0, 1000000);
+
+			NativeAssembler.setPackedKeys(false);
+			String strings = assem.nativeAssemble(input.toString(), "", "test", 0, 5000, 100000, readLength, new int[] { kmer },
+					2, 20, .02, 0, 1000000);
+
+			List<String> contigs = getContigs(strings);
+			assertTrue(contigs.size() >= 2, "kmer: " + kmer + " contigs: " + strings);
+			assertEquals(getContigs(packed), contigs, "kmer: " + kmer);
+		}
+
+		NativeAssembler.setPackedKeys(true);
+	}
+}
@@ -0,0 +1,148 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+public class NativeSemiGlobalAlignerTest {
+
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+
+	// Substring of the ref with a SNP, insertion or deletion
+	private String mutate(Random random, String ref, int length) {
+		int start = random.nextInt(ref.length() - length);
+		String seq = ref.substring(start, start + length);
+		int pos = length/4 + random.nextInt(length/2);
+
+		switch (random.nextInt(3)) {
+			case 0:
+				return seq.substring(0, pos) + (seq.charAt(pos) == 'A' ? 'C' : 'A') + seq.substring(pos+1);
+			case 1:
+				return seq.substring(0, pos) + randomSequence(random, 1 + random.nextInt(20)) + seq.substring(pos);
+			default:
+				return seq.substring(0, pos) + seq.substring(pos + 1 + random.nextInt(20));
+		}
+	}
+
+	private void assertSameResult(SemiGlobalAligner.Result actual, SemiGlobalAligner.Result expected) {
+		assertEquals(actual.score, expected.score);
+		assertEquals(actual.secondBest, expected.secondBest);
+		assertEquals(actual.position, expected.position);
+		assertEquals(actual.endPosition, expected.endPosition);
+		assertEquals(actual.getCigarString(), expected.getCigarString());
+	}
+
+	@Test (groups = "unit")
+	public void testBatchMatchesPerPair() throws Exception {
+		NativeAssemblerTest.loadLibrary();
+
+		Random random = new Random(1);
+		NativeSemiGlobalAligner aligner = new NativeSemiGlobalAligner(8, -32, -48, -1);
+
+		List<String> refs = new ArrayList<String>();
+		for (int i=0; i<8; i++) {
+			refs.add(randomSequence(random, 500 + random.nextInt(2000)));
+		}
+		// Shorter than some contigs
+		refs.add(randomSequence(random, 150));
+
+		List<String> contigs = new ArrayList<String>();
+		for (int i=0; i<12; i++) {
+			contigs.add(mutate(random, refs.get(random.nextInt(8)), 150 + random.nextInt(300)));
+		}
+		contigs.add(randomSequence(random, 200));
+		// Longer than its reference
+		contigs.add(refs.get(8).substring(0, 100) + randomSequence(random, 20) + refs.get(8).substring(100) + randomSequence(random, 200));
+
+		// Repeat the batch to exercise buffer reuse
+		for (int call=0; call<2; call++) {
+			SemiGlobalAligner.Result[][] results = aligner.alignBatch(contigs, refs);
+			assertEquals(results.length, contigs.size());
+
+			for (int i=0; i<contigs.size(); i++) {
+				assertEquals(results[i].length, refs.size());
+				for (int j=0; j<refs.size(); j++) {
+					assertSameResult(results[i][j], aligner.align(contigs.get(i), refs.get(j)));
+				}
+			}
+		}
+	}
+
+	@Test (groups = "unit")
+	public void testEmptyBatch() throws Exception {
+		NativeAssemblerTest.loadLibrary();
+
+		NativeSemiGlobalAligner aligner = new NativeSemiGlobalAligner(8, -32, -48, -1);
+		List<String> empty = Collections.emptyList();
+		List<String> seqs = Collections.singletonList("ACGTACGTAC");
+
+		assertEquals(aligner.alignBatch(empty, empty).length, 0);
+		assertEquals(aligner.alignBatch(empty, seqs).length, 0);
+
+		SemiGlobalAligner.Result[][] results = aligner.alignBatch(seqs, empty);
+		assertEquals(results.length, 1);
+		assertEquals(results[0].length, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testContigAlignerBatchMatchesPerPair() throws Exception {
+		NativeAssemblerTest.loadLibrary();
+
+		ContigAligner.init(new int[] { 8, 32, 48, 1 }, ContigAligner.NATIVE_ALIGNER);
+
+		Random random = new Random(2);
+
+		List<ContigAligner> aligners = new ArrayList<ContigAligner>();
+		List<String> refs = new ArrayList<String>();
+		for (int i=0; i<5; i++) {
+			String ref = randomSequence(random, 800 + random.nextInt(1000));
+			refs.add(ref);
+			aligners.add(new ContigAligner(ref, "chr1", 1000 * i, 100, 10, 2));
+		}
+
+		List<String> contigs = new ArrayList<String>();
+		for (int i=0; i<10; i++) {
+			contigs.add(mutate(random, refs.get(random.nextInt(refs.size())), 200 + random.nextInt(200)));
+		}
+		contigs.add(refs.get(0) + randomSequence(random, 300));
+
+		ContigAlignerResult[][] results = ContigAligner.alignBatch(contigs, aligners);
+		int aligned = 0;
+
+		for (int i=0; i<contigs.size(); i++) {
+			for (int j=0; j<aligners.size(); j++) {
+				ContigAlignerResult expected = aligners.get(j).align(contigs.get(i));
+				ContigAlignerResult actual = results[i][j];
+
+				if (expected == null) {
+					assertNull(actual);
+				} else {
+					aligned += 1;
+					assertEquals(actual.getScore(), expected.getScore());
+					assertEquals(actual.getGenomicPos(), expected.getGenomicPos());
+					assertEquals(actual.getCigar(), expected.getCigar());
+					assertEquals(actual.getSequence(), expected.getSequence());
+				}
+			}
+		}
+
+		assertTrue(aligned >= 10);
+		assertEquals(ContigAligner.alignBatch(new ArrayList<String>(), aligners).length, 0);
+	}
+}
@@ -0,0 +1,167 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+
+import org.testng.annotations.Test;
+
+public class NearlySortedSAMWriterTest {
+
+	private SAMFileHeader createHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		return header;
+	}
+
+	private SAMRecord createRead(SAMFileHeader header, String name, boolean isFirst, int pos, boolean isReverse, int matePos) {
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName(name);
+		read.setReferenceName("chr1");
+		read.setMateReferenceName("chr1");
+		read.setReadPairedFlag(true);
+		read.setFirstOfPairFlag(isFirst);
+		read.setSecondOfPairFlag(!isFirst);
+		read.setReadNegativeStrandFlag(isReverse);
+		read.setMateNegativeStrandFlag(!isReverse);
+		read.setAlignmentStart(pos);
+		read.setMateAlignmentStart(matePos);
+		read.setReadString("ACGTACGTAC");
+		read.setBaseQualityString("IIIIIIIIII");
+		read.setCigarString("10M");
+		return read;
+	}
+
+	private void move(SAMRecord read, int pos) {
+		String orientation = read.getReadNegativeStrandFlag() ? "-" : "+";
+		read.setAttribute("YO", read.getReferenceName() + "," + read.getAlignmentStart() + "," + orientation + "," + read.getCigarString());
+		read.setAlignmentStart(pos);
+	}
+
+	@Test (groups = "unit")
+	public void testMateUpdate() {
+		SAMFileHeader header = createHeader();
+		CollectingWriter output = new CollectingWriter(header);
+		NearlySortedSAMWriter writer = new NearlySortedSAMWriter(output, 50);
+
+		SAMRecord read1 = createRead(header, "pair1", true, 100, false, 150);
+		SAMRecord read2 = createRead(header, "pair1", false, 150, true, 100);
+		move(read2, 140);
+
+		// Unmodified pair
+		SAMRecord read3 = createRead(header, "pair2", true, 120, false, 145);
+		SAMRecord read4 = createRead(header, "pair2", false, 145, true, 120);
+
+		writer.addAlignment(read1);
+		writer.addAlignment(read3);
+		writer.addAlignment(read4);
+		writer.addAlignment(read2);
+		writer.finish();
+
+		assertEquals(output.reads.size(), 4);
+		assertEquals(output.reads.get(0), read1);
+		assertEquals(output.reads.get(1), read3);
+		assertEquals(output.reads.get(2), read2);
+		assertEquals(output.reads.get(3), read4);
+
+		assertEquals(read1.getMateAlignmentStart(), 140);
+		assertEquals(read1.getInferredInsertSize(), 50);
+		assertEquals(read2.getMateAlignmentStart(), 100);
+		assertEquals(read2.getInferredInsertSize(), -50);
+		assertEquals(read3.getMateAlignmentStart(), 145);
+		assertEquals(read3.getInferredInsertSize(), 0);
+	}
+
+	@Test (groups = "unit")
+	public void testNearlySortedStream() {
+		SAMFileHeader header = createHeader();
+		CollectingWriter output = new CollectingWriter(header);
+		int maxMoveDist = 100;
+		NearlySortedSAMWriter writer = new NearlySortedSAMWriter(output, maxMoveDist);
+
+		Random random = new Random(1);
+		List<SAMRecord> firstReads = new ArrayList<SAMRecord>();
+		List<SAMRecord> secondReads = new ArrayList<SAMRecord>();
+
+		// Some second reads are moved up to maxMoveDist
+		for (int pos=1000; pos<50000; pos+=1+random.nextInt(20)) {
+			int matePos = pos + random.nextInt(maxMoveDist);
+			SAMRecord read1 = createRead(header, "read" + pos, true, pos, false, matePos);
+			SAMRecord read2 = createRead(header, "read" + pos, false, matePos, true, pos);
+
+			if (random.nextInt(4) == 0) {
+				move(read2, matePos - random.nextInt(maxMoveDist+1));
+			}
+
+			firstReads.add(read1);
+			secondReads.add(read2);
+		}
+
+		// Reads arrive in order of original start
+		List<SAMRecord> reads = new ArrayList<SAMRecord>(firstReads);
+		reads.addAll(secondReads);
+		Collections.sort(reads, new Comparator<SAMRecord>() {
+			@Override
+			public int compare(SAMRecord o1, SAMRecord o2) {
+				return Integer.compare(getOrigStart(o1), getOrigStart(o2));
+			}
+		});
+
+		for (SAMRecord read : reads) {
+			writer.addAlignment(read);
+		}
+		writer.finish();
+
+		assertEquals(output.reads.size(), reads.size());
+		for (int i=1; i<output.reads.size(); i++) {
+			assertTrue(output.reads.get(i-1).getAlignmentStart() <= output.reads.get(i).getAlignmentStart());
+		}
+
+		for (int i=0; i<firstReads.size(); i++) {
+			assertEquals(firstReads.get(i).getMateAlignmentStart(), secondReads.get(i).getAlignmentStart());
+		}
+	}
+
+	private int getOrigStart(SAMRecord read) {
+		String yo = read.getStringAttribute("YO");
+		return yo == null ? read.getAlignmentStart() : Integer.parseInt(yo.split(",")[1]);
+	}
+
+	static class CollectingWriter implements SAMFileWriter {
+		SAMFileHeader header;
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+
+		CollectingWriter(SAMFileHeader header) {
+			this.header = header;
+		}
+
+		@Override
+		public void addAlignment(SAMRecord alignment) {
+			reads.add(alignment);
+		}
+
+		@Override
+		public SAMFileHeader getFileHeader() {
+			return header;
+		}
+
+		@Override
+		public void setProgressLogger(ProgressLoggerInterface progress) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class OrderedTaskQueueTest {
+
+	@Test (groups = "unit")
+	public void testOrderedAndBounded() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final List<Integer> results = new ArrayList<Integer>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		OrderedTaskQueue<Integer> queue = new OrderedTaskQueue<Integer>(executor, 3, new OrderedTaskQueue.ResultWriter<Integer>() {
+			@Override
+			public void write(Integer result) throws IOException {
+				running.decrementAndGet();
+				results.add(result);
+			}
+		});
+
+		final Random random = new Random(1);
+		for (int i=0; i<200; i++) {
+			final int value = i;
+			final int sleep = random.nextInt(3);
+			maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+			queue.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					Thread.sleep(sleep);
+					return value;
+				}
+			});
+		}
+
+		queue.finish();
+		executor.shutdown();
+
+		assertEquals(results.size(), 200);
+		for (int i=0; i<200; i++) {
+			assertEquals((int) results.get(i), i);
+		}
+
+		// Submitted but unwritten tasks never exceed the bound
+		assertTrue(maxRunning.get() <= 4);
+	}
+}
@@ -0,0 +1,62 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import htsjdk.samtools.TextCigarCodec;
+
+import org.testng.annotations.Test;
+
+public class PackedCigarTest {
+
+	@Test (groups = "unit")
+	public void testParse() {
+		PackedCigar cigar = PackedCigar.parse("5S100M50D10I10M300N35M2H");
+		assertEquals(cigar.getNumBlocks(), 8);
+		assertEquals(cigar.getLength(2), 50);
+		assertEquals(cigar.getOp(2), PackedCigar.D);
+		assertEquals(cigar.toString(), "5S100M50D10I10M300N35M2H");
+		assertEquals(cigar, new PackedCigar(new int[] { (5 << 4) | 4, (100 << 4), (50 << 4) | 2, (10 << 4) | 1, (10 << 4), (300 << 4) | 3, (35 << 4), (2 << 4) | 5 }));
+		assertTrue(cigar.contains(PackedCigar.N));
+		assertFalse(cigar.contains(PackedCigar.X));
+		assertEquals(PackedCigar.parse("").getNumBlocks(), 0);
+	}
+
+	@Test (groups = "unit")
+	public void testMatchesAndToCigar() {
+		PackedCigar cigar = PackedCigar.parse("6M1D22M");
+		assertTrue(cigar.matches(TextCigarCodec.decode("6M1D22M")));
+		assertFalse(cigar.matches(TextCigarCodec.decode("6M1N22M")));
+		assertFalse(cigar.matches(TextCigarCodec.decode("6M1D21M")));
+		assertFalse(cigar.matches(TextCigarCodec.decode("6M1D22M1S")));
+		assertEquals(cigar.toCigar(), TextCigarCodec.decode("6M1D22M"));
+	}
+
+	@Test (groups = "unit")
+	public void testWithClips() {
+		PackedCigar cigar = PackedCigar.parse("20M5I25M");
+		assertEquals(cigar.withClips(TextCigarCodec.decode("3H5S50M10S")).toString(), "3H5S20M5I25M10S");
+		assertEquals(cigar.withClips(TextCigarCodec.decode("50M10S")).toString(), "20M5I25M10S");
+		assertEquals(cigar.withClips(TextCigarCodec.decode("60M")).toString(), "20M5I25M");
+	}
+
+	@Test (groups = "unit")
+	public void testSubsetSharedContigCigar() {
+		PackedCigar contigCigar = PackedCigar.parse("100M50D10I10M10I20D400M");
+
+		PackedCigar.Builder readCigar = new PackedCigar.Builder();
+		assertEquals(CigarUtils.subsetCigar(50, 100, contigCigar, readCigar), 50);
+		assertEquals(readCigar.build().toString(), "50M50D10I10M10I20D20M");
+
+		// Starting within an insertion
+		readCigar = new PackedCigar.Builder();
+		assertEquals(CigarUtils.subsetCigar(105, 50, contigCigar, readCigar), 150);
+		assertEquals(readCigar.build().toString(), "5I10M10I20D25M");
+
+		// Beyond the end of the contig
+		readCigar = new PackedCigar.Builder();
+		assertEquals(CigarUtils.subsetCigar(600, 50, contigCigar, readCigar), 580);
+		assertEquals(readCigar.build().toString(), "");
+	}
+}
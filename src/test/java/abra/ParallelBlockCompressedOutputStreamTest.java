@@ -0,0 +1,95 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.zip.DeflaterFactory;
+
+import org.testng.annotations.Test;
+
+public class ParallelBlockCompressedOutputStreamTest {
+
+	// Mix of compressible and random (incompressible) data
+	private byte[] createData(Random random, int length) {
+		byte[] data = new byte[length];
+		for (int i=0; i<length; i++) {
+			data[i] = (i / 100000) % 2 == 0 ? (byte) "ACGT".charAt(random.nextInt(4)) : (byte) random.nextInt();
+		}
+		return data;
+	}
+
+	private void testRoundTrip(ExecutorService executor) throws IOException {
+		Random random = new Random(1);
+		byte[] data = createData(random, 1000000);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ParallelBlockCompressedOutputStream bgzf = new ParallelBlockCompressedOutputStream(output, 0, 5, new DeflaterFactory(), executor, 3);
+
+		// Record block pointers at arbitrary write boundaries
+		List<Integer> offsets = new ArrayList<Integer>();
+		List<Long> pointers = new ArrayList<Long>();
+		int pos = 0;
+		while (pos < data.length) {
+			int len = Math.min(data.length - pos, 1 + random.nextInt(5000));
+			offsets.add(pos);
+			pointers.add(bgzf.getBlockPointer());
+			bgzf.write(data, pos, len);
+			pos += len;
+		}
+		bgzf.close();
+
+		byte[] compressed = output.toByteArray();
+
+		// Identical to single threaded htsjdk output
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		BlockCompressedOutputStream htsjdkBgzf = new BlockCompressedOutputStream(expected, (Path) null, 5, new DeflaterFactory());
+		htsjdkBgzf.write(data);
+		htsjdkBgzf.close();
+		assertEquals(compressed, expected.toByteArray());
+
+		BlockCompressedInputStream input = new BlockCompressedInputStream(new ByteArrayInputStream(compressed));
+		byte[] decompressed = new byte[data.length];
+		int read = 0;
+		while (read < data.length) {
+			read += input.read(decompressed, read, data.length - read);
+		}
+		assertEquals(input.read(), -1);
+		input.close();
+		assertEquals(decompressed, data);
+
+		BlockCompressedInputStream seekable = new BlockCompressedInputStream(new SeekableMemoryStream(compressed, "test"));
+		for (int i=0; i<offsets.size(); i+=17) {
+			seekable.seek(bgzf.toVirtualFilePointer(pointers.get(i)));
+			byte[] bytes = new byte[10];
+			int len = seekable.read(bytes);
+			int offset = offsets.get(i);
+			assertEquals(Arrays.copyOf(bytes, len), Arrays.copyOfRange(data, offset, offset + len));
+		}
+		seekable.close();
+	}
+
+	@Test (groups = "unit")
+	public void testParallelDeflate() throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		testRoundTrip(executor);
+		executor.shutdown();
+	}
+
+	@Test (groups = "unit")
+	public void testInlineDeflate() throws IOException {
+		testRoundTrip(null);
+	}
+}
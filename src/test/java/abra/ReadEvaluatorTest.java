@@ -4,11 +4,19 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import htsjdk.samtools.SAMRecord;
 
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import abra.ReadEvaluator.Alignment;
+import abra.ReadEvaluator.RemapKey;
+import abra.ReadEvaluator.RemapVerdict;
 import abra.ContigAligner.ContigAlignerResult;
 import abra.SimpleMapper.Orientation;
 
@@ -40,7 +48,7 @@ public class ReadEvaluatorTest {
 		// should result in an improved alignment
 		Alignment alignment = re.getImprovedAlignment(2, read);
 		assertEquals(alignment.pos, 14);  // Alignment pos = 10 + 4
-		assertEquals(alignment.cigar, "6M1D22M");
+		assertEquals(alignment.cigar.toString(), "6M1D22M");
 		assertEquals(alignment.numMismatches, 1);
 		assertEquals(alignment.orientation, Orientation.FORWARD);
 	}
@@ -93,7 +101,7 @@ public class ReadEvaluatorTest {
 		// Exact match to contig 4
 		Alignment alignment = re.getImprovedAlignment(2, read);
 		assertEquals(alignment.pos, 44);  // Alignment pos = 40 + 4
-		assertEquals(alignment.cigar, "6M1D22M");
+		assertEquals(alignment.cigar.toString(), "6M1D22M");
 		assertEquals(alignment.orientation, Orientation.FORWARD);
 	}
 	
@@ -128,7 +136,7 @@ public class ReadEvaluatorTest {
 		// alignment result identical in the context of the reference
 		Alignment alignment = re.getImprovedAlignment(2, read);
 		assertEquals(alignment.pos, 14);  // Alignment pos = 40 + 4
-		assertEquals(alignment.cigar, "6M1D22M");
+		assertEquals(alignment.cigar.toString(), "6M1D22M");
 		assertEquals(alignment.orientation, Orientation.FORWARD);
 	}
 	
@@ -166,8 +174,123 @@ public class ReadEvaluatorTest {
 		// should result in an improved alignment
 		Alignment alignment = re.getImprovedAlignment(2, read);
 		assertEquals(alignment.pos, 14);  // Alignment pos = 10 + 4
-		assertEquals(alignment.cigar, "6M1D22M");
+		assertEquals(alignment.cigar.toString(), "6M1D22M");
 		assertEquals(alignment.numMismatches, 1);
 		assertEquals(alignment.orientation, Orientation.REVERSE);
 	}
+	
+	@Test (groups="unit")
+	public void testSameContigInMultipleRegions() {
+		String contig1 = "ATCGAAAAAATTTTTTCCCCCCGGGGGGATCGGCTAATCG";
+		String read    =     "ATAAAATTTTTTCCCCCCGGGGGGATCG";  // matches contig at 0 based position 4 with 1 mismatch
+		
+		mappedContigs.put(new SimpleMapper(contig1), new ContigAlignerResult(10, "10M1D30M", "chr1", 0, contig1, (short) 1));
+		
+		// Same contig assembled in an overlapping region with a different alignment
+		Map<SimpleMapper, ContigAlignerResult> mappedContigs2 = new HashMap<SimpleMapper, ContigAlignerResult>();
+		mappedContigs2.put(new SimpleMapper(contig1), new ContigAlignerResult(20, "40M", "chr1", 0, contig1, (short) 1));
+		Feature region2 = new Feature("foo", 500, 1500);
+		regionContigs.put(region2, mappedContigs2);
+		
+		ReadEvaluator re = new ReadEvaluator(regionContigs);
+		
+		// Distinct alignments in the context of the reference are ambiguous
+		assertEquals(re.getImprovedAlignment(2, read), null);
+		
+		// Dropping the second region leaves a single alignment once updated
+		regionContigs.remove(region2);
+		re.update();
+		
+		Alignment alignment = re.getImprovedAlignment(2, read);
+		assertEquals(alignment.pos, 14);
+		assertEquals(alignment.cigar.toString(), "6M1D22M");
+		
+		// Adding the region back restores the ambiguity
+		regionContigs.put(region2, mappedContigs2);
+		re.update();
+		assertEquals(re.getImprovedAlignment(2, read), null);
+	}
+	
+	private SAMRecord createRead(String name, String bases, int pos, String cigar) {
+		SAMRecord read = new SAMRecord(null);
+		read.setReadName(name);
+		read.setReferenceName("chr1");
+		read.setReadString(bases);
+		read.setAlignmentStart(pos);
+		read.setCigarString(cigar);
+		return read;
+	}
+	
+	@Test (groups="unit")
+	public void testVerdictCache() {
+		String contig1 = "ATCGAAAAAATTTTTTCCCCCCGGGGGGATCGGCTAATCG";
+		String read    =     "ATAAAATTTTTTCCCCCCGGGGGGATCG";
+		
+		mappedContigs.put(new SimpleMapper(contig1), new ContigAlignerResult(10, "10M1D30M", "chr1", 0, contig1, (short) 1));
+		ReadEvaluator re = new ReadEvaluator(regionContigs);
+		
+		RemapVerdict verdict = new RemapVerdict(2, re.getImprovedAlignment(2, read));
+		re.cacheVerdict(new RemapKey(createRead("read1", read, 15, "28M")), verdict);
+		
+		// Duplicate read shares the verdict
+		assertSame(re.getVerdict(new RemapKey(createRead("read2", read, 15, "28M"))), verdict);
+		
+		// Differing original alignment or sequence does not
+		assertNull(re.getVerdict(new RemapKey(createRead("read3", read, 16, "28M"))));
+		assertNull(re.getVerdict(new RemapKey(createRead("read4", read, 15, "20M8S"))));
+		assertNull(re.getVerdict(new RemapKey(createRead("read5", "C" + read.substring(1), 15, "28M"))));
+		
+		// Unchanged contigs retain the cache
+		re.update();
+		assertSame(re.getVerdict(new RemapKey(createRead("read2", read, 15, "28M"))), verdict);
+		
+		// New contigs invalidate it
+		Map<SimpleMapper, ContigAlignerResult> mappedContigs2 = new HashMap<SimpleMapper, ContigAlignerResult>();
+		mappedContigs2.put(new SimpleMapper(contig1), new ContigAlignerResult(20, "40M", "chr1", 0, contig1, (short) 1));
+		regionContigs.put(new Feature("foo", 500, 1500), mappedContigs2);
+		re.update();
+		assertNull(re.getVerdict(new RemapKey(createRead("read2", read, 15, "28M"))));
+	}
+	
+	@Test (groups="unit")
+	public void testIsNearContigVariant() {
+		String contig1 = "ATCGAAAAAATTTTTTCCCCCCGGGGGGATCGGCTAATCG";
+		
+		// Deletion at reference position 20
+		mappedContigs.put(new SimpleMapper(contig1), new ContigAlignerResult(10, "10M1D30M", "chr1", 0, contig1, (short) 1));
+		ReadEvaluator re = new ReadEvaluator(regionContigs);
+		
+		assertTrue(re.isNearContigVariant(createRead("read1", "ATCGATCGAT", 15, "10M"), 0));
+		assertFalse(re.isNearContigVariant(createRead("read2", "ATCGATCGAT", 30, "10M"), 0));
+		assertFalse(re.isNearContigVariant(createRead("read3", "ATCGATCGAT", 5, "10M"), 0));
+		
+		// Slack and soft clips extend the read span
+		assertTrue(re.isNearContigVariant(createRead("read4", "ATCGATCGAT", 22, "10M"), 2));
+		assertTrue(re.isNearContigVariant(createRead("read5", "ATCGATCGAT", 23, "3S7M"), 0));
+		
+		// Other chromosomes are unaffected
+		SAMRecord read6 = createRead("read6", "ATCGATCGAT", 15, "10M");
+		read6.setReferenceName("chr2");
+		assertFalse(re.isNearContigVariant(read6, 0));
+		
+		SAMRecord unmapped = createRead("read7", "ATCGATCGAT", 30, "*");
+		unmapped.setReadUnmappedFlag(true);
+		assertTrue(re.isNearContigVariant(unmapped, 0));
+	}
+	
+	@Test (groups="unit")
+	public void testIsNearContigMismatch() {
+		String ref     = "ATCGAAAAAATTTTTTCCCCCCGGGGGGATCGGCTAATCGATCGATCGATCGTTGACCA";
+		String contig1 =          "ATTTTTTCCCACCGGGGGGATCGGCTAATC";  // Mismatch at reference position 20
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initLocal("chr1", ref);
+		
+		mappedContigs.put(new SimpleMapper(contig1), new ContigAlignerResult(9, "30M", "chr1", 1, contig1, (short) 1));
+		ReadEvaluator re = new ReadEvaluator(regionContigs, c2r);
+		
+		assertTrue(re.isNearContigVariant(createRead("read1", "ATCGATCGAT", 15, "6M"), 0));
+		assertFalse(re.isNearContigVariant(createRead("read2", "ATCGATCGAT", 21, "10M"), 0));
+		assertFalse(re.isNearContigVariant(createRead("read3", "ATCGATCGAT", 9, "10M"), 0));
+	}
 }
@@ -0,0 +1,164 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.SAMRecord;
+
+import org.testng.annotations.Test;
+
+public class ReadPairIndexTest {
+
+	// 40 base fragment.  Read 1 covers bases 0-29, read 2 covers bases 10-39
+	private static final String FRAGMENT = "ATCGATTACGACTTGGGCAAGTCCATGACCTAGGATCAGT";
+
+	private SAMRecordWrapper createRead(String name, boolean isFirst, int pos, int matePos, boolean isReverse,
+			String seq, String cigar) {
+		SAMRecord read = new SAMRecord(null);
+		read.setReadName(name);
+		read.setReferenceName("chr1");
+		read.setMateReferenceName("chr1");
+		read.setReadPairedFlag(true);
+		read.setFirstOfPairFlag(isFirst);
+		read.setSecondOfPairFlag(!isFirst);
+		read.setReadNegativeStrandFlag(isReverse);
+		read.setMateNegativeStrandFlag(!isReverse);
+		read.setAlignmentStart(pos);
+		read.setMateAlignmentStart(matePos);
+		read.setReadString(seq);
+		read.setBaseQualityString(seq.replaceAll(".", "I"));
+		read.setCigarString(cigar);
+		return new SAMRecordWrapper(read, false, true, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testMergeOnMateArrival() {
+		ReadPairIndex index = new ReadPairIndex();
+
+		SAMRecordWrapper read1 = createRead("pair1", true, 100, 110, false, FRAGMENT.substring(0, 30), "30M");
+		SAMRecordWrapper read2 = createRead("pair1", false, 110, 100, true, FRAGMENT.substring(10), "30M");
+
+		index.addRead(read1);
+		assertEquals(index.size(), 1);
+		assertNull(read1.getMergedSeq());
+
+		index.addRead(read2);
+		assertEquals(index.size(), 0);
+		assertEquals(read1.getMergedSeq(), FRAGMENT);
+		assertEquals(read2.getMergedSeq(), FRAGMENT);
+		assertTrue(read1.shouldAssemble());
+	}
+
+	@Test (groups = "unit")
+	public void testAdapterReadThrough() {
+		ReadPairIndex index = new ReadPairIndex();
+
+		SAMRecordWrapper read1 = createRead("pair1", true, 100, 100, false, FRAGMENT.substring(0, 30), "25M5S");
+		SAMRecordWrapper read2 = createRead("pair1", false, 100, 100, true, FRAGMENT.substring(0, 30), "5S25M");
+
+		index.addRead(read1);
+		index.addRead(read2);
+
+		assertEquals(index.size(), 0);
+		assertFalse(read1.shouldAssemble());
+		assertFalse(read2.shouldAssemble());
+	}
+
+	@Test (groups = "unit")
+	public void testUnmatchedReads() {
+		ReadPairIndex index = new ReadPairIndex();
+
+		// Mate precedes read, so read is not held
+		index.addRead(createRead("pair1", false, 200, 150, true, FRAGMENT, "40M"));
+		assertEquals(index.size(), 0);
+
+		// Same name, but mate start does not match.  The second read is not held as its mate should precede it.
+		SAMRecordWrapper read1 = createRead("pair2", true, 100, 110, false, FRAGMENT.substring(0, 30), "30M");
+		SAMRecordWrapper read2 = createRead("pair2", false, 110, 101, true, FRAGMENT.substring(10), "30M");
+		index.addRead(read1);
+		index.addRead(read2);
+		assertEquals(index.size(), 1);
+		assertNull(read1.getMergedSeq());
+		assertNull(read2.getMergedSeq());
+
+		index.addRead(createRead("pair3", true, 105, 120, false, FRAGMENT, "40M"));
+		assertEquals(index.size(), 2);
+
+		index.evictBefore(101);
+		assertEquals(index.size(), 1);
+
+		index.clear();
+		assertEquals(index.size(), 0);
+	}
+
+	@Test (groups = "unit")
+	public void testManyPendingReads() {
+		ReadPairIndex index = new ReadPairIndex();
+		int numPairs = 5000;
+
+		for (int i=0; i<numPairs; i++) {
+			index.addRead(createRead("read" + i, true, i, i+10, false, FRAGMENT.substring(0, 30), "30M"));
+		}
+		assertEquals(index.size(), numPairs);
+
+		// Mates arrive in a different order than the reads were held
+		for (int i=numPairs-1; i>=0; i--) {
+			SAMRecordWrapper mate = createRead("read" + i, false, i+10, i, true, FRAGMENT.substring(10), "30M");
+			index.addRead(mate);
+			assertEquals(mate.getMergedSeq(), FRAGMENT);
+		}
+		assertEquals(index.size(), 0);
+	}
+
+	@Test (groups = "unit")
+	public void testEvictAcrossWrappedCluster() {
+		ReadPairIndex index = new ReadPairIndex();
+		int mask = index.capacity()-1;
+
+		// Reads whose home slots are at the end of the table, so the probe cluster wraps to the start
+		List<SAMRecordWrapper> evicted = new ArrayList<SAMRecordWrapper>();
+		List<SAMRecordWrapper> held = new ArrayList<SAMRecordWrapper>();
+		int i = 0;
+		while (evicted.size() + held.size() < 12) {
+			String name = "read" + i++;
+			// Runs of evicted reads require re-examining slots filled by backward shifts
+			boolean isEvicted = (evicted.size() + held.size()) % 3 != 2;
+			int pos = isEvicted ? 100 : 200;
+			if ((ReadPairIndex.key(name, pos) & mask) >= mask-3) {
+				SAMRecordWrapper read = createRead(name, true, pos, pos+10, false, FRAGMENT.substring(0, 30), "30M");
+				index.addRead(read);
+				(isEvicted ? evicted : held).add(read);
+			}
+		}
+		assertEquals(index.size(), 12);
+
+		// Nothing starts before 100
+		index.evictBefore(100);
+		assertEquals(index.size(), 12);
+
+		index.evictBefore(150);
+		assertEquals(index.size(), 4);
+
+		for (SAMRecordWrapper read : held) {
+			SAMRecord rec = read.getSamRecord();
+			SAMRecordWrapper mate = createRead(rec.getReadName(), false, rec.getAlignmentStart()+10, rec.getAlignmentStart(), true, FRAGMENT.substring(10), "30M");
+			index.addRead(mate);
+			assertEquals(mate.getMergedSeq(), FRAGMENT);
+		}
+		assertEquals(index.size(), 0);
+
+		// Evicted reads' mates are not matched
+		for (SAMRecordWrapper read : evicted) {
+			SAMRecord rec = read.getSamRecord();
+			SAMRecordWrapper mate = createRead(rec.getReadName(), false, rec.getAlignmentStart()+10, rec.getAlignmentStart(), true, FRAGMENT.substring(10), "30M");
+			index.addRead(mate);
+			assertNull(mate.getMergedSeq());
+		}
+		assertEquals(index.size(), 0);
+	}
+}
@@ -0,0 +1,71 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.List;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
+
+import org.testng.annotations.Test;
+
+import abra.SAMRecordWrapper.Span;
+
+public class SAMRecordWrapperTest {
+
+	private SAMRecord createRead(String cigar, String quals) {
+		SAMRecord read = new SAMRecord(null);
+		read.setReadName("read1");
+		read.setReferenceName("chr1");
+		read.setReadString("ACGTACGTACGTACGTACGT");
+		read.setBaseQualityString(quals);
+		read.setAlignmentStart(100);
+		read.setCigarString(cigar);
+		return read;
+	}
+
+	@Test (groups = "unit")
+	public void testDerivedFeatures() {
+		// Leading 4 base soft clip with 2 high quality bases, trailing 3 base clip with 3 high quality bases
+		String quals = SAMUtils.phredToFastq(new byte[] { 5,30,30,5, 30,30,30,30,30,30,30,30,30,5,30,30,30, 20,20,20 });
+		SAMRecord read = createRead("4S5M2I6M3S", quals);
+		SAMRecordWrapper wrapper = new SAMRecordWrapper(read, false, true, 0);
+
+		assertEquals(wrapper.getNumInsertBases(), 2);
+		assertEquals(wrapper.getNumHighQualBases(20), 17);
+		assertEquals(wrapper.getNumHighQualBases(30), 14);
+		assertEquals(wrapper.getNumHighQualLeadingClipBases(20), 2);
+		assertEquals(wrapper.getNumHighQualTrailingClipBases(20), 3);
+		assertEquals(wrapper.getNumHighQualTrailingClipBases(21), 0);
+		assertEquals(wrapper.samRecordBaseQualSum(), SAMRecordUtils.sumBaseQuals(read));
+
+		List<Span> spans = wrapper.getSpanningRegions();
+		assertEquals(spans.size(), 1);
+		assertEquals(spans.get(0), new Span(96, 114));
+		assertSame(wrapper.getSpanningRegions(), spans);
+	}
+
+	@Test (groups = "unit")
+	public void testInvalidateDerivedFeatures() {
+		String quals = SAMUtils.phredToFastq(new byte[] { 30,30,30,30,30,30,30,30,30,30,30,30,30,30,30,30,30,30,30,30 });
+		SAMRecord read = createRead("5M2I13M", quals);
+		SAMRecordWrapper wrapper = new SAMRecordWrapper(read, false, true, 0);
+
+		assertEquals(wrapper.getNumInsertBases(), 2);
+		assertEquals(wrapper.getNumHighQualLeadingClipBases(20), 0);
+		assertEquals(wrapper.getSpanningRegions().get(0), new Span(100, 118));
+
+		// Read remapped
+		read.setAlignmentStart(200);
+		read.setCigarString("3S5M100N12M");
+		wrapper.invalidateDerivedFeatures();
+
+		assertEquals(wrapper.getNumInsertBases(), 0);
+		assertEquals(wrapper.getNumHighQualLeadingClipBases(20), 3);
+		List<Span> spans = wrapper.getSpanningRegions();
+		assertEquals(spans.size(), 2);
+		assertEquals(spans.get(0), new Span(197, 205));
+		assertEquals(spans.get(1), new Span(305, 317));
+	}
+}
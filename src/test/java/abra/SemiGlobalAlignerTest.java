@@ -1,6 +1,10 @@
 package abra;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.util.Random;
 
 import org.testng.annotations.Test;
 
@@ -120,4 +124,65 @@ public class SemiGlobalAlignerTest {
 		assertEquals(res.cigar, "16M7I");
 		assertEquals(res.position, 0);
 	}
+	
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+	
+	@Test (groups = "unit")
+	public void testBandedMatchesFull() {
+		Random random = new Random(1);
+		
+		for (int i=0; i<20; i++) {
+			String ref = randomSequence(random, 2000);
+			int start = 200 + random.nextInt(800);
+			String left = ref.substring(start, start + 200 + random.nextInt(200));
+			int rightStart = start + left.length();
+			
+			String seq;
+			switch (i % 3) {
+				case 0:
+					// Deletion
+					seq = left + ref.substring(rightStart + 1 + random.nextInt(300), rightStart + 600);
+					break;
+				case 1:
+					// Insertion
+					seq = left + randomSequence(random, 1 + random.nextInt(50)) + ref.substring(rightStart, rightStart + 300);
+					break;
+				default:
+					// Mismatches
+					StringBuffer mutated = new StringBuffer(ref.substring(start, start + 600));
+					for (int j=0; j<6; j++) {
+						mutated.setCharAt(random.nextInt(mutated.length()), 'N');
+					}
+					seq = mutated.toString();
+			}
+			
+			assertNotNull(sg.findBand(seq, ref));
+			
+			SemiGlobalAligner.Result banded = sg.align(seq, ref, true);
+			SemiGlobalAligner.Result full = sg.align(seq, ref, false);
+			
+			assertEquals(banded.score, full.score);
+			assertEquals(banded.position, full.position);
+			assertEquals(banded.endPosition, full.endPosition);
+			assertEquals(banded.cigar, full.cigar);
+		}
+	}
+	
+	@Test (groups = "unit")
+	public void testRepetitiveRefNotBanded() {
+		StringBuffer ref = new StringBuffer();
+		for (int i=0; i<200; i++) {
+			ref.append("CATGCATGCATGCATGGTAC");
+		}
+		String seq = ref.substring(10, 410);
+		
+		assertNull(sg.findBand(seq, ref.toString()));
+	}
 }
@@ -129,4 +129,48 @@ public class SimpleMapperTest {
 		assertEquals(24, smr.getPos());
 		assertEquals(Orientation.REVERSE, smr.getOrientation());
 	}
+	
+	@Test (groups = "unit" )
+	public void testMapAmbiguousBase() {
+		SimpleMapper sm = new SimpleMapper(contig1, DEFAULT_MISMATCH_RATE);
+		String read = "TACTGTCCATGGGAGTGGTACGGAACTGCACGCTAGGGAAGAGNGAGGAATGGCACGCTAGGGAAGGCGAATGACCAGAACGCAAAAGGTTCAGCTTAGTG";
+		SimpleMapperResult smr = sm.map(read);
+		assertEquals(1, smr.getMismatches());
+		assertEquals(257, smr.getPos());
+		assertEquals(Orientation.FORWARD, smr.getOrientation());
+	}
+	
+	@Test (groups = "unit" )
+	public void testMapReadsOfVaryingLength() {
+		SimpleMapper sm = new SimpleMapper(contig1, DEFAULT_MISMATCH_RATE);
+		
+		// Long read followed by short read reusing the same buffers
+		SimpleMapperResult smr = sm.map(contig1.substring(1, 400));
+		assertEquals(0, smr.getMismatches());
+		assertEquals(1, smr.getPos());
+		
+		smr = sm.map(contig1.substring(300, 335));
+		assertEquals(0, smr.getMismatches());
+		assertEquals(300, smr.getPos());
+		assertEquals(Orientation.FORWARD, smr.getOrientation());
+		
+		smr = sm.map("TACTGTCC");
+		assertEquals(SimpleMapper.UNMAPPED, smr.getPos());
+	}
+	
+	@Test (groups = "unit" )
+	public void testMapMismatchesAtWordBoundaries() {
+		SimpleMapper sm = new SimpleMapper(contig1, DEFAULT_MISMATCH_RATE);
+		
+		// Mismatches at the first and last base of each 32 base block
+		char[] read = contig1.substring(257, 358).toCharArray();
+		for (int i : new int[] { 31, 32, 63, 64, 100 }) {
+			read[i] = read[i] == 'A' ? 'C' : 'A';
+		}
+		
+		SimpleMapperResult smr = sm.map(new String(read));
+		assertEquals(5, smr.getMismatches());
+		assertEquals(257, smr.getPos());
+		assertEquals(Orientation.FORWARD, smr.getOrientation());
+	}
 }
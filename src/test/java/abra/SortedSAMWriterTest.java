@@ -0,0 +1,58 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.testng.annotations.Test;
+
+public class SortedSAMWriterTest {
+
+	@Test (groups = "unit")
+	public void testSortBuffersHeldByOneChromosome() throws Exception {
+		final SortedSAMWriter.SortBuffers buffers = new SortedSAMWriter.SortBuffers(10);
+
+		buffers.acquire();
+		SAMRecord[] readsByName = buffers.readsByName;
+		assertEquals(readsByName.length, 10);
+		readsByName[0] = new SAMRecord(new SAMFileHeader());
+
+		final AtomicBoolean isAcquired = new AtomicBoolean(false);
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					started.countDown();
+					buffers.acquire();
+					isAcquired.set(true);
+					buffers.release();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		waiter.start();
+		started.await();
+
+		Thread.sleep(100);
+		assertTrue(!isAcquired.get());
+
+		buffers.release();
+		waiter.join();
+		assertTrue(isAcquired.get());
+
+		// Arrays are reused and cleared
+		buffers.acquire();
+		assertSame(buffers.readsByName, readsByName);
+		assertNull(buffers.readsByName[0]);
+		buffers.release();
+	}
+}
@@ -0,0 +1,154 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.testng.annotations.Test;
+
+public class TempSAMRecordWriterTest {
+
+	private static final String[] BASES = { "A", "C", "G", "T" };
+
+	private SAMFileHeader createHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 10000000));
+		return header;
+	}
+
+	private List<SAMRecord> createReads(SAMFileHeader header, int numReads) {
+		Random random = new Random(1);
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+
+		for (int i=0; i<numReads; i++) {
+			StringBuffer seq = new StringBuffer();
+			StringBuffer quals = new StringBuffer();
+			for (int j=0; j<100; j++) {
+				seq.append(BASES[random.nextInt(4)]);
+				quals.append((char) ('!' + random.nextInt(40)));
+			}
+
+			SAMRecord read = new SAMRecord(header);
+			read.setReadName("read" + random.nextInt(1000000));
+			read.setReferenceName("chr1");
+			read.setAlignmentStart(1 + random.nextInt(1000000));
+			read.setCigarString("100M");
+			read.setReadString(seq.toString());
+			read.setBaseQualityString(quals.toString());
+			read.setAttribute("YO", "chr1,100,+,100M");
+			reads.add(read);
+		}
+
+		return reads;
+	}
+
+	private void testRoundTrip(TempCodec tempCodec) throws IOException {
+		SAMFileHeader header = createHeader();
+		List<SAMRecord> reads = createReads(header, 10000);
+
+		File file = File.createTempFile("abra_temp", ".tmp");
+		TempSAMRecordWriter writer = new TempSAMRecordWriter(file, header, tempCodec);
+		for (SAMRecord read : reads) {
+			writer.addAlignment(read);
+		}
+		writer.close();
+
+		TempSAMRecordReader reader = new TempSAMRecordReader(file, header, tempCodec);
+		int i = 0;
+		while (reader.hasNext()) {
+			assertEquals(reader.next().getSAMString(), reads.get(i++).getSAMString());
+		}
+		reader.close();
+		assertEquals(i, reads.size());
+
+		file.delete();
+	}
+
+	@Test (groups = "unit")
+	public void testSnappyRoundTrip() throws IOException {
+		testRoundTrip(TempCodec.SNAPPY);
+	}
+
+	@Test (groups = "unit")
+	public void testRawRoundTrip() throws IOException {
+		testRoundTrip(TempCodec.RAW);
+	}
+
+	@Test (groups = "unit")
+	public void testMapWindows() throws IOException {
+		Random random = new Random(1);
+		byte[] data = new byte[2000000];
+		for (int i=0; i<data.length; i++) {
+			// Alternate compressible and incompressible regions
+			data[i] = (i / 300000) % 2 == 0 ? (byte) (i % 7) : (byte) random.nextInt();
+		}
+
+		File file = File.createTempFile("abra_temp", ".tmp");
+		TempBlockOutputStream output = new TempBlockOutputStream(Files.newOutputStream(file.toPath()), true);
+		int pos = 0;
+		while (pos < data.length) {
+			int len = Math.min(data.length - pos, random.nextInt(50000));
+			output.write(data, pos, len);
+			pos += len;
+		}
+		output.close();
+
+		// Window barely exceeds the max block size so blocks straddle windows
+		InputStream input = new TempBlockInputStream(file, TempBlockOutputStream.BLOCK_SIZE + 100);
+		byte[] read = new byte[data.length];
+		pos = 0;
+		int len;
+		while ((len = input.read(read, pos, Math.min(read.length - pos, 1 + random.nextInt(10000)))) > 0) {
+			pos += len;
+		}
+		assertEquals(input.read(), -1);
+		input.close();
+
+		assertEquals(pos, data.length);
+		assertEquals(read, data);
+
+		file.delete();
+	}
+
+	@Test (groups = "unit")
+	public void testSortSpills() {
+		SAMFileHeader header = createHeader();
+
+		for (TempCodec tempCodec : TempCodec.values()) {
+			List<SAMRecord> reads = createReads(header, 5000);
+			String tempDir = System.getProperty("java.io.tmpdir");
+
+			// Spills every 1000 reads
+			SortingSAMRecordCollection sorted = SortingSAMRecordCollection.newSortByCoordinateInstance(new SAMRecord[1000], header, 1000, tempDir, tempCodec);
+			for (SAMRecord read : reads) {
+				sorted.add(read);
+			}
+
+			int count = 0;
+			int prevStart = 0;
+			Iterator<SAMRecord> iter = sorted.iterator();
+			while (iter.hasNext()) {
+				SAMRecord read = iter.next();
+				assertTrue(read.getAlignmentStart() >= prevStart);
+				assertEquals(read.getStringAttribute("YO"), "chr1,100,+,100M");
+				prevStart = read.getAlignmentStart();
+				count += 1;
+			}
+			sorted.cleanup();
+
+			assertEquals(count, reads.size());
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class VectorSemiGlobalAlignerTest {
+	
+	private SemiGlobalAligner sg = new SemiGlobalAligner(8,-32,-48,-1);
+	private VectorSemiGlobalAligner vsg = new VectorSemiGlobalAligner(8,-32,-48,-1);
+	
+	private void assertSameResult(String seq, String ref) {
+		SemiGlobalAligner.Result expected = sg.align(seq, ref, false);
+		SemiGlobalAligner.Result actual = vsg.align(seq, ref);
+		
+		assertEquals(actual.score, expected.score);
+		assertEquals(actual.secondBest, expected.secondBest);
+		assertEquals(actual.position, expected.position);
+		assertEquals(actual.endPosition, expected.endPosition);
+		assertEquals(actual.cigar, expected.cigar);
+	}
+	
+	private String randomSequence(Random random, int length) {
+		char[] bases = new char[] { 'A', 'C', 'G', 'T' };
+		StringBuffer seq = new StringBuffer();
+		for (int i=0; i<length; i++) {
+			seq.append(bases[random.nextInt(4)]);
+		}
+		return seq.toString();
+	}
+
+	@Test (groups = "unit")
+	public void testInsert() {
+		SemiGlobalAligner.Result res = vsg.align("GAACCCCTTCCG", "ATCGAATTCCGGGCTA");
+		assertEquals(res.position, 3);
+		assertEquals(res.cigar, "3M4I5M");
+	}
+	
+	@Test (groups = "unit")
+	public void testDelete() {
+		SemiGlobalAligner.Result res = vsg.align("AATTCTA", "ATCGAATTCCGGGCTA");
+		assertEquals(res.position, 4);
+		assertEquals(res.cigar, "4M5D3M");
+		assertEquals(res.score, 4);
+	}
+	
+	@Test (groups = "unit")
+	public void testLeadingAndTrailingInsert() {
+		assertSameResult("TTTTTTTCATGCATGCATGCATG", "CATGCATGCATGCATGGGGGGGGGGGG");
+		assertSameResult("CATGCATGCATGCATGTTTTTTT", "CATGCATGCATGCATGGGGGGGGGGGG");
+	}
+	
+	@Test (groups = "unit")
+	public void testMatchesScalar() {
+		Random random = new Random(1);
+		
+		for (int i=0; i<100; i++) {
+			String ref = randomSequence(random, 50 + random.nextInt(700));
+			int start = random.nextInt(ref.length() / 2);
+			int end = start + 1 + random.nextInt(ref.length() - start);
+			String seq = ref.substring(start, end);
+			
+			switch (i % 4) {
+				case 0:
+					// Deletion
+					int delete = random.nextInt(seq.length());
+					seq = seq.substring(0, delete) + seq.substring(Math.min(seq.length(), delete + 1 + random.nextInt(40)));
+					break;
+				case 1:
+					// Insertion
+					int insert = random.nextInt(seq.length());
+					seq = seq.substring(0, insert) + randomSequence(random, 1 + random.nextInt(30)) + seq.substring(insert);
+					break;
+				case 2:
+					// Unrelated sequence
+					seq = randomSequence(random, 1 + random.nextInt(200));
+					break;
+				default:
+					// Ambiguous bases
+					StringBuffer mutated = new StringBuffer(seq);
+					for (int j=0; j<3; j++) {
+						mutated.setCharAt(random.nextInt(mutated.length()), 'N');
+					}
+					seq = mutated.toString();
+			}
+			
+			if (seq.length() > 0) {
+				assertSameResult(seq, ref);
+			}
+		}
+	}
+}